@@ -0,0 +1,358 @@
+/**
+ * Gherkin Peeler
+ *
+ * Allocation harness - proves that the event handlers do not allocate in steady state.
+ *
+ * Drives an offline GherkinPeeler with millions of synthetic order book, execution and
+ * position events, through the listener methods the LMAX session calls: notify(OrderBookEvent),
+ * notify(Execution) and notify(PositionEvent), given mutable events (SyntheticEvents) that are
+ * reused from one call to the next. The peeler gets an event log (written to /dev/null), a
+ * monitor board nobody shows and its execution quality, so that their part of the handlers is
+ * measured too; with -Dgherkin.jfr=true in GHERKIN_JAVA_OPTS, so are the flight recorder events.
+ * Shards, accounts and shadow variants are not started, they take the tick over on threads of
+ * their own.
+ *
+ * Orders are acknowledged and filled a few ticks later, so that every GherkinState is visited
+ * by every handler. After a warm-up pass and a reset, the bytes
+ * allocated by the current thread (ThreadMXBean) are measured around each handler call and
+ * accounted per handler and state; meanwhile a JFR recording samples the allocations with
+ * their stack traces, which gives the worst offending call sites. Exits with 1 if anything
+ * allocated.
+ *
+ *   allocme.sh [measuredEvents]
+ */
+
+package com.lmax.gherkin;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+import com.lmax.api.FixedPointNumber;
+import com.lmax.api.order.OrderCallback;
+import com.lmax.api.orderbook.PricePoint;
+
+public final class AllocationHarness implements OrderStub
+{
+
+  /*
+   * Constants
+   */
+
+  private static final int ORDER_BOOK = 0;
+  private static final int EXECUTION  = 1;
+  private static final int POSITION   = 2;
+  private static final String handlerDesc[] = {"notify(OrderBookEvent)", "notify(Execution)", "notify(PositionEvent)"};
+
+  private static final long defaultMeasuredEvents = 5000000;
+  private static final long warmupEvents = 1000000;
+  private static final int ackDelayTicks = 3;         // Ticks between placing an order and its acknowledgement
+  private static final int fillDelayTicks = 3;        // Ticks between the acknowledgement and the execution
+  private static final int positionEventEvery = 97;   // Ticks between position events
+  private static final int strayExecutionEvery = 89;  // Ticks between executions nobody is waiting for
+  private static final int worstCallSites = 10;
+  private static final long levelStep = 10;           // Between the prices of two levels of the synthetic books
+
+  /*
+   * Variables
+   */
+
+  private final GherkinPeeler peeler;
+  private final SyntheticMarket market;
+  private final SyntheticEvents.Book book = new SyntheticEvents.Book();
+  private final SyntheticEvents.Fill fill = new SyntheticEvents.Fill();
+  private final SyntheticEvents.Position position = new SyntheticEvents.Position();
+  private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+  private final String[] stateDesc;
+  private final long[][] calls;
+  private final long[][] allocatedBytes;
+  private long calibrationBytes;
+
+  private OrderCallback pendingCallback;
+  private long pendingInstrumentId;
+  private FixedPointNumber pendingQuantity;
+  private int pendingAckTicks;
+  private int pendingFillTicks;
+  private boolean inPositionEvent;
+  private long ordersPlaced;
+  private long ordersDropped;
+
+  /*
+   * Constructor
+   */
+
+  AllocationHarness(GherkinPeeler peeler, SyntheticMarket market)
+  {
+    this.peeler = peeler;
+    this.market = market;
+    Enum<?>[] states = peeler.getState().getDeclaringClass().getEnumConstants();
+    this.stateDesc = new String[states.length];
+    for (int s=0; s<states.length; s++)
+    {
+      stateDesc[s] = states[s].name();
+    }
+    this.calls = new long[handlerDesc.length][states.length];
+    this.allocatedBytes = new long[handlerDesc.length][states.length];
+  }
+
+  /*
+   * Event loop
+   */
+
+  private void run(long events, boolean measure)
+  {
+    for (long t=0; t<events; t++)
+    {
+      // Order book, the synthetic quotes at the level the strategy trades
+      final int pos = market.next();
+      final long id = market.instrumentId(pos);
+      book.instrumentId = id;
+      book.timeStamp = t;
+      final int bookLevel = peeler.getBookLevel();
+      final FixedPointNumber bidQuantity = FixedPointNumber.valueOf(market.bidQuantity(pos));
+      final FixedPointNumber askQuantity = FixedPointNumber.valueOf(market.askQuantity(pos));
+      for (int l=0; l<BookSignals.levels; l++)
+      {
+        book.bidPrices.set(l, new PricePoint(FixedPointNumber.valueOf(market.bid(pos) - (l - bookLevel) * levelStep), bidQuantity));
+        book.askPrices.set(l, new PricePoint(FixedPointNumber.valueOf(market.ask(pos) + (l - bookLevel) * levelStep), askQuantity));
+      }
+      int state = peeler.getState().ordinal();
+      long before = threads.getCurrentThreadAllocatedBytes();
+      peeler.notify(book);
+      long after = threads.getCurrentThreadAllocatedBytes();
+      if (measure) record(ORDER_BOOK, state, after - before);
+
+      // Acknowledge, then fill the pending order a few ticks later
+      if (pendingCallback != null)
+      {
+        if (pendingAckTicks > 0 && --pendingAckTicks == 0)
+        {
+          pendingCallback.onSuccess(++ordersPlaced);
+          pendingFillTicks = fillDelayTicks;
+        }
+        else if (pendingAckTicks == 0 && --pendingFillTicks == 0)
+        {
+          final int orderPos = market.positionOf(pendingInstrumentId);
+          setFill(pendingInstrumentId, pendingQuantity.longValue() > 0 ? market.ask(orderPos) : market.bid(orderPos), pendingQuantity);
+          pendingCallback = null;
+          state = peeler.getState().ordinal();
+          before = threads.getCurrentThreadAllocatedBytes();
+          peeler.notify(fill);
+          after = threads.getCurrentThreadAllocatedBytes();
+          if (measure) record(EXECUTION, state, after - before);
+        }
+      }
+
+      // Executions arriving in the other states
+      if (t % strayExecutionEvery == 0 && !peeler.getState().name().startsWith("WAIT_FOR_"))
+      {
+        setFill(id, market.bid(pos), FixedPointNumber.ONE);
+        state = peeler.getState().ordinal();
+        before = threads.getCurrentThreadAllocatedBytes();
+        peeler.notify(fill);
+        after = threads.getCurrentThreadAllocatedBytes();
+        if (measure) record(EXECUTION, state, after - before);
+      }
+
+      // Position events, alternately flat and unexpectedly open
+      if (t % positionEventEvery == 0)
+      {
+        position.instrumentId = id;
+        position.openQuantity = (t / positionEventEvery) % 2 == 0 ? FixedPointNumber.ZERO : FixedPointNumber.ONE;
+        state = peeler.getState().ordinal();
+        inPositionEvent = true;
+        before = threads.getCurrentThreadAllocatedBytes();
+        peeler.notify(position);
+        after = threads.getCurrentThreadAllocatedBytes();
+        inPositionEvent = false;
+        if (measure) record(POSITION, state, after - before);
+      }
+    }
+  }
+
+  // The whole order filled at once, at the given price
+  private void setFill(long instrumentId, long price, FixedPointNumber quantity)
+  {
+    fill.executionId++;
+    fill.price = FixedPointNumber.valueOf(price);
+    fill.quantity = quantity;
+    fill.order.instructionId = ordersPlaced;
+    fill.order.instrumentId = instrumentId;
+    fill.order.quantity = quantity;
+    fill.order.filledQuantity = quantity;
+  }
+
+  private void record(int handler, int state, long bytes)
+  {
+    calls[handler][state]++;
+    allocatedBytes[handler][state] += Math.max(0, bytes - calibrationBytes);
+  }
+
+  // Bytes reported between two back-to-back reads, subtracted from every measurement
+  private void calibrate()
+  {
+    long min = Long.MAX_VALUE;
+    for (int i=0; i<100000; i++)
+    {
+      final long before = threads.getCurrentThreadAllocatedBytes();
+      final long after = threads.getCurrentThreadAllocatedBytes();
+      min = Math.min(min, after - before);
+    }
+    calibrationBytes = min;
+  }
+
+  @Override
+  public boolean placeMarketOrder(long instrumentId, FixedPointNumber quantity, OrderCallback callback)
+  {
+    if (inPositionEvent)
+    {
+      // Close-outs of unexpected positions are acknowledged at once and never filled
+      callback.onSuccess(++ordersPlaced);
+      return true;
+    }
+    if (pendingCallback != null)
+    {
+      ordersDropped++;
+      return false;
+    }
+    pendingInstrumentId = instrumentId;
+    pendingQuantity = quantity;
+    pendingCallback = callback;
+    pendingAckTicks = ackDelayTicks;
+    return true;
+  }
+
+  /*
+   * Worst offending call sites, from the JFR allocation samples
+   */
+
+  private static List<Map.Entry<String, Long>> worstCallSites(Path dump, long threadId) throws Exception
+  {
+    Map<String, Long> weightBySite = new HashMap<String, Long>();
+    for (RecordedEvent event : RecordingFile.readAllEvents(dump))
+    {
+      if (event.getThread() == null || event.getThread().getJavaThreadId() != threadId) continue;
+      RecordedStackTrace stackTrace = event.getStackTrace();
+      if (stackTrace == null) continue;
+
+      // The allocating frame itself and the first strategy frame above it
+      String site = null;
+      String allocator = null;
+      for (RecordedFrame frame : stackTrace.getFrames())
+      {
+        final String type = frame.getMethod().getType().getName();
+        final String where = type + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+        if (allocator == null) allocator = where;
+        if (type.startsWith("com.lmax.gherkin."))
+        {
+          site = type.equals(AllocationHarness.class.getName()) || type.equals(SyntheticMarket.class.getName()) ? null : where;
+          break;
+        }
+      }
+      if (site == null) continue;  // Allocated by the harness itself, outside the handlers
+      final String key = site.equals(allocator) ? site : site + " -> " + allocator;
+      weightBySite.merge(key, event.getLong("weight"), Long::sum);
+    }
+    List<Map.Entry<String, Long>> sites = new ArrayList<Map.Entry<String, Long>>(weightBySite.entrySet());
+    sites.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+    return sites.subList(0, Math.min(worstCallSites, sites.size()));
+  }
+
+  /*
+   * Main function
+   */
+
+  public static void main(String[] args) throws Exception
+  {
+    final long measuredEvents = args.length > 0 ? Long.parseLong(args[0]) : defaultMeasuredEvents;
+
+    // Written for real, to nowhere: millions of events would make a large file
+    Path sink = Paths.get("/dev/null");
+    if (!Files.isWritable(sink))
+    {
+      sink = Files.createTempFile("gherkin-allocations", ".bin");
+      sink.toFile().deleteOnExit();
+    }
+    EventLog eventLog = EventLog.open(sink);
+
+    GherkinPeeler gherkinPeeler = new GherkinPeeler();
+    gherkinPeeler.setLiveOutputs(eventLog, new MonitorBoard(gherkinPeeler.getInstrumentIds()));
+    gherkinPeeler.reset();
+    SyntheticMarket market = new SyntheticMarket(gherkinPeeler.getInstrumentIds(), SyntheticMarket.defaultMids(gherkinPeeler.getInstrumentIds().length), 42);
+    AllocationHarness harness = new AllocationHarness(gherkinPeeler, market);
+    gherkinPeeler.setOrderStub(harness);
+
+    PrintStream out = System.out;
+    PrintStream err = System.err;
+    PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+    Path dump = Files.createTempFile("gherkin-allocations", ".jfr");
+    System.setOut(discard);
+    System.setErr(discard);
+    try (Recording recording = new Recording())
+    {
+      harness.run(warmupEvents, false);
+      harness.calibrate();
+
+      // Compiled by now, start over so that the initial states are measured too
+      gherkinPeeler.reset();
+      harness.pendingCallback = null;
+
+      recording.enable("jdk.ObjectAllocationSample").with("throttle", "10000/s").withStackTrace();
+      recording.start();
+      harness.run(measuredEvents, true);
+      recording.stop();
+      recording.dump(dump);
+    }
+    finally
+    {
+      System.setOut(out);
+      System.setErr(err);
+      eventLog.close();
+    }
+
+    // Per handler and state
+    long totalBytes = 0;
+    System.out.printf("%-24s %-16s %12s %14s %10s%n", "handler", "state", "calls", "bytes", "bytes/call");
+    for (int h=0; h<handlerDesc.length; h++)
+    {
+      for (int s=0; s<harness.stateDesc.length; s++)
+      {
+        final long calls = harness.calls[h][s];
+        final long bytes = harness.allocatedBytes[h][s];
+        totalBytes += bytes;
+        System.out.printf("%-24s %-16s %12d %14d %10.1f%s%n", handlerDesc[h], harness.stateDesc[s], calls, bytes,
+                          calls == 0 ? 0.0 : (double)bytes / calls, calls == 0 ? "  (not reached)" : bytes > 0 ? "  <== ALLOCATES" : "");
+      }
+    }
+    System.out.printf("Orders: %d placed, %d dropped while another one was pending%n", harness.ordersPlaced, harness.ordersDropped);
+
+    if (totalBytes == 0)
+    {
+      System.out.println("PASS - No allocation in steady state");
+      Files.deleteIfExists(dump);
+      return;
+    }
+
+    System.out.println("FAIL - " + totalBytes + " bytes allocated in steady state, worst call sites (JFR sampled weight):");
+    for (Map.Entry<String, Long> site : worstCallSites(dump, Thread.currentThread().getId()))
+    {
+      System.out.printf("%14d  %s%n", site.getValue(), site.getKey());
+    }
+    Files.deleteIfExists(dump);
+    System.exit(1);
+  }
+
+}
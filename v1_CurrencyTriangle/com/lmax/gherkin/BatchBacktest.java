@@ -0,0 +1,319 @@
+/**
+ * Gherkin Peeler
+ *
+ * Batch backtest - the strategy's decisions over a long history of ticks, evaluated a batch of
+ * ticks at a time with vector kernels instead of one tick at a time.
+ *
+ * The history is a tick journal (an event log, or one parsed from output.txt by parseme.sh) or,
+ * without one, the given number of synthetic ticks (SyntheticBooks). It is loaded in columns:
+ * instrument position, bid, ask and quantities. The BatchStrategy of the peeler then goes through
+ * it in batches, once with VectorKernels and once with the scalar BatchKernels; both must come to
+ * the same decisions. For comparison, the same ticks are also fed one by one to an offline
+ * GherkinPeeler, through the entry points its notify(OrderBookEvent) calls, with orders filled
+ * at the top of the book right away as in LoadGenerator. Each way runs a few rounds and the best
+ * time is reported, loading excluded.
+ *
+ * The batch strategies evaluate the quote signal and v2's count trend (not the microprice nor the
+ * regression), with the tunables of -Dgherkin.parameters if given; feed gaps and order rejects
+ * are not simulated.
+ *
+ *   batchme.sh [journal.bin | syntheticTicks] [batchTicks]
+ */
+
+package com.lmax.gherkin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Properties;
+
+import com.lmax.api.FixedPointNumber;
+import com.lmax.api.order.OrderCallback;
+
+public final class BatchBacktest implements OrderStub
+{
+
+  /*
+   * Constants
+   */
+
+  private static final int defaultSyntheticTicks = 4000000;
+  private static final int defaultBatchTicks = 65536;
+  private static final int rounds = 3;
+  private static final long unknownQuantity = 1000 * FixedPointMath.scaleFactor;  // Journals parsed from output.txt have none
+  private static final String parametersFile = System.getProperty("gherkin.parameters", "");
+
+  /*
+   * Ticks, in columns
+   */
+
+  private static final class Ticks
+  {
+    int size;
+    int[] pos = new int[1024];
+    long[] bid = new long[1024];
+    long[] ask = new long[1024];
+    long[] bidQuantity = new long[1024];
+    long[] askQuantity = new long[1024];
+
+    void add(int p, long b, long a, long bq, long aq)
+    {
+      if (size == pos.length)
+      {
+        pos = Arrays.copyOf(pos, 2 * size);
+        bid = Arrays.copyOf(bid, 2 * size);
+        ask = Arrays.copyOf(ask, 2 * size);
+        bidQuantity = Arrays.copyOf(bidQuantity, 2 * size);
+        askQuantity = Arrays.copyOf(askQuantity, 2 * size);
+      }
+      pos[size] = p;
+      bid[size] = b;
+      ask[size] = a;
+      bidQuantity[size] = bq;
+      askQuantity[size] = aq;
+      size++;
+    }
+  }
+
+  /*
+   * Variables, for the tick by tick comparison
+   */
+
+  private final GherkinHandlers handlers;
+  private final long[] instrumentId;
+  private final long[] lastBid;  // Top of the book by instrument position, orders are filled there
+  private final long[] lastAsk;
+  private long pendingInstrumentId;
+  private FixedPointNumber pendingQuantity;
+  private OrderCallback pendingCallback;
+  private long ordersPlaced;
+
+  /*
+   * Constructor
+   */
+
+  private BatchBacktest(GherkinHandlers handlers)
+  {
+    this.handlers = handlers;
+    this.instrumentId = handlers.getInstrumentIds();
+    this.lastBid = new long[instrumentId.length];
+    this.lastAsk = new long[instrumentId.length];
+  }
+
+  /*
+   * Loading
+   */
+
+  // Books (or ticks parsed from output.txt) of the instruments traded, in journal order
+  private static Ticks load(Path path, long[] instrumentId) throws IOException
+  {
+    Ticks ticks = new Ticks();
+    try (TickJournal.Reader reader = new TickJournal.Reader(path))
+    {
+      while (reader.next())
+      {
+        switch (reader.type())
+        {
+          case TickJournal.TYPE_BOOK:
+          case TickJournal.TYPE_TICK:
+          {
+            final int p = positionOf(instrumentId, reader.instrumentId());
+            if (p >= 0)
+            {
+              ticks.add(p, reader.value1(), reader.value2(), unknownQuantity, unknownQuantity);
+            }
+            break;
+          }
+          case TickJournal.TYPE_BOOK_QUANTITY:
+          {
+            // Follows the book it belongs to
+            if (ticks.size > 0 && instrumentId[ticks.pos[ticks.size - 1]] == reader.instrumentId())
+            {
+              ticks.bidQuantity[ticks.size - 1] = reader.value1();
+              ticks.askQuantity[ticks.size - 1] = reader.value2();
+            }
+            break;
+          }
+          default:
+            break;
+        }
+      }
+    }
+    return ticks;
+  }
+
+  // Five-level books at the level the strategy trades
+  private static Ticks synthesize(int count, long[] instrumentId, String[] instrumentDesc, int level)
+  {
+    Ticks ticks = new Ticks();
+    SyntheticBooks books = new SyntheticBooks(instrumentId, instrumentDesc, 42);
+    long[] depth = new long[BookSignals.depthSize];
+    for (int t=0; t<count; t++)
+    {
+      final int p = books.next(depth);
+      ticks.add(p, depth[BookSignals.bidPrices + level], depth[BookSignals.askPrices + level],
+                depth[BookSignals.bidQuantities + level], depth[BookSignals.askQuantities + level]);
+    }
+    return ticks;
+  }
+
+  private static int positionOf(long[] instrumentId, long id)
+  {
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      if (instrumentId[i] == id) return i;
+    }
+    return -1;
+  }
+
+  /*
+   * Runs
+   */
+
+  // The whole history through a new batch strategy; the time taken, its report in report[0] and its orders in orders[0]
+  private static long runBatches(Ticks ticks, Properties parameters, BatchKernels kernels, int batchTicks, String[] report, long[] orders)
+  {
+    BatchStrategy strategy = GherkinPeeler.newBatchStrategy(parameters, kernels);
+    final long start = System.nanoTime();
+    for (int from=0; from<ticks.size; from+=batchTicks)
+    {
+      strategy.run(ticks.pos, ticks.bid, ticks.ask, from, Math.min(ticks.size, from + batchTicks));
+    }
+    final long elapsed = System.nanoTime() - start;
+    report[0] = strategy.report();
+    orders[0] = strategy.orders();
+    return elapsed;
+  }
+
+  // The whole history through the offline peeler, a tick at a time; the time taken
+  private long runPerTick(Ticks ticks)
+  {
+    handlers.reset();
+    Arrays.fill(lastBid, 0);
+    Arrays.fill(lastAsk, 0);
+    ordersPlaced = 0;
+    final long start = System.nanoTime();
+    for (int t=0; t<ticks.size; t++)
+    {
+      final int p = ticks.pos[t];
+      final long id = instrumentId[p];
+      lastBid[p] = ticks.bid[t];
+      lastAsk[p] = ticks.ask[t];
+      handlers.onIngress(id, System.nanoTime());
+      handlers.onOrderBook(id, FixedPointNumber.valueOf(ticks.bid[t]), FixedPointNumber.valueOf(ticks.ask[t]),
+                           FixedPointNumber.valueOf(ticks.bidQuantity[t]), FixedPointNumber.valueOf(ticks.askQuantity[t]));
+
+      // Acknowledge and fill the order placed on this tick, if any
+      if (pendingCallback != null)
+      {
+        final OrderCallback callback = pendingCallback;
+        final int orderPos = positionOf(instrumentId, pendingInstrumentId);
+        final long price = pendingQuantity.longValue() > 0 ? lastAsk[orderPos] : lastBid[orderPos];
+        pendingCallback = null;
+        callback.onSuccess(++ordersPlaced);
+        handlers.onExecution(FixedPointNumber.valueOf(price), pendingQuantity);
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  @Override
+  public boolean placeMarketOrder(long instrumentId, FixedPointNumber quantity, OrderCallback callback)
+  {
+    this.pendingInstrumentId = instrumentId;
+    this.pendingQuantity = quantity;
+    this.pendingCallback = callback;
+    return true;
+  }
+
+  /*
+   * Main
+   */
+
+  public static void main(String[] args) throws IOException
+  {
+    final boolean fromJournal = args.length > 0 && !args[0].matches("\\d+");
+    final int batchTicks = args.length > 1 ? Integer.parseInt(args[1]) : defaultBatchTicks;
+    if (batchTicks < 1)
+    {
+      System.out.println("Usage:");
+      System.out.println("  " + BatchBacktest.class.getName() + " [journal.bin | syntheticTicks] [batchTicks>=1]");
+      System.exit(-1);
+    }
+
+    Properties parameters = parametersFile.isEmpty() ? new Properties() : ParameterWatcher.load(Paths.get(parametersFile));
+    GherkinPeeler gherkinPeeler = new GherkinPeeler(parameters);
+    BatchBacktest backtest = new BatchBacktest(gherkinPeeler);
+    gherkinPeeler.setOrderStub(backtest);
+    final long[] instrumentId = gherkinPeeler.getInstrumentIds();
+
+    final Ticks ticks;
+    if (fromJournal)
+    {
+      final Path path = Paths.get(args[0]);
+      if (!Files.isReadable(path))
+      {
+        System.err.println("ERROR - Cannot read " + path);
+        System.exit(-1);
+      }
+      ticks = load(path, instrumentId);
+    }
+    else
+    {
+      final int count = args.length > 0 ? Integer.parseInt(args[0]) : defaultSyntheticTicks;
+      ticks = synthesize(count, instrumentId, gherkinPeeler.getInstrumentDescs(), gherkinPeeler.getBookLevel());
+    }
+    System.out.printf("%,d ticks of %d instruments (%s), batches of %,d, %s%n",
+                      ticks.size, instrumentId.length, fromJournal ? args[0] : "synthetic", batchTicks, new VectorKernels().describe());
+
+    // Best of a few rounds each, the first ones also compile the code
+    PrintStream out = System.out;
+    PrintStream err = System.err;
+    PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+    long perTickNanos = Long.MAX_VALUE;
+    long scalarNanos = Long.MAX_VALUE;
+    long vectorNanos = Long.MAX_VALUE;
+    String[] scalarReport = new String[1];
+    String[] vectorReport = new String[1];
+    long[] batchOrders = new long[1];
+    for (int r=0; r<rounds; r++)
+    {
+      System.setOut(discard);
+      System.setErr(discard);
+      try
+      {
+        perTickNanos = Math.min(perTickNanos, backtest.runPerTick(ticks));
+      }
+      finally
+      {
+        System.setOut(out);
+        System.setErr(err);
+      }
+      scalarNanos = Math.min(scalarNanos, runBatches(ticks, parameters, new BatchKernels(), batchTicks, scalarReport, batchOrders));
+      vectorNanos = Math.min(vectorNanos, runBatches(ticks, parameters, new VectorKernels(), batchTicks, vectorReport, batchOrders));
+    }
+
+    out.printf("Per tick:       %,9.1f ms %,12.0f ticks/s, %d orders%n", perTickNanos / 1e6, ticks.size * 1e9 / perTickNanos, backtest.ordersPlaced);
+    out.printf("Batch, scalar:  %,9.1f ms %,12.0f ticks/s%n", scalarNanos / 1e6, ticks.size * 1e9 / scalarNanos);
+    out.printf("Batch, vector:  %,9.1f ms %,12.0f ticks/s, %.1fx scalar, %.1fx per tick%n", vectorNanos / 1e6, ticks.size * 1e9 / vectorNanos,
+               (double)scalarNanos / vectorNanos, (double)perTickNanos / vectorNanos);
+    if (!vectorReport[0].equals(scalarReport[0]))
+    {
+      System.err.println("ERROR - Vector and scalar decisions differ:");
+      System.err.println("  vector: " + vectorReport[0]);
+      System.err.println("  scalar: " + scalarReport[0]);
+      System.exit(-1);
+    }
+    out.println("Decisions: " + vectorReport[0]);
+    if (batchOrders[0] != backtest.ordersPlaced)
+    {
+      System.err.println("ERROR - The batches opened and closed " + batchOrders[0] + " times, the peeler placed " + backtest.ordersPlaced + " orders");
+      System.exit(-1);
+    }
+  }
+
+}
@@ -0,0 +1,85 @@
+/**
+ * Gherkin Peeler
+ *
+ * Batch kernels - the stateless arithmetic of the strategies over columns of ticks, for the
+ * batch backtest.
+ *
+ * Each kernel computes one column from others, element by element over a range: spreads,
+ * the direction of a quote against the previous one, the prices of a leg derived from the two
+ * other legs of a triangle, and the price comparisons that decide whether to open. These are
+ * the scalar ones, done one element at a time exactly like the peelers do them (mantissas
+ * multiplied and divided by FixedPointMath); VectorKernels does the same a vector at a time and
+ * is checked against them. Kept free of the vector API, so that the peelers compile without
+ * --add-modules jdk.incubator.vector.
+ */
+
+package com.lmax.gherkin;
+
+class BatchKernels
+{
+
+  /*
+   * Kernels, allocation-free
+   */
+
+  String describe()
+  {
+    return "scalar";
+  }
+
+  // spread = ask - bid
+  void spread(long[] bid, long[] ask, long[] spread, int from, int to)
+  {
+    for (int i=from; i<to; i++)
+    {
+      spread[i] = ask[i] - bid[i];
+    }
+  }
+
+  // Up when both bid and ask are above the previous ones (element i - 1, so from >= 1), down when both are below
+  void direction(long[] bid, long[] ask, boolean[] up, boolean[] down, int from, int to)
+  {
+    for (int i=from; i<to; i++)
+    {
+      up[i] = bid[i] > bid[i - 1] && ask[i] > ask[i - 1];
+      down[i] = bid[i] < bid[i - 1] && ask[i] < ask[i - 1];
+    }
+  }
+
+  // product = a * b, both mantissas, e.g. GBP/USD x EUR/GBP = EUR/USD
+  void multiply(long[] a, long[] b, long[] product, int from, int to)
+  {
+    for (int i=from; i<to; i++)
+    {
+      product[i] = FixedPointMath.multiply(a[i], b[i]);
+    }
+  }
+
+  // quotient = a / b, both mantissas, e.g. EUR/USD / EUR/GBP = GBP/USD; 0 where b is 0 (a leg without a price yet)
+  void divide(long[] a, long[] b, long[] quotient, int from, int to)
+  {
+    for (int i=from; i<to; i++)
+    {
+      quotient[i] = b[i] == 0 ? 0 : FixedPointMath.divide(a[i], b[i]);
+    }
+  }
+
+  // above = a > b + c, e.g. a derived bid above the ask by more than the spread
+  void above(long[] a, long[] b, long[] c, boolean[] above, int from, int to)
+  {
+    for (int i=from; i<to; i++)
+    {
+      above[i] = a[i] > b[i] + c[i];
+    }
+  }
+
+  // below = a < b - c, e.g. a derived ask below the bid by more than the spread
+  void below(long[] a, long[] b, long[] c, boolean[] below, int from, int to)
+  {
+    for (int i=from; i<to; i++)
+    {
+      below[i] = a[i] < b[i] - c[i];
+    }
+  }
+
+}
@@ -0,0 +1,26 @@
+/**
+ * Gherkin Peeler
+ *
+ * Batch strategy - a peeler's decisions evaluated over columns of ticks instead of tick by tick,
+ * for the batch backtest (BatchBacktest).
+ *
+ * The stateless arithmetic of a range of ticks (spreads, directions, derived prices, price
+ * comparisons) is done column by column by BatchKernels, then a scalar pass runs what depends on
+ * the order of the ticks: running counts and extremes, and the state machine deciding to open
+ * and close. Orders are filled at the top of the book of the tick that placed them. Each peeler
+ * provides its own, GherkinPeeler.newBatchStrategy().
+ */
+
+package com.lmax.gherkin;
+
+interface BatchStrategy
+{
+  // Ticks from..to in order: instrument position, bid and ask at the book level traded; the state carries over to the next range
+  void run(int[] pos, long[] bid, long[] ask, int from, int to);
+
+  // Decisions so far, the same whether the kernels are vectorized or not
+  String report();
+
+  // Orders so far, opens and closes: as many as the peeler sends when fed the same ticks one by one
+  long orders();
+}
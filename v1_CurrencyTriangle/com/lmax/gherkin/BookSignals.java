@@ -0,0 +1,209 @@
+/**
+ * Gherkin Peeler
+ *
+ * Book signals - microprice, imbalance, order flow and queue depletion from the book depth.
+ *
+ * Every OrderBookEvent is decoded once into a flat depth array (prices and quantities of the
+ * first levels of each side, as mantissas) and fed here; each signal is then updated from the
+ * previous depth of the instrument in a few dozen integer operations, without allocating:
+ *
+ *   microprice       top of book prices weighted by the depth on the other side, level l
+ *                    counting for 1/2^l of its quantity: bid + spread * Qbid / (Qbid + Qask)
+ *   imbalance        (Qbid - Qask) / (Qbid + Qask), from -1 (all asks) to +1 (all bids)
+ *   order flow       multi-level order-flow imbalance: per level, bid quantity added minus
+ *                    taken plus ask quantity taken minus added, weighted like the depth and
+ *                    smoothed over the last updates (positive = buying pressure)
+ *   depletion rates  quantity per second leaving the best bid and ask queues, consumed or
+ *                    cancelled, smoothed; the queue is all gone when the price moves away
+ *
+ * Time comes from the exchange timestamps of the events, so a replay gives the same signals.
+ */
+
+package com.lmax.gherkin;
+
+import java.util.List;
+import java.util.Locale;
+
+import com.lmax.api.orderbook.PricePoint;
+
+final class BookSignals
+{
+
+  /*
+   * Constants
+   */
+
+  // Depth layout
+  static final int levels = 5;  // All the peelers subscribe to
+  static final int bidPrices = 0;
+  static final int bidQuantities = levels;
+  static final int askPrices = 2 * levels;
+  static final int askQuantities = 3 * levels;
+  static final int depthSize = 4 * levels;
+
+  private static final int smoothingShift = 4;  // Exponential smoothing of the flow signals, 1/16 per update
+  private static final long scaleFactor = FixedPointMath.scaleFactor;
+
+  private final long[] instrumentId;
+
+  /*
+   * Variables, per instrument position
+   */
+
+  private final long[][] previous;
+  private final long[] previousMillis;
+  private final boolean[] ready;
+
+  private final long[] microprice;
+  private final long[] imbalance;
+  private final long[] orderFlow;
+  private final long[] bidDepletionRate;
+  private final long[] askDepletionRate;
+  private final long[] pendingBidDepletion;  // Updates within the same millisecond, until time moves
+  private final long[] pendingAskDepletion;
+
+  /*
+   * Constructor
+   */
+
+  BookSignals(long[] instrumentId)
+  {
+    final int n = instrumentId.length;
+    this.instrumentId = instrumentId.clone();
+    this.previous = new long[n][depthSize];
+    this.previousMillis = new long[n];
+    this.ready = new boolean[n];
+    this.microprice = new long[n];
+    this.imbalance = new long[n];
+    this.orderFlow = new long[n];
+    this.bidDepletionRate = new long[n];
+    this.askDepletionRate = new long[n];
+    this.pendingBidDepletion = new long[n];
+    this.pendingAskDepletion = new long[n];
+  }
+
+  // At least `levels` price points on each side, which the peelers check first
+  static void decode(List<PricePoint> bids, List<PricePoint> asks, long[] depth)
+  {
+    for (int l=0; l<levels; l++)
+    {
+      final PricePoint bid = bids.get(l);
+      final PricePoint ask = asks.get(l);
+      depth[bidPrices + l] = bid.getPrice().longValue();
+      depth[bidQuantities + l] = bid.getQuantity().longValue();
+      depth[askPrices + l] = ask.getPrice().longValue();
+      depth[askQuantities + l] = ask.getQuantity().longValue();
+    }
+  }
+
+  /*
+   * Updates
+   */
+
+  // Position of the instrument, -1 if not tracked
+  int onDepth(long id, long[] depth, long timeMillis)
+  {
+    int pos = -1;
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      if (instrumentId[i] == id) pos = i;
+    }
+    if (pos < 0) return -1;
+
+    // Depth on each side, level l weighing 1/2^l
+    long bidDepth = 0;
+    long askDepth = 0;
+    for (int l=0; l<levels; l++)
+    {
+      bidDepth += depth[bidQuantities + l] >> l;
+      askDepth += depth[askQuantities + l] >> l;
+    }
+    final long bid = depth[bidPrices];
+    final long ask = depth[askPrices];
+    final long totalDepth = bidDepth + askDepth;
+    microprice[pos] = totalDepth == 0 ? (bid + ask) / 2 : bid + FixedPointMath.multiplyDivide(ask - bid, bidDepth, totalDepth);
+    imbalance[pos] = totalDepth == 0 ? 0 : FixedPointMath.multiplyDivide(scaleFactor, bidDepth - askDepth, totalDepth);
+
+    final long[] last = previous[pos];
+    if (ready[pos])
+    {
+      long flow = 0;
+      for (int l=0; l<levels; l++)
+      {
+        flow += levelFlow(depth, last, l) >> l;
+      }
+      orderFlow[pos] += (flow - orderFlow[pos]) >> smoothingShift;
+
+      pendingBidDepletion[pos] += depleted(last[bidPrices], last[bidQuantities], bid, depth[bidQuantities], true);
+      pendingAskDepletion[pos] += depleted(last[askPrices], last[askQuantities], ask, depth[askQuantities], false);
+      final long elapsedMillis = timeMillis - previousMillis[pos];
+      if (elapsedMillis > 0)
+      {
+        bidDepletionRate[pos] += (pendingBidDepletion[pos] * 1000 / elapsedMillis - bidDepletionRate[pos]) >> smoothingShift;
+        askDepletionRate[pos] += (pendingAskDepletion[pos] * 1000 / elapsedMillis - askDepletionRate[pos]) >> smoothingShift;
+        pendingBidDepletion[pos] = 0;
+        pendingAskDepletion[pos] = 0;
+        previousMillis[pos] = timeMillis;
+      }
+    }
+    else
+    {
+      previousMillis[pos] = timeMillis;
+      ready[pos] = true;
+    }
+    System.arraycopy(depth, 0, last, 0, depthSize);
+    return pos;
+  }
+
+  // Order-flow imbalance of one level: bids added or removed, minus asks added or removed
+  private static long levelFlow(long[] depth, long[] last, int l)
+  {
+    final long bid = depth[bidPrices + l];
+    final long lastBid = last[bidPrices + l];
+    final long ask = depth[askPrices + l];
+    final long lastAsk = last[askPrices + l];
+    final long bidFlow = (bid >= lastBid ? depth[bidQuantities + l] : 0) - (bid <= lastBid ? last[bidQuantities + l] : 0);
+    final long askFlow = (ask <= lastAsk ? depth[askQuantities + l] : 0) - (ask >= lastAsk ? last[askQuantities + l] : 0);
+    return bidFlow - askFlow;
+  }
+
+  // Quantity gone from the best queue of one side: all of it when the price moved away from the spread
+  private static long depleted(long lastPrice, long lastQuantity, long price, long quantity, boolean isBid)
+  {
+    if (price == lastPrice) return Math.max(0, lastQuantity - quantity);
+    return (isBid ? price < lastPrice : price > lastPrice) ? lastQuantity : 0;
+  }
+
+  void reset()
+  {
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      ready[i] = false;
+      orderFlow[i] = 0;
+      bidDepletionRate[i] = 0;
+      askDepletionRate[i] = 0;
+      pendingBidDepletion[i] = 0;
+      pendingAskDepletion[i] = 0;
+    }
+  }
+
+  /*
+   * Signals, FixedPointNumber mantissas
+   */
+
+  boolean isReady(int pos)              { return ready[pos]; }
+  long getMicroprice(int pos)           { return microprice[pos]; }
+  long getImbalance(int pos)            { return imbalance[pos]; }
+  long getOrderFlow(int pos)            { return orderFlow[pos]; }
+  long getBidDepletionRate(int pos)     { return bidDepletionRate[pos]; }
+  long getAskDepletionRate(int pos)     { return askDepletionRate[pos]; }
+
+  String describe(int pos)
+  {
+    if (!ready[pos]) return "no depth yet";
+    return String.format(Locale.ROOT, "microprice=%.5f imbalance=%.3f flow=%.2f depletion=%.2f/%.2f per s",
+                         microprice[pos] / (double)scaleFactor, imbalance[pos] / (double)scaleFactor, orderFlow[pos] / (double)scaleFactor,
+                         bidDepletionRate[pos] / (double)scaleFactor, askDepletionRate[pos] / (double)scaleFactor);
+  }
+
+}
@@ -0,0 +1,220 @@
+/**
+ * Gherkin Peeler
+ *
+ * Correlation matrix - rolling correlation and lead-lag of returns across all the instruments.
+ *
+ * Instruments tick asynchronously, so everything is measured from the point of view of the
+ * instrument that just ticked (row i): its return r_i since its previous tick is compared with
+ *   - what every other instrument j did over the same interval   -> correlation(i, j)
+ *   - what j did over the interval before that                    -> leadLag(j, i), "j leads i"
+ * Since j moved before i ticked, correlation(i, j) also says how much i follows j at its next
+ * tick: likelyFollower(j) is the instrument with the strongest such correlation, kept up to
+ * date as the rows change and answered in O(1). The moments are exponentially weighted
+ * (roughly the last `window` ticks of i) and stored in flat N x N primitive arrays, so a tick
+ * costs O(N) straight loops over row i which C2 can auto-vectorize, and nothing is allocated.
+ * When i weakens as the follower of j, column j is searched again for the best one, O(N) more.
+ *
+ * The peelers publish the likely follower of each instrument and its correlation as gauges at
+ * its every tick (likely_follower_*), and log it with every position they open. It is only read
+ * on the thread that updates it.
+ */
+
+package com.lmax.gherkin;
+
+final class CorrelationMatrix
+{
+
+  /*
+   * Constants
+   */
+
+  private final int n;
+  private final double decay;
+  private final double minWeight;  // Moments below this weight are not reported yet
+
+  /*
+   * Variables
+   */
+
+  private final long[] lastMid;
+  private final double[] cumulativeReturn;  // Sum of the returns of each instrument so far
+
+  // Row i, column j at [i * n + j]
+  private final double[] snapshot;          // cumulativeReturn[j] when i last ticked
+  private final double[] lastMove;          // Move of j over the previous interval of i
+  private final double[] sumXY;             // r_i * move_j
+  private final double[] sumYY;             // move_j^2
+  private final double[] sumLagXY;          // r_i * previous move_j
+  private final double[] sumLagYY;          // previous move_j^2
+
+  private final double[] sumXX;             // r_i^2
+  private final double[] weight;            // Exponentially weighted tick count of i
+  private final double[] move;              // Scratch row
+
+  private final int[] follower;             // Instrument most likely to move after i
+  private final double[] followerScore;
+
+  /*
+   * Constructor
+   */
+
+  CorrelationMatrix(int numInstruments, int window)
+  {
+    this.n = numInstruments;
+    this.decay = 1.0 - 1.0 / window;
+    this.minWeight = Math.min(window / 2.0, 32.0);
+    this.lastMid = new long[n];
+    this.cumulativeReturn = new double[n];
+    this.snapshot = new double[n * n];
+    this.lastMove = new double[n * n];
+    this.sumXY = new double[n * n];
+    this.sumYY = new double[n * n];
+    this.sumLagXY = new double[n * n];
+    this.sumLagYY = new double[n * n];
+    this.sumXX = new double[n];
+    this.weight = new double[n];
+    this.move = new double[n];
+    this.follower = new int[n];
+    this.followerScore = new double[n];
+    reset();
+  }
+
+  void reset()
+  {
+    for (int i=0; i<n; i++)
+    {
+      lastMid[i] = 0;
+      cumulativeReturn[i] = 0;
+      sumXX[i] = 0;
+      weight[i] = 0;
+      follower[i] = -1;
+      followerScore[i] = 0;
+    }
+    for (int k=0; k<n*n; k++)
+    {
+      snapshot[k] = 0;
+      lastMove[k] = 0;
+      sumXY[k] = 0;
+      sumYY[k] = 0;
+      sumLagXY[k] = 0;
+      sumLagYY[k] = 0;
+    }
+  }
+
+  /*
+   * Update, O(N) and allocation-free
+   */
+
+  void onTick(int i, long mid)
+  {
+    final long previousMid = lastMid[i];
+    lastMid[i] = mid;
+    if (previousMid == 0 || mid == previousMid)
+    {
+      return;  // First tick or no move, nothing to learn
+    }
+
+    final double r = (double)(mid - previousMid) / previousMid;
+    cumulativeReturn[i] += r;
+
+    final int row = i * n;
+    final double[] cumulative = cumulativeReturn;
+
+    // Moves of every instrument since i last moved, then roll the snapshot
+    for (int j=0; j<n; j++)
+    {
+      move[j] = cumulative[j] - snapshot[row + j];
+      snapshot[row + j] = cumulative[j];
+    }
+
+    // Exponentially weighted moments for row i
+    final double d = decay;
+    for (int j=0; j<n; j++)
+    {
+      final double m = move[j];
+      final double previousMove = lastMove[row + j];
+      sumXY[row + j] = d * sumXY[row + j] + r * m;
+      sumYY[row + j] = d * sumYY[row + j] + m * m;
+      sumLagXY[row + j] = d * sumLagXY[row + j] + r * previousMove;
+      sumLagYY[row + j] = d * sumLagYY[row + j] + previousMove * previousMove;
+      lastMove[row + j] = m;
+    }
+    sumXX[i] = d * sumXX[i] + r * r;
+    weight[i] = d * weight[i] + 1.0;
+
+    // Row i says how much i follows every j, refresh the followers of each j
+    if (weight[i] < minWeight) return;
+    for (int j=0; j<n; j++)
+    {
+      if (j == i) continue;
+      final double score = Math.abs(correlation(i, j));
+      if (score > followerScore[j])
+      {
+        follower[j] = i;
+        followerScore[j] = score;
+      }
+      else if (follower[j] == i && score < followerScore[j])
+      {
+        refreshFollower(j);  // Another one may follow j more closely now
+      }
+    }
+  }
+
+  // Strongest follower of j over every warmed up row
+  private void refreshFollower(int j)
+  {
+    int best = -1;
+    double bestScore = 0;
+    for (int k=0; k<n; k++)
+    {
+      if (k == j || weight[k] < minWeight) continue;
+      final double score = Math.abs(correlation(k, j));
+      if (best < 0 || score > bestScore)
+      {
+        best = k;
+        bestScore = score;
+      }
+    }
+    follower[j] = best;
+    followerScore[j] = bestScore;
+  }
+
+  /*
+   * Queries, O(1)
+   */
+
+  // Correlation of the returns of i with the moves of j over the same intervals, 0 until warmed up
+  double correlation(int i, int j)
+  {
+    if (weight[i] < minWeight) return 0.0;
+    final double denominator = Math.sqrt(sumXX[i] * sumYY[i * n + j]);
+    return denominator == 0.0 ? 0.0 : sumXY[i * n + j] / denominator;
+  }
+
+  // Correlation of the previous move of leader with the next return of follower, 0 until warmed up
+  double leadLag(int leader, int followerPos)
+  {
+    if (weight[followerPos] < minWeight) return 0.0;
+    return leadLagAt(followerPos * n + leader, followerPos);
+  }
+
+  // The instrument whose next tick co-moves the most with a move of pos, -1 if unknown yet
+  int likelyFollower(int pos)
+  {
+    return follower[pos];
+  }
+
+  // Signed correlation of likelyFollower(pos) with pos: > 0 follows in the same direction
+  double likelyFollowerCorrelation(int pos)
+  {
+    final int f = follower[pos];
+    return f < 0 ? 0.0 : correlation(f, pos);
+  }
+
+  private double leadLagAt(int index, int followerPos)
+  {
+    final double denominator = Math.sqrt(sumXX[followerPos] * sumLagYY[index]);
+    return denominator == 0.0 ? 0.0 : sumLagXY[index] / denominator;
+  }
+
+}
@@ -0,0 +1,144 @@
+/**
+ * Gherkin Peeler
+ *
+ * Diagnostics - rate-limited logging of the messages the strategy would otherwise print per tick.
+ *
+ * Messages belong to a category registered up front ("not betting", "prices", ...) and are keyed
+ * by instrument position. The caller asks admit() before building the message: within each
+ * period only the first few messages of a category and instrument get through, the others are
+ * only counted, so a suppressed message costs a clock read and two atomic increments and never
+ * allocates. flush(), called from the housekeeping thread once per period, reports each category
+ * and instrument that had messages suppressed, e.g. "suppressed 4,812 similar messages in the
+ * last 1s", and starts counting again.
+ *
+ * Counters are AtomicLongArrays, so the shards of a peeler can share one instance without locks.
+ * Run with -Dgherkin.logSampling=false to print everything.
+ */
+
+package com.lmax.gherkin;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+final class Diagnostics
+{
+
+  /*
+   * Constants
+   */
+
+  private static final int maxCategories = 32;
+  private static final boolean enabled = Boolean.parseBoolean(System.getProperty("gherkin.logSampling", "true"));
+
+  private final String[] keyDesc;
+  private final int numKeys;
+  private final long periodNanos;
+
+  /*
+   * Variables
+   */
+
+  private final String[] categoryName = new String[maxCategories];
+  private final int[] messagesPerPeriod = new int[maxCategories];
+  private final AtomicLongArray windowStart;  // Per category and key
+  private final AtomicLongArray admitted;
+  private final AtomicLongArray suppressed;
+  private volatile int numCategories;
+
+  private long lastFlushNanos = System.nanoTime();  // Housekeeping thread only
+
+  /*
+   * Constructor
+   */
+
+  Diagnostics(String[] keyDesc, long periodMillis)
+  {
+    this.keyDesc = keyDesc.clone();
+    this.numKeys = keyDesc.length;
+    this.periodNanos = periodMillis * 1000000L;
+    this.windowStart = new AtomicLongArray(maxCategories * numKeys);
+    this.admitted = new AtomicLongArray(maxCategories * numKeys);
+    this.suppressed = new AtomicLongArray(maxCategories * numKeys);
+  }
+
+  /*
+   * Registration, before the categories are used
+   */
+
+  synchronized int category(String name, int messagesPerPeriod)
+  {
+    final int id = numCategories;
+    if (id == maxCategories)
+    {
+      throw new IllegalStateException("Too many diagnostic categories, " + name + " does not fit");
+    }
+    categoryName[id] = name;
+    this.messagesPerPeriod[id] = messagesPerPeriod;
+    final long now = System.nanoTime();
+    for (int k=0; k<numKeys; k++)
+    {
+      windowStart.set(id * numKeys + k, now - periodNanos);  // The first message goes through
+    }
+    numCategories = id + 1;
+    return id;
+  }
+
+  /*
+   * Hot path, allocation-free
+   */
+
+  // Whether to print the message of this category about the instrument at this position
+  boolean admit(int category, int key)
+  {
+    if (!enabled) return true;
+    final int slot = category * numKeys + key;
+    final long now = System.nanoTime();
+    final long start = windowStart.get(slot);
+    if (now - start >= periodNanos && windowStart.compareAndSet(slot, start, now))
+    {
+      admitted.set(slot, 0);
+    }
+    if (admitted.incrementAndGet(slot) <= messagesPerPeriod[category])
+    {
+      return true;
+    }
+    suppressed.incrementAndGet(slot);
+    return false;
+  }
+
+  /*
+   * Reporting, housekeeping thread
+   */
+
+  // One line per category and instrument with suppressed messages since the last flush
+  void flush(Consumer<String> out)
+  {
+    final long now = System.nanoTime();
+    final long elapsedSeconds = Math.max(1, Math.round((now - lastFlushNanos) / 1e9));
+    lastFlushNanos = now;
+    final int categories = numCategories;
+    for (int c=0; c<categories; c++)
+    {
+      for (int k=0; k<numKeys; k++)
+      {
+        final long count = suppressed.getAndSet(c * numKeys + k, 0);
+        if (count > 0)
+        {
+          out.accept(String.format("%s %s: suppressed %,d similar messages in the last %ds", categoryName[c], keyDesc[k], count, elapsedSeconds));
+        }
+      }
+    }
+  }
+
+  // Forget what was counted so far, e.g. during the JIT warm-up
+  void reset()
+  {
+    final int categories = numCategories;
+    for (int slot=0; slot<categories * numKeys; slot++)
+    {
+      suppressed.set(slot, 0);
+    }
+    lastFlushNanos = System.nanoTime();
+  }
+
+}
@@ -0,0 +1,228 @@
+/**
+ * Gherkin Peeler
+ *
+ * Event log - every input of the strategy, and what it did with it, in a TickJournal file.
+ *
+ * Inputs (order books with their whole depth, executions, positions, order callbacks, session
+ * resets, parameter swaps) each get the next sequence number; the outputs they cause (orders, throttled orders, state transitions, execution
+ * quality) are written right after them with the same number. Since the strategy is
+ * deterministic, feeding the inputs back into an offline GherkinPeeler (EventReplayer) rebuilds
+ * its exact state at any sequence number, and the outputs tell where a replay diverges.
+ *
+ * Callbacks may come from another thread than the market data, so appends are synchronized
+ * (uncontended in practice). Ticks and outputs stay buffered, the other inputs are flushed at
+ * once, so a crash loses at most the last few ticks. An I/O error disables the log, never the
+ * trading.
+ */
+
+package com.lmax.gherkin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import com.lmax.api.FailureResponse;
+import com.lmax.api.order.OrderCallback;
+
+final class EventLog implements Closeable
+{
+
+  /*
+   * Variables
+   */
+
+  private final Path path;
+  private final TickJournal journal;
+  private long sequence;    // Last input event
+  private long orderCount;  // Orders are numbered too, callbacks refer to them
+  private boolean broken;
+
+  /*
+   * Constructor
+   */
+
+  private EventLog(Path path, TickJournal journal)
+  {
+    this.path = path;
+    this.journal = journal;
+  }
+
+  static EventLog open(Path path) throws IOException
+  {
+    return new EventLog(path, TickJournal.open(path));
+  }
+
+  Path getPath()
+  {
+    return path;
+  }
+
+  /*
+   * Inputs
+   */
+
+  // The depth (BookSignals layout) for onDepth(), then the strategy book level for onOrderBook()
+  synchronized void book(long instrumentId, long ingressNanos, long[] depth, long timeMillis, long bid, long ask, long bidQuantity, long askQuantity)
+  {
+    sequence++;
+    append(TickJournal.TYPE_INGRESS, (short)0, instrumentId, ingressNanos, 0);
+    append(TickJournal.TYPE_DEPTH, (short)0, instrumentId, timeMillis, 0);
+    for (int i=0; i<depth.length; i+=2)
+    {
+      append(TickJournal.TYPE_DEPTH_VALUES, (short)0, instrumentId, depth[i], depth[i + 1]);
+    }
+    append(TickJournal.TYPE_BOOK, (short)0, instrumentId, bid, ask);
+    append(TickJournal.TYPE_BOOK_QUANTITY, (short)0, instrumentId, bidQuantity, askQuantity);
+  }
+
+  synchronized void execution(long instrumentId, long price, long filledQuantity)
+  {
+    sequence++;
+    append(TickJournal.TYPE_EXECUTION, (short)0, instrumentId, price, filledQuantity);
+    flush();
+  }
+
+  synchronized void position(long instrumentId, long openQuantity)
+  {
+    sequence++;
+    append(TickJournal.TYPE_POSITION, (short)0, instrumentId, openQuantity, 0);
+    flush();
+  }
+
+  synchronized void callback(long orderNumber, long instructionId, boolean failed)
+  {
+    sequence++;
+    append(TickJournal.TYPE_CALLBACK, failed ? TickJournal.FLAG_FAILED : 0, 0, instructionId, orderNumber);
+    flush();
+  }
+
+  synchronized void reset()
+  {
+    sequence++;
+    append(TickJournal.TYPE_RESET, (short)0, 0, 0, 0);
+    flush();
+  }
+
+  // All the tunables, as they are swapped in, one "key=value" line each
+  synchronized void parameters(Properties parameters)
+  {
+    StringBuilder lines = new StringBuilder();
+    for (String key : new TreeSet<String>(parameters.stringPropertyNames()))
+    {
+      lines.append(key).append('=').append(parameters.getProperty(key)).append('\n');
+    }
+    final byte[] text = lines.toString().getBytes(StandardCharsets.UTF_8);
+    final ByteBuffer chunks = ByteBuffer.allocate((text.length + 15) / 16 * 16).order(ByteOrder.LITTLE_ENDIAN);
+    chunks.put(text).flip().limit(chunks.capacity());
+    sequence++;
+    append(TickJournal.TYPE_PARAMETERS, (short)0, 0, text.length, 0);
+    while (chunks.hasRemaining())
+    {
+      append(TickJournal.TYPE_PARAMETERS_TEXT, (short)0, 0, chunks.getLong(), chunks.getLong());
+    }
+    flush();
+  }
+
+  /*
+   * Outputs
+   */
+
+  // Returns the order number, for traced()
+  synchronized long order(long instrumentId, long quantity, Enum<?> timeInForce)
+  {
+    append(TickJournal.TYPE_ORDER, (short)0, instrumentId, quantity, timeInForce.ordinal());
+    return ++orderCount;
+  }
+
+  // An order the strategy placed but the rate limiter did not send, numbered like none
+  synchronized void throttled(long instrumentId, long quantity)
+  {
+    append(TickJournal.TYPE_THROTTLED, (short)0, instrumentId, quantity, 0);
+  }
+
+  synchronized void state(Enum<?> previous, Enum<?> next)
+  {
+    append(TickJournal.TYPE_STATE, (short)0, 0, previous == null ? -1 : previous.ordinal(), next.ordinal());
+  }
+
+  // Quote and tick an order was decided on (ExecutionQuality), before its order
+  synchronized void decision(long instrumentId, boolean buy, long price, long tickNanos)
+  {
+    append(TickJournal.TYPE_DECISION, buy ? TickJournal.FLAG_BUY : TickJournal.FLAG_SELL, instrumentId, price, tickNanos);
+  }
+
+  // An execution joined to its decision (ExecutionQuality), after the execution
+  synchronized void slippage(long instrumentId, boolean buy, long slippage, long latencyNanos)
+  {
+    append(TickJournal.TYPE_SLIPPAGE, buy ? TickJournal.FLAG_BUY : TickJournal.FLAG_SELL, instrumentId, slippage, latencyNanos);
+  }
+
+  // Logs the acknowledgement of the order before the strategy sees it
+  OrderCallback traced(OrderCallback callback, long orderNumber)
+  {
+    return new OrderCallback()
+    {
+      @Override
+      public void onSuccess(long instructionId)
+      {
+        callback(orderNumber, instructionId, false);
+        callback.onSuccess(instructionId);
+      }
+
+      @Override
+      public void onFailure(FailureResponse failureResponse)
+      {
+        callback(orderNumber, 0, true);
+        callback.onFailure(failureResponse);
+      }
+    };
+  }
+
+  /*
+   * File
+   */
+
+  private void append(short type, short flags, long instrumentId, long value1, long value2)
+  {
+    if (broken) return;
+    try
+    {
+      journal.append(sequence, type, flags, (int)instrumentId, value1, value2);
+    }
+    catch (IOException e)
+    {
+      disable(e);
+    }
+  }
+
+  synchronized void flush()
+  {
+    if (broken) return;
+    try
+    {
+      journal.flush();
+    }
+    catch (IOException e)
+    {
+      disable(e);
+    }
+  }
+
+  private void disable(IOException e)
+  {
+    broken = true;
+    System.err.println("Event log " + path + " disabled: " + e);
+  }
+
+  @Override
+  public synchronized void close() throws IOException
+  {
+    journal.close();
+  }
+
+}
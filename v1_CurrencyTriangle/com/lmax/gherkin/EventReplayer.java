@@ -0,0 +1,337 @@
+/**
+ * Gherkin Peeler
+ *
+ * Event replayer - rebuilds the strategy state of a live session from its EventLog.
+ *
+ * The logged inputs are fed to an offline GherkinPeeler, this class being its OrderStub: the
+ * orders it places are checked against the logged ones and their callbacks are invoked when the
+ * logged acknowledgements come by, or dropped when the session's rate limiter held them back.
+ * Every logged state transition is checked too, so the first divergence between the replay and
+ * the session is reported with its sequence number. Console output of the strategy is discarded
+ * unless -v is given.
+ *
+ *   replayme.sh <events.bin> [sequence] [-v]
+ *
+ * The tunables of a session run with -Dgherkin.parameters are in the EventLog, as loaded at
+ * login and every time they were reloaded, and swapped in at the same sequence numbers.
+ */
+
+package com.lmax.gherkin;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import com.lmax.api.FixedPointNumber;
+import com.lmax.api.order.OrderCallback;
+
+public final class EventReplayer implements OrderStub
+{
+
+  /*
+   * Variables
+   */
+
+  private final GherkinHandlers handlers;
+  private final Map<Long, OrderCallback> callbacks = new HashMap<Long, OrderCallback>();  // By order number
+  private final ArrayDeque<long[]> unverifiedOrders = new ArrayDeque<long[]>();           // Instrument and quantity
+  private final ArrayDeque<OrderCallback> unverifiedCallbacks = new ArrayDeque<OrderCallback>();
+  private long ordersPlaced;
+
+  private final long[] depth = new long[BookSignals.depthSize];
+  private int depthValues = -1;       // Until all of its TYPE_DEPTH_VALUES records are read
+  private long depthTimeMillis;
+
+  private ByteBuffer parametersText;  // Until all of its TYPE_PARAMETERS_TEXT records are read
+  private int parametersLength;
+  private long parameterSwaps;
+
+  private long inputEvents;
+  private long records;
+  private long lastSequence;
+  private long failedCallbacks;
+  private long divergences;
+  private long firstDivergence = -1;
+  private String firstDivergenceDesc;
+
+  /*
+   * Constructor
+   */
+
+  EventReplayer(GherkinHandlers handlers)
+  {
+    this.handlers = handlers;
+  }
+
+  /*
+   * Replay loop
+   */
+
+  void replay(Path path, long untilSequence) throws Exception
+  {
+    long bookInstrumentId = 0;
+    long bid = 0;
+    long ask = 0;
+    try (TickJournal.Reader reader = new TickJournal.Reader(path))
+    {
+      while (reader.next() && reader.sequence() <= untilSequence)
+      {
+        records++;
+        lastSequence = reader.sequence();
+        switch (reader.type())
+        {
+          case TickJournal.TYPE_INGRESS:
+          {
+            handlers.onIngress(reader.instrumentId(), reader.value1());  // Logs without it never go stale
+            break;
+          }
+          case TickJournal.TYPE_DEPTH:
+          {
+            depthTimeMillis = reader.value1();
+            depthValues = 0;
+            break;
+          }
+          case TickJournal.TYPE_DEPTH_VALUES:
+          {
+            if (depthValues < 0)
+            {
+              diverged("depth values without their header");
+              break;
+            }
+            depth[depthValues++] = reader.value1();
+            depth[depthValues++] = reader.value2();
+            if (depthValues == depth.length)
+            {
+              handlers.onDepth(reader.instrumentId(), depth, depthTimeMillis);  // Logs without it never update the depth signals
+              depthValues = -1;
+            }
+            break;
+          }
+          case TickJournal.TYPE_BOOK:
+          {
+            bookInstrumentId = reader.instrumentId();
+            bid = reader.value1();
+            ask = reader.value2();
+            break;
+          }
+          case TickJournal.TYPE_BOOK_QUANTITY:
+          {
+            inputEvents++;
+            handlers.onOrderBook(bookInstrumentId, FixedPointNumber.valueOf(bid), FixedPointNumber.valueOf(ask),
+                                 FixedPointNumber.valueOf(reader.value1()), FixedPointNumber.valueOf(reader.value2()));
+            break;
+          }
+          case TickJournal.TYPE_EXECUTION:
+          {
+            inputEvents++;
+            handlers.onExecution(FixedPointNumber.valueOf(reader.value1()), FixedPointNumber.valueOf(reader.value2()));
+            break;
+          }
+          case TickJournal.TYPE_POSITION:
+          {
+            inputEvents++;
+            handlers.onPosition(reader.instrumentId(), FixedPointNumber.valueOf(reader.value1()));
+            break;
+          }
+          case TickJournal.TYPE_CALLBACK:
+          {
+            inputEvents++;
+            final OrderCallback callback = callbacks.remove(reader.value2());
+            if (callback == null)
+            {
+              diverged("acknowledgement of order " + reader.value2() + " which the replay did not place");
+            }
+            else if ((reader.flags() & TickJournal.FLAG_FAILED) != 0)
+            {
+              failedCallbacks++;  // Live, the failure restarted the session: a TYPE_RESET follows
+            }
+            else
+            {
+              callback.onSuccess(reader.value1());
+            }
+            break;
+          }
+          case TickJournal.TYPE_RESET:
+          {
+            inputEvents++;
+            handlers.reset();
+            break;
+          }
+          case TickJournal.TYPE_PARAMETERS:
+          {
+            inputEvents++;
+            parametersLength = (int)reader.value1();
+            parametersText = ByteBuffer.allocate((parametersLength + 15) / 16 * 16).order(ByteOrder.LITTLE_ENDIAN);
+            if (!parametersText.hasRemaining()) swapParameters();
+            break;
+          }
+          case TickJournal.TYPE_PARAMETERS_TEXT:
+          {
+            if (parametersText == null)
+            {
+              diverged("parameter text without its header");
+              break;
+            }
+            parametersText.putLong(reader.value1()).putLong(reader.value2());
+            if (!parametersText.hasRemaining()) swapParameters();
+            break;
+          }
+          case TickJournal.TYPE_ORDER:
+          {
+            // Numbered as the session numbered it, sent orders only
+            final OrderCallback callback = verifyOrder(reader.instrumentId(), reader.value1(), "order");
+            if (callback != null)
+            {
+              callbacks.put(++ordersPlaced, callback);
+            }
+            break;
+          }
+          case TickJournal.TYPE_THROTTLED:
+          {
+            verifyOrder(reader.instrumentId(), reader.value1(), "throttled order");  // Never acknowledged
+            break;
+          }
+          case TickJournal.TYPE_STATE:
+          {
+            if (handlers.getState().ordinal() != reader.value2())
+            {
+              diverged("state " + reader.value2() + " logged, replay is in " + handlers.getState());
+            }
+            break;
+          }
+          case TickJournal.TYPE_DECISION:
+          case TickJournal.TYPE_SLIPPAGE:
+          {
+            break;  // Timings of the live session, nothing to replay
+          }
+          default:
+          {
+            diverged("unknown record type " + reader.type());
+          }
+        }
+      }
+    }
+    if (!unverifiedOrders.isEmpty())
+    {
+      diverged(unverifiedOrders.size() + " orders placed by the replay were never logged");
+    }
+  }
+
+  @Override
+  public boolean placeMarketOrder(long instrumentId, FixedPointNumber quantity, OrderCallback callback)
+  {
+    unverifiedOrders.add(new long[] {instrumentId, quantity.longValue()});
+    unverifiedCallbacks.add(callback);
+    return true;  // A TYPE_THROTTLED record may follow: the replay has no position to hand over to other shards
+  }
+
+  // Swapped in as they were live, from the next input on
+  private void swapParameters()
+  {
+    final String text = new String(parametersText.array(), 0, parametersLength, StandardCharsets.UTF_8);
+    parametersText = null;
+    Properties parameters = new Properties();
+    for (String line : text.split("\n"))
+    {
+      final int equals = line.indexOf('=');
+      if (equals > 0) parameters.setProperty(line.substring(0, equals), line.substring(equals + 1));
+    }
+    try
+    {
+      handlers.setParameters(parameters);
+      parameterSwaps++;
+    }
+    catch (IllegalArgumentException e)
+    {
+      diverged("parameters the session swapped in rejected by the replay, " + e.getMessage());
+    }
+  }
+
+  // The callback of the order the replay placed first since, if it is the logged one
+  private OrderCallback verifyOrder(long instrumentId, long quantity, String desc)
+  {
+    final long[] order = unverifiedOrders.poll();
+    final OrderCallback callback = unverifiedCallbacks.poll();
+    if (order == null || order[0] != instrumentId || order[1] != quantity)
+    {
+      diverged(desc + " " + quantity + " x " + instrumentId + " logged, replay placed " +
+               (order == null ? "nothing" : order[1] + " x " + order[0]));
+      return null;
+    }
+    return callback;
+  }
+
+  private void diverged(String desc)
+  {
+    divergences++;
+    if (firstDivergence < 0)
+    {
+      firstDivergence = lastSequence;
+      firstDivergenceDesc = desc;
+    }
+  }
+
+  /*
+   * Main function
+   */
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 1)
+    {
+      System.err.println("Usage " + EventReplayer.class.getName() + " <events.bin> [sequence] [-v]");
+      System.exit(-1);
+    }
+    final Path path = Paths.get(args[0]);
+    final long untilSequence = args.length > 1 && !args[1].equals("-v") ? Long.parseLong(args[1]) : Long.MAX_VALUE;
+    final boolean verbose = args[args.length - 1].equals("-v");
+
+    // Started with the defaults, the parameters of the session come with its events
+    GherkinPeeler gherkinPeeler = new GherkinPeeler(new Properties());
+    gherkinPeeler.reset();
+    EventReplayer replayer = new EventReplayer(gherkinPeeler);
+    gherkinPeeler.setOrderStub(replayer);
+
+    PrintStream out = System.out;
+    PrintStream err = System.err;
+    if (!verbose)
+    {
+      PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+      System.setOut(discard);
+      System.setErr(discard);
+    }
+    final long start = System.nanoTime();
+    try
+    {
+      replayer.replay(path, untilSequence);
+    }
+    finally
+    {
+      System.setOut(out);
+      System.setErr(err);
+    }
+    final long elapsed = System.nanoTime() - start;
+
+    System.out.printf("Replayed %d input events (%d records) up to sequence %d in %d ms, %.0f events/s%n",
+                      replayer.inputEvents, replayer.records, replayer.lastSequence, elapsed / 1000000, replayer.inputEvents * 1e9 / Math.max(1, elapsed));
+    System.out.printf("Orders: %d placed, %d still unacknowledged, %d failed acknowledgements; %d parameter swaps%n",
+                      replayer.ordersPlaced, replayer.callbacks.size(), replayer.failedCallbacks, replayer.parameterSwaps);
+    System.out.println("State at sequence " + replayer.lastSequence + ": " + gherkinPeeler.describeState());
+    if (replayer.divergences == 0)
+    {
+      System.out.println("Replay matches the session");
+      return;
+    }
+    System.out.println("DIVERGED - " + replayer.divergences + " mismatches, the first one at sequence " + replayer.firstDivergence + ": " + replayer.firstDivergenceDesc);
+    System.exit(1);
+  }
+
+}
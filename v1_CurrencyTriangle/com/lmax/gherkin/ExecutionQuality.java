@@ -0,0 +1,253 @@
+/**
+ * Gherkin Peeler
+ *
+ * Execution quality - the price each fill got against the quote the strategy decided on, and
+ * what the latency from the deciding tick to the fill cost, per instrument.
+ *
+ * When the strategy decides on an order, the quote it goes against (the ask to buy, the bid to
+ * sell) and the ingress time of the tick it decided on are put aside for the instrument, and
+ * kept once the order is sent, one order at a time like the positions; the decision of an order
+ * the rate limiter holds back is replaced by the next one. The acknowledgement of the order
+ * gives its instruction id, and the executions of that instruction id are joined to the
+ * decision: slippage per unit is the fill price minus the decision price, signed so that a cost
+ * is positive, its amount over the quantity filled is in the quote currency of the instrument
+ * (contracts of contractUnits, as in PnlTracker), and the latency is from the ingress of the tick
+ * to the arrival of the execution. Executions of other orders (close-outs), or coming before the
+ * acknowledgement of their order, are only counted as unmatched.
+ *
+ * Each fill goes to the EventLog, if any, as a TYPE_SLIPPAGE record after its TYPE_EXECUTION
+ * (each decision as a TYPE_DECISION before its TYPE_ORDER), so that sessions can be analysed
+ * offline fill by fill. The report gives the distributions of slippage and latency over the
+ * latest fills, and a least-squares fit of the cost of every fill against its latency: the slope
+ * is the money each microsecond of latency costs on a fill, as traded.
+ *
+ * Decisions come from the market data thread or the shards, acknowledgements and executions
+ * from the session thread, reports from housekeeping: a few events a second at most, so all of
+ * it is synchronized.
+ */
+
+package com.lmax.gherkin;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import com.lmax.api.FailureResponse;
+import com.lmax.api.order.OrderCallback;
+
+final class ExecutionQuality
+{
+
+  /*
+   * Constants
+   */
+
+  private static final int windowFills = 1024;  // Per instrument, the distributions are over the latest fills
+  private static final double scaleFactor = FixedPointMath.scaleFactor;
+
+  private final long[] instrumentId;
+  private final String[] instrumentDesc;
+  private final EventLog eventLog;  // Null if none
+
+  /*
+   * Variables, guarded by the monitor
+   */
+
+  // The order decided last per instrument position, until its order is sent
+  private final int[] pendingSide;              // +1 to buy, -1 to sell, 0 if none
+  private final long[] pendingPrice;
+  private final long[] pendingNanos;
+
+  // The order sent last per instrument position, until the next one
+  private final int[] decisionSide;             // +1 to buy, -1 to sell, 0 if none
+  private final long[] decisionPrice;
+  private final long[] decisionNanos;           // Ingress of the tick decided on
+  private final long[] decisionInstructionId;   // 0 until acknowledged
+
+  private final long[] fills;
+  private final long[] unmatched;
+  private final long[] cost;                    // Quote currency, positive is a cost
+  private final long[][] slippageWindow;        // Per unit, ring of the latest fills
+  private final long[][] latencyWindow;         // Nanoseconds, same fills
+  private final double[] sumLatency;            // Least squares of cost (quote currency) against latency (microseconds)
+  private final double[] sumCost;
+  private final double[] sumLatencySquared;
+  private final double[] sumLatencyCost;
+
+  private final long[] sorted = new long[windowFills];  // Reports only
+
+  /*
+   * Constructor
+   */
+
+  // Instruments described as BASE_QUOTE or BASE/QUOTE
+  ExecutionQuality(long[] instrumentId, String[] instrumentDesc, EventLog eventLog)
+  {
+    final int n = instrumentId.length;
+    this.instrumentId = instrumentId.clone();
+    this.instrumentDesc = instrumentDesc.clone();
+    this.eventLog = eventLog;
+    this.pendingSide = new int[n];
+    this.pendingPrice = new long[n];
+    this.pendingNanos = new long[n];
+    this.decisionSide = new int[n];
+    this.decisionPrice = new long[n];
+    this.decisionNanos = new long[n];
+    this.decisionInstructionId = new long[n];
+    this.fills = new long[n];
+    this.unmatched = new long[n];
+    this.cost = new long[n];
+    this.slippageWindow = new long[n][windowFills];
+    this.latencyWindow = new long[n][windowFills];
+    this.sumLatency = new double[n];
+    this.sumCost = new double[n];
+    this.sumLatencySquared = new double[n];
+    this.sumLatencyCost = new double[n];
+  }
+
+  /*
+   * Orders
+   */
+
+  // Before the order is placed, with the quote it goes against and the ingress of the tick decided on
+  synchronized void onDecision(long id, long quantity, long price, long tickNanos)
+  {
+    final int pos = positionOf(id);
+    if (pos < 0 || quantity == 0) return;
+    pendingSide[pos] = quantity > 0 ? 1 : -1;
+    pendingPrice[pos] = price;
+    pendingNanos[pos] = tickNanos;
+  }
+
+  // Once the rate limiter lets the order through, before it is sent (and logged)
+  synchronized void onOrderSent(long id)
+  {
+    final int pos = positionOf(id);
+    if (pos < 0 || pendingSide[pos] == 0) return;
+    decisionSide[pos] = pendingSide[pos];
+    decisionPrice[pos] = pendingPrice[pos];
+    decisionNanos[pos] = pendingNanos[pos];
+    decisionInstructionId[pos] = 0;
+    pendingSide[pos] = 0;
+    if (eventLog != null)
+    {
+      eventLog.decision(id, decisionSide[pos] > 0, decisionPrice[pos], decisionNanos[pos]);
+    }
+  }
+
+  // Joins the instruction id of the order to its decision before the strategy sees the acknowledgement
+  OrderCallback traced(OrderCallback callback, long id)
+  {
+    return new OrderCallback()
+    {
+      @Override
+      public void onSuccess(long instructionId)
+      {
+        onAcknowledged(id, instructionId);
+        callback.onSuccess(instructionId);
+      }
+
+      @Override
+      public void onFailure(FailureResponse failureResponse)
+      {
+        callback.onFailure(failureResponse);
+      }
+    };
+  }
+
+  private synchronized void onAcknowledged(long id, long instructionId)
+  {
+    final int pos = positionOf(id);
+    if (pos >= 0 && decisionSide[pos] != 0 && decisionInstructionId[pos] == 0)
+    {
+      decisionInstructionId[pos] = instructionId;
+    }
+  }
+
+  // Quantity of this execution alone, signed; fillNanos on arrival of the execution
+  synchronized void onExecution(long id, long instructionId, long price, long quantity, long fillNanos)
+  {
+    final int pos = positionOf(id);
+    if (pos < 0) return;
+    if (decisionSide[pos] == 0 || decisionInstructionId[pos] != instructionId)
+    {
+      unmatched[pos]++;
+      return;
+    }
+    final long slippage = (price - decisionPrice[pos]) * decisionSide[pos];
+    final long latencyNanos = fillNanos - decisionNanos[pos];
+    final long amount = FixedPointMath.multiply(slippage, Math.abs(quantity)) * PnlTracker.contractUnits;
+
+    final int slot = (int)(fills[pos] % windowFills);
+    slippageWindow[pos][slot] = slippage;
+    latencyWindow[pos][slot] = latencyNanos;
+    fills[pos]++;
+    cost[pos] += amount;
+    final double x = latencyNanos / 1000.0;
+    final double y = amount / scaleFactor;
+    sumLatency[pos] += x;
+    sumCost[pos] += y;
+    sumLatencySquared[pos] += x * x;
+    sumLatencyCost[pos] += x * y;
+
+    if (eventLog != null)
+    {
+      eventLog.slippage(id, decisionSide[pos] > 0, slippage, latencyNanos);
+    }
+  }
+
+  private int positionOf(long id)
+  {
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      if (instrumentId[i] == id) return i;
+    }
+    return -1;
+  }
+
+  /*
+   * Report
+   */
+
+  // Instruments with fills or unmatched executions only
+  synchronized String report()
+  {
+    StringBuilder report = new StringBuilder();
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      if (fills[i] == 0 && unmatched[i] == 0) continue;
+      if (report.length() > 0) report.append("; ");
+      final String quote = instrumentDesc[i].substring(instrumentDesc[i].length() - 3);
+      report.append(String.format(Locale.ROOT, "%s %d fills (%d unmatched)", instrumentDesc[i], fills[i], unmatched[i]));
+      if (fills[i] == 0) continue;
+
+      final int n = (int)Math.min(fills[i], windowFills);
+      System.arraycopy(slippageWindow[i], 0, sorted, 0, n);
+      Arrays.sort(sorted, 0, n);
+      report.append(String.format(Locale.ROOT, ", slippage p10/p50/p90 %.6f/%.6f/%.6f, cost %.2f %s",
+                                  sorted[percentile(n, 10)] / scaleFactor, sorted[percentile(n, 50)] / scaleFactor,
+                                  sorted[percentile(n, 90)] / scaleFactor, cost[i] / scaleFactor, quote));
+      System.arraycopy(latencyWindow[i], 0, sorted, 0, n);
+      Arrays.sort(sorted, 0, n);
+      report.append(String.format(Locale.ROOT, ", decision to fill p50/p90/p99/max %d/%d/%d/%d us",
+                                  sorted[percentile(n, 50)] / 1000, sorted[percentile(n, 90)] / 1000,
+                                  sorted[percentile(n, 99)] / 1000, sorted[n - 1] / 1000));
+
+      // Slope of the fit, once there are latencies to tell apart
+      final double f = fills[i];
+      final double spread = f * sumLatencySquared[i] - sumLatency[i] * sumLatency[i];
+      if (fills[i] > 1 && spread > 0)
+      {
+        final double slope = (f * sumLatencyCost[i] - sumLatency[i] * sumCost[i]) / spread;
+        report.append(String.format(Locale.ROOT, ", %.6f %s per us", slope, quote));
+      }
+    }
+    return report.length() == 0 ? "no fills" : report.toString();
+  }
+
+  // Index of a percentile among n sorted values, nearest rank
+  private static int percentile(int n, int p)
+  {
+    return Math.max(0, (int)Math.ceil(n * p / 100.0) - 1);
+  }
+
+}
@@ -0,0 +1,133 @@
+/**
+ * Gherkin Peeler
+ *
+ * Fixed-point math - overflow-safe operations on FixedPointNumber mantissas.
+ *
+ * The product of two mantissas easily exceeds 63 bits (e.g. 150.0 x 150.0 on a JPY cross is
+ * already 2.25e16 before dividing back by the scale factor), so multiply-then-divide keeps the
+ * full 128-bit intermediate via Math.multiplyHigh. When both operands fit in 31 bits the
+ * product cannot overflow and plain long arithmetic is used. Results are truncated towards
+ * zero like the long division they replace; an ArithmeticException is thrown when the final
+ * result does not fit in a long. Nothing here allocates.
+ */
+
+package com.lmax.gherkin;
+
+import com.lmax.api.FixedPointNumber;
+
+final class FixedPointMath
+{
+
+  /*
+   * Constants
+   */
+
+  static final long scaleFactor = FixedPointNumber.ONE.longValue();
+
+  private static final long halfWordMask = 0xFFFFFFFFL;
+
+  private FixedPointMath()
+  {
+  }
+
+  /*
+   * Fixed-point operations
+   */
+
+  // a * b, both mantissas, e.g. GBP/USD x EUR/GBP = EUR/USD
+  static long multiply(long a, long b)
+  {
+    return multiplyDivide(a, b, scaleFactor);
+  }
+
+  // a / b, both mantissas, e.g. EUR/USD / EUR/GBP = GBP/USD
+  static long divide(long a, long b)
+  {
+    return multiplyDivide(a, scaleFactor, b);
+  }
+
+  // a * b / c with a 128-bit intermediate
+  static long multiplyDivide(long a, long b, long c)
+  {
+    // Fast path: |a| and |b| below 2^31, the product fits in 63 bits
+    if (((a ^ (a >> 63)) | (b ^ (b >> 63))) >>> 31 == 0)
+    {
+      return a * b / c;
+    }
+    return multiplyDivideWide(a, b, c);
+  }
+
+  /*
+   * 128-bit slow path
+   */
+
+  private static long multiplyDivideWide(long a, long b, long c)
+  {
+    if (c == 0)
+    {
+      throw new ArithmeticException("/ by zero");
+    }
+    final boolean negative = ((a ^ b ^ c) < 0) && a != 0 && b != 0;
+
+    // Magnitudes as unsigned values, Math.abs(Long.MIN_VALUE) is 2^63 when read unsigned
+    final long ua = Math.abs(a);
+    final long ub = Math.abs(b);
+    final long uc = Math.abs(c);
+
+    // Unsigned 128-bit product
+    final long low = ua * ub;
+    final long high = Math.multiplyHigh(ua, ub) + ((ua >> 63) & ub) + ((ub >> 63) & ua);
+
+    if (Long.compareUnsigned(high, uc) >= 0)
+    {
+      throw new ArithmeticException("Fixed-point overflow: " + a + " * " + b + " / " + c);
+    }
+    final long quotient = divideUnsigned(high, low, uc);
+
+    if (quotient < 0)
+    {
+      // Above Long.MAX_VALUE as unsigned, only -2^63 is still representable
+      if (negative && quotient == Long.MIN_VALUE) return Long.MIN_VALUE;
+      throw new ArithmeticException("Fixed-point overflow: " + a + " * " + b + " / " + c);
+    }
+    return negative ? -quotient : quotient;
+  }
+
+  // Unsigned (high:low) / divisor, requires high < divisor (Hacker's Delight, divlu)
+  private static long divideUnsigned(long high, long low, long divisor)
+  {
+    final int shift = Long.numberOfLeadingZeros(divisor);
+    final long v = divisor << shift;
+    final long vHigh = v >>> 32;
+    final long vLow = v & halfWordMask;
+
+    final long uHigh = (high << shift) | (shift == 0 ? 0 : low >>> (64 - shift));
+    final long uLow = low << shift;
+    final long uLow1 = uLow >>> 32;
+    final long uLow0 = uLow & halfWordMask;
+
+    // First 32 bits of the quotient
+    long q1 = Long.divideUnsigned(uHigh, vHigh);
+    long rhat = uHigh - q1 * vHigh;
+    while ((q1 >>> 32) != 0 || Long.compareUnsigned(q1 * vLow, (rhat << 32) | uLow1) > 0)
+    {
+      q1--;
+      rhat += vHigh;
+      if ((rhat >>> 32) != 0) break;
+    }
+
+    // Last 32 bits of the quotient
+    final long remainder = ((uHigh << 32) | uLow1) - q1 * v;
+    long q0 = Long.divideUnsigned(remainder, vHigh);
+    rhat = remainder - q0 * vHigh;
+    while ((q0 >>> 32) != 0 || Long.compareUnsigned(q0 * vLow, (rhat << 32) | uLow0) > 0)
+    {
+      q0--;
+      rhat += vHigh;
+      if ((rhat >>> 32) != 0) break;
+    }
+
+    return (q1 << 32) | q0;
+  }
+
+}
@@ -0,0 +1,211 @@
+/**
+ * Gherkin Peeler
+ *
+ * Fixed-point math benchmark - FixedPointMath against plain long arithmetic.
+ *
+ *   javac -cp java-api.jar:. com/lmax/gherkin/FixedPointMathBenchmark.java
+ *   java -cp java-api.jar:. com.lmax.gherkin.FixedPointMathBenchmark
+ *
+ * Measures ns/op over arrays of FX-sized mantissas (fast path) and of JPY-sized products
+ * that need the 128-bit path, after a warm-up long enough for C2 to compile everything.
+ *
+ * Before that, multiply, divide and multiplyDivide are checked against BigInteger on random
+ * operands of every size and sign, Long.MIN_VALUE and Long.MAX_VALUE and their neighbours
+ * among them: the result truncated towards zero, or an ArithmeticException when it does not
+ * fit in a long. Exits with 1 at the first mismatch.
+ */
+
+package com.lmax.gherkin;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+public final class FixedPointMathBenchmark
+{
+
+  /*
+   * Constants
+   */
+
+  private static final int size = 1 << 16;
+  private static final int warmupPasses = 200;
+  private static final int measuredPasses = 500;
+  private static final long scaleFactor = FixedPointMath.scaleFactor;
+  private static final int checkedCases = 3000000;
+
+  /*
+   * Variables
+   */
+
+  private static final long[] a = new long[size];
+  private static final long[] b = new long[size];
+  private static final long[] wideA = new long[size];
+  private static final long[] wideB = new long[size];
+
+  /*
+   * Kernels
+   */
+
+  private static long plainMultiply(long[] x, long[] y)
+  {
+    long sum = 0;
+    for (int i=0; i<size; i++)
+    {
+      sum += x[i] * y[i] / scaleFactor;
+    }
+    return sum;
+  }
+
+  private static long safeMultiply(long[] x, long[] y)
+  {
+    long sum = 0;
+    for (int i=0; i<size; i++)
+    {
+      sum += FixedPointMath.multiply(x[i], y[i]);
+    }
+    return sum;
+  }
+
+  private static long plainDivide(long[] x, long[] y)
+  {
+    long sum = 0;
+    for (int i=0; i<size; i++)
+    {
+      sum += x[i] * scaleFactor / y[i];
+    }
+    return sum;
+  }
+
+  private static long safeDivide(long[] x, long[] y)
+  {
+    long sum = 0;
+    for (int i=0; i<size; i++)
+    {
+      sum += FixedPointMath.divide(x[i], y[i]);
+    }
+    return sum;
+  }
+
+  private interface Kernel
+  {
+    long run(long[] x, long[] y);
+  }
+
+  private static void measure(String name, Kernel kernel, long[] x, long[] y)
+  {
+    long blackhole = 0;
+    for (int p=0; p<warmupPasses; p++)
+    {
+      blackhole += kernel.run(x, y);
+    }
+    final long start = System.nanoTime();
+    for (int p=0; p<measuredPasses; p++)
+    {
+      blackhole += kernel.run(x, y);
+    }
+    final long elapsed = System.nanoTime() - start;
+    System.out.printf("%-32s %6.2f ns/op  (%d)%n", name, (double)elapsed / ((long)measuredPasses * size), blackhole);
+  }
+
+  /*
+   * Correctness against BigInteger
+   */
+
+  private static final long[] edges = {0, 1, -1, 2, -2, scaleFactor, -scaleFactor, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                                       1L << 31, -(1L << 31), 1L << 32, Long.MAX_VALUE, Long.MAX_VALUE - 1,
+                                       Long.MIN_VALUE, Long.MIN_VALUE + 1, Long.MAX_VALUE / scaleFactor, Long.MIN_VALUE / scaleFactor};
+
+  // Any size and sign: an edge, a price-sized mantissa, or random bits cut to a random length
+  private static long operand(Random random)
+  {
+    switch (random.nextInt(4))
+    {
+      case 0:  return edges[random.nextInt(edges.length)] + (random.nextBoolean() ? 0 : random.nextInt(3) - 1);
+      case 1:  return (random.nextBoolean() ? 1 : -1) * (long)random.nextInt(200000000);
+      default: return random.nextLong() >> random.nextInt(64);
+    }
+  }
+
+  // Null if the true result does not fit in a long
+  private static Long expected(long a, long b, long c)
+  {
+    if (c == 0) return null;
+    final BigInteger result = BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)).divide(BigInteger.valueOf(c));  // Truncated towards zero
+    return result.bitLength() < 64 ? result.longValue() : null;
+  }
+
+  private static boolean check(String operation, long a, long b, long c, Long expected)
+  {
+    Long actual;
+    try
+    {
+      switch (operation)
+      {
+        case "multiply": actual = FixedPointMath.multiply(a, b); break;
+        case "divide":   actual = FixedPointMath.divide(a, c); break;
+        default:         actual = FixedPointMath.multiplyDivide(a, b, c); break;
+      }
+    }
+    catch (ArithmeticException e)
+    {
+      actual = null;
+    }
+    if (expected == null ? actual == null : expected.equals(actual)) return true;
+    System.out.printf("MISMATCH %s(%d, %d, %d): %s expected, %s returned%n", operation, a, b, c,
+                      expected == null ? "overflow" : expected, actual == null ? "overflow" : actual);
+    return false;
+  }
+
+  private static boolean checkAll()
+  {
+    Random random = new Random(7);
+    for (int i=0; i<checkedCases; i++)
+    {
+      final long a = operand(random);
+      final long b = operand(random);
+      final long c = operand(random);
+      if (!check("multiply", a, b, scaleFactor, expected(a, b, scaleFactor))) return false;
+      if (!check("divide", a, scaleFactor, b, expected(a, scaleFactor, b))) return false;
+      if (!check("multiplyDivide", a, b, c, expected(a, b, c))) return false;
+    }
+    return true;
+  }
+
+  /*
+   * Main function
+   */
+
+  public static void main(String[] args)
+  {
+    if (!checkAll())
+    {
+      System.exit(1);
+    }
+    System.out.printf("Checked %d random cases of each operation against BigInteger%n", checkedCases);
+
+    Random random = new Random(42);
+    for (int i=0; i<size; i++)
+    {
+      // EUR/USD and EUR/GBP sized prices, fast path
+      a[i] = 1200000 + random.nextInt(200000);
+      b[i] = 800000 + random.nextInt(100000);
+      // GBP/JPY and USD/JPY sized prices times a 10,000 contracts quantity, products above 2^63, wide path
+      wideA[i] = (120 + random.nextInt(60)) * scaleFactor * 10000;
+      wideB[i] = (75 + random.nextInt(40)) * scaleFactor;
+    }
+    int overflowing = 0;
+    for (int i=0; i<size; i++)
+    {
+      if (Math.multiplyHigh(wideA[i], wideB[i]) != (wideA[i] * wideB[i]) >> 63) overflowing++;
+    }
+    System.out.printf("%d of %d wide products overflow a long%n", overflowing, size);
+
+    measure("plain  a * b / scale", FixedPointMathBenchmark::plainMultiply, a, b);
+    measure("safe   multiply (fast path)", FixedPointMathBenchmark::safeMultiply, a, b);
+    measure("plain  a * scale / b", FixedPointMathBenchmark::plainDivide, a, b);
+    measure("safe   divide (fast path)", FixedPointMathBenchmark::safeDivide, a, b);
+    measure("plain  a * b / scale (overflows)", FixedPointMathBenchmark::plainMultiply, wideA, wideB);
+    measure("safe   multiply (128-bit path)", FixedPointMathBenchmark::safeMultiply, wideA, wideB);
+  }
+
+}
@@ -0,0 +1,246 @@
+/**
+ * Gherkin Peeler
+ *
+ * Flight Recorder events - ticks, decisions, orders, throttled orders, callbacks, executions and
+ * reconnects.
+ *
+ * Off unless the JVM runs with -Dgherkin.jfr=true: `enabled` is a static final, so with the
+ * property unset the JIT folds every call below away and the hot path is unchanged. With it set,
+ * the events show up next to GC, safepoint, lock and I/O events in any recording, e.g.
+ *
+ *   java -Dgherkin.jfr=true -XX:StartFlightRecording=filename=gherkin.jfr,maxage=6h ...
+ *
+ * Ticks last for the time spent in the strategy, callbacks from the order being sent to the
+ * acknowledgement, so both show up as durations in JDK Mission Control. With shards, ticks and
+ * decisions come from the shard threads, in the state of the shard that decided.
+ */
+
+package com.lmax.gherkin;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import com.lmax.api.FailureResponse;
+import com.lmax.api.order.OrderCallback;
+
+final class GherkinEvents
+{
+
+  /*
+   * Constants
+   */
+
+  static final boolean enabled = Boolean.getBoolean("gherkin.jfr");
+
+  private GherkinEvents()
+  {
+  }
+
+  /*
+   * Event types, prices and quantities as FixedPointNumber mantissas
+   */
+
+  @Name("com.lmax.gherkin.Tick")
+  @Label("Tick")
+  @Category("Gherkin Peeler")
+  @Description("Order book update processed by the strategy")
+  @StackTrace(false)
+  static final class Tick extends Event
+  {
+    @Label("Instrument") long instrumentId;
+    @Label("Bid") long bid;
+    @Label("Ask") long ask;
+    @Label("State After") String state;
+  }
+
+  @Name("com.lmax.gherkin.Decision")
+  @Label("Decision")
+  @Category("Gherkin Peeler")
+  @Description("The strategy decided to place an order, and the rate limiter let it through")
+  @StackTrace(false)
+  static final class Decision extends Event
+  {
+    @Label("State") String state;
+    @Label("Instrument") long instrumentId;
+    @Label("Quantity") long quantity;
+    @Label("Time In Force") String timeInForce;
+  }
+
+  @Name("com.lmax.gherkin.OrderSent")
+  @Label("Order Sent")
+  @Category("Gherkin Peeler")
+  @Description("Order handed to the LMAX session, after the rate limiter")
+  @StackTrace(false)
+  static final class OrderSent extends Event
+  {
+    @Label("Instrument") long instrumentId;
+    @Label("Quantity") long quantity;
+    @Label("Queued Nanos") long queueNanos;
+  }
+
+  @Name("com.lmax.gherkin.OrderThrottled")
+  @Label("Order Throttled")
+  @Category("Gherkin Peeler")
+  @Description("Order the rate limiter did not let through, never sent")
+  @StackTrace(false)
+  static final class OrderThrottled extends Event
+  {
+    @Label("Instrument") long instrumentId;
+    @Label("Quantity") long quantity;
+  }
+
+  @Name("com.lmax.gherkin.OrderCallback")
+  @Label("Order Callback")
+  @Category("Gherkin Peeler")
+  @Description("Acknowledgement of an order, lasting since the order was sent")
+  @StackTrace(false)
+  static final class Callback extends Event
+  {
+    @Label("Instrument") long instrumentId;
+    @Label("Quantity") long quantity;
+    @Label("Instruction") long instructionId;
+    @Label("Success") boolean success;
+    @Label("Failure") String failure;
+  }
+
+  @Name("com.lmax.gherkin.Execution")
+  @Label("Execution")
+  @Category("Gherkin Peeler")
+  @Description("Execution applied to the strategy")
+  @StackTrace(false)
+  static final class Execution extends Event
+  {
+    @Label("Price") long price;
+    @Label("Filled Quantity") long filledQuantity;
+    @Label("State After") String state;
+  }
+
+  @Name("com.lmax.gherkin.Reconnect")
+  @Label("Reconnect")
+  @Category("Gherkin Peeler")
+  @Description("Session stopped and started again")
+  static final class Reconnect extends Event
+  {
+    @Label("Reason") String reason;
+  }
+
+  /*
+   * Helpers, no-ops unless enabled
+   */
+
+  static Tick beginTick()
+  {
+    if (!enabled) return null;
+    Tick tick = new Tick();
+    tick.begin();
+    return tick;
+  }
+
+  static void endTick(Tick tick, long instrumentId, long bid, long ask, Enum<?> state)
+  {
+    if (!enabled || tick == null) return;
+    tick.end();
+    if (tick.shouldCommit())
+    {
+      tick.instrumentId = instrumentId;
+      tick.bid = bid;
+      tick.ask = ask;
+      tick.state = state.name();
+      tick.commit();
+    }
+  }
+
+  static void decision(Enum<?> state, long instrumentId, long quantity, Enum<?> timeInForce)
+  {
+    if (!enabled) return;
+    Decision event = new Decision();
+    if (event.shouldCommit())
+    {
+      event.state = state.name();
+      event.instrumentId = instrumentId;
+      event.quantity = quantity;
+      event.timeInForce = timeInForce.name();
+      event.commit();
+    }
+  }
+
+  static void orderSent(long instrumentId, long quantity, long queueNanos)
+  {
+    if (!enabled) return;
+    OrderSent event = new OrderSent();
+    if (event.shouldCommit())
+    {
+      event.instrumentId = instrumentId;
+      event.quantity = quantity;
+      event.queueNanos = queueNanos;
+      event.commit();
+    }
+  }
+
+  static void orderThrottled(long instrumentId, long quantity)
+  {
+    if (!enabled) return;
+    OrderThrottled event = new OrderThrottled();
+    if (event.shouldCommit())
+    {
+      event.instrumentId = instrumentId;
+      event.quantity = quantity;
+      event.commit();
+    }
+  }
+
+  // The callback itself when disabled, otherwise one that records the acknowledgement first
+  static OrderCallback traced(OrderCallback callback, long instrumentId, long quantity)
+  {
+    if (!enabled) return callback;
+    final Callback event = new Callback();
+    event.begin();
+    event.instrumentId = instrumentId;
+    event.quantity = quantity;
+    return new OrderCallback()
+    {
+      @Override
+      public void onSuccess(long instructionId)
+      {
+        event.instructionId = instructionId;
+        event.success = true;
+        event.commit();
+        callback.onSuccess(instructionId);
+      }
+
+      @Override
+      public void onFailure(FailureResponse failureResponse)
+      {
+        event.failure = failureResponse.getMessage();
+        event.commit();
+        callback.onFailure(failureResponse);
+      }
+    };
+  }
+
+  static void execution(long price, long filledQuantity, Enum<?> state)
+  {
+    if (!enabled) return;
+    Execution event = new Execution();
+    if (event.shouldCommit())
+    {
+      event.price = price;
+      event.filledQuantity = filledQuantity;
+      event.state = state.name();
+      event.commit();
+    }
+  }
+
+  static void reconnect(String reason)
+  {
+    if (!enabled) return;
+    Reconnect event = new Reconnect();
+    event.reason = reason;
+    event.commit();
+  }
+
+}
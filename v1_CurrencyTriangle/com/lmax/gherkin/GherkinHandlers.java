@@ -0,0 +1,62 @@
+/**
+ * Gherkin Peeler
+ *
+ * Strategy entry points, once the LMAX events have been decoded.
+ *
+ * GherkinPeeler's listeners only unpack the LMAX event objects and call these, so that the
+ * very same decision and order-construction path can also be driven offline (JIT warm-up,
+ * allocation harness, event replay, shadow variants) with an OrderStub in place of the session.
+ */
+
+package com.lmax.gherkin;
+
+import java.util.Properties;
+
+import com.lmax.api.FixedPointNumber;
+
+interface GherkinHandlers
+{
+  // System.nanoTime() when the update of the instrument reached the peeler, first of all when known
+  void onIngress(long instrumentId, long ingressNanos);
+
+  // Whole depth of the book (BookSignals layout) and exchange time, just before onOrderBook() when known
+  void onDepth(long instrumentId, long[] depth, long timeMillis);
+
+  // Prices and quantities at the strategy book level
+  void onOrderBook(long instrumentId, FixedPointNumber bid, FixedPointNumber ask, FixedPointNumber bidQuantity, FixedPointNumber askQuantity);
+
+  void onExecution(FixedPointNumber price, FixedPointNumber filledQuantity);
+
+  void onPosition(long instrumentId, FixedPointNumber openQuantity);
+
+  /*
+   * Offline driving
+   */
+
+  // Current GherkinState
+  Enum<?> getState();
+
+  // State and strategy variables, one instrument per line
+  String describeState();
+
+  // LMAX ids of the instruments the strategy trades
+  long[] getInstrumentIds();
+
+  // Their descriptions, BASE_QUOTE or BASE/QUOTE, same order
+  String[] getInstrumentDescs();
+
+  // Counters and gauges the strategy keeps, e.g. for the exposed registry to include
+  MetricsRegistry getMetrics();
+
+  // Depth level onOrderBook() is given the prices and quantities of, 0=top
+  int getBookLevel();
+
+  // Back to the initial state, as on a new session
+  void reset();
+
+  // Tunables replaced all at once, from the next event on; IllegalArgumentException and no change if any is invalid
+  void setParameters(Properties parameters);
+
+  // Orders go to the stub instead of the session while set, null to go back to the session
+  void setOrderStub(OrderStub orderStub);
+}
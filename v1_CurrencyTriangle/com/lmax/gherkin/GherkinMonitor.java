@@ -0,0 +1,275 @@
+/**
+ * Gherkin Peeler
+ *
+ * Monitor - a Swing window next to the live session: order books, spreads, strategy state,
+ * positions and P&L.
+ *
+ * Laid out like the LondonCalculator window (caption labels over red and blue amounts), but
+ * nothing is computed in paint(): a javax.swing.Timer fires on the event dispatch thread at a
+ * fixed rate, takes a MonitorBoard view and a PnlTracker snapshot (seqlocks, so the peeler never
+ * waits for the window, however slow it is) and sets the text of the labels whose value changed.
+ * Rows of instruments that did not tick and figures that did not move are left alone, and Swing
+ * coalesces the repaints of whatever was set into one per refresh; ticks in between refreshes are
+ * only seen through the last of them.
+ *
+ * Closing the window stops the timer and leaves the session running.
+ */
+
+package com.lmax.gherkin;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GraphicsEnvironment;
+import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.Locale;
+import javax.swing.BorderFactory;
+import javax.swing.JComboBox;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+final class GherkinMonitor extends JFrame implements ActionListener
+{
+
+  /*
+   * Constants
+   */
+
+  private static final long serialVersionUID = 1L;  // A JFrame, never serialized
+  private static final double scaleFactor = FixedPointMath.scaleFactor;
+  private static final int levels = BookSignals.levels;
+  private static final String[] columns = {"Instrument", "Ticks", "Bid Qty", "Bid", "Ask", "Ask Qty", "Spread", "Position", "Avg Price", "Unrealized"};
+  private static final Font captionFont = new Font("Arial", Font.BOLD, 14);
+  private static final Font amountFont = new Font("Courier", Font.BOLD, 14);
+
+  private final String[] instrumentDesc;
+  private final Enum<?>[] states;
+  private final MonitorBoard board;
+  private final PnlTracker pnl;
+
+  /*
+   * Variables, event dispatch thread only
+   */
+
+  private final MonitorBoard.View view;
+  private final PnlTracker.Snapshot pnlSnapshot;
+  private final Timer timer;
+
+  private final JLabel stateLabel = amount(Color.blue);
+  private final JLabel realizedLabel = amount(Color.red);
+  private final JLabel unrealizedLabel = amount(Color.red);
+  private final JLabel exposureLabel = amount(Color.red);
+  private final JLabel[][] cells;   // By instrument position and column
+  private final JLabel[][] ladder;  // By level: bid quantity, bid, ask, ask quantity
+  private final JComboBox<String> ladderChoice;
+
+  private final long[] shownTicks;  // Per instrument, as of the last refresh of its row
+  private long shownPnlVersion = -1;
+  private int shownLadder = -1;
+  private long shownLadderTicks = -1;
+
+  /*
+   * Constructor
+   */
+
+  private GherkinMonitor(String title, long[] instrumentId, String[] instrumentDesc, Enum<?>[] states, MonitorBoard board, PnlTracker pnl, long refreshMillis)
+  {
+    super(title);
+    this.instrumentDesc = instrumentDesc.clone();
+    this.states = states.clone();
+    this.board = board;
+    this.pnl = pnl;
+    this.view = board.newView();
+    this.pnlSnapshot = pnl.newSnapshot();
+    this.shownTicks = new long[instrumentId.length];
+    setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+    // Strategy state and totals at the top
+    JPanel summaryPanel = new JPanel(new GridLayout(2, 4));
+    summaryPanel.add(caption("State:"));
+    summaryPanel.add(caption("Realized [" + pnlSnapshot.accountCurrency() + "]:"));
+    summaryPanel.add(caption("Unrealized [" + pnlSnapshot.accountCurrency() + "]:"));
+    summaryPanel.add(caption("Gross exposure [" + pnlSnapshot.accountCurrency() + "]:"));
+    summaryPanel.add(stateLabel);
+    summaryPanel.add(realizedLabel);
+    summaryPanel.add(unrealizedLabel);
+    summaryPanel.add(exposureLabel);
+
+    // One row per instrument
+    JPanel instrumentPanel = new JPanel(new GridLayout(instrumentId.length + 1, columns.length));
+    for (String column : columns)
+    {
+      instrumentPanel.add(caption(column));
+    }
+    cells = new JLabel[instrumentId.length][columns.length];
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      for (int c=0; c<columns.length; c++)
+      {
+        cells[i][c] = c == 0 ? caption(instrumentDesc[i]) : amount(c < 7 ? Color.blue : Color.red);
+        instrumentPanel.add(cells[i][c]);
+      }
+    }
+
+    // Five levels of the instrument chosen
+    JPanel ladderPanel = new JPanel(new BorderLayout());
+    ladderChoice = new JComboBox<String>(instrumentDesc);
+    ladderChoice.addActionListener(e -> refreshLadder());
+    ladderPanel.add(ladderChoice, BorderLayout.NORTH);
+    JPanel levelPanel = new JPanel(new GridLayout(levels + 1, 4));
+    for (String column : new String[] {"Bid Qty", "Bid", "Ask", "Ask Qty"})
+    {
+      levelPanel.add(caption(column));
+    }
+    ladder = new JLabel[levels][4];
+    for (int l=0; l<levels; l++)
+    {
+      for (int c=0; c<4; c++)
+      {
+        ladder[l][c] = amount(Color.blue);
+        levelPanel.add(ladder[l][c]);
+      }
+    }
+    ladderPanel.add(levelPanel, BorderLayout.CENTER);
+    ladderPanel.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+
+    JPanel mainPanel = new JPanel(new BorderLayout());
+    mainPanel.add(summaryPanel, BorderLayout.NORTH);
+    mainPanel.add(instrumentPanel, BorderLayout.CENTER);
+    mainPanel.add(ladderPanel, BorderLayout.SOUTH);
+    getContentPane().add(mainPanel);
+
+    // Fixed rate, a late firing is merged with the next one rather than queued
+    timer = new Timer((int)refreshMillis, this);
+    timer.setCoalesce(true);
+    addWindowListener(new WindowAdapter()
+    {
+      @Override
+      public void windowClosed(WindowEvent e)
+      {
+        timer.stop();
+      }
+    });
+
+    pack();
+    setLocationRelativeTo(null);
+  }
+
+  // Shows the window from the event dispatch thread; false when there is no display to show it on
+  static boolean open(String title, long[] instrumentId, String[] instrumentDesc, Enum<?>[] states, MonitorBoard board, PnlTracker pnl, long refreshMillis)
+  {
+    if (GraphicsEnvironment.isHeadless())
+    {
+      return false;
+    }
+    SwingUtilities.invokeLater(() ->
+    {
+      GherkinMonitor monitor = new GherkinMonitor(title, instrumentId, instrumentDesc, states, board, pnl, refreshMillis);
+      monitor.setVisible(true);
+      monitor.timer.start();
+    });
+    return true;
+  }
+
+  private static JLabel caption(String text)
+  {
+    JLabel label = new JLabel(text, JLabel.CENTER);
+    label.setFont(captionFont);
+    return label;
+  }
+
+  private static JLabel amount(Color color)
+  {
+    JLabel label = new JLabel("-", JLabel.CENTER);
+    label.setFont(amountFont);
+    label.setForeground(color);
+    return label;
+  }
+
+  /*
+   * Refresh, event dispatch thread
+   */
+
+  // Timer firing: new snapshots, then only what changed since the last one
+  @Override
+  public void actionPerformed(ActionEvent e)
+  {
+    board.snapshot(view);
+    pnl.snapshot(pnlSnapshot);
+
+    show(stateLabel, view.state < 0 ? "-" : states[view.state].toString());
+    final boolean pnlChanged = pnlSnapshot.version != shownPnlVersion;
+    if (pnlChanged)
+    {
+      show(realizedLabel, format("%.2f", pnlSnapshot.totalRealized));
+      show(unrealizedLabel, format("%.2f", pnlSnapshot.totalUnrealized));
+      show(exposureLabel, format("%.0f", pnlSnapshot.grossExposure));
+      shownPnlVersion = pnlSnapshot.version;
+    }
+
+    for (int i=0; i<shownTicks.length; i++)
+    {
+      if (view.ticks[i] != shownTicks[i])
+      {
+        final long bid = view.depth(i, BookSignals.bidPrices);
+        final long ask = view.depth(i, BookSignals.askPrices);
+        show(cells[i][1], Long.toString(view.ticks[i]));
+        show(cells[i][2], format("%.2f", view.depth(i, BookSignals.bidQuantities) / scaleFactor));
+        show(cells[i][3], format("%.5f", bid / scaleFactor));
+        show(cells[i][4], format("%.5f", ask / scaleFactor));
+        show(cells[i][5], format("%.2f", view.depth(i, BookSignals.askQuantities) / scaleFactor));
+        show(cells[i][6], format("%.5f", (ask - bid) / scaleFactor));
+        shownTicks[i] = view.ticks[i];
+      }
+      if (pnlChanged)
+      {
+        final boolean flat = pnlSnapshot.position[i] == 0;
+        show(cells[i][7], flat ? "-" : format("%.2f", pnlSnapshot.position[i] / scaleFactor));
+        show(cells[i][8], flat ? "-" : format("%.5f", pnlSnapshot.averagePrice[i] / scaleFactor));
+        show(cells[i][9], flat ? "-" : format("%.2f", pnlSnapshot.unrealized[i] / scaleFactor));
+      }
+    }
+
+    refreshLadder();
+  }
+
+  private void refreshLadder()
+  {
+    final int pos = ladderChoice.getSelectedIndex();
+    if (pos < 0 || (pos == shownLadder && view.ticks[pos] == shownLadderTicks))
+    {
+      return;
+    }
+    for (int l=0; l<levels; l++)
+    {
+      show(ladder[l][0], format("%.2f", view.depth(pos, BookSignals.bidQuantities + l) / scaleFactor));
+      show(ladder[l][1], format("%.5f", view.depth(pos, BookSignals.bidPrices + l) / scaleFactor));
+      show(ladder[l][2], format("%.5f", view.depth(pos, BookSignals.askPrices + l) / scaleFactor));
+      show(ladder[l][3], format("%.2f", view.depth(pos, BookSignals.askQuantities + l) / scaleFactor));
+    }
+    shownLadder = pos;
+    shownLadderTicks = view.ticks[pos];
+  }
+
+  // Only a new text invalidates the label
+  private static void show(JLabel label, String text)
+  {
+    if (!text.equals(label.getText()))
+    {
+      label.setText(text);
+    }
+  }
+
+  private static String format(String pattern, double value)
+  {
+    return String.format(Locale.ROOT, pattern, value);
+  }
+
+}
@@ -8,7 +8,14 @@
 
 package com.lmax.gherkin;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.lmax.api.*;
 import com.lmax.api.account.*;
@@ -19,7 +26,7 @@ import com.lmax.api.reject.*;
 import com.lmax.api.heartbeat.*;
 import com.lmax.api.position.*;
 
-public class GherkinPeeler implements LoginCallback, OrderBookEventListener, OrderEventListener, InstructionRejectedEventListener, ExecutionEventListener, StreamFailureListener, SessionDisconnectedListener, HeartbeatEventListener, PositionEventListener, Runnable
+public class GherkinPeeler implements LoginCallback, OrderBookEventListener, OrderEventListener, InstructionRejectedEventListener, ExecutionEventListener, StreamFailureListener, SessionDisconnectedListener, HeartbeatEventListener, PositionEventListener, Runnable, GherkinHandlers
 {
 
   /*
@@ -27,7 +34,6 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
    */
 
   private static enum GherkinState {WARMUP, READY_TO_OPEN, WAIT_FOR_OPEN, READY_TO_CLOSE, WAIT_FOR_CLOSE};
-  private static final short warmupMax = 8;  // Number of updates to collect for each currency before activating trading
 
   private static final long pos_EUR_USD = 0;
   private static final long pos_GBP_USD = 1;
@@ -38,42 +44,191 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
   private static final long id_EUR_GBP = 4003;
 
   private static final long scaleFactor = FixedPointNumber.ONE.longValue();
-  private static final long leverageFactor = 8;  // Should change according to wallet size
   private static final long instrumentId[] = {id_EUR_USD, id_GBP_USD, id_EUR_GBP};
   private static final String instrumentDesc[] = {"EUR_USD", "GBP_USD", "EUR_GBP"};
-  private static final short bookLevel = 2;  // 0=top, 4=max_depth_available
+  private static final int correlationWindow = 1000;  // Ticks of each currency weighted in the correlation matrix
+
+  private static final boolean jitWarmupEnabled = Boolean.parseBoolean(System.getProperty("gherkin.jitWarmup", "true"));
+  private static final String accountCurrency = System.getProperty("gherkin.accountCurrency", "USD");  // P&L and exposure are totalled in it
+  private static final String shadowVariantsFile = System.getProperty("gherkin.shadow", "");  // Shadow variants to evaluate, empty to disable
+  private static final String eventLogFile = System.getProperty("gherkin.eventLog", "events-%d.bin");  // %d = start millis, empty to disable
+  private static final boolean monitorEnabled = Boolean.getBoolean("gherkin.monitor");  // Monitor window next to the session, needs a display
+  private static final long monitorRefreshMillis = 250L;
+  private static final String parametersFile = System.getProperty("gherkin.parameters", "");  // Tunables, reloaded whenever the file changes, empty for the defaults
+  private static final int shardThreads = Integer.getInteger("gherkin.shards", 0);  // Worker threads running the strategy, 0 to run it on the market data thread
+  private static final String accountsFile = System.getProperty("gherkin.accounts", "");  // More accounts trading off our order books, "<name> = <username>" lines, empty for none
+  private static final long heartbeatPeriodMillis = 300000L;  // 5 min
+  private static final int metricsPort = Integer.getInteger("gherkin.metricsPort", 9191);  // Loopback only, 0 to disable HTTP
+  private static final long metricsFlushMillis = 60000L;
+  private static final long diagnosticsPeriodMillis = 1000L;  // Per-tick messages printed at most once per instrument in that time, the rest summarized
+  private static final double ordersPerSecond = Double.parseDouble(System.getProperty("gherkin.ordersPerSecond", "5"));  // Whole account
+  private static final int orderBurst = Integer.getInteger("gherkin.orderBurst", 10);
+  private static final double instrumentOrdersPerSecond = Double.parseDouble(System.getProperty("gherkin.instrumentOrdersPerSecond", "1"));
+  private static final int instrumentOrderBurst = Integer.getInteger("gherkin.instrumentOrderBurst", 3);
+
+  private static final long jitWarmupMid[] = {13 * scaleFactor / 10, 155 * scaleFactor / 100, 13 * scaleFactor / 10 * scaleFactor / (155 * scaleFactor / 100)};
 
   /*
-   * Variables
+   * Parameters, the traded defaults unless overridden by a shadow variant or the parameter file
    */
 
-  private Session session;
-  private GherkinState state;
-  private static short warmupCount[] = new short[3];
+  // Immutable, replaced as a whole so that an event never sees half of a reload
+  private static final class Parameters
+  {
+    private final short warmupMax;      // Number of updates to collect for each currency before activating trading
+    private final long leverageFactor;  // Should change according to wallet size
+    private final short bookLevel;      // 0=top, 4=max_depth_available
+    private final boolean useMicroprice;  // Compare depth-weighted microprices instead of the quotes, once the depth is known
+
+    Parameters(Properties parameters)
+    {
+      ShadowEngine.checkParameters(parameters, "warmupMax", "leverageFactor", "bookLevel", "signal");
+      warmupMax = Short.parseShort(parameters.getProperty("warmupMax", "8"));
+      leverageFactor = Long.parseLong(parameters.getProperty("leverageFactor", "8"));
+      bookLevel = Short.parseShort(parameters.getProperty("bookLevel", "2"));
+      useMicroprice = parameters.getProperty("signal", "quotes").equals("microprice");
+      if (!useMicroprice && !parameters.getProperty("signal", "quotes").equals("quotes"))
+      {
+        throw new IllegalArgumentException("signal " + parameters.getProperty("signal") + " is neither quotes nor microprice");
+      }
+      if (bookLevel < 0 || bookLevel > 4)
+      {
+        throw new IllegalArgumentException("bookLevel " + bookLevel + " is not within 0..4");
+      }
+    }
 
-  private static FixedPointNumber[] lastBid = new FixedPointNumber[3];
-  private static FixedPointNumber[] lastAsk = new FixedPointNumber[3];
+    @Override
+    public String toString()
+    {
+      return "warmupMax=" + warmupMax + " leverageFactor=" + leverageFactor + " bookLevel=" + bookLevel + " signal=" + (useMicroprice ? "microprice" : "quotes");
+    }
+  }
 
-  private static FixedPointNumber[] lastBidQuantity = new FixedPointNumber[3];
-  private static FixedPointNumber[] lastAskQuantity = new FixedPointNumber[3];
+  private volatile Parameters parameters;  // Loaded once per event
 
-  private static FixedPointNumber[] maxSpread = new FixedPointNumber[3];
-  private static FixedPointNumber[] minSpread = new FixedPointNumber[3];
+  /*
+   * Variables
+   */
 
-  private static short outstandingPos;
-  private static FixedPointNumber outstandingQuantity;
-  private static FixedPointNumber closingPriceMin;
-  private static FixedPointNumber closingPriceMax;
+  private Session session;
+  private GherkinState state;
+  private OrderStub orderStub;  // Only set when driven offline, orders go there instead of the session
+  private EventLog eventLog;    // Live sessions only, for EventReplayer
+  private MonitorBoard monitor; // Live sessions only, when the monitor window is open; shards publish their state there too
+  private ExecutionQuality quality;  // Live sessions only, shards record their decisions there too
+  private ShadowEngine shadow;  // Live sessions only, variants of this strategy fed from its ticks
+  private ShardPool shards;     // Live sessions only, when the strategy runs on worker threads
+  private ParameterWatcher parameterWatcher;  // Live sessions only, when there is a parameter file
+  private GherkinPeeler[] accounts;  // Live sessions only, those trading off our order books
+  private String accountName;        // Set when this one trades off the order books of another session
+  private volatile boolean accountTrading;  // Its shards are started, ticks can be handed to them
+  private boolean runsOnShard;               // Its orders go through the peeler owning the shards, which counts them
+  private String url;                // Live sessions only, for the accounts to log in to
+  private ProductType productType;
+  private final AtomicReference<Properties> reloadedParameters = new AtomicReference<Properties>();  // Validated, until the next tick swaps them in
+  private volatile Properties tunedParameters = new Properties();  // Last valid ones from the parameter file, for the shards and the shadow baseline
+  private boolean jitWarmedUp;
+  private boolean diagnosticsFlushing;
+  private final OrderRateLimiter rateLimiter = new OrderRateLimiter(instrumentId, ordersPerSecond, orderBurst, instrumentOrdersPerSecond, instrumentOrderBurst);
+  private final OrderRateLimiter.Sender closeOutSender = this::sendParkedCloseOut;
+  private final Housekeeping housekeeping = new Housekeeping();  // Heartbeats and other periodic tasks of this instance, on the one housekeeping thread of the process
+
+  private MetricsRegistry metrics = new MetricsRegistry("v1_CurrencyTriangle");  // The live one, when running as a shard
+  private final int metricTicks = metrics.counters("ticks_", instrumentDesc);
+  private final int metricEmptyBooks = metrics.counter("books_empty");
+  private final int metricPoorBooks = metrics.counter("books_poor");
+  private final int metricTransitions = metrics.counters("transitions_to_", GherkinState.values());
+  private final int metricState = metrics.gauge("state", false);
+  private final int metricOrdersPlaced = metrics.counter("orders_placed");
+  private final int metricOrdersThrottled = metrics.counter("orders_throttled");
+  private final int metricOrdersRejected = metrics.counter("orders_rejected");
+  private final int metricExecutions = metrics.counter("executions");
+  private final int metricSpread = metrics.gauges("spread_", instrumentDesc, true);
+  private final int metricPosition = metrics.gauges("position_", instrumentDesc, true);
+  private final int metricCloseOutsCoalesced = metrics.gauge("close_outs_coalesced", false);
+  private final int metricCloseOutMaxQueueMicros = metrics.gauge("close_out_max_queue_us", false);
+  private final int metricHeartbeatRoundTripMicros = metrics.gauge("heartbeat_round_trip_us", false);
+  private final int metricHeartbeatsMissed = metrics.gauge("heartbeats_missed", false);
+  private final int metricPnl = metrics.gauges("pnl_", new String[] {"realized", "unrealized", "gross_exposure"}, true);  // Account currency
+  private final int metricStaleSkips = metrics.counter("stale_skips");
+  private final int metricFeedGaps = metrics.gauges("feed_gaps_", instrumentDesc, false);
+  private final int metricFeedMaxGapMillis = metrics.gauges("feed_max_gap_ms_", instrumentDesc, false);
+  private final int metricFollower = metrics.gauges("likely_follower_", instrumentDesc, false);  // Position, -1 until known
+  private final int metricFollowerCorrelation = metrics.gauges("likely_follower_correlation_", instrumentDesc, true);
+  private final int metricParameterReloads = metrics.counter("parameter_reloads");
+  private final int metricParameterRejects = metrics.counter("parameter_rejects");
+
+  private Diagnostics diagnostics = new Diagnostics(instrumentDesc, diagnosticsPeriodMillis);  // The live one, when running as a shard
+  private final int diagnosticPrices = diagnostics.category("prices", 1);
+  private final int diagnosticWarmup = diagnostics.category("warmup", 1);
+  private final int diagnosticReadyToOpen = diagnostics.category("ready_to_open", 1);
+  private final int diagnosticStaleLeg = diagnostics.category("stale_leg", 1);
+  private final int diagnosticWaitForOpen = diagnostics.category("wait_for_open", 1);
+  private final int diagnosticReadyToClose = diagnostics.category("ready_to_close", 1);
+  private final int diagnosticWaitForClose = diagnostics.category("wait_for_close", 1);
+
+  private final PnlTracker pnl = new PnlTracker(instrumentId, instrumentDesc, accountCurrency);  // Live executions only
+  private final PnlTracker.Snapshot pnlSnapshot = pnl.newSnapshot();  // Housekeeping thread
+
+  private final long[] depth = new long[BookSignals.depthSize];  // Of the current OrderBookEvent, decoded once
+  private final BookSignals signals = new BookSignals(instrumentId);
+  private final StalenessGuard staleness = new StalenessGuard(instrumentId, instrumentDesc);
+  private short warmupCount[] = new short[3];
+
+  private FixedPointNumber[] lastBid = new FixedPointNumber[3];
+  private FixedPointNumber[] lastAsk = new FixedPointNumber[3];
+
+  private FixedPointNumber[] lastBidQuantity = new FixedPointNumber[3];
+  private FixedPointNumber[] lastAskQuantity = new FixedPointNumber[3];
+
+  private FixedPointNumber[] maxSpread = new FixedPointNumber[3];
+  private FixedPointNumber[] minSpread = new FixedPointNumber[3];
+
+  private FixedPointNumber[] lastMicroprice = new FixedPointNumber[3];  // Only kept when useMicroprice
+
+  private CorrelationMatrix correlation = new CorrelationMatrix(3, correlationWindow);  // Which currency follows which
+
+  private short outstandingPos;
+  private FixedPointNumber outstandingQuantity;
+  private FixedPointNumber closingPriceMin;
+  private FixedPointNumber closingPriceMax;
 
   /*
    * Constructor
    */
 
   GherkinPeeler(String url, String username, String password, ProductType productType) {
+    this(new Properties());
+    this.url = url;
+    this.productType = productType;
     LmaxApi lmaxApi = new LmaxApi(url);
     lmaxApi.login(new LoginRequest(username, password, productType), this);
   }
 
+  // Account trading off the order books of another session: logs in on a thread of its own, whose session only carries its orders
+  private GherkinPeeler(String accountName, String url, String username, String password, ProductType productType, Properties parameters, Diagnostics diagnostics)
+  {
+    this(parameters);
+    this.accountName = accountName;
+    this.tunedParameters = parameters;
+    this.diagnostics = diagnostics;
+    Thread login = new Thread(() -> new LmaxApi(url).login(new LoginRequest(username, password, productType), this), "gherkin-account-" + accountName);
+    login.setDaemon(true);
+    login.start();
+  }
+
+  // Offline instance, never logged in: orders must go to an OrderStub
+  GherkinPeeler()
+  {
+    this(new Properties());
+  }
+
+  // Offline instance with some parameters overridden (warmupMax, leverageFactor, bookLevel, signal=quotes|microprice), e.g. a shadow variant or a shard
+  GherkinPeeler(Properties parameters)
+  {
+    this.parameters = new Parameters(parameters);
+  }
+
   /*
    * Overridden methods
    */
@@ -93,6 +248,12 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
   @Override
   public void onLoginFailure(FailureResponse failureResponse)
   {
+    if (accountName != null)
+    {
+      // The other accounts carry on without this one
+      System.err.println(" ### GHERKIN_ACCOUNT_LOGIN_FAILED: " + accountName + ", " + failureResponse);
+      return;
+    }
     System.err.println(" ### GHERKIN_LOGIN_FAILED: " + failureResponse);
     GherkinStop();
     System.exit(-1);
@@ -101,39 +262,154 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
   @Override
   public void notify(OrderBookEvent orderBookEvent)
   {
+    final long ingressNanos = System.nanoTime();
 
     if (orderBookEvent.getBidPrices().size() == 0 || orderBookEvent.getAskPrices().size() == 0)
     {
       System.err.println(" # GHERKIN_NOTIFY_ORDERBOOK_EMPTY_PRICE_LIST");
+      metrics.increment(metricEmptyBooks);
       return;
     }
     else if (orderBookEvent.getBidPrices().size() < 5 || orderBookEvent.getAskPrices().size() < 5)
     {
       System.err.println(" # GHERKIN_NOTIFY_ORDERBOOK_POOR_PRICE_LIST");
+      metrics.increment(metricPoorBooks);
       return;
     }
 
+    // A reload waits for the next tick when logged, so that the event log has it between two inputs
+    if (reloadedParameters.get() != null)
+    {
+      GherkinSwapParameters(reloadedParameters.getAndSet(null));
+    }
+
+    final long id = orderBookEvent.getInstrumentId();
+    final long timeMillis = orderBookEvent.getTimeStamp();
+    BookSignals.decode(orderBookEvent.getBidPrices(), orderBookEvent.getAskPrices(), depth);
+    final short bookLevel = parameters.bookLevel;
+    final FixedPointNumber bid = orderBookEvent.getBidPrices().get(bookLevel).getPrice();
+    final FixedPointNumber ask = orderBookEvent.getAskPrices().get(bookLevel).getPrice();
+    final FixedPointNumber bidQuantity = orderBookEvent.getBidPrices().get(bookLevel).getQuantity();
+    final FixedPointNumber askQuantity = orderBookEvent.getAskPrices().get(bookLevel).getQuantity();
+    if (eventLog != null)
+    {
+      eventLog.book(id, ingressNanos, depth, timeMillis, bid.longValue(), ask.longValue(), bidQuantity.longValue(), askQuantity.longValue());
+    }
+
+    if (shards != null)
+    {
+      // The strategy runs on the shard of the instrument, the feed gaps are tracked here where all the ticks pass
+      staleness.onUpdate(id, ingressNanos);
+      shards.onTick(id, ingressNanos, depth, timeMillis);  // Counted by the shard, in our registry
+    }
+    else
+    {
+      GherkinEvents.Tick tick = GherkinEvents.beginTick();
+      onIngress(id, ingressNanos);
+      onDepth(id, depth, timeMillis);
+      onOrderBook(id, bid, ask, bidQuantity, askQuantity);
+      if (tick != null)
+      {
+        GherkinEvents.endTick(tick, id, bid.longValue(), ask.longValue(), state);
+      }
+    }
+
+    // Positions are marked to the top of the book
+    pnl.onTick(id, depth[BookSignals.bidPrices], depth[BookSignals.askPrices]);
+
+    // The monitor window picks the book up when it refreshes, without ever holding this thread
+    if (monitor != null)
+    {
+      monitor.onBook(id, depth);
+    }
+
+    // Close-outs held back by the rate limiter go out as soon as there are tokens again
+    if (rateLimiter.hasParkedCloseOuts())
+    {
+      rateLimiter.drain(System.nanoTime(), closeOutSender);
+    }
+
+    // Accounts trading off our order books get the same decoded tick, each on its own shards
+    if (accounts != null)
+    {
+      for (GherkinPeeler account : accounts)
+      {
+        account.onAccountTick(id, ingressNanos, depth, timeMillis);
+      }
+    }
+
+    // Shadow variants get the tick once the traded strategy is done with it
+    if (shadow != null)
+    {
+      shadow.publish(id, ingressNanos, depth, timeMillis);
+    }
+  }
+
+  // Market data thread of the session whose order books this account trades off
+  private void onAccountTick(long id, long ingressNanos, long[] depth, long timeMillis)
+  {
+    if (!accountTrading)
+    {
+      return;  // Not logged in yet
+    }
+    shards.onTick(id, ingressNanos, depth, timeMillis);
+    pnl.onTick(id, depth[BookSignals.bidPrices], depth[BookSignals.askPrices]);  // The executions are booked by the account's session thread
+    if (rateLimiter.hasParkedCloseOuts())
+    {
+      rateLimiter.drain(System.nanoTime(), closeOutSender);
+    }
+  }
+
+  @Override
+  public void onIngress(long id, long ingressNanos)
+  {
+    staleness.onUpdate(id, ingressNanos);
+  }
+
+  @Override
+  public void onDepth(long id, long[] depth, long timeMillis)
+  {
+    signals.onDepth(id, depth, timeMillis);
+  }
+
+  @Override
+  public void onOrderBook(long id, FixedPointNumber thisBid, FixedPointNumber thisAsk, FixedPointNumber thisBidQuantity, FixedPointNumber thisAskQuantity)
+  {
+    final Parameters parameters = this.parameters;
+
     /*
      * Always update prices and quantities
      */
 
     short updatedPos;
-    final long id = orderBookEvent.getInstrumentId();
     if      (id == instrumentId[0]) updatedPos = 0;
     else if (id == instrumentId[1]) updatedPos = 1;
     else if (id == instrumentId[2]) updatedPos = 2;
     else return;
+    metrics.increment(metricTicks + updatedPos);
 
     // Update prices
-    lastBid[updatedPos] = orderBookEvent.getBidPrices().get(bookLevel).getPrice();
-    lastAsk[updatedPos] = orderBookEvent.getAskPrices().get(bookLevel).getPrice();
+    lastBid[updatedPos] = thisBid;
+    lastAsk[updatedPos] = thisAsk;
 
     // Update quantities
-    lastBidQuantity[updatedPos] = orderBookEvent.getBidPrices().get(bookLevel).getQuantity();
-    lastAskQuantity[updatedPos] = orderBookEvent.getAskPrices().get(bookLevel).getQuantity();
+    lastBidQuantity[updatedPos] = thisBidQuantity;
+    lastAskQuantity[updatedPos] = thisAskQuantity;
+
+    // Depth-weighted fair price, known when the tick came with its depth
+    if (parameters.useMicroprice && signals.isReady(updatedPos))
+    {
+      lastMicroprice[updatedPos] = FixedPointNumber.valueOf(signals.getMicroprice(updatedPos));
+    }
+
+    // Keep track of how the currencies move together
+    correlation.onTick(updatedPos, (thisBid.longValue() + thisAsk.longValue()) / 2);
+    metrics.set(metricFollower + updatedPos, correlation.likelyFollower(updatedPos));
+    metrics.set(metricFollowerCorrelation + updatedPos, Math.round(correlation.likelyFollowerCorrelation(updatedPos) * FixedPointMath.scaleFactor));
 
     // Also update the maximum and minumum spread to use the average value in order to avoid false triggers
     long currentSpread = lastAsk[updatedPos].longValue() - lastBid[updatedPos].longValue();
+    metrics.set(metricSpread + updatedPos, currentSpread);
     if (currentSpread > maxSpread[updatedPos].longValue())
     {
       maxSpread[updatedPos] = FixedPointNumber.valueOf(currentSpread);
@@ -143,19 +419,22 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
       minSpread[updatedPos] = FixedPointNumber.valueOf(currentSpread);
     }
 
-    // Print the current values of the currency pairs
-    for (short i=0; i<3; i++)
+    if (diagnostics.admit(diagnosticPrices, updatedPos))
     {
-      System.out.print(" * " + instrumentDesc[i] + "=" + lastBid[i] + "/" + lastAsk[i]);
-    }
-    System.out.println();
+      // Print the current values of the currency pairs
+      for (short i=0; i<3; i++)
+      {
+        System.out.print(" * " + instrumentDesc[i] + "=" + lastBid[i] + "/" + lastAsk[i]);
+      }
+      System.out.println();
 
-    // Print the current values of the pair spreads
-    for (short i=0; i<3; i++)
-    {
-      System.out.print(" ** spread=" + minSpread[i] + "/" + maxSpread[i]);
+      // Print the current values of the pair spreads
+      for (short i=0; i<3; i++)
+      {
+        System.out.print(" ** spread=" + minSpread[i] + "/" + maxSpread[i]);
+      }
+      System.out.println();
     }
-    System.out.println();
 
     /*
      * Now check if there are orders to place
@@ -166,14 +445,14 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
       case WARMUP:
       {
         warmupCount[updatedPos]++;
-        if (warmupCount[0] >= warmupMax && warmupCount[1] >= warmupMax && warmupCount[2] >= warmupMax &&
+        if (warmupCount[0] >= parameters.warmupMax && warmupCount[1] >= parameters.warmupMax && warmupCount[2] >= parameters.warmupMax &&
             maxSpread[0] != FixedPointNumber.ZERO && maxSpread[1] != FixedPointNumber.ZERO && maxSpread[2] != FixedPointNumber.ZERO &&
             minSpread[0] != FixedPointNumber.ONE  && minSpread[1] != FixedPointNumber.ONE  && minSpread[2] != FixedPointNumber.ONE)
         {
           System.out.println(" ### GHERKIN_NOTIFY_ORDERBOOK_WARMUP_COMPLETE");
-          state = GherkinState.READY_TO_OPEN;
+          setState(GherkinState.READY_TO_OPEN);
         }
-        else
+        else if (diagnostics.admit(diagnosticWarmup, updatedPos))
         {
           System.out.println(" ## GHERKIN_NOTIFY_ORDERBOOK_WARMUP_NOT_COMPLETE_YET");
         }
@@ -185,13 +464,32 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
          * Apply the trading idea
          */
 
-        System.out.println(" # GHERKIN_NOTIFY_ORDERBOOK_READY_TO_OPEN");
+        if (diagnostics.admit(diagnosticReadyToOpen, updatedPos))
+        {
+          System.out.println(" # GHERKIN_NOTIFY_ORDERBOOK_READY_TO_OPEN");
+        }
+
+        // No triangle with a leg whose price may be long gone
+        if (staleness.isStale(0) || staleness.isStale(1) || staleness.isStale(2))
+        {
+          if (diagnostics.admit(diagnosticStaleLeg, updatedPos))
+          {
+            System.out.println(" ## GHERKIN_NOTIFY_ORDERBOOK_STALE_LEG: " + staleness.describe());
+          }
+          metrics.increment(metricStaleSkips);
+          break;
+        }
+
         for (short i=0; i<3; i++)
         {
           if (i != updatedPos)
           {
-            FixedPointNumber derivedBidPrice = getDerivedPrice(i, lastBid);
-            FixedPointNumber derivedAskPrice = getDerivedPrice(i, lastAsk);
+            // Quotes, or the microprices once all three are known
+            boolean micro = parameters.useMicroprice && lastMicroprice[0] != FixedPointNumber.ZERO && lastMicroprice[1] != FixedPointNumber.ZERO && lastMicroprice[2] != FixedPointNumber.ZERO;
+            FixedPointNumber derivedBidPrice = getDerivedPrice(i, micro ? lastMicroprice : lastBid);
+            FixedPointNumber derivedAskPrice = getDerivedPrice(i, micro ? lastMicroprice : lastAsk);
+            long buyPrice = micro ? lastMicroprice[i].longValue() : lastAsk[i].longValue();
+            long sellPrice = micro ? lastMicroprice[i].longValue() : lastBid[i].longValue();
             long avgSpread = (minSpread[i].longValue() + maxSpread[i].longValue())/2;
             this.outstandingQuantity = FixedPointNumber.ZERO;
 
@@ -199,11 +497,11 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
              * Are we going up?
              */
 
-            if (derivedBidPrice.longValue() > lastAsk[i].longValue() + avgSpread)
+            if (derivedBidPrice.longValue() > buyPrice + avgSpread)
             {
               this.outstandingPos = i;
-              this.outstandingQuantity = getContractQuantity(lastAskQuantity[i], derivedBidPrice.longValue() - lastAsk[i].longValue(), avgSpread);  // Positive
-              System.out.println(" ### OPEN WITH BUY " + outstandingQuantity + " x " + instrumentDesc[i] + " NOW AT " + lastBid[i] + "/" + lastAsk[i]);
+              this.outstandingQuantity = getContractQuantity(lastAskQuantity[i], derivedBidPrice.longValue() - buyPrice, avgSpread, parameters.leverageFactor);  // Positive
+              System.out.println(" ### OPEN WITH BUY " + outstandingQuantity + " x " + instrumentDesc[i] + " NOW AT " + lastBid[i] + "/" + lastAsk[i] + ", LIKELY FOLLOWED BY " + likelyFollower(i));
             }
             else
 
@@ -211,30 +509,39 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
              * Are we going down?
              */
 
-            if (derivedAskPrice.longValue() < lastBid[i].longValue() - avgSpread)
+            if (derivedAskPrice.longValue() < sellPrice - avgSpread)
             {
               this.outstandingPos = i;
-              this.outstandingQuantity = getContractQuantity(lastBidQuantity[i], derivedAskPrice.longValue() - lastBid[i].longValue(), avgSpread);  // Negative
-              System.out.println(" ### OPEN WITH SELL " + outstandingQuantity + " x " + instrumentDesc[i] + " NOW AT " + lastBid[i] + "/" + lastAsk[i]);
+              this.outstandingQuantity = getContractQuantity(lastBidQuantity[i], derivedAskPrice.longValue() - sellPrice, avgSpread, parameters.leverageFactor);  // Negative
+              System.out.println(" ### OPEN WITH SELL " + outstandingQuantity + " x " + instrumentDesc[i] + " NOW AT " + lastBid[i] + "/" + lastAsk[i] + ", LIKELY FOLLOWED BY " + likelyFollower(i));
             }
 
             /*
              * Place order to open position
              */
 
-            if (outstandingQuantity != FixedPointNumber.ZERO)
+            if (outstandingQuantity.longValue() != 0 && !acquirePosition())
+            {
+              System.out.println(" ## GHERKIN_POSITION_HELD_BY_ANOTHER_SHARD");
+              outstandingQuantity = FixedPointNumber.ZERO;
+              break;
+            }
+            if (outstandingQuantity.longValue() != 0)
             {
-              MarketOrderSpecification order = new MarketOrderSpecification(instrumentId[outstandingPos], outstandingQuantity, TimeInForce.FILL_OR_KILL);
               System.out.println(" ## GHERKIN_PLACE_OPEN_ORDER");
-              session.placeMarketOrder(order, new GherkinOrderCallback()
+              final boolean sent = placeMarketOrder(instrumentId[outstandingPos], outstandingQuantity, TimeInForce.FILL_OR_KILL, new GherkinOrderCallback()
               {
                 @Override
                 public void onSuccess(long instructionId)
                 {
                   System.out.println(" ## GHERKIN_PLACE_OPEN_ORDER_SUCCESS");
-                  state = GherkinState.WAIT_FOR_OPEN;
+                  setState(GherkinState.WAIT_FOR_OPEN);
                 }
               });
+              if (!sent)
+              {
+                releasePosition();  // Throttled, another shard may open until we decide again
+              }
               break;  // Without this break there could be two orders in the cycle, the data of the second one overwriting the first one
             }
           }
@@ -243,12 +550,18 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
       }
       case WAIT_FOR_OPEN:
       {
-        System.out.println(" ## GHERKIN_NOTIFY_ORDERBOOK_WAIT_FOR_OPEN_DO_NOTHING");
+        if (diagnostics.admit(diagnosticWaitForOpen, updatedPos))
+        {
+          System.out.println(" ## GHERKIN_NOTIFY_ORDERBOOK_WAIT_FOR_OPEN_DO_NOTHING");
+        }
         break;
       }
       case READY_TO_CLOSE:
       {
-        System.out.println(" # GHERKIN_NOTIFY_ORDERBOOK_READY_TO_CLOSE");
+        if (diagnostics.admit(diagnosticReadyToClose, updatedPos))
+        {
+          System.out.println(" # GHERKIN_NOTIFY_ORDERBOOK_READY_TO_CLOSE");
+        }
         boolean closeOrder = false;
         if (updatedPos == outstandingPos)
         {
@@ -292,15 +605,14 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
           if (closeOrder)
           {
             // Place closing order
-            MarketOrderSpecification order = new MarketOrderSpecification(instrumentId[outstandingPos], outstandingQuantity.negate(), TimeInForce.FILL_OR_KILL);
-            System.out.println(" ## GHERKIN_PLACE_CLOSE_ORDER: " + order);
-            session.placeMarketOrder(order, new GherkinOrderCallback()
+            System.out.println(" ## GHERKIN_PLACE_CLOSE_ORDER: " + outstandingQuantity.negate() + " x " + instrumentDesc[outstandingPos]);
+            placeMarketOrder(instrumentId[outstandingPos], outstandingQuantity.negate(), TimeInForce.FILL_OR_KILL, new GherkinOrderCallback()
             {
               @Override
               public void onSuccess(long instructionId)
               {
                 System.out.println(" ## GHERKIN_PLACE_CLOSE_ORDER_SUCCESS: " + instructionId);
-                state = GherkinState.WAIT_FOR_CLOSE;
+                setState(GherkinState.WAIT_FOR_CLOSE);
               }
             });
           }
@@ -309,7 +621,10 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
       }
       case WAIT_FOR_CLOSE:
       {
-        System.out.println(" # GHERKIN_NOTIFY_ORDERBOOK_WAIT_FOR_CLOSE_DO_NOTHING");
+        if (diagnostics.admit(diagnosticWaitForClose, updatedPos))
+        {
+          System.out.println(" # GHERKIN_NOTIFY_ORDERBOOK_WAIT_FOR_CLOSE_DO_NOTHING");
+        }
         break;
       }
       default:
@@ -324,6 +639,7 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
   {
     final long instructionId = instructionRejected.getInstructionId();
     System.err.println(" ### GHERKIN_NOTIFY_INSTRUCTION_REJECTED: " + instructionId);
+    metrics.increment(metricOrdersRejected);
   }
 
   /*
@@ -338,28 +654,53 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
   @Override
   public void notify(Execution execution)
   {
+    final long ingressNanos = System.nanoTime();
     System.out.println(" ### GHERKIN_NOTIFY_EXECUTION: " + execution);
+    metrics.increment(metricExecutions);
+    if (eventLog != null)
+    {
+      eventLog.execution(execution.getOrder().getInstrumentId(), execution.getPrice().longValue(), execution.getOrder().getFilledQuantity().longValue());
+    }
+    // The quantity of this execution alone, with the sign of the order
+    final long executedQuantity = Math.abs(execution.getQuantity().longValue()) * Long.signum(execution.getOrder().getQuantity().longValue());
+    pnl.onExecution(execution.getOrder().getInstrumentId(), execution.getPrice().longValue(), executedQuantity);
+    quality.onExecution(execution.getOrder().getInstrumentId(), execution.getOrder().getInstructionId(), execution.getPrice().longValue(), executedQuantity, ingressNanos);
+    if (shards != null)
+    {
+      shards.onExecution(execution.getOrder().getInstrumentId(), execution.getPrice().longValue(), execution.getOrder().getFilledQuantity().longValue());
+    }
+    else
+    {
+      onExecution(execution.getPrice(), execution.getOrder().getFilledQuantity());
+    }
+    GherkinEvents.execution(execution.getPrice().longValue(), execution.getOrder().getFilledQuantity().longValue(), state);
+  }
+
+  @Override
+  public void onExecution(FixedPointNumber executionPrice, FixedPointNumber filledQuantity)
+  {
     switch (state)
     {
       case WAIT_FOR_OPEN:
       {
-        this.outstandingQuantity = execution.getOrder().getFilledQuantity();
+        this.outstandingQuantity = filledQuantity;
         long doubleSpread = minSpread[this.outstandingPos].longValue() + maxSpread[outstandingPos].longValue();
-        this.closingPriceMax = FixedPointNumber.valueOf(execution.getPrice().longValue() + doubleSpread);
-        this.closingPriceMin = FixedPointNumber.valueOf(execution.getPrice().longValue() - doubleSpread);
+        this.closingPriceMax = FixedPointNumber.valueOf(executionPrice.longValue() + doubleSpread);
+        this.closingPriceMin = FixedPointNumber.valueOf(executionPrice.longValue() - doubleSpread);
 
         System.out.println(" ### NOW READY TO CLOSE BELOW " + closingPriceMin + " OR ABOVE " + closingPriceMax);
-        state = GherkinState.READY_TO_CLOSE;
+        setState(GherkinState.READY_TO_CLOSE);
         System.out.println(" ## GHERKIN_NOTIFY_EXECUTION_STATE_READY_TO_CLOSE");
         break;
       }
       case WAIT_FOR_CLOSE:
       {
-        this.outstandingQuantity = FixedPointNumber.valueOf(this.outstandingQuantity.longValue() + execution.getOrder().getFilledQuantity().longValue());
+        this.outstandingQuantity = FixedPointNumber.valueOf(this.outstandingQuantity.longValue() + filledQuantity.longValue());
         if (this.outstandingQuantity.longValue() == 0)
         {
           System.out.println(" ### GHERKIN_NOTIFY_EXECUTION_STATE_READY_TO_OPEN_AGAIN");
-          state = GherkinState.READY_TO_OPEN;
+          releasePosition();
+          setState(GherkinState.READY_TO_OPEN);
         }
         else
         {
@@ -378,6 +719,7 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
   public void notifyStreamFailure(Exception e)
   {
     System.err.println(" ### GHERKIN_STREAM_EXCEPTION");
+    GherkinEvents.reconnect("stream failure");
     GherkinStop();
     GherkinStart();
   }
@@ -386,6 +728,7 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
   public void notifySessionDisconnected()
   {
     System.err.println(" ### SESSION_DISCONNECTED_NO_HEARTBEAT");
+    GherkinEvents.reconnect("session disconnected");
     GherkinStop();
     GherkinStart();
   }
@@ -393,59 +736,159 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
   @Override
   public void notify(long accountId, String token)
   {
-    System.out.printf(" ## GHERKIN_RECEIVED_HEARTBEAT: %d, %s%n", accountId, token);
+    housekeeping.onHeartbeat(token);
+    metrics.set(metricHeartbeatRoundTripMicros, housekeeping.getLastRoundTripNanos() / 1000);
+    System.out.printf(" ## GHERKIN_RECEIVED_HEARTBEAT: %d, %s, %d us round trip%n", accountId, token, housekeeping.getLastRoundTripNanos() / 1000);
   }
 
   @Override
   public void notify(final PositionEvent position)
   {
     System.out.println(" ### GHERKIN_NOTIFY_POSITION_EVENT: " + position);
+    if (eventLog != null)
+    {
+      eventLog.position(position.getInstrumentId(), position.getOpenQuantity().longValue());
+    }
+    if (shards != null)
+    {
+      for (short i=0; i<3; i++)
+      {
+        if (instrumentId[i] == position.getInstrumentId()) metrics.set(metricPosition + i, position.getOpenQuantity().longValue());
+      }
+      shards.onPosition(position.getInstrumentId(), position.getOpenQuantity().longValue());
+    }
+    else
+    {
+      onPosition(position.getInstrumentId(), position.getOpenQuantity());
+    }
+  }
 
-    if (position.getOpenQuantity().longValue() != 0 && (state == GherkinState.WARMUP || state == GherkinState.READY_TO_OPEN))
+  @Override
+  public void onPosition(long positionInstrumentId, FixedPointNumber openQuantity)
+  {
+    for (short i=0; i<3; i++)
+    {
+      if (instrumentId[i] == positionInstrumentId) metrics.set(metricPosition + i, openQuantity.longValue());
+    }
+    if (openQuantity.longValue() != 0 && (state == GherkinState.WARMUP || state == GherkinState.READY_TO_OPEN))
     {
-      System.out.printf(" ### We shouldn't have open positions, closing %s x %d\n", position.getOpenQuantity(), position.getInstrumentId());
-      MarketOrderSpecification order = new MarketOrderSpecification(position.getInstrumentId(), position.getOpenQuantity().negate(), TimeInForce.IMMEDIATE_OR_CANCEL);
-      session.placeMarketOrder(order, new GherkinOrderCallback()
+      System.out.printf(" ### We shouldn't have open positions, closing %s x %d\n", openQuantity, positionInstrumentId);
+      placeCloseOutOrder(positionInstrumentId, openQuantity.negate(), new GherkinOrderCallback()
       {
         @Override
         public void onSuccess(long instructionId)
         {
           System.out.println(" ### GHERKIN_PLACE_CLOSE_POSITION_SUCCESS: " + instructionId);
+          rateLimiter.onCloseOutAcknowledged(positionInstrumentId);
+        }
+
+        @Override
+        public void onFailure(FailureResponse failureResponse)
+        {
+          rateLimiter.onCloseOutFailed(positionInstrumentId);
+          super.onFailure(failureResponse);
         }
       });
     }
   }
 
+  @Override
+  public Enum<?> getState()
+  {
+    return state;
+  }
+
+  @Override
+  public long[] getInstrumentIds()
+  {
+    return instrumentId.clone();
+  }
+
+  @Override
+  public String[] getInstrumentDescs()
+  {
+    return instrumentDesc.clone();
+  }
+
+  @Override
+  public MetricsRegistry getMetrics()
+  {
+    return metrics;
+  }
+
+  @Override
+  public int getBookLevel()
+  {
+    return parameters.bookLevel;
+  }
+
+  @Override
+  public void reset()
+  {
+    GherkinReset();
+  }
+
+  @Override
+  public void setOrderStub(OrderStub orderStub)
+  {
+    this.orderStub = orderStub;
+  }
+
+  // Offline instance driven by LoadGenerator: the strategy on -Dgherkin.shards threads, as when live
+  void startShards()
+  {
+    if (shards == null) GherkinStartShards();
+  }
+
+  // Offline instance measured by AllocationHarness: what the live session writes to as well, none of it started
+  void setLiveOutputs(EventLog eventLog, MonitorBoard monitor)
+  {
+    this.eventLog = eventLog;
+    this.monitor = monitor;
+    this.quality = new ExecutionQuality(instrumentId, instrumentDesc, eventLog);
+  }
+
+  @Override
+  public void setParameters(Properties parameters)
+  {
+    this.parameters = new Parameters(parameters);
+  }
+
+  @Override
+  public String describeState()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("state=").append(state).append(" outstanding=").append(outstandingQuantity).append(" x ").append(instrumentDesc[outstandingPos])
+      .append(" closing=").append(closingPriceMin).append("/").append(closingPriceMax);
+    for (short i=0; i<3; i++)
+    {
+      sb.append("\n  ").append(instrumentDesc[i]).append(" ").append(lastBid[i]).append("/").append(lastAsk[i])
+        .append(" qty=").append(lastBidQuantity[i]).append("/").append(lastAskQuantity[i])
+        .append(" spread=").append(minSpread[i]).append("/").append(maxSpread[i]).append(" warmup=").append(warmupCount[i])
+        .append(" ").append(signals.describe(i));
+    }
+    return sb.toString();
+  }
+
+  // One heartbeat request, run periodically by the housekeeping thread
   @Override
   public void run()
   {
-    try
+    session.requestHeartbeat(new HeartbeatRequest(housekeeping.nextHeartbeatToken()), new HeartbeatCallback()
     {
-      while (!Thread.currentThread().isInterrupted())
+      @Override
+      public void onSuccess(String token)
       {
-        Thread.sleep(300000L);  // 5 min => msec
-        session.requestHeartbeat(new HeartbeatRequest("token"), new HeartbeatCallback()
-        {
-          @Override
-          public void onSuccess(String token)
-          {
-            System.out.println(" ## GHERKIN_REQUESTED_HEARTBEAT: " + token);
-          }
-            
-          @Override
-          public void onFailure(FailureResponse failureResponse)
-          {
-            throw new RuntimeException(" ### GHERKIN_REQUEST_HEARTBEAT_FAILED");
-          }
-        });
+        System.out.println(" ## GHERKIN_REQUESTED_HEARTBEAT: " + token);
       }
-    }
-    catch (Exception e)
-    {
-      System.err.println(" ### GHERKIN_RUNNABLE_INTERRUPTED_EXCEPTION_STACK");
-      GherkinStop();
-      GherkinStart();
-    }
+
+      @Override
+      public void onFailure(FailureResponse failureResponse)
+      {
+        housekeeping.onHeartbeatFailed();
+        System.err.println(" ### GHERKIN_REQUEST_HEARTBEAT_FAILED: " + failureResponse + ", " + housekeeping.getHeartbeatsFailed() + " so far");
+      }
+    });
   }
 
   /*
@@ -454,21 +897,78 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
 
   private void GherkinStart()
   {
-    // Reset variables to their initial values
-    state = GherkinState.WARMUP;
-    for (short i=0; i<3; i++)
+    // An account trading off another session's order books only has its orders, executions and positions here
+    final boolean marketData = accountName == null;
+
+    // Compile the hot path before the first real tick, only once per process
+    if (jitWarmupEnabled && !jitWarmedUp && marketData)
     {
-      warmupCount[i] = 0;
-      lastBid[i] = FixedPointNumber.ZERO;
-      lastAsk[i] = FixedPointNumber.ZERO;
-      lastBidQuantity[i] = FixedPointNumber.ZERO;
-      lastAskQuantity[i] = FixedPointNumber.ZERO;
-      maxSpread[i] = FixedPointNumber.ZERO;
-      minSpread[i] = FixedPointNumber.ONE;
+      GherkinJitWarmup();
+    }
+
+    // Everything from here on can be replayed offline, unless the strategy runs on several threads
+    if (eventLog == null && !eventLogFile.isEmpty() && shardThreads == 0 && marketData)
+    {
+      GherkinOpenEventLog();
+    }
+    if (eventLog != null)
+    {
+      eventLog.reset();
+    }
+
+    // Fills against decisions, across reconnects like the event log it writes to
+    if (quality == null)
+    {
+      GherkinStartExecutionQuality(marketData);
+    }
+
+    // Tunables from the parameter file, before anything starts with them; the accounts get them from us
+    if (parameterWatcher == null && !parametersFile.isEmpty() && marketData)
+    {
+      GherkinLoadParameters();
+    }
+
+    // The monitor window stays open across reconnects, before the shards that publish to it
+    if (monitor == null && monitorEnabled && marketData)
+    {
+      GherkinOpenMonitor();
+    }
+
+    // Shadow variants carry on across reconnects, they only miss the ticks in between
+    if (shadow == null && !shadowVariantsFile.isEmpty() && marketData)
+    {
+      GherkinStartShadow();
+    }
+
+    // Shards carry on too, reset below like the strategy itself; an account always runs on its own
+    if (shards == null && (shardThreads > 0 || !marketData))
+    {
+      GherkinStartShards();
     }
 
+    // Accounts carry on as well, each logged in to a session of its own
+    if (accounts == null && !accountsFile.isEmpty() && marketData)
+    {
+      GherkinStartAccounts();
+    }
+
+    // Then reloaded whenever the file changes, without restarting the session or losing any state
+    if (parameterWatcher == null && !parametersFile.isEmpty() && marketData)
+    {
+      GherkinWatchParameters();
+    }
+
+    // The callbacks of close-outs sent by the previous session will never come
+    rateLimiter.reset(System.nanoTime());
+
+    // Reset variables to their initial values
+    GherkinReset();
+
     // Add listeners and callbacks for all the events I am interested in
-    session.registerOrderBookEventListener(this);
+    if (marketData)
+    {
+      session.registerOrderBookEventListener(this);
+    }
     session.registerInstructionRejectedEventListener(this);
     session.registerOrderEventListener(this);
     session.registerExecutionEventListener(this);
@@ -476,7 +976,7 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
     session.registerSessionDisconnectedListener(this);
     session.registerPositionEventListener(this);
     session.subscribe(new OrderSubscriptionRequest(), new GherkinSubscriptionCallback());
-    for(int i = 0; i < 3; i++)
+    for(int i = 0; marketData && i < 3; i++)
     {
       session.subscribe(new OrderBookSubscriptionRequest(instrumentId[i]), new GherkinSubscriptionCallback());
     }
@@ -495,38 +995,689 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
         throw new RuntimeException(" ### GHERKIN_SUBSCRIBE_HEARTBEAT_FAILED");
       }
     });
-    new Thread(this).start();
+    housekeeping.startHeartbeat(this, heartbeatPeriodMillis);
+    if (marketData && metrics.expose(metricsPort))
+    {
+      housekeeping.schedule("metrics", this::GherkinMetricsFlush, metricsFlushMillis);
+    }
+    if (!diagnosticsFlushing && marketData)
+    {
+      diagnosticsFlushing = true;
+      housekeeping.schedule("diagnostics", () -> diagnostics.flush(line -> System.out.println(" ## GHERKIN_SUPPRESSED: " + line)), diagnosticsPeriodMillis);
+    }
 
     // Start the event processing loop, this method will block until the session is stopped.
     session.start();
   }
 
-  private void GherkinStop()
-  {
-    session.stop();
-  }
-
-  private static FixedPointNumber getDerivedPrice(short instrumentPosToEvaluate, FixedPointNumber[] currentPrices)
+  private void GherkinReset()
   {
-    switch (instrumentPosToEvaluate)
+    setState(GherkinState.WARMUP);
+    for (short i=0; i<3; i++)
     {
-      case 0: return FixedPointNumber.valueOf(currentPrices[1].longValue() * currentPrices[2].longValue() / scaleFactor);
-      case 1: return FixedPointNumber.valueOf(currentPrices[0].longValue() * scaleFactor / currentPrices[2].longValue());
-      case 2: return FixedPointNumber.valueOf(currentPrices[0].longValue() * scaleFactor / currentPrices[1].longValue());
-      default: System.out.println(" ### Function getDerivedPrice called with unknown instrumentPosToEvaluate = " + instrumentPosToEvaluate);
+      warmupCount[i] = 0;
+      lastBid[i] = FixedPointNumber.ZERO;
+      lastAsk[i] = FixedPointNumber.ZERO;
+      lastBidQuantity[i] = FixedPointNumber.ZERO;
+      lastAskQuantity[i] = FixedPointNumber.ZERO;
+      maxSpread[i] = FixedPointNumber.ZERO;
+      minSpread[i] = FixedPointNumber.ONE;
+      lastMicroprice[i] = FixedPointNumber.ZERO;
+    }
+    correlation.reset();
+    releasePosition();
+    if (shards != null)
+    {
+      shards.reset();
+    }
+    signals.reset();
+  }
+
+  private void GherkinJitWarmup()
+  {
+    System.out.println(" ### GHERKIN_JIT_WARMUP_START");
+    GherkinReset();
+    SyntheticMarket market = new SyntheticMarket(instrumentId, jitWarmupMid, System.nanoTime());
+    market.setTriangle((int)pos_EUR_GBP, (int)pos_EUR_USD, (int)pos_GBP_USD);
+    JitWarmup jitWarmup = new JitWarmup(this, market);
+    try
+    {
+      jitWarmup.run();
+    }
+    finally
+    {
+      System.out.printf(" ### GHERKIN_JIT_WARMUP_COMPLETE: %d ticks in %d rounds, %d orders, %d ms compiling%n",
+                        jitWarmup.getTicks(), jitWarmup.getRounds(), jitWarmup.getOrdersPlaced(), jitWarmup.getCompilationMillis());
+      System.out.printf(" ### GHERKIN_JIT_WARMUP_LATENCY: before %d ns mean / %d ns p99, after %d ns mean / %d ns p99%n",
+                        jitWarmup.getFirstRoundMeanNanos(), jitWarmup.getFirstRoundP99Nanos(), jitWarmup.getLastRoundMeanNanos(), jitWarmup.getLastRoundP99Nanos());
+      jitWarmedUp = true;
+      metrics.resetCounters();  // Synthetic ticks and orders are not part of the session
+      diagnostics.reset();
+    }
+  }
+
+  private void GherkinOpenMonitor()
+  {
+    MonitorBoard board = new MonitorBoard(instrumentId);
+    if (!GherkinMonitor.open("Gherkin Peeler v1 - Triangle of currencies", instrumentId, instrumentDesc, GherkinState.values(), board, pnl, monitorRefreshMillis))
+    {
+      System.err.println("ERROR - Monitor Failure: no display");
+      return;
+    }
+    monitor = board;
+    System.out.println("Monitor Started");
+  }
+
+  private void GherkinOpenEventLog()
+  {
+    Path path = Paths.get(String.format(eventLogFile, System.currentTimeMillis()));
+    try
+    {
+      eventLog = EventLog.open(path);
+      System.out.println(" ### GHERKIN_EVENT_LOG: " + path);
+    }
+    catch (IOException e)
+    {
+      System.err.println(" ### GHERKIN_EVENT_LOG_FAILED: " + path + ", " + e);
+    }
+  }
+
+  private void GherkinStartShadow()
+  {
+    try
+    {
+      shadow = ShadowEngine.load(Paths.get(shadowVariantsFile), GherkinPeeler::new, instrumentId, instrumentDesc, accountCurrency);
+      shadow.setBaselineParameters(tunedParameters);
+      shadow.start();
+      shadow.includeMetrics(metrics);
+      housekeeping.schedule("shadow", () -> System.out.println(" ### GHERKIN_SHADOW: " + shadow.report()), metricsFlushMillis);
+      System.out.println(" ### GHERKIN_SHADOW_STARTED: " + shadow.getVariants() + " variants on " + shadow.getThreads() + " threads");
+    }
+    catch (IOException | IllegalArgumentException e)
+    {
+      System.err.println(" ### GHERKIN_SHADOW_FAILED: " + shadowVariantsFile + ", " + e);
+      shadow = null;
+    }
+  }
+
+  private void GherkinStartExecutionQuality(boolean marketData)
+  {
+    quality = new ExecutionQuality(instrumentId, instrumentDesc, eventLog);
+    if (marketData)
+    {
+      housekeeping.schedule("execution_quality", () -> System.out.println(" ### GHERKIN_EXECUTION_QUALITY: " + quality.report()), metricsFlushMillis);
+    }
+  }
+
+  private void GherkinStartShards()
+  {
+    // The triangle is one strategy: its three legs share a shard key, so they go to the same shard
+    final long[] shardKey = {id_EUR_GBP, id_EUR_GBP, id_EUR_GBP};
+    shards = new ShardPool(() ->
+    {
+      GherkinPeeler shard = new GherkinPeeler(tunedParameters);
+      shard.diagnostics = diagnostics;  // Summarized with the rest
+      shard.metrics = metrics;          // Same registrations, hence the same ids
+      shard.runsOnShard = true;
+      shard.monitor = monitor;
+      shard.quality = quality;
+      return shard;
+    }, instrumentId, instrumentDesc, shardKey, Math.max(1, shardThreads), new ShardOrders());
+    shards.start();
+    if (accountName != null)
+    {
+      accountTrading = true;  // Reported with the other accounts from now on
+      System.out.println(" ### GHERKIN_ACCOUNT_STARTED: " + accountName + ", " + shards.getThreads() + " threads");
+      return;
+    }
+    // Each worker spins while idle: without a core of its own besides the market data thread's, it takes theirs
+    final int cores = Runtime.getRuntime().availableProcessors();
+    if (shards.getThreads() >= cores)
+    {
+      System.out.println(" ### GHERKIN_SHARDS_OVERSUBSCRIBED: " + shards.getThreads() + " shards on " + cores + " cores, slower than none");
+    }
+    housekeeping.schedule("shards", () -> System.out.println(" ### GHERKIN_SHARDS: " + shards.report()), metricsFlushMillis);
+    System.out.println(" ### GHERKIN_SHARDS_STARTED: " + shards.getThreads() + " threads");
+  }
+
+  // One login per account, the password from GHERKIN_PASSWORD_<name>; an account whose login fails stays out
+  private void GherkinStartAccounts()
+  {
+    try
+    {
+      final Properties lines = ParameterWatcher.load(Paths.get(accountsFile));
+      List<GherkinPeeler> started = new ArrayList<GherkinPeeler>();
+      for (String name : new TreeSet<String>(lines.stringPropertyNames()))
+      {
+        final String password = System.getenv("GHERKIN_PASSWORD_" + name);
+        if (password == null)
+        {
+          System.err.println(" ### GHERKIN_ACCOUNT_NO_PASSWORD: " + name + ", GHERKIN_PASSWORD_" + name + " is not set");
+          continue;
+        }
+        started.add(new GherkinPeeler(name, url, lines.getProperty(name).trim(), password, productType, tunedParameters, diagnostics));
+      }
+      accounts = started.toArray(new GherkinPeeler[0]);
+      for (GherkinPeeler account : accounts)
+      {
+        metrics.include("account_" + account.accountName + "_", account.metrics);
+      }
+      housekeeping.schedule("accounts", this::GherkinAccountsReport, metricsFlushMillis);
+      System.out.println(" ### GHERKIN_ACCOUNTS: " + accounts.length + " logging in");
+    }
+    catch (IOException e)
+    {
+      System.err.println(" ### GHERKIN_ACCOUNTS_FAILED: " + accountsFile + ", " + e);
+    }
+  }
+
+  // Housekeeping thread, one line per account trading off our order books
+  private void GherkinAccountsReport()
+  {
+    for (GherkinPeeler account : accounts)
+    {
+      if (!account.accountTrading)
+      {
+        System.out.println(" ### GHERKIN_ACCOUNT: " + account.accountName + ", not logged in");
+        continue;
+      }
+      account.pnl.snapshot(account.pnlSnapshot);
+      System.out.println(" ### GHERKIN_ACCOUNT: " + account.accountName + ", " + account.pnlSnapshot + "; " + account.shards.report() + "; " + account.quality.report());
+    }
+  }
+
+  // Parameter watcher thread, like our own shards
+  private void GherkinTuneAccount(Properties loaded)
+  {
+    tunedParameters = loaded;
+    setParameters(loaded);
+    if (accountTrading) shards.setParameters(loaded);
+  }
+
+  // Login thread at start, then the parameter watcher thread: a file that does not validate changes nothing
+  private void GherkinLoadParameters()
+  {
+    try
+    {
+      final Properties loaded = ParameterWatcher.load(Paths.get(parametersFile));
+      final Parameters validated = new Parameters(loaded);
+      if (eventLog != null && parameterWatcher != null)
+      {
+        reloadedParameters.set(loaded);  // From the watcher thread, swapped in by the market data thread
+      }
+      else
+      {
+        GherkinSwapParameters(loaded);
+      }
+      if (shards != null) shards.setParameters(loaded);
+      if (shadow != null) shadow.setBaselineParameters(loaded);
+      if (accounts != null)
+      {
+        for (GherkinPeeler account : accounts) account.GherkinTuneAccount(loaded);
+      }
+      tunedParameters = loaded;
+      metrics.increment(metricParameterReloads);
+      System.out.println(" ### GHERKIN_PARAMETERS_LOADED: " + validated);
+    }
+    catch (IOException | IllegalArgumentException e)
+    {
+      metrics.increment(metricParameterRejects);
+      System.err.println(" ### GHERKIN_PARAMETERS_REJECTED: " + parametersFile + ", " + e);
+    }
+  }
+
+  // Logged as an input, on the thread the inputs come from
+  private void GherkinSwapParameters(Properties swapped)
+  {
+    if (eventLog != null)
+    {
+      eventLog.parameters(swapped);
+    }
+    setParameters(swapped);
+  }
+
+  private void GherkinWatchParameters()
+  {
+    try
+    {
+      parameterWatcher = new ParameterWatcher(Paths.get(parametersFile), this::GherkinLoadParameters);
+      parameterWatcher.start();
+      System.out.println(" ### GHERKIN_PARAMETERS_WATCHED: " + parametersFile);
+    }
+    catch (IOException e)
+    {
+      System.err.println(" ### GHERKIN_PARAMETERS_WATCH_FAILED: " + parametersFile + ", " + e);
+    }
+  }
+
+  // Housekeeping thread, picks up what the other components count and logs a summary
+  private void GherkinMetricsFlush()
+  {
+    metrics.set(metricCloseOutsCoalesced, rateLimiter.getCoalescedCloseOuts());
+    metrics.set(metricCloseOutMaxQueueMicros, rateLimiter.getMaxQueueNanos() / 1000);
+    metrics.set(metricHeartbeatsMissed, housekeeping.getHeartbeatsMissed());
+    pnl.snapshot(pnlSnapshot);
+    metrics.set(metricPnl, Math.round(pnlSnapshot.totalRealized * FixedPointMath.scaleFactor));
+    metrics.set(metricPnl + 1, Math.round(pnlSnapshot.totalUnrealized * FixedPointMath.scaleFactor));
+    metrics.set(metricPnl + 2, Math.round(pnlSnapshot.grossExposure * FixedPointMath.scaleFactor));
+    System.out.println(" ### GHERKIN_PNL: " + pnlSnapshot);
+    for (short i=0; i<3; i++)
+    {
+      metrics.set(metricFeedGaps + i, staleness.getGaps(i));
+      metrics.set(metricFeedMaxGapMillis + i, staleness.getMaxGapNanos(i) / 1000000);
+    }
+    System.out.println(" ### GHERKIN_METRICS: " + metrics);
+  }
+
+  // For the logs, the instrument a move of pos is most likely followed by and how closely
+  private String likelyFollower(int pos)
+  {
+    final int follower = correlation.likelyFollower(pos);
+    if (follower < 0) return "unknown yet";
+    return instrumentDesc[follower] + " (correlation " + Math.round(correlation.likelyFollowerCorrelation(pos) * 100) / 100.0 + ")";
+  }
+
+  private void setState(GherkinState newState)
+  {
+    if (eventLog != null && orderStub == null)
+    {
+      eventLog.state(state, newState);
+    }
+    state = newState;
+    metrics.increment(metricTransitions + newState.ordinal());
+    metrics.set(metricState, newState.ordinal());
+    if (monitor != null)
+    {
+      monitor.onState(newState.ordinal());
+    }
+  }
+
+  private void GherkinStop()
+  {
+    if (eventLog != null)
+    {
+      eventLog.flush();
+    }
+    session.stop();
+  }
+
+  // All orders go through here, so that they can be stubbed out when driven offline; false if throttled
+  private boolean placeMarketOrder(long id, FixedPointNumber quantity, TimeInForce timeInForce, OrderCallback callback)
+  {
+    MarketOrderSpecification order = new MarketOrderSpecification(id, quantity, timeInForce);
+    if (quality != null && shards == null)
+    {
+      recordDecision(id, quantity.longValue());  // The orders of shards are decided by them, on their own ticks
+    }
+    if (orderStub != null)
+    {
+      final GherkinState decidedIn = state;  // May change if acknowledged at once
+      final boolean sent = orderStub.placeMarketOrder(id, quantity, callback);
+      if (sent && quality != null)
+      {
+        GherkinEvents.decision(decidedIn, id, quantity.longValue(), timeInForce);  // A shard, with its own state
+      }
+      if (sent && !runsOnShard)
+      {
+        metrics.increment(metricOrdersPlaced);
+      }
+      return sent;
+    }
+    // Not sent when throttled, the state does not change and the next tick decides again
+    if (!rateLimiter.tryAcquire(id, System.nanoTime()))
+    {
+      System.err.println(" ### GHERKIN_ORDER_THROTTLED: " + quantity + " x " + id + ", " + rateLimiter.getThrottledOrders() + " so far");
+      metrics.increment(metricOrdersThrottled);
+      GherkinEvents.orderThrottled(id, quantity.longValue());
+      if (eventLog != null)
+      {
+        eventLog.throttled(id, quantity.longValue());
+      }
+      return false;
+    }
+    if (shards == null)
+    {
+      GherkinEvents.decision(state, id, quantity.longValue(), timeInForce);  // Shards emit theirs, in their state
+    }
+    quality.onOrderSent(id);
+    if (eventLog != null)
+    {
+      callback = eventLog.traced(callback, eventLog.order(id, quantity.longValue(), timeInForce));
+    }
+    callback = quality.traced(callback, id);
+    metrics.increment(metricOrdersPlaced);
+    GherkinEvents.orderSent(id, quantity.longValue(), 0);
+    session.placeMarketOrder(order, GherkinEvents.traced(callback, id, quantity.longValue()));
+    return true;
+  }
+
+  // The quote at the traded level an order goes against, and when its last tick arrived, kept once the order is sent
+  private void recordDecision(long id, long quantity)
+  {
+    for (short i=0; i<3; i++)
+    {
+      if (instrumentId[i] == id)
+      {
+        quality.onDecision(id, quantity, quantity > 0 ? lastAsk[i].longValue() : lastBid[i].longValue(), staleness.getLastUpdateNanos(i));
+      }
+    }
+  }
+
+  // Offline instances trading the same account (ShardPool) hold one position at a time between them
+  private boolean acquirePosition()
+  {
+    return orderStub == null || orderStub.acquirePosition(instrumentId[outstandingPos]);
+  }
+
+  private void releasePosition()
+  {
+    if (orderStub != null)
+    {
+      orderStub.releasePosition();
+    }
+  }
+
+  // Close-outs of unexpected positions, coalesced per instrument by the rate limiter
+  private void placeCloseOutOrder(long id, FixedPointNumber quantity, OrderCallback callback)
+  {
+    if (orderStub != null)
+    {
+      if (quality != null)
+      {
+        GherkinEvents.decision(state, id, quantity.longValue(), TimeInForce.IMMEDIATE_OR_CANCEL);  // A shard, with its own state
+      }
+      orderStub.placeCloseOutOrder(id, quantity, callback);
+      return;
+    }
+    if (shards == null)
+    {
+      GherkinEvents.decision(state, id, quantity.longValue(), TimeInForce.IMMEDIATE_OR_CANCEL);
+    }
+    if (eventLog != null)
+    {
+      callback = eventLog.traced(callback, eventLog.order(id, quantity.longValue(), TimeInForce.IMMEDIATE_OR_CANCEL));
+    }
+    switch (rateLimiter.submitCloseOut(id, quantity, callback, System.nanoTime()))
+    {
+      case OrderRateLimiter.SENT:
+        metrics.increment(metricOrdersPlaced);
+        GherkinEvents.orderSent(id, quantity.longValue(), 0);
+        session.placeMarketOrder(new MarketOrderSpecification(id, quantity, TimeInForce.IMMEDIATE_OR_CANCEL), GherkinEvents.traced(callback, id, quantity.longValue()));
+        break;
+      case OrderRateLimiter.PARKED:
+        System.err.println(" ### GHERKIN_CLOSE_POSITION_PARKED: " + quantity + " x " + id);
+        break;
+      case OrderRateLimiter.COALESCED:
+        System.err.println(" ### GHERKIN_CLOSE_POSITION_COALESCED: " + quantity + " x " + id + ", " + rateLimiter.getCoalescedCloseOuts() + " so far");
+        break;
+      case OrderRateLimiter.THROTTLED:
+        System.err.println(" ### GHERKIN_CLOSE_POSITION_THROTTLED: " + quantity + " x " + id + ", left to the next position event");
+        metrics.increment(metricOrdersThrottled);
+        break;
+    }
+  }
+
+  private void sendParkedCloseOut(long id, FixedPointNumber quantity, OrderCallback callback, long queueNanos, int coalesced)
+  {
+    System.out.printf(" ### GHERKIN_CLOSE_POSITION_RELEASED: %s x %d after %d us, %d coalesced, %d us max queueing so far%n",
+                      quantity, id, queueNanos / 1000, coalesced, rateLimiter.getMaxQueueNanos() / 1000);
+    metrics.increment(metricOrdersPlaced);
+    GherkinEvents.orderSent(id, quantity.longValue(), queueNanos);
+    session.placeMarketOrder(new MarketOrderSpecification(id, quantity, TimeInForce.IMMEDIATE_OR_CANCEL), GherkinEvents.traced(callback, id, quantity.longValue()));
+  }
+
+  private static FixedPointNumber getDerivedPrice(short instrumentPosToEvaluate, FixedPointNumber[] currentPrices)
+  {
+    switch (instrumentPosToEvaluate)
+    {
+      case 0: return FixedPointNumber.valueOf(FixedPointMath.multiply(currentPrices[1].longValue(), currentPrices[2].longValue()));
+      case 1: return FixedPointNumber.valueOf(FixedPointMath.divide(currentPrices[0].longValue(), currentPrices[2].longValue()));
+      case 2: return FixedPointNumber.valueOf(FixedPointMath.divide(currentPrices[0].longValue(), currentPrices[1].longValue()));
+      default: System.out.println(" ### Function getDerivedPrice called with unknown instrumentPosToEvaluate = " + instrumentPosToEvaluate);
     }
     return FixedPointNumber.valueOf("0");
   }
 
-  private static FixedPointNumber getContractQuantity(FixedPointNumber availableQuantity, long leapOpportunity, long avgSpread)
+  private FixedPointNumber getContractQuantity(FixedPointNumber availableQuantity, long leapOpportunity, long avgSpread, long leverageFactor)
   {
-    long tenthsOfContract = 10 * leverageFactor * (leapOpportunity - avgSpread) / avgSpread;
-    FixedPointNumber suggestedQuantity = FixedPointNumber.valueOf(scaleFactor * tenthsOfContract / 10);
+    long tenthsOfContract = FixedPointMath.multiplyDivide(10 * leverageFactor, leapOpportunity - avgSpread, avgSpread);
+    FixedPointNumber suggestedQuantity = FixedPointNumber.valueOf(FixedPointMath.multiplyDivide(scaleFactor, tenthsOfContract, 10));
     if (availableQuantity.longValue() <= suggestedQuantity.longValue())
       return availableQuantity;
     return suggestedQuantity;
   }
 
+  /*
+   * Batch backtest
+   */
+
+  // The quote signal over columns of ticks, for BatchBacktest; signal=microprice is not evaluated in batches
+  static BatchStrategy newBatchStrategy(Properties parameters, BatchKernels kernels)
+  {
+    final Parameters batchParameters = new Parameters(parameters);
+    if (batchParameters.useMicroprice)
+    {
+      throw new IllegalArgumentException("signal microprice is not evaluated in batches, only quotes");
+    }
+    return new TriangleBatch(batchParameters, kernels);
+  }
+
+  // What onOrderBook() decides, a range of ticks at a time: orders are filled at once at the quote, not capped at the quantity on the book, and no leg is ever stale
+  private static final class TriangleBatch implements BatchStrategy
+  {
+    private final Parameters parameters;
+    private final BatchKernels kernels;
+
+    // Carried over from one range to the next
+    private GherkinState state = GherkinState.WARMUP;
+    private final short[] warmupCount = new short[3];
+    private final long[] lastBid = new long[3];
+    private final long[] lastAsk = new long[3];
+    private final long[] minSpread = {scaleFactor, scaleFactor, scaleFactor};
+    private final long[] maxSpread = new long[3];
+    private int outstandingPos;
+    private long outstandingQuantity;  // Signed
+    private long openPrice;
+    private long closingPriceMin;
+    private long closingPriceMax;
+
+    // Decisions so far
+    private long buys;
+    private long sells;
+    private long closesBest;
+    private long closesWorst;
+    private final long[] realized = new long[3];  // Quote currency of each leg
+
+    // Columns of the range, from 0: the tick, then by leg
+    private int capacity;
+    private long[] tickBid;
+    private long[] tickAsk;
+    private long[] tickSpread;
+    private final long[][] bid = new long[3][];
+    private final long[][] ask = new long[3][];
+    private final long[][] avgSpread = new long[3][];
+    private final long[][] doubleSpread = new long[3][];
+    private final long[][] derivedBid = new long[3][];
+    private final long[][] derivedAsk = new long[3][];
+    private final boolean[][] buy = new boolean[3][];
+    private final boolean[][] sell = new boolean[3][];
+
+    TriangleBatch(Parameters parameters, BatchKernels kernels)
+    {
+      this.parameters = parameters;
+      this.kernels = kernels;
+    }
+
+    @Override
+    public void run(int[] pos, long[] thisBid, long[] thisAsk, int from, int to)
+    {
+      final int n = to - from;
+      ensureCapacity(n);
+
+      // Every tick sees the last prices of all three legs
+      final long[] bid0 = bid[0], bid1 = bid[1], bid2 = bid[2];
+      final long[] ask0 = ask[0], ask1 = ask[1], ask2 = ask[2];
+      for (int t=0; t<n; t++)
+      {
+        final int p = pos[from + t];
+        lastBid[p] = tickBid[t] = thisBid[from + t];
+        lastAsk[p] = tickAsk[t] = thisAsk[from + t];
+        bid0[t] = lastBid[0];
+        bid1[t] = lastBid[1];
+        bid2[t] = lastBid[2];
+        ask0[t] = lastAsk[0];
+        ask1[t] = lastAsk[1];
+        ask2[t] = lastAsk[2];
+      }
+      kernels.spread(tickBid, tickAsk, tickSpread, 0, n);
+
+      // Extremes of the spreads in tick order, and the tick completing the warm-up if this range has it
+      final long[] doubleSpread0 = doubleSpread[0], doubleSpread1 = doubleSpread[1], doubleSpread2 = doubleSpread[2];
+      final long[] avgSpread0 = avgSpread[0], avgSpread1 = avgSpread[1], avgSpread2 = avgSpread[2];
+      int warmedUpAt = -1;
+      for (int t=0; t<n; t++)
+      {
+        final int p = pos[from + t];
+        maxSpread[p] = Math.max(maxSpread[p], tickSpread[t]);
+        minSpread[p] = Math.min(minSpread[p], tickSpread[t]);
+        avgSpread0[t] = (doubleSpread0[t] = minSpread[0] + maxSpread[0]) / 2;
+        avgSpread1[t] = (doubleSpread1[t] = minSpread[1] + maxSpread[1]) / 2;
+        avgSpread2[t] = (doubleSpread2[t] = minSpread[2] + maxSpread[2]) / 2;
+        if (state == GherkinState.WARMUP && warmedUpAt < 0)
+        {
+          warmupCount[p]++;
+          if (warmupCount[0] >= parameters.warmupMax && warmupCount[1] >= parameters.warmupMax && warmupCount[2] >= parameters.warmupMax &&
+              maxSpread[0] != 0 && maxSpread[1] != 0 && maxSpread[2] != 0 &&
+              minSpread[0] != scaleFactor && minSpread[1] != scaleFactor && minSpread[2] != scaleFactor)
+          {
+            warmedUpAt = t;
+          }
+        }
+      }
+
+      // Each leg derived from the two others, and whether it is off by more than its average spread
+      kernels.multiply(bid[1], bid[2], derivedBid[0], 0, n);
+      kernels.divide(bid[0], bid[2], derivedBid[1], 0, n);
+      kernels.divide(bid[0], bid[1], derivedBid[2], 0, n);
+      kernels.multiply(ask[1], ask[2], derivedAsk[0], 0, n);
+      kernels.divide(ask[0], ask[2], derivedAsk[1], 0, n);
+      kernels.divide(ask[0], ask[1], derivedAsk[2], 0, n);
+      for (int i=0; i<3; i++)
+      {
+        kernels.above(derivedBid[i], ask[i], avgSpread[i], buy[i], 0, n);
+        kernels.below(derivedAsk[i], bid[i], avgSpread[i], sell[i], 0, n);
+      }
+
+      // The state machine, in tick order; most ticks have no signal on any leg
+      final boolean[] buy0 = buy[0], buy1 = buy[1], buy2 = buy[2];
+      final boolean[] sell0 = sell[0], sell1 = sell[1], sell2 = sell[2];
+      for (int t=0; t<n; t++)
+      {
+        final int p = pos[from + t];
+        switch (state)
+        {
+          case WARMUP:
+          {
+            if (t == warmedUpAt) state = GherkinState.READY_TO_OPEN;
+            break;
+          }
+          case READY_TO_OPEN:
+          {
+            if (!(buy0[t] | buy1[t] | buy2[t] | sell0[t] | sell1[t] | sell2[t])) break;
+            for (int i=0; i<3; i++)
+            {
+              if (i == p) continue;
+              long quantity = 0;
+              if (buy[i][t])
+              {
+                quantity = getContractQuantity(derivedBid[i][t] - ask[i][t], avgSpread[i][t]);  // Positive
+                openPrice = ask[i][t];
+              }
+              else if (sell[i][t])
+              {
+                quantity = getContractQuantity(derivedAsk[i][t] - bid[i][t], avgSpread[i][t]);  // Negative
+                openPrice = bid[i][t];
+              }
+              if (quantity != 0)
+              {
+                if (quantity > 0) buys++; else sells++;
+                outstandingPos = i;
+                outstandingQuantity = quantity;
+                closingPriceMax = openPrice + doubleSpread[i][t];
+                closingPriceMin = openPrice - doubleSpread[i][t];
+                state = GherkinState.READY_TO_CLOSE;
+                break;
+              }
+            }
+            break;
+          }
+          case READY_TO_CLOSE:
+          {
+            if (p != outstandingPos) break;
+            final long closePrice = outstandingQuantity > 0 ? bid[p][t] : ask[p][t];
+            final boolean best = outstandingQuantity > 0 ? closePrice > closingPriceMax : closePrice < closingPriceMin;
+            final boolean worst = outstandingQuantity > 0 ? closePrice < closingPriceMin : closePrice > closingPriceMax;
+            if (best || worst)
+            {
+              if (best) closesBest++; else closesWorst++;
+              realized[p] += FixedPointMath.multiply(outstandingQuantity, closePrice - openPrice);
+              state = GherkinState.READY_TO_OPEN;
+            }
+            break;
+          }
+          default:
+            break;
+        }
+      }
+    }
+
+    // As the live one, without the cap of the quantity on the book
+    private long getContractQuantity(long leapOpportunity, long avgSpread)
+    {
+      long tenthsOfContract = FixedPointMath.multiplyDivide(10 * parameters.leverageFactor, leapOpportunity - avgSpread, avgSpread);
+      return FixedPointMath.multiplyDivide(scaleFactor, tenthsOfContract, 10);
+    }
+
+    private void ensureCapacity(int n)
+    {
+      if (n <= capacity) return;
+      tickBid = new long[n];
+      tickAsk = new long[n];
+      tickSpread = new long[n];
+      for (int i=0; i<3; i++)
+      {
+        bid[i] = new long[n];
+        ask[i] = new long[n];
+        avgSpread[i] = new long[n];
+        doubleSpread[i] = new long[n];
+        derivedBid[i] = new long[n];
+        derivedAsk[i] = new long[n];
+        buy[i] = new boolean[n];
+        sell[i] = new boolean[n];
+      }
+      capacity = n;
+    }
+
+    @Override
+    public long orders()
+    {
+      return buys + sells + closesBest + closesWorst;
+    }
+
+    @Override
+    public String report()
+    {
+      StringBuilder sb = new StringBuilder();
+      sb.append("state=").append(state).append(" opened=").append(buys).append(" buys/").append(sells).append(" sells")
+        .append(" closed=").append(closesBest).append(" best/").append(closesWorst).append(" worst realized");
+      for (short i=0; i<3; i++)
+      {
+        sb.append(" ").append(instrumentDesc[i]).append("=").append(FixedPointNumber.valueOf(realized[i]));
+      }
+      return sb.toString();
+    }
+  }
+
   /*
    * Nested classes containing callbacks
    */
@@ -537,6 +1688,7 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
     public void onFailure(FailureResponse failureResponse)
     {
       System.err.println(" ### GHERKIN_CALLBACK_FAILURE: " + failureResponse);
+      metrics.increment(metricOrdersRejected);
       if (!failureResponse.isSystemFailure())
       {
         System.err.printf(" ### GHERKIN_DATA_ERROR: Message: %s, Description: %s", failureResponse.getMessage(), failureResponse.getDescription());
@@ -554,11 +1706,50 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
           System.err.printf(" ### GHERKIN_SYSTEM_ERROR: Message: %s, Description: %s", failureResponse.getMessage(), failureResponse.getDescription());
         }
       }
+      GherkinEvents.reconnect("order failure");
       GherkinStop();
       GherkinStart();
     }
   }
 
+  // Orders of the shards go out from here, their failures restart the session as ours do
+  private final class ShardOrders implements OrderStub
+  {
+    @Override
+    public boolean placeMarketOrder(long id, FixedPointNumber quantity, OrderCallback callback)
+    {
+      return GherkinPeeler.this.placeMarketOrder(id, quantity, TimeInForce.FILL_OR_KILL, new GherkinOrderCallback()
+      {
+        @Override
+        public void onSuccess(long instructionId)
+        {
+          callback.onSuccess(instructionId);
+        }
+      });
+    }
+
+    @Override
+    public void placeCloseOutOrder(long id, FixedPointNumber quantity, OrderCallback callback)
+    {
+      GherkinPeeler.this.placeCloseOutOrder(id, quantity, new GherkinOrderCallback()
+      {
+        @Override
+        public void onSuccess(long instructionId)
+        {
+          rateLimiter.onCloseOutAcknowledged(id);
+          callback.onSuccess(instructionId);
+        }
+
+        @Override
+        public void onFailure(FailureResponse failureResponse)
+        {
+          rateLimiter.onCloseOutFailed(id);
+          super.onFailure(failureResponse);
+        }
+      });
+    }
+  }
+
   private final class GherkinSubscriptionCallback implements Callback
   {
     @Override
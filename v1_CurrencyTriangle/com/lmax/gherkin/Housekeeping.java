@@ -0,0 +1,192 @@
+/**
+ * Gherkin Peeler
+ *
+ * Housekeeping - the one background thread: heartbeats, metrics flushes, snapshot writes, watchdogs.
+ *
+ * A single daemon ScheduledExecutorService for the whole process, started with the first task
+ * however many peelers there are (accounts, shards, shadows, offline instances) and however many
+ * times the session is restarted; each instance only registers its own tasks and keeps its own
+ * heartbeat statistics. Periodic tasks are isolated from each other: an exception is logged and
+ * the task keeps its schedule. The market data thread only ever touches this class through
+ * onHeartbeat(), which writes a couple of volatile longs, so it never waits for a lock held here.
+ *
+ * Heartbeat tokens carry a sequence number, and the round-trip time is measured from the request
+ * to the HeartbeatEvent with the same token. The watchdog reports requests left unanswered.
+ */
+
+package com.lmax.gherkin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class Housekeeping
+{
+
+  /*
+   * Constants
+   */
+
+  private static final String tokenPrefix = "gherkin-";
+
+  // Created on first use, so that instances which never schedule anything start no thread
+  private static final class Scheduler
+  {
+    static final ScheduledExecutorService instance = Executors.newSingleThreadScheduledExecutor(runnable ->
+    {
+      Thread thread = new Thread(runnable, "gherkin-housekeeping");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /*
+   * Variables
+   */
+
+  // Heartbeat written by the housekeeping thread
+  private volatile long sentSequence;
+  private volatile long sentNanos;
+  private final AtomicLong heartbeatsSent = new AtomicLong();
+  private final AtomicLong heartbeatsFailed = new AtomicLong();
+  private final AtomicLong heartbeatsMissed = new AtomicLong();
+  private long watchedSequence;  // Housekeeping thread only
+
+  // Heartbeat written by the market data thread
+  private volatile long receivedSequence;
+  private volatile long lastRoundTripNanos;
+  private volatile long maxRoundTripNanos;
+  private volatile long heartbeatsReceived;
+
+  private boolean heartbeatStarted;
+  private final List<ScheduledFuture<?>> tasks = new ArrayList<ScheduledFuture<?>>();  // Of this instance, guarded by the monitor
+
+  /*
+   * Scheduling
+   */
+
+  synchronized void schedule(String name, Runnable task, long periodMillis)
+  {
+    tasks.add(Scheduler.instance.scheduleWithFixedDelay(() ->
+    {
+      try
+      {
+        task.run();
+      }
+      catch (Throwable t)
+      {
+        System.err.println("Housekeeping task " + name + " failed: " + t);
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS));
+  }
+
+  // Heartbeat requests every periodMillis, and a watchdog for the answers; only the first call counts
+  synchronized void startHeartbeat(Runnable requestHeartbeat, long periodMillis)
+  {
+    if (heartbeatStarted)
+    {
+      return;
+    }
+    heartbeatStarted = true;
+    schedule("heartbeat", () ->
+    {
+      checkLastHeartbeat();
+      requestHeartbeat.run();
+    }, periodMillis);
+  }
+
+  // Cancels the tasks of this instance, the thread carries on with those of the others
+  synchronized void shutdown()
+  {
+    for (ScheduledFuture<?> task : tasks)
+    {
+      task.cancel(false);
+    }
+    tasks.clear();
+  }
+
+  /*
+   * Heartbeats
+   */
+
+  // Called right before requesting a heartbeat, housekeeping thread
+  String nextHeartbeatToken()
+  {
+    final long sequence = heartbeatsSent.incrementAndGet();
+    sentNanos = System.nanoTime();
+    sentSequence = sequence;
+    return tokenPrefix + sequence;
+  }
+
+  void onHeartbeatFailed()
+  {
+    heartbeatsFailed.incrementAndGet();
+  }
+
+  // Called by the market data thread for every HeartbeatEvent, does not allocate
+  void onHeartbeat(String token)
+  {
+    final long now = System.nanoTime();
+    final long sequence = parseSequence(token);
+    if (sequence <= 0 || sequence != sentSequence)
+    {
+      return;  // Not ours, or the answer to an older request
+    }
+    final long roundTrip = now - sentNanos;
+    lastRoundTripNanos = roundTrip;
+    if (roundTrip > maxRoundTripNanos)
+    {
+      maxRoundTripNanos = roundTrip;
+    }
+    receivedSequence = sequence;
+    heartbeatsReceived++;  // Single writer
+  }
+
+  // The previous request should have been answered by now
+  private void checkLastHeartbeat()
+  {
+    final long sequence = sentSequence;
+    if (sequence == 0 || sequence == watchedSequence)
+    {
+      return;
+    }
+    watchedSequence = sequence;
+    if (receivedSequence != sequence)
+    {
+      heartbeatsMissed.incrementAndGet();
+      System.err.println("Housekeeping heartbeat " + tokenPrefix + sequence + " unanswered, " + heartbeatsMissed.get() + " missed so far");
+    }
+  }
+
+  private static long parseSequence(String token)
+  {
+    if (token == null || !token.startsWith(tokenPrefix))
+    {
+      return -1;
+    }
+    long sequence = 0;
+    for (int i=tokenPrefix.length(); i<token.length(); i++)
+    {
+      final char c = token.charAt(i);
+      if (c < '0' || c > '9') return -1;
+      sequence = sequence * 10 + (c - '0');
+    }
+    return sequence;
+  }
+
+  /*
+   * Statistics
+   */
+
+  long getHeartbeatsSent()          { return heartbeatsSent.get(); }
+  long getHeartbeatsReceived()      { return heartbeatsReceived; }
+  long getHeartbeatsFailed()        { return heartbeatsFailed.get(); }
+  long getHeartbeatsMissed()        { return heartbeatsMissed.get(); }
+  long getLastRoundTripNanos()      { return lastRoundTripNanos; }
+  long getMaxRoundTripNanos()       { return maxRoundTripNanos; }
+
+}
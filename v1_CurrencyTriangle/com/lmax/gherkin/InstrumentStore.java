@@ -0,0 +1,169 @@
+/**
+ * Gherkin Peeler
+ *
+ * Instrument store - the per-instrument state of a strategy, off the heap, one fixed-layout
+ * record per instrument slot.
+ *
+ * Instead of an array of objects per field (prices, quantities, spreads, counts), every field of
+ * an instrument lives at a fixed offset of its record, and the records of all the instruments
+ * sit next to each other in one direct ByteBuffer: a tick touches one or two cache lines, and
+ * there is nothing for the garbage collector to trace however many instruments there are. The
+ * strategy reads and writes through a flyweight of its own, which knows the offsets of its
+ * fields and is moved from record to record with select(), never allocating.
+ *
+ * The buffer can be a memory-mapped file instead, so the records outlive the process: a restart
+ * finds them as they were at the last write (the page cache has them even after a crash, force()
+ * also gets them to disk). The file starts with a header giving the layout (its name, record
+ * size and number of slots); a file written with another layout is started afresh.
+ *
+ * Fields are native order primitives. A record is written by one thread at a time, like the
+ * arrays it replaces; readers on other threads are not expected.
+ */
+
+package com.lmax.gherkin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+final class InstrumentStore
+{
+
+  /*
+   * Constants
+   */
+
+  private static final long magic = 0x474B5354_4F524531L;  // "GKSTORE1"
+  private static final int headerSize = 64;  // Magic, layout hash, record size, slots, padded to a cache line
+  private static final int alignment = 8;    // Records start on a long boundary
+
+  /*
+   * Variables
+   */
+
+  private final ByteBuffer buffer;
+  private final int recordSize;
+  private final int numSlots;
+  private final Path path;     // Null when in memory only
+  private final boolean restored;
+
+  /*
+   * Constructor
+   */
+
+  private InstrumentStore(ByteBuffer buffer, int recordSize, int numSlots, Path path, boolean restored)
+  {
+    this.buffer = buffer.order(ByteOrder.nativeOrder());
+    this.recordSize = recordSize;
+    this.numSlots = numSlots;
+    this.path = path;
+    this.restored = restored;
+  }
+
+  // In memory, lost with the process; all fields start at zero
+  static InstrumentStore allocate(int recordSize, int numSlots)
+  {
+    final int size = align(recordSize);
+    return new InstrumentStore(ByteBuffer.allocateDirect(headerSize + size * numSlots), size, numSlots, null, false);
+  }
+
+  // Mapped to the file, with the records left there if it has the same layout, zeroed otherwise
+  static InstrumentStore map(Path path, String layout, int recordSize, int numSlots) throws IOException
+  {
+    final int size = align(recordSize);
+    final long fileSize = headerSize + (long)size * numSlots;
+    final MappedByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+    {
+      final boolean sameSize = channel.size() == fileSize;
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);  // Grows the file if needed, the mapping outlives the channel
+      buffer.order(ByteOrder.nativeOrder());
+      final long layoutHash = layout.hashCode() * 31L + size;
+      final boolean restored = sameSize &&
+                               buffer.getLong(0) == magic &&
+                               buffer.getLong(8) == layoutHash &&
+                               buffer.getInt(16) == size &&
+                               buffer.getInt(20) == numSlots;
+      if (!restored)
+      {
+        for (int i=0; i<fileSize; i+=8)
+        {
+          buffer.putLong(i, 0);
+        }
+        buffer.putLong(8, layoutHash);
+        buffer.putInt(16, size);
+        buffer.putInt(20, numSlots);
+        buffer.putLong(0, magic);  // Last, a header without it is not trusted
+      }
+      return new InstrumentStore(buffer, size, numSlots, path, restored);
+    }
+  }
+
+  private static int align(int recordSize)
+  {
+    return (recordSize + alignment - 1) / alignment * alignment;
+  }
+
+  /*
+   * Records
+   */
+
+  // Where the record of the slot starts, fields are at offsets from there
+  int offset(int slot)
+  {
+    return headerSize + slot * recordSize;
+  }
+
+  long getLong(int offset)                { return buffer.getLong(offset); }
+  void putLong(int offset, long value)    { buffer.putLong(offset, value); }
+  int getInt(int offset)                  { return buffer.getInt(offset); }
+  void putInt(int offset, int value)      { buffer.putInt(offset, value); }
+  short getShort(int offset)              { return buffer.getShort(offset); }
+  void putShort(int offset, short value)  { buffer.putShort(offset, value); }
+  byte getByte(int offset)                { return buffer.get(offset); }
+  void putByte(int offset, byte value)    { buffer.put(offset, value); }
+
+  // Every field of the slot back to zero
+  void clear(int slot)
+  {
+    final int start = offset(slot);
+    for (int i=0; i<recordSize; i+=8)
+    {
+      buffer.putLong(start + i, 0);
+    }
+  }
+
+  /*
+   * Persistence
+   */
+
+  // Whether the records were left by a previous process, rather than starting at zero
+  boolean isRestored()
+  {
+    return restored;
+  }
+
+  Path getPath()
+  {
+    return path;
+  }
+
+  int numSlots()
+  {
+    return numSlots;
+  }
+
+  // Writes the records to disk, when mapped; they survive the process without it, not the machine
+  void force()
+  {
+    if (buffer instanceof MappedByteBuffer)
+    {
+      ((MappedByteBuffer)buffer).force();
+    }
+  }
+
+}
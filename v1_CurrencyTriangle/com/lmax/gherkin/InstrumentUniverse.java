@@ -0,0 +1,234 @@
+/**
+ * Gherkin Peeler
+ *
+ * Instrument universe - which order books the session subscribes to, changed while it runs.
+ *
+ * The strategy has its state slots allocated up front for a fixed pool of instruments, and the
+ * universe is the subset of them it trades: it can be changed at any time (from the parameter
+ * file), a slot coming back into it being started afresh by the strategy. An instrument with an
+ * open position stays subscribed until the position is closed, dropped or not, whichever of the
+ * accounts trading off the session holds it.
+ *
+ * Changes are not sent one by one: flush() compares the wanted subscriptions with the current
+ * ones and sends all the differences in one pass, so that an instrument dropped and added back
+ * between two flushes costs nothing. Acknowledgements come back on the session thread, and a
+ * request that failed is sent again on the next flush.
+ */
+
+package com.lmax.gherkin;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.lmax.api.Callback;
+import com.lmax.api.FailureResponse;
+
+final class InstrumentUniverse
+{
+
+  /*
+   * Constants
+   */
+
+  private static final int UNSUBSCRIBED = 0;
+  private static final int SUBSCRIBING = 1;
+  private static final int SUBSCRIBED = 2;
+  private static final int UNSUBSCRIBING = 3;
+
+  private final long[] instrumentId;
+  private final String[] instrumentDesc;
+
+  // Sends a subscription or unsubscription request for the order book of an instrument
+  interface Requests
+  {
+    void request(long instrumentId, boolean subscribe, Callback callback);
+  }
+
+  /*
+   * Variables
+   */
+
+  private volatile boolean[] selected;               // By position, replaced whole
+  private final AtomicIntegerArray openPosition;     // By position, bit a set while account a holds one
+  private final AtomicIntegerArray subscription;     // By position, one of the above
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  /*
+   * Constructor
+   */
+
+  InstrumentUniverse(long[] instrumentId, String[] instrumentDesc)
+  {
+    this.instrumentId = instrumentId.clone();
+    this.instrumentDesc = instrumentDesc.clone();
+    this.selected = new boolean[instrumentId.length];
+    this.openPosition = new AtomicIntegerArray(instrumentId.length);
+    this.subscription = new AtomicIntegerArray(instrumentId.length);
+  }
+
+  // "all", or a comma-separated list of instruments of the pool
+  static boolean[] parse(String list, String[] instrumentDesc)
+  {
+    final boolean[] selected = new boolean[instrumentDesc.length];
+    if (list.trim().equals("all"))
+    {
+      Arrays.fill(selected, true);
+      return selected;
+    }
+    for (String desc : list.split(","))
+    {
+      if (desc.trim().isEmpty()) continue;
+      final int pos = Arrays.asList(instrumentDesc).indexOf(desc.trim());
+      if (pos < 0)
+      {
+        throw new IllegalArgumentException("instrument " + desc.trim() + " is not one of " + Arrays.toString(instrumentDesc));
+      }
+      selected[pos] = true;
+    }
+    return selected;
+  }
+
+  static String format(boolean[] selected, String[] instrumentDesc)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i=0; i<selected.length; i++)
+    {
+      if (!selected[i]) continue;
+      if (sb.length() > 0) sb.append(",");
+      sb.append(instrumentDesc[i]);
+    }
+    return sb.toString();
+  }
+
+  /*
+   * Updates, any thread
+   */
+
+  void select(boolean[] selected)
+  {
+    this.selected = selected.clone();
+  }
+
+  // Account 0 is the one of the session, the others trade off its order books
+  void onPosition(int account, long id, boolean open)
+  {
+    if (account < 0 || account >= Integer.SIZE)
+    {
+      throw new IllegalArgumentException("Account " + account + " is not within 0.." + (Integer.SIZE - 1));
+    }
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      if (instrumentId[i] != id) continue;
+      int bits;
+      do
+      {
+        bits = openPosition.get(i);
+      }
+      while (!openPosition.compareAndSet(i, bits, open ? bits | (1 << account) : bits & ~(1 << account)));
+    }
+  }
+
+  // A new session subscribes to nothing yet
+  synchronized void onSessionStart()
+  {
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      subscription.set(i, UNSUBSCRIBED);
+    }
+  }
+
+  // Number of requests sent
+  synchronized int flush(Requests sender)
+  {
+    final boolean[] selected = this.selected;
+    int sent = 0;
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      final boolean wanted = selected[i] || openPosition.get(i) != 0;
+      final int state = subscription.get(i);
+      if (wanted && state == UNSUBSCRIBED)
+      {
+        subscription.set(i, SUBSCRIBING);
+        sender.request(instrumentId[i], true, new Acknowledgement(i, SUBSCRIBING, SUBSCRIBED, UNSUBSCRIBED));
+        sent++;
+      }
+      else if (!wanted && state == SUBSCRIBED)
+      {
+        subscription.set(i, UNSUBSCRIBING);
+        sender.request(instrumentId[i], false, new Acknowledgement(i, UNSUBSCRIBING, UNSUBSCRIBED, SUBSCRIBED));
+        sent++;
+      }
+    }
+    requests.addAndGet(sent);
+    return sent;
+  }
+
+  /*
+   * Statistics
+   */
+
+  boolean isSubscribed(int pos)  { return subscription.get(pos) == SUBSCRIBED; }
+
+  int getSubscribed()
+  {
+    int subscribed = 0;
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      if (isSubscribed(i)) subscribed++;
+    }
+    return subscribed;
+  }
+
+  // Subscribed instruments, and those on their way in or out
+  String describe()
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      final int state = subscription.get(i);
+      if (state == UNSUBSCRIBED) continue;
+      if (sb.length() > 0) sb.append(", ");
+      sb.append(instrumentDesc[i]);
+      if (state == SUBSCRIBING) sb.append(" (subscribing)");
+      if (state == UNSUBSCRIBING) sb.append(" (unsubscribing)");
+    }
+    return sb.append(" - ").append(requests.get()).append(" requests, ").append(failures.get()).append(" failed").toString();
+  }
+
+  /*
+   * Acknowledgements, session thread
+   */
+
+  private final class Acknowledgement implements Callback
+  {
+    private final int pos;
+    private final int pending;
+    private final int success;
+    private final int failure;
+
+    Acknowledgement(int pos, int pending, int success, int failure)
+    {
+      this.pos = pos;
+      this.pending = pending;
+      this.success = success;
+      this.failure = failure;
+    }
+
+    @Override
+    public void onSuccess()
+    {
+      subscription.compareAndSet(pos, pending, success);
+    }
+
+    @Override
+    public void onFailure(FailureResponse failureResponse)
+    {
+      failures.incrementAndGet();
+      System.err.println("Order book " + (pending == SUBSCRIBING ? "subscription" : "unsubscription") + " of " + instrumentDesc[pos] + " failed, retried on the next flush: " + failureResponse);
+      subscription.compareAndSet(pos, pending, failure);
+    }
+  }
+
+}
@@ -0,0 +1,176 @@
+/**
+ * Gherkin Peeler
+ *
+ * JIT warm-up - replays synthetic ticks through the strategy before going live.
+ *
+ * Orders are not sent to LMAX while warming up: this class is the OrderStub meanwhile, it
+ * acknowledges them and fills them at the synthetic price right after the tick, so that every
+ * state of the strategy gets compiled. The ticks are replayed in rounds until the JIT stops
+ * compiling (or maxRounds is reached); console output is discarded meanwhile.
+ */
+
+package com.lmax.gherkin;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import com.lmax.api.FixedPointNumber;
+import com.lmax.api.order.OrderCallback;
+
+final class JitWarmup implements OrderStub
+{
+
+  /*
+   * Constants
+   */
+
+  private static final int roundTicks = 20000;  // Comfortably above the C2 invocation and back-edge thresholds
+  private static final int minRounds = 3;
+  private static final int maxRounds = 50;
+
+  /*
+   * Variables
+   */
+
+  private final GherkinHandlers handlers;
+  private final SyntheticMarket market;
+  private final long[] latency = new long[roundTicks];
+
+  private OrderCallback pendingCallback;
+  private long pendingInstrumentId;
+  private FixedPointNumber pendingQuantity;
+  private long ordersPlaced;
+
+  private int rounds;
+  private long firstRoundMeanNanos;
+  private long firstRoundP99Nanos;
+  private long lastRoundMeanNanos;
+  private long lastRoundP99Nanos;
+  private long compilationMillis;
+
+  /*
+   * Constructor
+   */
+
+  JitWarmup(GherkinHandlers handlers, SyntheticMarket market)
+  {
+    this.handlers = handlers;
+    this.market = market;
+  }
+
+  /*
+   * Warm-up loop
+   */
+
+  void run()
+  {
+    final CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+    final boolean monitored = compiler != null && compiler.isCompilationTimeMonitoringSupported();
+    final long startCompilationMillis = monitored ? compiler.getTotalCompilationTime() : 0;
+    long lastCompilationMillis = startCompilationMillis;
+
+    PrintStream out = System.out;
+    PrintStream err = System.err;
+    PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+    System.setOut(discard);
+    System.setErr(discard);
+    handlers.setOrderStub(this);
+    try
+    {
+      for (rounds = 1; rounds <= maxRounds; rounds++)
+      {
+        runRound();
+        Arrays.sort(latency);
+        final long mean = mean(latency);
+        final long p99 = latency[roundTicks * 99 / 100];
+        if (rounds == 1)
+        {
+          firstRoundMeanNanos = mean;
+          firstRoundP99Nanos = p99;
+        }
+        lastRoundMeanNanos = mean;
+        lastRoundP99Nanos = p99;
+
+        // Done once a whole round went by without the JIT compiling anything
+        final long compilationNow = monitored ? compiler.getTotalCompilationTime() : 0;
+        if (rounds >= minRounds && (!monitored || compilationNow == lastCompilationMillis))
+        {
+          break;
+        }
+        lastCompilationMillis = compilationNow;
+      }
+    }
+    finally
+    {
+      handlers.setOrderStub(null);
+      System.setOut(out);
+      System.setErr(err);
+    }
+    rounds = Math.min(rounds, maxRounds);
+    compilationMillis = lastCompilationMillis - startCompilationMillis;
+  }
+
+  private void runRound()
+  {
+    for (int t=0; t<roundTicks; t++)
+    {
+      final int pos = market.next();
+      final long id = market.instrumentId(pos);
+      final FixedPointNumber bid = FixedPointNumber.valueOf(market.bid(pos));
+      final FixedPointNumber ask = FixedPointNumber.valueOf(market.ask(pos));
+      final FixedPointNumber bidQuantity = FixedPointNumber.valueOf(market.bidQuantity(pos));
+      final FixedPointNumber askQuantity = FixedPointNumber.valueOf(market.askQuantity(pos));
+
+      final long start = System.nanoTime();
+      handlers.onOrderBook(id, bid, ask, bidQuantity, askQuantity);
+      latency[t] = System.nanoTime() - start;
+
+      // Acknowledge and fill the order placed on this tick, if any, as LMAX would do shortly after
+      if (pendingCallback != null)
+      {
+        final OrderCallback callback = pendingCallback;
+        final int orderPos = market.positionOf(pendingInstrumentId);
+        final long price = pendingQuantity.longValue() > 0 ? market.ask(orderPos) : market.bid(orderPos);
+        pendingCallback = null;
+        callback.onSuccess(-(++ordersPlaced));
+        handlers.onExecution(FixedPointNumber.valueOf(price), pendingQuantity);
+      }
+    }
+  }
+
+  @Override
+  public boolean placeMarketOrder(long instrumentId, FixedPointNumber quantity, OrderCallback callback)
+  {
+    this.pendingInstrumentId = instrumentId;
+    this.pendingQuantity = quantity;
+    this.pendingCallback = callback;
+    return true;
+  }
+
+  private static long mean(long[] values)
+  {
+    long sum = 0;
+    for (long v : values)
+    {
+      sum += v;
+    }
+    return sum / values.length;
+  }
+
+  /*
+   * Results
+   */
+
+  int getRounds()                 { return rounds; }
+  long getTicks()                 { return (long)rounds * roundTicks; }
+  long getOrdersPlaced()          { return ordersPlaced; }
+  long getFirstRoundMeanNanos()   { return firstRoundMeanNanos; }
+  long getFirstRoundP99Nanos()    { return firstRoundP99Nanos; }
+  long getLastRoundMeanNanos()    { return lastRoundMeanNanos; }
+  long getLastRoundP99Nanos()     { return lastRoundP99Nanos; }
+  long getCompilationMillis()     { return compilationMillis; }
+
+}
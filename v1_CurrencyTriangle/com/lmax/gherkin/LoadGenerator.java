@@ -0,0 +1,415 @@
+/**
+ * Gherkin Peeler
+ *
+ * Load generator - end-to-end throughput and latency of the strategy under escalating tick rates.
+ *
+ * A tape of five-level books is synthesized first (SyntheticBooks: random walks with spread
+ * regimes and triangle-consistent cross rates), then played back and forth without a seam into
+ * an offline GherkinPeeler through notify(OrderBookEvent), the listener the LMAX session calls,
+ * given a mutable event (SyntheticEvents) whose price points are built with the tape. Ticks
+ * arrive on an open-loop schedule, in bursts of a given size whose gaps are exponentially
+ * distributed around the offered rate, so a strategy that cannot keep up falls behind the
+ * schedule instead of slowing it down. This class is the OrderStub: orders are acknowledged and
+ * filled, through notify(Execution), at the top of the book right after the tick that placed them.
+ *
+ * Each load level runs for a fixed time at twice the rate of the previous one, and records per
+ * tick the wait (from its scheduled arrival to its dispatch), the service time and the response
+ * time (the two together). A level is sustained when, once over, the schedule is less than 1% of
+ * the level behind. Queueing starts at the first level where the median tick waits a whole
+ * median service time longer than at the lowest level. Escalation stops after two levels in a
+ * row are not sustained. Console output of the strategy is discarded.
+ *
+ * With -Dgherkin.shards=<threads> in GHERKIN_JAVA_OPTS the peeler runs its strategy on that many
+ * shards, as a live one would, the ticks being handed over by notify(). Either way the run ends
+ * with the ticks and orders the metrics registry of the peeler counted, and exits with 1 if
+ * either is zero: what the metrics endpoint shows must be what the strategy did.
+ *
+ *   loadme.sh [burst] [levelMillis] [startTicksPerSecond]
+ */
+
+package com.lmax.gherkin;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.lmax.api.FixedPointNumber;
+import com.lmax.api.order.OrderCallback;
+import com.lmax.api.orderbook.PricePoint;
+
+public final class LoadGenerator implements OrderStub
+{
+
+  /*
+   * Constants
+   */
+
+  private static final int defaultBurst = 1;
+  private static final long defaultLevelMillis = 2000;
+  private static final double defaultStartTicksPerSecond = 1000;
+  private static final double escalation = 2;
+  private static final int maxLevels = 24;
+  private static final int unsustainedLevelsToStop = 2;
+  private static final int sustainedLagPercent = 1;
+
+  private static final int tapeTicks = 1 << 16;  // Played forward then backward, so each instrument stays continuous
+  private static final int gapCount = 1 << 14;   // Exponential gaps of mean 1, cycled through
+  private static final int warmupTicks = 500000;
+  private static final int shardThreads = Integer.getInteger("gherkin.shards", 0);  // 0 to run the strategy on the dispatching thread
+
+  private static final int levels = BookSignals.levels;
+  private static final int bidPrices = BookSignals.bidPrices;
+  private static final int bidQuantities = BookSignals.bidQuantities;
+  private static final int askPrices = BookSignals.askPrices;
+  private static final int askQuantities = BookSignals.askQuantities;
+  private static final int depthSize = BookSignals.depthSize;
+
+  /*
+   * Variables
+   */
+
+  private final GherkinPeeler peeler;
+  private final int burst;
+  private final long levelNanos;
+  private final long[] instrumentId;
+  private final int[] tapePos = new int[tapeTicks];
+  private final PricePoint[] tapeBids = new PricePoint[tapeTicks * levels];
+  private final PricePoint[] tapeAsks = new PricePoint[tapeTicks * levels];
+  private final double[] gap = new double[gapCount];
+  private final SyntheticEvents.Book book = new SyntheticEvents.Book();
+  private final SyntheticEvents.Fill fill = new SyntheticEvents.Fill();
+  private final long[] lastBid;  // Top of the book by instrument position, orders are filled there
+  private final long[] lastAsk;
+  private long tapeIndex;
+  private int gapIndex;
+
+  private final Queue<PendingOrder> pending = new ConcurrentLinkedQueue<PendingOrder>();  // Placed by the shard threads when sharded
+  private long ordersPlaced;
+
+  /*
+   * Constructor
+   */
+
+  LoadGenerator(GherkinPeeler peeler, SyntheticBooks books, int burst, long levelMillis)
+  {
+    this.peeler = peeler;
+    this.burst = burst;
+    this.levelNanos = levelMillis * 1000000L;
+    this.instrumentId = new long[books.numInstruments()];
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      instrumentId[i] = books.instrumentId(i);
+    }
+    this.lastBid = new long[instrumentId.length];
+    this.lastAsk = new long[instrumentId.length];
+    final long[] depth = new long[depthSize];
+    for (int t=0; t<tapeTicks; t++)
+    {
+      tapePos[t] = books.next(depth);
+      for (int l=0; l<levels; l++)
+      {
+        tapeBids[t * levels + l] = new PricePoint(FixedPointNumber.valueOf(depth[bidPrices + l]), FixedPointNumber.valueOf(depth[bidQuantities + l]));
+        tapeAsks[t * levels + l] = new PricePoint(FixedPointNumber.valueOf(depth[askPrices + l]), FixedPointNumber.valueOf(depth[askQuantities + l]));
+      }
+    }
+    Random random = new Random(7);
+    for (int g=0; g<gapCount; g++)
+    {
+      gap[g] = -Math.log(1 - random.nextDouble());
+    }
+  }
+
+  /*
+   * Dispatch
+   */
+
+  // One tick off the tape, as the session delivers it
+  private void dispatch(long timeMillis)
+  {
+    final long t = tapeIndex++ % (2 * tapeTicks);
+    final int i = (int)(t < tapeTicks ? t : 2 * tapeTicks - 1 - t);
+    final int pos = tapePos[i];
+    book.instrumentId = instrumentId[pos];
+    book.timeStamp = timeMillis;
+    for (int l=0; l<levels; l++)
+    {
+      book.bidPrices.set(l, tapeBids[i * levels + l]);
+      book.askPrices.set(l, tapeAsks[i * levels + l]);
+    }
+    lastBid[pos] = tapeBids[i * levels].getPrice().longValue();
+    lastAsk[pos] = tapeAsks[i * levels].getPrice().longValue();
+    peeler.notify(book);
+
+    // Acknowledge and fill the orders placed so far, as LMAX would do shortly after; those placed meanwhile wait for the next tick
+    for (int n=pending.size(); n>0; n--)
+    {
+      final PendingOrder order = pending.poll();
+      final int orderPos = positionOf(order.instrumentId);
+      final long price = order.quantity.longValue() > 0 ? lastAsk[orderPos] : lastBid[orderPos];
+      order.callback.onSuccess(++ordersPlaced);
+      fill.executionId++;
+      fill.price = FixedPointNumber.valueOf(price);
+      fill.quantity = order.quantity;
+      fill.order.instructionId = ordersPlaced;
+      fill.order.instrumentId = order.instrumentId;
+      fill.order.quantity = order.quantity;
+      fill.order.filledQuantity = order.quantity;
+      peeler.notify(fill);
+    }
+  }
+
+  @Override
+  public boolean placeMarketOrder(long instrumentId, FixedPointNumber quantity, OrderCallback callback)
+  {
+    pending.add(new PendingOrder(instrumentId, quantity, callback));
+    return true;
+  }
+
+  private static final class PendingOrder
+  {
+    final long instrumentId;
+    final FixedPointNumber quantity;
+    final OrderCallback callback;
+
+    PendingOrder(long instrumentId, FixedPointNumber quantity, OrderCallback callback)
+    {
+      this.instrumentId = instrumentId;
+      this.quantity = quantity;
+      this.callback = callback;
+    }
+  }
+
+  private int positionOf(long id)
+  {
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      if (instrumentId[i] == id) return i;
+    }
+    return -1;
+  }
+
+  // Flat out, until the JIT has compiled the dispatch path; ticks per second
+  private double warmup()
+  {
+    final long start = System.nanoTime();
+    for (int t=0; t<warmupTicks; t++)
+    {
+      dispatch(System.currentTimeMillis());
+    }
+    return warmupTicks * 1e9 / (System.nanoTime() - start);
+  }
+
+  /*
+   * Load levels
+   */
+
+  private Level runLevel(double ticksPerSecond)
+  {
+    final Level level = new Level(ticksPerSecond);
+    final double meanGapNanos = burst * 1e9 / ticksPerSecond;
+    final long startMillis = System.currentTimeMillis();
+    final long start = System.nanoTime();
+    final long end = start + levelNanos;
+    long arrival = start;
+    int inBurst = 0;
+    long now = start;
+    while (arrival < end)
+    {
+      while (now < arrival)
+      {
+        Thread.onSpinWait();
+        now = System.nanoTime();
+      }
+      if (now >= end) break;  // Behind schedule, the rest is backlog
+
+      dispatch(startMillis + (arrival - start) / 1000000L);
+      final long done = System.nanoTime();
+      level.wait.record(now - arrival);
+      level.service.record(done - now);
+      level.response.record(done - arrival);
+      level.busyNanos += done - now;
+      level.ticks++;
+      now = done;
+
+      if (++inBurst == burst)
+      {
+        arrival += (long)(gap[gapIndex++ & (gapCount - 1)] * meanGapNanos);
+        inBurst = 0;
+      }
+    }
+    level.lagNanos = arrival < end ? Math.max(0, now - arrival) : 0;
+    level.elapsedNanos = Math.max(now, end) - start;
+    return level;
+  }
+
+  private static final class Level
+  {
+    final double offered;
+    final Histogram wait = new Histogram();
+    final Histogram service = new Histogram();
+    final Histogram response = new Histogram();
+    long ticks;
+    long busyNanos;
+    long elapsedNanos;
+    long lagNanos;
+
+    Level(double offered)
+    {
+      this.offered = offered;
+    }
+
+    double achieved()   { return ticks * 1e9 / elapsedNanos; }
+    boolean sustained(long levelNanos)  { return lagNanos * 100 <= levelNanos * sustainedLagPercent; }
+  }
+
+  /*
+   * Log-linear histogram of nanoseconds, 16 buckets per power of two (about 6% resolution)
+   */
+
+  private static final class Histogram
+  {
+    private static final int subBucketBits = 4;
+    private static final int subBuckets = 1 << subBucketBits;
+
+    private final long[] counts = new long[64 * subBuckets];
+    private long total;
+    private long max;
+
+    void record(long nanos)
+    {
+      final long value = Math.max(0, nanos);
+      counts[index(value)]++;
+      total++;
+      max = Math.max(max, value);
+    }
+
+    // Upper bound of the bucket holding the given fraction of the values, 0 if none
+    long percentile(double fraction)
+    {
+      final long threshold = Math.max(1, (long)Math.ceil(total * fraction));
+      long count = 0;
+      for (int i=0; i<counts.length; i++)
+      {
+        count += counts[i];
+        if (count >= threshold) return Math.min(max, lowest(i + 1) - 1);
+      }
+      return max;
+    }
+
+    long max()  { return max; }
+
+    private static int index(long value)
+    {
+      if (value < subBuckets) return (int)value;
+      final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+      final int sub = (int)(value >>> (magnitude - subBucketBits)) & (subBuckets - 1);
+      return (magnitude - subBucketBits + 1) * subBuckets + sub;
+    }
+
+    private static long lowest(int index)
+    {
+      if (index < subBuckets) return index;
+      final int magnitude = index / subBuckets + subBucketBits - 1;
+      return (1L << magnitude) | ((long)(index % subBuckets) << (magnitude - subBucketBits));
+    }
+  }
+
+  /*
+   * Main function
+   */
+
+  public static void main(String[] args)
+  {
+    final int burst = args.length > 0 ? Integer.parseInt(args[0]) : defaultBurst;
+    final long levelMillis = args.length > 1 ? Long.parseLong(args[1]) : defaultLevelMillis;
+    final double startTicksPerSecond = args.length > 2 ? Double.parseDouble(args[2]) : defaultStartTicksPerSecond;
+    if (burst < 1 || levelMillis < 1 || startTicksPerSecond <= 0)
+    {
+      System.out.println("Usage:");
+      System.out.println("  " + LoadGenerator.class.getName() + " [burst>=1] [levelMillis>=1] [startTicksPerSecond>0]");
+      System.exit(-1);
+    }
+
+    GherkinPeeler gherkinPeeler = new GherkinPeeler();
+    gherkinPeeler.setLiveOutputs(null, null);  // The execution quality notify(Execution) books fills in, no event log nor monitor
+    gherkinPeeler.reset();
+    if (shardThreads > 0)
+    {
+      gherkinPeeler.startShards();
+    }
+    SyntheticBooks books = new SyntheticBooks(gherkinPeeler.getInstrumentIds(), gherkinPeeler.getInstrumentDescs(), 42);
+    LoadGenerator generator = new LoadGenerator(gherkinPeeler, books, burst, levelMillis);
+    gherkinPeeler.setOrderStub(generator);
+
+    PrintStream out = System.out;
+    PrintStream err = System.err;
+    PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+    out.printf("%d instruments, tape of %d ticks (%s), bursts of %d, %d ms per level, %s%n",
+               books.numInstruments(), tapeTicks, books.describeRegimes(), burst, levelMillis,
+               shardThreads > 0 ? shardThreads + " shards" : "not sharded");
+
+    long maxSustained = 0;
+    long queueingFrom = 0;
+    long baselineWait = -1;
+    int unsustained = 0;
+    System.setOut(discard);
+    System.setErr(discard);
+    try
+    {
+      out.printf("Warm-up: %.0f ticks/s flat out%n", generator.warmup());
+      gherkinPeeler.reset();
+      out.printf("%12s %12s %6s %9s %9s %9s %9s %9s %9s %9s %10s%n",
+                 "offered/s", "achieved/s", "busy%", "wait50", "svc50", "resp50", "resp90", "resp99", "resp99.9", "respMax", "lag ms");
+
+      double ticksPerSecond = startTicksPerSecond;
+      for (int l=0; l<maxLevels && unsustained < unsustainedLevelsToStop; l++, ticksPerSecond *= escalation)
+      {
+        final Level level = generator.runLevel(ticksPerSecond);
+        final boolean sustained = level.sustained(generator.levelNanos);
+        final long wait50 = level.wait.percentile(0.50);
+        final long service50 = level.service.percentile(0.50);
+        if (baselineWait < 0) baselineWait = wait50;
+        final boolean queueing = wait50 > baselineWait + service50;
+        out.printf("%12.0f %12.0f %6.1f %9d %9d %9d %9d %9d %9d %9d %10.1f%s%s%n",
+                   level.offered, level.achieved(), 100.0 * level.busyNanos / level.elapsedNanos,
+                   wait50, service50, level.response.percentile(0.50), level.response.percentile(0.90),
+                   level.response.percentile(0.99), level.response.percentile(0.999), level.response.max(),
+                   level.lagNanos / 1e6, queueing && queueingFrom == 0 ? "  <== queueing" : "", sustained ? "" : "  <== NOT SUSTAINED");
+        if (queueing && queueingFrom == 0) queueingFrom = (long)level.offered;
+        if (sustained)
+        {
+          maxSustained = Math.max(maxSustained, (long)level.offered);
+          unsustained = 0;
+        }
+        else
+        {
+          unsustained++;
+        }
+      }
+    }
+    finally
+    {
+      System.setOut(out);
+      System.setErr(err);
+    }
+
+    System.out.println("Latencies in ns, wait = scheduled arrival to dispatch, svc = strategy, resp = both");
+    System.out.printf("Orders: %d placed and filled%n", generator.ordersPlaced);
+    System.out.printf("Maximum sustained: %d ticks/s%n", maxSustained);
+    System.out.println(queueingFrom == 0 ? "Queueing: not reached" : "Queueing starts at: " + queueingFrom + " ticks/s");
+
+    // The shards count into the registry of the peeler, the one its metrics endpoint shows
+    final MetricsRegistry metrics = gherkinPeeler.getMetrics();
+    final long ticksCounted = metrics.sum("ticks_");
+    final long ordersCounted = metrics.sum("orders_placed");
+    System.out.printf("Metrics: %d ticks, %d orders placed%n", ticksCounted, ordersCounted);
+    if (ticksCounted == 0 || ordersCounted == 0)
+    {
+      System.out.println("FAIL: the metrics registry missed the " + (ticksCounted == 0 ? "ticks" : "orders"));
+      System.exit(1);
+    }
+  }
+
+}
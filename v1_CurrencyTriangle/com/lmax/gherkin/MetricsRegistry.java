@@ -0,0 +1,372 @@
+/**
+ * Gherkin Peeler
+ *
+ * Metrics registry - counters and gauges, exposed over JMX and a tiny local HTTP endpoint.
+ *
+ * Metrics are registered up front and then addressed by their int id, so that updating one on
+ * the hot path is an array access plus a LongAdder increment (counters) or a release store
+ * (gauges): a few nanoseconds, and no allocation as long as a single thread updates it. Gauges
+ * registered as fixed-point hold a FixedPointNumber mantissa and are shown as decimals.
+ *
+ * Reading is done elsewhere: the MBean com.lmax.gherkin:type=Metrics,name=<name> for JConsole
+ * and friends, and http://127.0.0.1:<port>/metrics with one "name value" line per metric. The
+ * registries of other instances (accounts, shadow variants) can be included in the exposed one,
+ * their metrics then being served along with its own under a prefix.
+ */
+
+package com.lmax.gherkin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+final class MetricsRegistry
+{
+
+  /*
+   * Constants
+   */
+
+  private static final int maxMetrics = 256;
+  private static final double scaleFactor = 1000000.0;  // FixedPointNumber mantissa
+
+  private final String name;
+
+  /*
+   * Variables
+   */
+
+  private final String[] metricName = new String[maxMetrics];
+  private final LongAdder[] counter = new LongAdder[maxMetrics];  // null for gauges
+  private final boolean[] fixedPoint = new boolean[maxMetrics];
+  private final AtomicLongArray gauge = new AtomicLongArray(maxMetrics);
+  private volatile int numMetrics;
+  private final List<Part> parts = new CopyOnWriteArrayList<Part>();  // Read by the HTTP and JMX threads
+
+  private boolean exposed;
+  private HttpServer httpServer;
+
+  /*
+   * Constructor
+   */
+
+  MetricsRegistry(String name)
+  {
+    this.name = name;
+  }
+
+  /*
+   * Registration, before the metrics are used
+   */
+
+  synchronized int counter(String name)
+  {
+    final int id = register(name);
+    counter[id] = new LongAdder();
+    return id;
+  }
+
+  synchronized int gauge(String name, boolean isFixedPoint)
+  {
+    final int id = register(name);
+    fixedPoint[id] = isFixedPoint;
+    return id;
+  }
+
+  // One counter per suffix, with consecutive ids: the id of suffix[i] is the returned one + i
+  synchronized int counters(String prefix, String[] suffix)
+  {
+    final int first = numMetrics;
+    for (String s : suffix)
+    {
+      counter(prefix + s);
+    }
+    return first;
+  }
+
+  // One counter per enum constant, indexed by ordinal
+  synchronized int counters(String prefix, Enum<?>[] values)
+  {
+    final int first = numMetrics;
+    for (Enum<?> value : values)
+    {
+      counter(prefix + value.name());
+    }
+    return first;
+  }
+
+  synchronized int gauges(String prefix, String[] suffix, boolean isFixedPoint)
+  {
+    final int first = numMetrics;
+    for (String s : suffix)
+    {
+      gauge(prefix + s, isFixedPoint);
+    }
+    return first;
+  }
+
+  // The metrics of another registry, served with ours as prefix + their name
+  void include(String prefix, MetricsRegistry registry)
+  {
+    parts.add(new Part(prefix, registry));
+  }
+
+  private int register(String name)
+  {
+    final int id = numMetrics;
+    if (id == maxMetrics)
+    {
+      throw new IllegalStateException("Too many metrics, " + name + " does not fit");
+    }
+    metricName[id] = name;
+    numMetrics = id + 1;
+    return id;
+  }
+
+  /*
+   * Updates, hot path
+   */
+
+  void increment(int id)
+  {
+    counter[id].increment();
+  }
+
+  void add(int id, long delta)
+  {
+    counter[id].add(delta);
+  }
+
+  void set(int id, long value)
+  {
+    gauge.setRelease(id, value);
+  }
+
+  /*
+   * Reads
+   */
+
+  long get(int id)
+  {
+    return counter[id] != null ? counter[id].sum() : gauge.getAcquire(id);
+  }
+
+  // Sum of the counters whose name starts with the prefix, e.g. "ticks_" for all the instruments
+  long sum(String prefix)
+  {
+    long sum = 0;
+    for (int id=0; id<numMetrics; id++)
+    {
+      if (counter[id] != null && metricName[id].startsWith(prefix)) sum += counter[id].sum();
+    }
+    return sum;
+  }
+
+  private Object value(int id)
+  {
+    return fixedPoint[id] ? (Object)(get(id) / scaleFactor) : (Object)get(id);
+  }
+
+  // Counters only, e.g. to forget the synthetic ticks of the JIT warm-up
+  void resetCounters()
+  {
+    for (int id=0; id<numMetrics; id++)
+    {
+      if (counter[id] != null) counter[id].reset();
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int id=0; id<numMetrics; id++)
+    {
+      if (counter[id] != null && get(id) == 0) continue;
+      if (sb.length() > 0) sb.append(", ");
+      sb.append(metricName[id]).append('=').append(value(id));
+    }
+    return sb.toString();
+  }
+
+  /*
+   * Exposure
+   */
+
+  // Registers the MBean and, if port > 0, starts the HTTP endpoint on the loopback interface; true the first time only
+  synchronized boolean expose(int port)
+  {
+    if (exposed)
+    {
+      return false;
+    }
+    exposed = true;
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName("com.lmax.gherkin:type=Metrics,name=" + name));
+    }
+    catch (Exception e)
+    {
+      System.err.println("Metrics MBean not registered: " + e);
+    }
+    if (port > 0)
+    {
+      try
+      {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", exchange ->
+        {
+          final byte[] body = render().getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream out = exchange.getResponseBody())
+          {
+            out.write(body);
+          }
+        });
+        httpServer.start();  // On its own dispatcher thread
+      }
+      catch (IOException e)
+      {
+        System.err.println("Metrics HTTP endpoint not started on port " + port + ": " + e);
+      }
+    }
+    return true;
+  }
+
+  private String render()
+  {
+    StringBuilder sb = new StringBuilder();
+    render(sb, "");
+    return sb.toString();
+  }
+
+  private void render(StringBuilder sb, String prefix)
+  {
+    for (int id=0; id<numMetrics; id++)
+    {
+      sb.append("gherkin_").append(prefix).append(metricName[id]).append(' ').append(value(id)).append('\n');
+    }
+    for (Part part : parts)
+    {
+      part.registry.render(sb, prefix + part.prefix);
+    }
+  }
+
+  // Value of the metric, ours or an included one, null if there is none of that name
+  private Object find(String attribute)
+  {
+    for (int id=0; id<numMetrics; id++)
+    {
+      if (metricName[id].equals(attribute)) return value(id);
+    }
+    for (Part part : parts)
+    {
+      if (!attribute.startsWith(part.prefix)) continue;
+      final Object value = part.registry.find(attribute.substring(part.prefix.length()));
+      if (value != null) return value;
+    }
+    return null;
+  }
+
+  private void describe(String prefix, List<MBeanAttributeInfo> attributes)
+  {
+    final int n = numMetrics;
+    for (int id=0; id<n; id++)
+    {
+      attributes.add(new MBeanAttributeInfo(prefix + metricName[id], fixedPoint[id] ? "java.lang.Double" : "java.lang.Long",
+                                            counter[id] != null ? "Counter" : "Gauge", true, false, false));
+    }
+    for (Part part : parts)
+    {
+      part.registry.describe(prefix + part.prefix, attributes);
+    }
+  }
+
+  private static final class Part
+  {
+    private final String prefix;
+    private final MetricsRegistry registry;
+
+    Part(String prefix, MetricsRegistry registry)
+    {
+      this.prefix = prefix;
+      this.registry = registry;
+    }
+  }
+
+  // Read-only attributes, one per metric
+  private final class MBean implements DynamicMBean
+  {
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException
+    {
+      final Object value = find(attribute);
+      if (value == null) throw new AttributeNotFoundException(attribute);
+      return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes)
+    {
+      AttributeList list = new AttributeList();
+      for (String attribute : attributes)
+      {
+        try
+        {
+          list.add(new Attribute(attribute, getAttribute(attribute)));
+        }
+        catch (AttributeNotFoundException e)
+        {
+          // Skipped, as the contract allows
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo()
+    {
+      List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+      describe("", attributes);
+      return new MBeanInfo(MetricsRegistry.class.getName(), "Gherkin Peeler metrics", attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute)
+    {
+      throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature)
+    {
+      throw new UnsupportedOperationException(actionName);
+    }
+  }
+
+}
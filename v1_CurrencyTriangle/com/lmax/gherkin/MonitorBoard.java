@@ -0,0 +1,131 @@
+/**
+ * Gherkin Peeler
+ *
+ * Monitor board - what the monitor window shows of the order books and the strategy, published
+ * by the peeler for any thread to read without locks.
+ *
+ * The market data thread copies the decoded depth of each order book update here, and counts the
+ * ticks per instrument; the strategy sets the ordinal of its state on every transition. Books are
+ * read through a seqlock like the PnlTracker ones (the version is odd while the writer copies,
+ * and a read is retried if it changed under it), so the writer never waits: a reader that falls
+ * behind just sees the latest books. The state is a single volatile, written by whichever thread
+ * the strategy runs on (with shards, the last one to change its state).
+ */
+
+package com.lmax.gherkin;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class MonitorBoard
+{
+
+  /*
+   * Constants
+   */
+
+  private static final int depthSize = BookSignals.depthSize;
+
+  private final long[] instrumentId;
+
+  /*
+   * Variables, books written by the market data thread only
+   */
+
+  private final AtomicLong version = new AtomicLong();  // Odd while an update is in progress
+  private final long[] depth;  // BookSignals layout, one after the other by instrument position
+  private final long[] ticks;
+  private volatile int state = -1;  // Ordinal, -1 until the first transition
+
+  /*
+   * Constructor
+   */
+
+  MonitorBoard(long[] instrumentId)
+  {
+    this.instrumentId = instrumentId.clone();
+    this.depth = new long[instrumentId.length * depthSize];
+    this.ticks = new long[instrumentId.length];
+  }
+
+  /*
+   * Updates, allocation-free
+   */
+
+  // Market data thread, once per order book update
+  void onBook(long id, long[] bookDepth)
+  {
+    final int pos = positionOf(id);
+    if (pos < 0) return;
+    version.setOpaque(version.getPlain() + 1);
+    VarHandle.storeStoreFence();  // Readers must see the odd version before any of the writes
+    System.arraycopy(bookDepth, 0, depth, pos * depthSize, depthSize);
+    ticks[pos]++;
+    version.setRelease(version.getPlain() + 1);
+  }
+
+  // Any strategy thread, on every transition
+  void onState(int ordinal)
+  {
+    state = ordinal;
+  }
+
+  private int positionOf(long id)
+  {
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      if (instrumentId[i] == id) return i;
+    }
+    return -1;
+  }
+
+  /*
+   * Snapshots, any thread
+   */
+
+  View newView()
+  {
+    return new View();
+  }
+
+  // Consistent copy of the books; never blocks the writer
+  void snapshot(View into)
+  {
+    while (true)
+    {
+      final long before = version.getAcquire();
+      if ((before & 1) == 0)
+      {
+        System.arraycopy(depth, 0, into.depth, 0, depth.length);
+        System.arraycopy(ticks, 0, into.ticks, 0, ticks.length);
+        VarHandle.loadLoadFence();
+        if (version.get() == before)
+        {
+          into.version = before;
+          into.state = state;
+          return;
+        }
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  final class View
+  {
+    long version;  // Even, grows with every update
+    int state;
+    final long[] depth = new long[instrumentId.length * depthSize];
+    final long[] ticks = new long[instrumentId.length];  // An instrument whose count moved has a new book
+
+    private View()
+    {
+    }
+
+    // Of the instrument at that position, at a BookSignals offset (bidPrices + level, ...)
+    long depth(int pos, int offset)
+    {
+      return depth[pos * depthSize + offset];
+    }
+  }
+
+}
@@ -0,0 +1,296 @@
+/**
+ * Gherkin Peeler
+ *
+ * Order rate limiter - token buckets per account and per instrument in front of placeMarketOrder.
+ *
+ * Each bucket is a single long (GCRA, "theoretical arrival time") updated with compare-and-set,
+ * so acquiring is lock-free and allocation-free. Strategy orders that find no token are simply
+ * not sent: the strategy stays in its READY state and decides again on the next tick.
+ * Close-outs of unexpected positions are parked instead, one slot per instrument: a newer
+ * close-out for the same instrument replaces the parked one (the latest position event is the
+ * truth, so the slot always holds the net quantity), and nothing new goes out for an instrument
+ * while its previous close-out is still waiting for its acknowledgement. A slot holds one
+ * immutable close-out, quantity and callback together, swapped as a whole so that no reader
+ * ever pairs the quantity of one with the callback of another. Parked close-outs are released
+ * by drain() as tokens become available, and the queueing delay is accounted.
+ *
+ * Times are System.nanoTime(), compared by difference only as it may be negative. A new session
+ * starts with reset(): the callbacks of the previous one are lost, so no close-out is in flight
+ * anymore, and whatever was parked was based on positions the new session reports again.
+ */
+
+package com.lmax.gherkin;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.lmax.api.FixedPointNumber;
+import com.lmax.api.order.OrderCallback;
+
+final class OrderRateLimiter
+{
+
+  /*
+   * Constants
+   */
+
+  static final int SENT      = 0;  // Close-out can be sent now
+  static final int PARKED    = 1;  // Close-out parked until a token is available
+  static final int COALESCED = 2;  // Close-out replaced the one already parked for the instrument
+  static final int THROTTLED = 3;  // Close-out for an instrument without a slot, not sent
+
+  private static final long nanosPerSecond = 1000000000L;
+
+  private final long[] instrumentId;
+  private final int numInstruments;
+  private final int accountBucket;      // Index of the account bucket, after the instrument ones
+  private final long accountInterval;   // Nanos between two orders at the sustained account rate
+  private final long accountTolerance;  // Burst allowance in nanos
+  private final long instrumentInterval;
+  private final long instrumentTolerance;
+
+  /*
+   * Variables
+   */
+
+  private final AtomicLongArray theoreticalArrival;  // GCRA state, one per instrument plus the account
+
+  private final AtomicReferenceArray<ParkedCloseOut> parked;  // Null when nothing is parked for the instrument
+  private final AtomicIntegerArray closeOutInFlight;
+  private final AtomicInteger parkedCount = new AtomicInteger();
+
+  private final AtomicLong throttledOrders = new AtomicLong();
+  private final AtomicLong coalescedCloseOuts = new AtomicLong();
+  private final AtomicLong supersededCloseOuts = new AtomicLong();
+  private final AtomicLong queuedCloseOuts = new AtomicLong();
+  private final AtomicLong totalQueueNanos = new AtomicLong();
+  private final AtomicLong maxQueueNanos = new AtomicLong();
+
+  /*
+   * Constructor
+   */
+
+  OrderRateLimiter(long[] instrumentId, double accountOrdersPerSecond, int accountBurst, double instrumentOrdersPerSecond, int instrumentBurst)
+  {
+    this.instrumentId = instrumentId.clone();
+    this.numInstruments = instrumentId.length;
+    this.accountBucket = numInstruments;
+    this.accountInterval = (long)(nanosPerSecond / accountOrdersPerSecond);
+    this.accountTolerance = accountInterval * (accountBurst - 1);
+    this.instrumentInterval = (long)(nanosPerSecond / instrumentOrdersPerSecond);
+    this.instrumentTolerance = instrumentInterval * (instrumentBurst - 1);
+    this.theoreticalArrival = new AtomicLongArray(numInstruments + 1);
+    this.parked = new AtomicReferenceArray<ParkedCloseOut>(numInstruments);
+    this.closeOutInFlight = new AtomicIntegerArray(numInstruments);
+    reset(System.nanoTime());
+  }
+
+  // Full buckets, nothing parked nor in flight; the statistics carry on
+  void reset(long now)
+  {
+    for (int bucket=0; bucket<=numInstruments; bucket++)
+    {
+      theoreticalArrival.set(bucket, now);
+    }
+    for (int pos=0; pos<numInstruments; pos++)
+    {
+      parked.set(pos, null);
+      closeOutInFlight.set(pos, 0);
+    }
+    parkedCount.set(0);
+  }
+
+  interface Sender
+  {
+    void send(long instrumentId, FixedPointNumber quantity, OrderCallback callback, long queueNanos, int coalesced);
+  }
+
+  // What a slot holds, replaced as a whole; parked since the first close-out it replaced
+  private static final class ParkedCloseOut
+  {
+    final FixedPointNumber quantity;
+    final OrderCallback callback;
+    final long since;
+    final int coalesced;
+
+    ParkedCloseOut(FixedPointNumber quantity, OrderCallback callback, long since, int coalesced)
+    {
+      this.quantity = quantity;
+      this.callback = callback;
+      this.since = since;
+      this.coalesced = coalesced;
+    }
+  }
+
+  /*
+   * Strategy orders
+   */
+
+  // Takes a token from both the instrument and the account bucket, false if the order must not be sent
+  boolean tryAcquire(long id, long now)
+  {
+    if (acquire(positionOf(id), now))
+    {
+      return true;
+    }
+    throttledOrders.incrementAndGet();
+    return false;
+  }
+
+  /*
+   * Close-outs
+   */
+
+  int submitCloseOut(long id, FixedPointNumber quantity, OrderCallback callback, long now)
+  {
+    final int pos = positionOf(id);
+    if (pos < 0)
+    {
+      // Not one of ours, rate limited on the account only and never parked
+      if (acquire(pos, now)) return SENT;
+      throttledOrders.incrementAndGet();
+      return THROTTLED;
+    }
+    if (parked.get(pos) == null && closeOutInFlight.get(pos) == 0 && acquire(pos, now))
+    {
+      closeOutInFlight.set(pos, 1);
+      return SENT;
+    }
+
+    // Parked, or in place of the one parked, which is then never sent
+    while (true)
+    {
+      final ParkedCloseOut previous = parked.get(pos);
+      final ParkedCloseOut next = previous == null ? new ParkedCloseOut(quantity, callback, now, 0)
+                                                   : new ParkedCloseOut(quantity, callback, previous.since, previous.coalesced + 1);
+      if (!parked.compareAndSet(pos, previous, next))
+      {
+        continue;  // Drained or replaced meanwhile
+      }
+      if (previous != null)
+      {
+        coalescedCloseOuts.incrementAndGet();
+        return COALESCED;
+      }
+      parkedCount.incrementAndGet();
+      return PARKED;
+    }
+  }
+
+  // The acknowledgement of a close-out, anything parked meanwhile was based on the old position
+  void onCloseOutAcknowledged(long id)
+  {
+    final int pos = positionOf(id);
+    if (pos < 0) return;
+    closeOutInFlight.set(pos, 0);
+    if (parked.getAndSet(pos, null) != null)
+    {
+      parkedCount.decrementAndGet();
+      supersededCloseOuts.incrementAndGet();
+    }
+  }
+
+  // A failed close-out is not in flight anymore, whatever is parked can go
+  void onCloseOutFailed(long id)
+  {
+    final int pos = positionOf(id);
+    if (pos >= 0) closeOutInFlight.set(pos, 0);
+  }
+
+  boolean hasParkedCloseOuts()
+  {
+    return parkedCount.get() > 0;
+  }
+
+  // Sends the parked close-outs for which a token is available now
+  void drain(long now, Sender sender)
+  {
+    for (int pos=0; pos<numInstruments; pos++)
+    {
+      if (parked.get(pos) == null || closeOutInFlight.get(pos) != 0 || !acquire(pos, now))
+      {
+        continue;
+      }
+      final ParkedCloseOut closeOut = parked.getAndSet(pos, null);  // The latest, if replaced since the check
+      if (closeOut == null)
+      {
+        release(pos);  // Superseded meanwhile, nothing goes out for the token
+        continue;
+      }
+      parkedCount.decrementAndGet();
+      closeOutInFlight.set(pos, 1);
+
+      final long queueNanos = now - closeOut.since;
+      queuedCloseOuts.incrementAndGet();
+      totalQueueNanos.addAndGet(queueNanos);
+      maxQueueNanos.accumulateAndGet(queueNanos, Math::max);
+      sender.send(instrumentId[pos], closeOut.quantity, closeOut.callback, queueNanos, closeOut.coalesced);
+    }
+  }
+
+  /*
+   * Token buckets
+   */
+
+  private boolean acquire(int pos, long now)
+  {
+    if (pos >= 0 && !acquire(pos, now, instrumentInterval, instrumentTolerance))
+    {
+      return false;
+    }
+    if (!acquire(accountBucket, now, accountInterval, accountTolerance))
+    {
+      if (pos >= 0) theoreticalArrival.addAndGet(pos, -instrumentInterval);  // Give the instrument token back
+      return false;
+    }
+    return true;
+  }
+
+  // The tokens of an order that was not sent after all, back to the instrument and account buckets
+  private void release(int pos)
+  {
+    if (pos >= 0) theoreticalArrival.addAndGet(pos, -instrumentInterval);
+    theoreticalArrival.addAndGet(accountBucket, -accountInterval);
+  }
+
+  private boolean acquire(int bucket, long now, long interval, long tolerance)
+  {
+    while (true)
+    {
+      final long arrival = theoreticalArrival.get(bucket);
+      final long base = arrival - now > 0 ? arrival : now;
+      if (base - now > tolerance)
+      {
+        return false;
+      }
+      if (theoreticalArrival.compareAndSet(bucket, arrival, base + interval))
+      {
+        return true;
+      }
+    }
+  }
+
+  private int positionOf(long id)
+  {
+    for (int i=0; i<numInstruments; i++)
+    {
+      if (instrumentId[i] == id) return i;
+    }
+    return -1;
+  }
+
+  /*
+   * Statistics
+   */
+
+  long getThrottledOrders()       { return throttledOrders.get(); }
+  long getCoalescedCloseOuts()    { return coalescedCloseOuts.get(); }
+  long getSupersededCloseOuts()   { return supersededCloseOuts.get(); }
+  long getQueuedCloseOuts()       { return queuedCloseOuts.get(); }
+  long getTotalQueueNanos()       { return totalQueueNanos.get(); }
+  long getMaxQueueNanos()         { return maxQueueNanos.get(); }
+
+}
@@ -0,0 +1,33 @@
+/**
+ * Gherkin Peeler
+ *
+ * Order stub - stands in for Session.placeMarketOrder() when the strategy is driven offline.
+ */
+
+package com.lmax.gherkin;
+
+import com.lmax.api.FixedPointNumber;
+import com.lmax.api.order.OrderCallback;
+
+interface OrderStub
+{
+  // Whether the order was sent, false if it was held back (rate limiter) and will never be acknowledged
+  boolean placeMarketOrder(long instrumentId, FixedPointNumber quantity, OrderCallback callback);
+
+  // Close-out of an unexpected position, an ordinary market order unless the stub tells them apart
+  default void placeCloseOutOrder(long instrumentId, FixedPointNumber quantity, OrderCallback callback)
+  {
+    placeMarketOrder(instrumentId, quantity, callback);
+  }
+
+  // Whether the strategy may open a position now, when other instances trade the same account (ShardPool)
+  default boolean acquirePosition(long instrumentId)
+  {
+    return true;
+  }
+
+  // The position is closed, or forgotten on a reset
+  default void releasePosition()
+  {
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * Gherkin Peeler
+ *
+ * Parameter watcher - tells the strategy when its parameter file changes, to retune it without restarting the session.
+ *
+ * A daemon thread blocks on a WatchService registered on the directory of the file (NIO does
+ * not watch single files), and calls back once the file has been quiet for a moment: editors
+ * and copies often write it in several steps, or rename another file over it. The strategy
+ * reads and validates the file itself, then swaps its new parameters in at once, so the market
+ * data thread never waits for this one.
+ *
+ * The file has the same parameters as a shadow variant, one per line:
+ *
+ *   <parameter> = <value>
+ */
+
+package com.lmax.gherkin;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+final class ParameterWatcher extends Thread
+{
+
+  /*
+   * Constants
+   */
+
+  private static final long settleMillis = 200L;  // Without another change to the file, before calling back
+
+  private final Path file;
+  private final Runnable onChange;
+  private final WatchService watchService;
+
+  /*
+   * Constructor
+   */
+
+  ParameterWatcher(Path file, Runnable onChange) throws IOException
+  {
+    super("gherkin-parameters");
+    setDaemon(true);
+    this.file = file.toAbsolutePath();
+    this.onChange = onChange;
+    this.watchService = this.file.getFileSystem().newWatchService();
+    this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+  }
+
+  static Properties load(Path file) throws IOException
+  {
+    Properties parameters = new Properties();
+    try (Reader reader = Files.newBufferedReader(file))
+    {
+      parameters.load(reader);
+    }
+    return parameters;
+  }
+
+  /*
+   * Watcher thread
+   */
+
+  @Override
+  public void run()
+  {
+    try
+    {
+      while (true)
+      {
+        if (!touchesFile(watchService.take())) continue;
+
+        // Swallow the rest of the writes
+        WatchKey key;
+        while ((key = watchService.poll(settleMillis, TimeUnit.MILLISECONDS)) != null)
+        {
+          touchesFile(key);
+        }
+        onChange.run();
+      }
+    }
+    catch (InterruptedException | ClosedWatchServiceException e)
+    {
+      // Stopped
+    }
+  }
+
+  private boolean touchesFile(WatchKey key)
+  {
+    boolean touches = false;
+    for (WatchEvent<?> event : key.pollEvents())
+    {
+      touches |= event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context());
+    }
+    key.reset();
+    return touches;
+  }
+
+}
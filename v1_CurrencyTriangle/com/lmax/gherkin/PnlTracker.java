@@ -0,0 +1,355 @@
+/**
+ * Gherkin Peeler
+ *
+ * P&L tracker - realized and unrealized P&L, average entry price and exposure, incrementally.
+ *
+ * Executions and ticks update a handful of primitives of their instrument, in O(1) and without
+ * allocating: average-cost accounting for the position, realized P&L when it is reduced, and
+ * unrealized P&L marked to the price the position would be closed at (bid when long, ask when
+ * short). Amounts are FixedPointNumber mantissas in the quote currency of the instrument, for
+ * the whole position (LMAX FX contracts are contractUnits units of the base currency).
+ *
+ * Ticks and executions write fields of their own, each behind its own seqlock, so each has a
+ * single writer: the thread of the LMAX session, or for an account trading off the order books
+ * of another session, that session's market data thread for the ticks and the account's own
+ * session thread for the executions, neither ever waiting for the other. Other threads read
+ * consistent Snapshots without locks: a version is odd while its writer is updating, and a read
+ * is retried if either version changed under it. Reading is where the work is done: unrealized
+ * P&L from the positions and quotes, P&L and exposure per currency, and their value in the
+ * account currency through the live cross rates of the tracked instruments (directly, inverted,
+ * or through a third currency).
+ */
+
+package com.lmax.gherkin;
+
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class PnlTracker
+{
+
+  /*
+   * Constants
+   */
+
+  static final long contractUnits = 10000;
+  private static final double scaleFactor = FixedPointMath.scaleFactor;
+
+  private final long[] instrumentId;
+  private final String[] instrumentDesc;
+  private final String[] currency;  // Every base and quote currency, the account one first
+  private final int[] baseOf;       // Currency index by instrument position
+  private final int[] quoteOf;
+  private final int[][] conversion; // Per currency, the instruments to go through to the account currency: pos + 1 to multiply by, -(pos + 1) to divide by; null if none
+
+  /*
+   * Variables, written by the thread of the executions
+   */
+
+  private final AtomicLong positionVersion = new AtomicLong();  // Odd while an update is in progress
+  private final long[] position;       // Contracts, signed
+  private final long[] averagePrice;   // Of the open position
+  private final long[] realized;       // Quote currency
+  private final long[] executions;
+
+  /*
+   * Variables, written by the thread of the ticks
+   */
+
+  private final AtomicLong quoteVersion = new AtomicLong();  // Odd while an update is in progress
+  private final long[] bid;
+  private final long[] ask;
+
+  /*
+   * Constructor
+   */
+
+  // Instruments described as BASE_QUOTE or BASE/QUOTE
+  PnlTracker(long[] instrumentId, String[] instrumentDesc, String accountCurrency)
+  {
+    final int n = instrumentId.length;
+    this.instrumentId = instrumentId.clone();
+    this.instrumentDesc = instrumentDesc.clone();
+    this.baseOf = new int[n];
+    this.quoteOf = new int[n];
+    List<String> currencies = new ArrayList<String>();
+    currencies.add(accountCurrency);
+    for (int i=0; i<n; i++)
+    {
+      baseOf[i] = indexOf(currencies, instrumentDesc[i].substring(0, 3));
+      quoteOf[i] = indexOf(currencies, instrumentDesc[i].substring(instrumentDesc[i].length() - 3));
+    }
+    this.currency = currencies.toArray(new String[0]);
+    this.conversion = new int[currency.length][];
+    for (int c=0; c<currency.length; c++)
+    {
+      conversion[c] = findConversion(c);
+    }
+
+    this.position = new long[n];
+    this.averagePrice = new long[n];
+    this.realized = new long[n];
+    this.bid = new long[n];
+    this.ask = new long[n];
+    this.executions = new long[n];
+  }
+
+  private static int indexOf(List<String> currencies, String currency)
+  {
+    if (!currencies.contains(currency)) currencies.add(currency);
+    return currencies.indexOf(currency);
+  }
+
+  // Breadth-first over the instruments, so that the fewest cross rates are used
+  private int[] findConversion(int from)
+  {
+    if (from == 0) return new int[0];
+    int[][] path = new int[currency.length][];
+    path[from] = new int[0];
+    List<Integer> queue = new ArrayList<Integer>();
+    queue.add(from);
+    for (int q=0; q<queue.size(); q++)
+    {
+      final int c = queue.get(q);
+      for (int i=0; i<instrumentId.length; i++)
+      {
+        final int next = baseOf[i] == c ? quoteOf[i] : quoteOf[i] == c ? baseOf[i] : -1;
+        if (next < 0 || path[next] != null) continue;
+        path[next] = Arrays.copyOf(path[c], path[c].length + 1);
+        path[next][path[c].length] = baseOf[i] == c ? i + 1 : -(i + 1);  // Base to quote multiplies by the price
+        if (next == 0) return path[next];
+        queue.add(next);
+      }
+    }
+    return null;
+  }
+
+  /*
+   * Updates, one thread for the ticks and one for the executions (the same one unless an account)
+   */
+
+  void onTick(long id, long newBid, long newAsk)
+  {
+    final int pos = positionOf(id);
+    if (pos < 0) return;
+    beginWrite(quoteVersion);
+    bid[pos] = newBid;
+    ask[pos] = newAsk;
+    endWrite(quoteVersion);
+  }
+
+  // Signed quantity of this execution alone, not the cumulative quantity of the order
+  void onExecution(long id, long price, long quantity)
+  {
+    final int pos = positionOf(id);
+    if (pos < 0 || quantity == 0) return;
+    beginWrite(positionVersion);
+    final long open = position[pos];
+    if (open == 0 || Long.signum(open) == Long.signum(quantity))
+    {
+      // Adding to the position, the entry price is averaged
+      averagePrice[pos] = FixedPointMath.multiplyDivide(averagePrice[pos], Math.abs(open), Math.abs(open) + Math.abs(quantity)) +
+                          FixedPointMath.multiplyDivide(price, Math.abs(quantity), Math.abs(open) + Math.abs(quantity));
+    }
+    else
+    {
+      // Reducing it, the closed part is realized at the entry price; what goes beyond opens the other way at this price
+      final long closed = Math.min(Math.abs(open), Math.abs(quantity));
+      realized[pos] += amount(Long.signum(open) * (price - averagePrice[pos]), closed);
+      if (Math.abs(quantity) > Math.abs(open))
+      {
+        averagePrice[pos] = price;
+      }
+      else if (Math.abs(quantity) == Math.abs(open))
+      {
+        averagePrice[pos] = 0;
+      }
+    }
+    position[pos] = open + quantity;
+    executions[pos]++;
+    endWrite(positionVersion);
+  }
+
+  // Forgets everything, e.g. when the live positions are not known anymore; thread of the executions
+  void reset()
+  {
+    beginWrite(positionVersion);
+    Arrays.fill(position, 0);
+    Arrays.fill(averagePrice, 0);
+    Arrays.fill(realized, 0);
+    Arrays.fill(executions, 0);
+    endWrite(positionVersion);
+  }
+
+  // Quote currency amount of a price difference over a number of contracts
+  private static long amount(long priceDifference, long contracts)
+  {
+    return FixedPointMath.multiply(priceDifference, contracts) * contractUnits;
+  }
+
+  private int positionOf(long id)
+  {
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      if (instrumentId[i] == id) return i;
+    }
+    return -1;
+  }
+
+  private static void beginWrite(AtomicLong version)
+  {
+    version.setOpaque(version.getPlain() + 1);
+    VarHandle.storeStoreFence();  // Readers must see the odd version before any of the writes
+  }
+
+  private static void endWrite(AtomicLong version)
+  {
+    version.setRelease(version.getPlain() + 1);
+  }
+
+  /*
+   * Snapshots, any thread
+   */
+
+  Snapshot newSnapshot()
+  {
+    return new Snapshot();
+  }
+
+  // Consistent copy of the primitives, then the derived figures; never blocks the writers
+  void snapshot(Snapshot into)
+  {
+    while (true)
+    {
+      final long positionBefore = positionVersion.getAcquire();
+      final long quoteBefore = quoteVersion.getAcquire();
+      if (((positionBefore | quoteBefore) & 1) == 0)
+      {
+        System.arraycopy(position, 0, into.position, 0, position.length);
+        System.arraycopy(averagePrice, 0, into.averagePrice, 0, averagePrice.length);
+        System.arraycopy(realized, 0, into.realized, 0, realized.length);
+        System.arraycopy(bid, 0, into.bid, 0, bid.length);
+        System.arraycopy(ask, 0, into.ask, 0, ask.length);
+        System.arraycopy(executions, 0, into.executions, 0, executions.length);
+        VarHandle.loadLoadFence();
+        if (positionVersion.get() == positionBefore && quoteVersion.get() == quoteBefore)
+        {
+          into.version = positionBefore + quoteBefore;
+          into.derive();
+          return;
+        }
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  final class Snapshot
+  {
+    long version;  // Even, grows with every update
+    final long[] position = new long[instrumentId.length];
+    final long[] averagePrice = new long[instrumentId.length];
+    final long[] realized = new long[instrumentId.length];
+    final long[] unrealized = new long[instrumentId.length];  // Marked to the quotes of the snapshot
+    final long[] bid = new long[instrumentId.length];
+    final long[] ask = new long[instrumentId.length];
+    final long[] executions = new long[instrumentId.length];
+
+    // By currency, in that currency
+    final long[] currencyRealized = new long[currency.length];
+    final long[] currencyUnrealized = new long[currency.length];
+    final long[] exposure = new long[currency.length];  // Net amount held: base bought, quote paid for it
+
+    // In the account currency, NaN when a rate is missing
+    double totalRealized;
+    double totalUnrealized;
+    double grossExposure;
+
+    private Snapshot()
+    {
+    }
+
+    private void derive()
+    {
+      for (int i=0; i<instrumentId.length; i++)
+      {
+        unrealized[i] = markToMarket(i);
+      }
+      Arrays.fill(currencyRealized, 0);
+      Arrays.fill(currencyUnrealized, 0);
+      Arrays.fill(exposure, 0);
+      for (int i=0; i<instrumentId.length; i++)
+      {
+        currencyRealized[quoteOf[i]] += realized[i];
+        currencyUnrealized[quoteOf[i]] += unrealized[i];
+        exposure[baseOf[i]] += position[i] * contractUnits;
+        exposure[quoteOf[i]] -= amount(averagePrice[i], position[i]);
+      }
+      totalRealized = 0;
+      totalUnrealized = 0;
+      grossExposure = 0;
+      for (int c=0; c<currency.length; c++)
+      {
+        totalRealized += toAccount(c, currencyRealized[c]);
+        totalUnrealized += toAccount(c, currencyUnrealized[c]);
+        grossExposure += Math.abs(toAccount(c, exposure[c]));
+      }
+    }
+
+    // At the price the position would be closed at, quote currency
+    private long markToMarket(int pos)
+    {
+      final long open = position[pos];
+      if (open == 0) return 0;
+      final long exit = open > 0 ? bid[pos] : ask[pos];
+      if (exit == 0) return 0;  // No price yet
+      return amount(exit - averagePrice[pos], open);
+    }
+
+    // Through the mid prices of the snapshot
+    double toAccount(int c, long amount)
+    {
+      if (amount == 0) return 0;
+      if (conversion[c] == null) return Double.NaN;
+      double value = amount / scaleFactor;
+      for (int step : conversion[c])
+      {
+        final int pos = Math.abs(step) - 1;
+        final double mid = (bid[pos] + ask[pos]) / 2 / scaleFactor;
+        if (mid == 0) return Double.NaN;
+        value = step > 0 ? value * mid : value / mid;
+      }
+      return value;
+    }
+
+    String accountCurrency()
+    {
+      return currency[0];
+    }
+
+    @Override
+    public String toString()
+    {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format(Locale.ROOT, "realized %.2f, unrealized %.2f, gross exposure %.0f %s",
+                              totalRealized, totalUnrealized, grossExposure, currency[0]));
+      for (int i=0; i<instrumentId.length; i++)
+      {
+        if (position[i] == 0 && executions[i] == 0) continue;
+        sb.append(String.format(Locale.ROOT, "; %s %.2f @ %.5f, %d executions, realized %.2f, unrealized %.2f",
+                                instrumentDesc[i], position[i] / scaleFactor, averagePrice[i] / scaleFactor, executions[i],
+                                realized[i] / scaleFactor, unrealized[i] / scaleFactor));
+      }
+      for (int c=0; c<currency.length; c++)
+      {
+        if (exposure[c] == 0) continue;
+        sb.append(String.format(Locale.ROOT, "; %s exposure %.0f", currency[c], exposure[c] / scaleFactor));
+      }
+      return sb.toString();
+    }
+  }
+
+}
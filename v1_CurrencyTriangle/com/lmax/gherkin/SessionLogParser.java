@@ -0,0 +1,534 @@
+/**
+ * Gherkin Peeler
+ *
+ * Session log parser - turns the output.txt captured by runme.sh into a tick journal.
+ *
+ * Understands both the v1 per-tick lines (" * EUR_USD=bid/ask ...", " ### OPEN WITH BUY ...")
+ * and the v2 trade narratives ("EUR/USD @ bid/ask trending up, open with buy around ...").
+ * The file is read in a single pass, split in chunks on line boundaries which are parsed in
+ * parallel and then appended to the journal in file order; at most a fixed number of chunks
+ * are in flight at any time, so memory stays bounded whatever the size of the log.
+ */
+
+package com.lmax.gherkin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public final class SessionLogParser
+{
+
+  /*
+   * Constants
+   */
+
+  private static final long instrumentId[] = {4001, 4002, 4003, 4004, 4005, 4006, 4007, 4008, 4009, 4010, 4011, 4012, 4013, 4014, 4015, 4016, 4017};
+  private static final String instrumentDesc[] = {"EUR/USD", "GBP/USD", "EUR/GBP", "USD/JPY", "GBP/JPY", "EUR/JPY", "AUD/USD", "AUD/JPY", "CHF/JPY", "USD/CHF", "EUR/CHF", "GBP/CHF", "USD/CAD", "GBP/CAD", "EUR/CAD", "EUR/AUD", "GBP/AUD"};
+  private static final short numInstruments = (short)instrumentId.length;
+  private static final short noInstrument = -1;
+
+  private static final int defaultChunkSize = 8 << 20;  // 8 MB per chunk
+  private static final int decimals = 6;                // FixedPointNumber mantissa has 6 decimal digits
+
+  // v1 patterns
+  private static final byte[] v1Tick            = bytes(" * ");
+  private static final byte[] v1OpenBuy         = bytes(" ### OPEN WITH BUY ");
+  private static final byte[] v1OpenSell        = bytes(" ### OPEN WITH SELL ");
+  private static final byte[] v1CloseBuy        = bytes(" ### CLOSE WITH BUY ");
+  private static final byte[] v1CloseSell       = bytes(" ### CLOSE WITH SELL ");
+  private static final byte[] v1ReadyToClose    = bytes(" ### NOW READY TO CLOSE BELOW ");
+  private static final byte[] v1ReadyToOpen     = bytes(" ### GHERKIN_NOTIFY_EXECUTION_STATE_READY_TO_OPEN_AGAIN");
+  private static final byte[] v1Times           = bytes(" x ");
+  private static final byte[] v1NowAt           = bytes(" NOW AT ");
+  private static final byte[] v1At              = bytes(" AT ");
+  private static final byte[] v1OrAbove         = bytes(" OR ABOVE ");
+
+  // v2 patterns
+  private static final byte[] v2NotBetting      = bytes("Not betting on ");
+  private static final byte[] v2Close           = bytes("Close ");
+  private static final byte[] v2ReadyToClose    = bytes("Ready to close outside range ");
+  private static final byte[] v2ReadyToOpen     = bytes("Ready to open again");
+  private static final byte[] v2PriceAt         = bytes(" @ ");
+  private static final byte[] v2OpenBuy         = bytes("trending up, open with buy around ");
+  private static final byte[] v2OpenSell        = bytes("trending down, open with sell around ");
+  private static final byte[] v2WithBuy         = bytes(" with buy @ ");
+  private static final byte[] v2WithSell        = bytes(" with sell @ ");
+
+  private static final byte[] best              = bytes("(BEST)");
+  private static final byte[] worst             = bytes("(WORST)");
+
+  private static final byte[][] instrumentBytes = new byte[numInstruments][];
+  static
+  {
+    for (short i=0; i<numInstruments; i++)
+    {
+      instrumentBytes[i] = bytes(instrumentDesc[i]);
+    }
+  }
+
+  /*
+   * Variables
+   */
+
+  private final Path logPath;
+  private final TickJournal journal;
+  private final int chunkSize;
+  private final int numThreads;
+
+  private final long[] lastBid = new long[numInstruments];
+  private final long[] lastAsk = new long[numInstruments];
+  private final long[] recordsByType = new long[TickJournal.TYPE_READY_TO_OPEN + 1];
+  private long duplicateTicks;
+
+  /*
+   * Constructor
+   */
+
+  SessionLogParser(Path logPath, TickJournal journal, int chunkSize, int numThreads)
+  {
+    this.logPath = logPath;
+    this.journal = journal;
+    this.chunkSize = chunkSize;
+    this.numThreads = numThreads;
+  }
+
+  /*
+   * Single pass over the log, chunks parsed in parallel and appended in order
+   */
+
+  void parse() throws Exception
+  {
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<Future<Chunk>>();
+    final int maxInFlight = 2 * numThreads;
+
+    try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.READ))
+    {
+      final long size = channel.size();
+      long start = 0;
+      while (start < size)
+      {
+        final long end = nextLineBoundary(channel, Math.min(start + chunkSize, size), size);
+        final long chunkStart = start;
+        inFlight.addLast(executor.submit(() -> readAndParse(channel, chunkStart, end)));
+        start = end;
+
+        // Bounded memory: wait for the oldest chunk before reading more
+        if (inFlight.size() >= maxInFlight)
+        {
+          append(inFlight.removeFirst().get());
+        }
+      }
+      while (!inFlight.isEmpty())
+      {
+        append(inFlight.removeFirst().get());
+      }
+      journal.flush();
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+  }
+
+  private static long nextLineBoundary(FileChannel channel, long position, long size) throws IOException
+  {
+    ByteBuffer probe = ByteBuffer.allocate(4096);
+    while (position < size)
+    {
+      probe.clear();
+      int read = channel.read(probe, position);
+      if (read <= 0) break;
+      for (int i=0; i<read; i++)
+      {
+        if (probe.get(i) == '\n') return position + i + 1;
+      }
+      position += read;
+    }
+    return size;
+  }
+
+  private static Chunk readAndParse(FileChannel channel, long start, long end) throws IOException
+  {
+    byte[] data = new byte[(int)(end - start)];
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    while (buffer.hasRemaining())
+    {
+      if (channel.read(buffer, start + buffer.position()) < 0) break;
+    }
+    Chunk chunk = new Chunk(start);
+    chunk.parse(data, buffer.position());
+    return chunk;
+  }
+
+  // Runs on the calling thread only, so the journal has a single writer
+  private void append(Chunk chunk) throws IOException
+  {
+    for (int r=0; r<chunk.count; r++)
+    {
+      final short type = chunk.type[r];
+      final short pos = chunk.pos[r];
+      if (type == TickJournal.TYPE_TICK)
+      {
+        // v1 prints all the pairs on every tick, only keep the ones that actually moved
+        if (lastBid[pos] == chunk.value1[r] && lastAsk[pos] == chunk.value2[r])
+        {
+          duplicateTicks++;
+          continue;
+        }
+        lastBid[pos] = chunk.value1[r];
+        lastAsk[pos] = chunk.value2[r];
+      }
+      journal.append(chunk.sequence[r], type, chunk.flags[r], pos == noInstrument ? 0 : (int)instrumentId[pos], chunk.value1[r], chunk.value2[r]);
+      recordsByType[type]++;
+    }
+  }
+
+  /*
+   * One chunk of the log, parsed without creating any String
+   */
+
+  private static final class Chunk
+  {
+    private final long offset;
+    private int count;
+    private long[] sequence = new long[1024];
+    private short[] type = new short[1024];
+    private short[] flags = new short[1024];
+    private short[] pos = new short[1024];
+    private long[] value1 = new long[1024];
+    private long[] value2 = new long[1024];
+
+    // Cursor left by parseNumber()/matchInstrument()
+    private int cursor;
+
+    Chunk(long offset)
+    {
+      this.offset = offset;
+    }
+
+    void parse(byte[] data, int length)
+    {
+      int lineStart = 0;
+      for (int i=0; i<length; i++)
+      {
+        if (data[i] == '\n')
+        {
+          parseLine(data, lineStart, i);
+          lineStart = i + 1;
+        }
+      }
+      if (lineStart < length)
+      {
+        parseLine(data, lineStart, length);
+      }
+    }
+
+    private void parseLine(byte[] d, int from, int to)
+    {
+      if (to > from && d[to - 1] == '\r') to--;
+      final long seq = offset + from;
+
+      /*
+       * v1
+       */
+
+      if (startsWith(d, from, to, v1Tick) && from + v1Tick.length < to && d[from + v1Tick.length] != '*')
+      {
+        // " * EUR_USD=1.3/1.31 * GBP_USD=... * EUR_GBP=..."
+        int p = from;
+        while ((p = indexOf(d, p, to, v1Tick)) >= 0)
+        {
+          short instr = matchInstrument(d, p + v1Tick.length, to);
+          if (instr == noInstrument || cursor >= to || d[cursor] != '=') return;
+          long bid = parseNumber(d, cursor + 1, to);
+          if (cursor >= to || d[cursor] != '/') return;
+          long ask = parseNumber(d, cursor + 1, to);
+          if (bid != 0 && ask != 0) add(seq, TickJournal.TYPE_TICK, (short)0, instr, bid, ask);
+          p = cursor;
+        }
+      }
+      else if (startsWith(d, from, to, v1OpenBuy))
+      {
+        parseV1Open(d, from + v1OpenBuy.length, to, seq, TickJournal.FLAG_BUY);
+      }
+      else if (startsWith(d, from, to, v1OpenSell))
+      {
+        parseV1Open(d, from + v1OpenSell.length, to, seq, TickJournal.FLAG_SELL);
+      }
+      else if (startsWith(d, from, to, v1CloseBuy))
+      {
+        parseV1Close(d, from + v1CloseBuy.length, to, seq, TickJournal.FLAG_BUY);
+      }
+      else if (startsWith(d, from, to, v1CloseSell))
+      {
+        parseV1Close(d, from + v1CloseSell.length, to, seq, TickJournal.FLAG_SELL);
+      }
+      else if (startsWith(d, from, to, v1ReadyToClose))
+      {
+        long min = parseNumber(d, from + v1ReadyToClose.length, to);
+        int p = indexOf(d, cursor, to, v1OrAbove);
+        if (p < 0) return;
+        long max = parseNumber(d, p + v1OrAbove.length, to);
+        add(seq, TickJournal.TYPE_READY_TO_CLOSE, (short)0, noInstrument, min, max);
+      }
+      else if (startsWith(d, from, to, v1ReadyToOpen))
+      {
+        add(seq, TickJournal.TYPE_READY_TO_OPEN, (short)0, noInstrument, 0, 0);
+      }
+
+      /*
+       * v2
+       */
+
+      else if (startsWith(d, from, to, v2NotBetting))
+      {
+        parseV2Tick(d, from + v2NotBetting.length, to, seq);
+      }
+      else if (startsWith(d, from, to, v2Close))
+      {
+        short instr = matchInstrument(d, from + v2Close.length, to);
+        if (instr == noInstrument) return;
+        short side;
+        int p;
+        if ((p = indexOf(d, cursor, to, v2WithSell)) >= 0)
+        {
+          side = TickJournal.FLAG_SELL;
+          p += v2WithSell.length;
+        }
+        else if ((p = indexOf(d, cursor, to, v2WithBuy)) >= 0)
+        {
+          side = TickJournal.FLAG_BUY;
+          p += v2WithBuy.length;
+        }
+        else return;
+        long price = parseNumber(d, p, to);
+        add(seq, TickJournal.TYPE_CLOSE, (short)(side | outcome(d, cursor, to)), instr, 0, price);
+      }
+      else if (startsWith(d, from, to, v2ReadyToClose))
+      {
+        long min = parseNumber(d, from + v2ReadyToClose.length, to);
+        if (cursor >= to || d[cursor] != '/') return;
+        long max = parseNumber(d, cursor + 1, to);
+        add(seq, TickJournal.TYPE_READY_TO_CLOSE, (short)0, noInstrument, min, max);
+      }
+      else if (startsWith(d, from, to, v2ReadyToOpen))
+      {
+        add(seq, TickJournal.TYPE_READY_TO_OPEN, (short)0, noInstrument, 0, 0);
+      }
+      else
+      {
+        // "EUR/USD @ bid/ask trending up, open with buy around ask"
+        short instr = parseV2Tick(d, from, to, seq);
+        if (instr == noInstrument) return;
+        int p;
+        if ((p = indexOf(d, cursor, to, v2OpenBuy)) >= 0)
+        {
+          add(seq, TickJournal.TYPE_OPEN, TickJournal.FLAG_BUY, instr, 0, parseNumber(d, p + v2OpenBuy.length, to));
+        }
+        else if ((p = indexOf(d, cursor, to, v2OpenSell)) >= 0)
+        {
+          add(seq, TickJournal.TYPE_OPEN, TickJournal.FLAG_SELL, instr, 0, parseNumber(d, p + v2OpenSell.length, to));
+        }
+      }
+    }
+
+    // "1.2 x EUR_USD NOW AT 1.3/1.31"
+    private void parseV1Open(byte[] d, int from, int to, long seq, short side)
+    {
+      long quantity = Math.abs(parseNumber(d, from, to));
+      int p = indexOf(d, cursor, to, v1Times);
+      if (p < 0) return;
+      short instr = matchInstrument(d, p + v1Times.length, to);
+      if (instr == noInstrument) return;
+      p = indexOf(d, cursor, to, v1NowAt);
+      if (p < 0) return;
+      long bid = parseNumber(d, p + v1NowAt.length, to);
+      if (cursor >= to || d[cursor] != '/') return;
+      long ask = parseNumber(d, cursor + 1, to);
+      add(seq, TickJournal.TYPE_TICK, (short)0, instr, bid, ask);
+      add(seq, TickJournal.TYPE_OPEN, side, instr, quantity, side == TickJournal.FLAG_BUY ? ask : bid);
+    }
+
+    // "-1.2 x EUR_USD AT 1.3 (BEST)"
+    private void parseV1Close(byte[] d, int from, int to, long seq, short side)
+    {
+      long quantity = Math.abs(parseNumber(d, from, to));
+      int p = indexOf(d, cursor, to, v1Times);
+      if (p < 0) return;
+      short instr = matchInstrument(d, p + v1Times.length, to);
+      if (instr == noInstrument) return;
+      p = indexOf(d, cursor, to, v1At);
+      if (p < 0) return;
+      long price = parseNumber(d, p + v1At.length, to);
+      add(seq, TickJournal.TYPE_CLOSE, (short)(side | outcome(d, cursor, to)), instr, quantity, price);
+    }
+
+    // "EUR/USD @ 1.3/1.31", leaves the cursor after the ask
+    private short parseV2Tick(byte[] d, int from, int to, long seq)
+    {
+      short instr = matchInstrument(d, from, to);
+      if (instr == noInstrument || !startsWith(d, cursor, to, v2PriceAt)) return noInstrument;
+      long bid = parseNumber(d, cursor + v2PriceAt.length, to);
+      if (cursor >= to || d[cursor] != '/') return noInstrument;
+      long ask = parseNumber(d, cursor + 1, to);
+      add(seq, TickJournal.TYPE_TICK, (short)0, instr, bid, ask);
+      return instr;
+    }
+
+    private static short outcome(byte[] d, int from, int to)
+    {
+      if (indexOf(d, from, to, best) >= 0) return TickJournal.FLAG_BEST;
+      if (indexOf(d, from, to, worst) >= 0) return TickJournal.FLAG_WORST;
+      return 0;
+    }
+
+    // Accepts both the v1 "EUR_USD" and the v2 "EUR/USD" spelling
+    private short matchInstrument(byte[] d, int from, int to)
+    {
+      if (from + 7 > to) return noInstrument;
+      for (short i=0; i<numInstruments; i++)
+      {
+        final byte[] desc = instrumentBytes[i];
+        if (d[from] == desc[0] && d[from+1] == desc[1] && d[from+2] == desc[2] && (d[from+3] == '/' || d[from+3] == '_') &&
+            d[from+4] == desc[4] && d[from+5] == desc[5] && d[from+6] == desc[6])
+        {
+          cursor = from + 7;
+          return i;
+        }
+      }
+      return noInstrument;
+    }
+
+    // Parses "-1.234" into a mantissa with 6 decimal digits, leaves the cursor after the last digit
+    private long parseNumber(byte[] d, int from, int to)
+    {
+      int p = from;
+      boolean negative = false;
+      if (p < to && d[p] == '-')
+      {
+        negative = true;
+        p++;
+      }
+      long mantissa = 0;
+      while (p < to && d[p] >= '0' && d[p] <= '9')
+      {
+        mantissa = mantissa * 10 + (d[p++] - '0');
+      }
+      int fraction = 0;
+      if (p < to && d[p] == '.')
+      {
+        p++;
+        while (p < to && d[p] >= '0' && d[p] <= '9')
+        {
+          if (fraction < decimals)
+          {
+            mantissa = mantissa * 10 + (d[p] - '0');
+            fraction++;
+          }
+          p++;
+        }
+      }
+      for (; fraction < decimals; fraction++)
+      {
+        mantissa *= 10;
+      }
+      cursor = p;
+      return negative ? -mantissa : mantissa;
+    }
+
+    private void add(long seq, short recordType, short recordFlags, short instr, long v1, long v2)
+    {
+      if (count == sequence.length)
+      {
+        final int capacity = count * 2;
+        sequence = Arrays.copyOf(sequence, capacity);
+        type = Arrays.copyOf(type, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        pos = Arrays.copyOf(pos, capacity);
+        value1 = Arrays.copyOf(value1, capacity);
+        value2 = Arrays.copyOf(value2, capacity);
+      }
+      sequence[count] = seq;
+      type[count] = recordType;
+      flags[count] = recordFlags;
+      pos[count] = instr;
+      value1[count] = v1;
+      value2[count] = v2;
+      count++;
+    }
+  }
+
+  /*
+   * Byte helpers
+   */
+
+  private static byte[] bytes(String s)
+  {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static boolean startsWith(byte[] d, int from, int to, byte[] pattern)
+  {
+    if (to - from < pattern.length) return false;
+    for (int i=0; i<pattern.length; i++)
+    {
+      if (d[from + i] != pattern[i]) return false;
+    }
+    return true;
+  }
+
+  private static int indexOf(byte[] d, int from, int to, byte[] pattern)
+  {
+    final int last = to - pattern.length;
+    for (int p=from; p<=last; p++)
+    {
+      if (startsWith(d, p, to, pattern)) return p;
+    }
+    return -1;
+  }
+
+  /*
+   * Main function
+   */
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 2 || args.length > 4)
+    {
+      System.err.println("Usage " + SessionLogParser.class.getName() + " <output.txt> <journal.bin> [chunkMegabytes] [threads]");
+      System.exit(-1);
+    }
+
+    Path logPath = Paths.get(args[0]);
+    Path journalPath = Paths.get(args[1]);
+    int chunkSize = args.length > 2 ? Integer.parseInt(args[2]) << 20 : defaultChunkSize;
+    int numThreads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+    long startNanos = System.nanoTime();
+    SessionLogParser parser;
+    try (TickJournal journal = TickJournal.create(journalPath))  // Rewritten, a second run must not hold the session twice
+    {
+      parser = new SessionLogParser(logPath, journal, chunkSize, numThreads);
+      parser.parse();
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+
+    long megabytes = logPath.toFile().length() >> 20;
+    System.out.printf("Parsed %d MB in %d ms with %d threads%n", megabytes, elapsedNanos / 1000000, numThreads);
+    System.out.printf("Ticks: %d (+%d unchanged skipped), opens: %d, closes: %d, ready to close: %d, ready to open: %d%n",
+        parser.recordsByType[TickJournal.TYPE_TICK], parser.duplicateTicks, parser.recordsByType[TickJournal.TYPE_OPEN],
+        parser.recordsByType[TickJournal.TYPE_CLOSE], parser.recordsByType[TickJournal.TYPE_READY_TO_CLOSE], parser.recordsByType[TickJournal.TYPE_READY_TO_OPEN]);
+  }
+
+}
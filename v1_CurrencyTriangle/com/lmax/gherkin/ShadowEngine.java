@@ -0,0 +1,518 @@
+/**
+ * Gherkin Peeler
+ *
+ * Shadow engine - evaluates variants of the strategy on the live feed, without trading them.
+ *
+ * Once the traded strategy is done with a tick, the market data thread copies its depth into a
+ * ring buffer and moves on: publishing never waits for the variants and never allocates, so the
+ * traded strategy does not slow down however many variants there are. Worker threads (one per
+ * spare core by default, -Dgherkin.shadowThreads) each drive their share of the variants from
+ * the ring; a worker that falls a whole ring behind skips ahead and counts the ticks it lost.
+ *
+ * Each variant is an offline GherkinPeeler with some parameters overridden, and this engine is
+ * its OrderStub: market orders are filled right after the tick against the book depth, level
+ * by level, whatever the time in force (the part the five levels cannot fill is left unfilled).
+ * Each variant has its own PnlTracker, marked to the top of the book and reported in the
+ * account currency. A "baseline" variant with the traded parameters is always added, to compare
+ * the others with. Console output of the variants is discarded.
+ *
+ * The variants are listed in the properties file given by -Dgherkin.shadow, one per line:
+ *
+ *   <name> = <parameter>=<value>,<parameter>=<value>...
+ */
+
+package com.lmax.gherkin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.lang.invoke.VarHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import com.lmax.api.FixedPointNumber;
+import com.lmax.api.order.OrderCallback;
+
+final class ShadowEngine
+{
+
+  /*
+   * Constants
+   */
+
+  private static final int levels = BookSignals.levels;
+  private static final int bidPrices = BookSignals.bidPrices;
+  private static final int bidQuantities = BookSignals.bidQuantities;
+  private static final int askPrices = BookSignals.askPrices;
+  private static final int askQuantities = BookSignals.askQuantities;
+  private static final int bookSize = BookSignals.depthSize;
+  private static final int slotSize = 3 + bookSize;  // Instrument position, ingress and exchange times, then the book
+
+  private static final int ringSize = 4096;          // Ticks, a power of two
+  private static final long idleParkNanos = 100000L;  // Workers sleep that long when there is nothing new
+  private static final int defaultThreads = Integer.getInteger("gherkin.shadowThreads", Math.max(1, Runtime.getRuntime().availableProcessors() - 2));
+
+  /*
+   * Variables
+   */
+
+  private final long[] instrumentId;
+  private final String[] instrumentDesc;
+  private final String accountCurrency;
+
+  private final long[] ring = new long[ringSize * slotSize];
+  private final AtomicLong published = new AtomicLong();  // Ticks written so far, tick n goes to slot n % ringSize
+  private final List<Variant> variants = new ArrayList<Variant>();
+  private Worker[] workers;
+  private PrintStream console;  // The real System.err, for the workers' own messages
+
+  /*
+   * Constructor
+   */
+
+  private ShadowEngine(long[] instrumentId, String[] instrumentDesc, String accountCurrency)
+  {
+    this.instrumentId = instrumentId.clone();
+    this.instrumentDesc = instrumentDesc.clone();
+    this.accountCurrency = accountCurrency;
+  }
+
+  // One variant per line of the file, plus the baseline; the factory builds a strategy from its overridden parameters
+  static ShadowEngine load(Path file, Function<Properties, GherkinHandlers> factory, long[] instrumentId, String[] instrumentDesc, String accountCurrency) throws IOException
+  {
+    Properties lines = new Properties();
+    try (Reader reader = Files.newBufferedReader(file))
+    {
+      lines.load(reader);
+    }
+    ShadowEngine engine = new ShadowEngine(instrumentId, instrumentDesc, accountCurrency);
+    engine.add("baseline", factory.apply(new Properties()));
+    for (String name : new TreeSet<String>(lines.stringPropertyNames()))
+    {
+      Properties parameters = new Properties();
+      for (String assignment : lines.getProperty(name).split(","))
+      {
+        final int eq = assignment.indexOf('=');
+        if (assignment.trim().isEmpty()) continue;
+        if (eq < 0)
+        {
+          throw new IllegalArgumentException("Variant " + name + ": " + assignment.trim() + " is not <parameter>=<value>");
+        }
+        parameters.setProperty(assignment.substring(0, eq).trim(), assignment.substring(eq + 1).trim());
+      }
+      try
+      {
+        engine.add(name, factory.apply(parameters));
+      }
+      catch (IllegalArgumentException e)
+      {
+        throw new IllegalArgumentException("Variant " + name + ": " + e.getMessage(), e);
+      }
+    }
+    return engine;
+  }
+
+  // For the strategy constructors, so that a misspelt parameter does not silently run the defaults
+  static void checkParameters(Properties parameters, String... names)
+  {
+    for (String name : parameters.stringPropertyNames())
+    {
+      if (!Arrays.asList(names).contains(name))
+      {
+        throw new IllegalArgumentException("unknown parameter " + name + ", expected one of " + Arrays.toString(names));
+      }
+    }
+  }
+
+  private void add(String name, GherkinHandlers handlers)
+  {
+    handlers.reset();
+    Variant variant = new Variant(name, handlers);
+    handlers.setOrderStub(variant);
+    variants.add(variant);
+  }
+
+  // The counters and gauges of each variant, served with those of the traded strategy as shadow_<variant>_<metric>
+  void includeMetrics(MetricsRegistry registry)
+  {
+    for (Variant variant : variants)
+    {
+      registry.include("shadow_" + variant.name + "_", variant.handlers.getMetrics());
+    }
+  }
+
+  /*
+   * Lifecycle
+   */
+
+  // Silences the variants and starts the workers, the variants being dealt round-robin
+  synchronized void start()
+  {
+    if (workers != null) return;
+    console = System.err;
+    System.setOut(new ShadowSilencedStream(System.out));
+    System.setErr(new ShadowSilencedStream(System.err));
+
+    workers = new Worker[Math.min(defaultThreads, variants.size())];
+    for (int w=0; w<workers.length; w++)
+    {
+      workers[w] = new Worker(w);
+    }
+    for (int v=0; v<variants.size(); v++)
+    {
+      workers[v % workers.length].variants.add(variants.get(v));
+    }
+    for (Worker worker : workers)
+    {
+      worker.start();
+    }
+  }
+
+  // The baseline follows the parameters the strategy is retuned with, the other variants keep theirs
+  void setBaselineParameters(Properties parameters)
+  {
+    variants.get(0).handlers.setParameters(parameters);
+  }
+
+  int getVariants()  { return variants.size(); }
+  int getThreads()   { return workers == null ? 0 : workers.length; }
+
+  /*
+   * Producer, market data thread
+   */
+
+  // Copies the depth decoded by the peeler (BookSignals layout), drops instruments the strategy does not trade
+  void publish(long id, long ingressNanos, long[] depth, long timeMillis)
+  {
+    int pos = -1;
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      if (instrumentId[i] == id) pos = i;
+    }
+    if (pos < 0) return;
+
+    final long tick = published.get();  // Single producer, no race
+    final int slot = (int)(tick & (ringSize - 1)) * slotSize;
+
+    // The previous publish() must be visible before a worker may see this slot being overwritten
+    VarHandle.storeStoreFence();
+    ring[slot] = pos;
+    ring[slot + 1] = ingressNanos;
+    ring[slot + 2] = timeMillis;
+    System.arraycopy(depth, 0, ring, slot + 3, bookSize);
+    published.lazySet(tick + 1);
+  }
+
+  /*
+   * Consumers
+   */
+
+  private final class Worker extends Thread
+  {
+    private final List<Variant> variants = new ArrayList<Variant>();
+    private final long[][] book = new long[instrumentId.length][bookSize];  // Shared by the variants of this worker
+    private final FixedPointNumber[] levelValues = new FixedPointNumber[bookSize];
+    private long consumed;  // Ticks read from the ring
+    private volatile long lostTicks;
+
+    Worker(int index)
+    {
+      super("gherkin-shadow-" + index);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run()
+    {
+      while (true)
+      {
+        final long available = published.get();
+        if (available == consumed)
+        {
+          LockSupport.parkNanos(idleParkNanos);
+          continue;
+        }
+        if (available - consumed >= ringSize)
+        {
+          // Lapped, resume half a ring behind the producer
+          lostTicks += available - ringSize / 2 - consumed;
+          consumed = available - ringSize / 2;
+        }
+
+        final int slot = (int)(consumed & (ringSize - 1)) * slotSize;
+        final int pos = (int)ring[slot];
+        final long ingressNanos = ring[slot + 1];
+        final long timeMillis = ring[slot + 2];
+        final long[] instrumentBook = book[pos];
+        System.arraycopy(ring, slot + 3, instrumentBook, 0, bookSize);
+
+        // Seqlock-style check: if the producer got round to this slot meanwhile, the copy may be torn
+        VarHandle.loadLoadFence();
+        if (published.get() - consumed >= ringSize)
+        {
+          lostTicks++;
+          consumed++;
+          continue;
+        }
+        consumed++;
+
+        Arrays.fill(levelValues, null);
+        for (Variant variant : variants)
+        {
+          if (variant.failure == null)
+          {
+            variant.onTick(pos, ingressNanos, timeMillis, book, levelValues);
+          }
+        }
+      }
+    }
+  }
+
+  private final class Variant implements OrderStub
+  {
+    private final String name;
+    private final GherkinHandlers handlers;
+    private final PnlTracker pnl = new PnlTracker(instrumentId, instrumentDesc, accountCurrency);
+    private final PnlTracker.Snapshot snapshot = pnl.newSnapshot();  // For report()
+    private volatile long orders;
+    private volatile long unfilledOrders;  // The book did not hold the whole quantity
+    private volatile Throwable failure;    // The variant threw, it is not fed anymore
+
+    // Orders placed during the current tick, filled after it as LMAX would do shortly after
+    private final List<PendingOrder> pending = new ArrayList<PendingOrder>();
+
+    Variant(String name, GherkinHandlers handlers)
+    {
+      this.name = name;
+      this.handlers = handlers;
+    }
+
+    void onTick(int pos, long ingressNanos, long timeMillis, long[][] books, FixedPointNumber[] levelValues)
+    {
+      final long[] book = books[pos];
+      pnl.onTick(instrumentId[pos], book[bidPrices], book[askPrices]);
+      try
+      {
+        handlers.onIngress(instrumentId[pos], ingressNanos);
+        handlers.onDepth(instrumentId[pos], book, timeMillis);
+        final int bookLevel = handlers.getBookLevel();  // The baseline's may have been reloaded
+        handlers.onOrderBook(instrumentId[pos], value(levelValues, book, bidPrices + bookLevel), value(levelValues, book, askPrices + bookLevel),
+                             value(levelValues, book, bidQuantities + bookLevel), value(levelValues, book, askQuantities + bookLevel));
+        for (int p=0; p<pending.size(); p++)
+        {
+          final PendingOrder order = pending.get(p);
+          fill(books[order.pos], order.pos, order.quantity, order.callback);
+        }
+      }
+      catch (RuntimeException e)
+      {
+        failure = e;
+        console.println("Shadow variant " + name + " stopped: " + e);
+      }
+      pending.clear();
+    }
+
+    @Override
+    public boolean placeMarketOrder(long id, FixedPointNumber quantity, OrderCallback callback)
+    {
+      for (int i=0; i<instrumentId.length; i++)
+      {
+        if (instrumentId[i] == id)
+        {
+          pending.add(new PendingOrder(i, quantity.longValue(), callback));
+          return true;
+        }
+      }
+      throw new IllegalArgumentException("order on unknown instrument " + id);
+    }
+
+    // Walks the last book of the instrument from the top, on the side the order takes
+    private void fill(long[] book, int pos, long quantity, OrderCallback callback)
+    {
+      final boolean buy = quantity > 0;
+      final int prices = buy ? askPrices : bidPrices;
+      final int quantities = buy ? askQuantities : bidQuantities;
+      long remaining = Math.abs(quantity);
+      long filled = 0;
+      long cost = 0;
+      for (int l=0; l<levels && remaining > 0; l++)
+      {
+        final long take = Math.min(remaining, book[quantities + l]);
+        filled += take;
+        cost += FixedPointMath.multiply(take, book[prices + l]);
+        remaining -= take;
+      }
+
+      orders++;
+      if (remaining > 0) unfilledOrders++;
+      callback.onSuccess(-orders);
+      if (filled > 0)
+      {
+        final long price = FixedPointMath.divide(cost, filled);
+        pnl.onExecution(instrumentId[pos], price, buy ? filled : -filled);
+        handlers.onExecution(FixedPointNumber.valueOf(price), FixedPointNumber.valueOf(buy ? filled : -filled));
+      }
+    }
+  }
+
+  private static final class PendingOrder
+  {
+    final int pos;
+    final long quantity;
+    final OrderCallback callback;
+
+    PendingOrder(int pos, long quantity, OrderCallback callback)
+    {
+      this.pos = pos;
+      this.quantity = quantity;
+      this.callback = callback;
+    }
+  }
+
+  // Each book value is boxed once per tick and worker, whichever variants need it
+  private static FixedPointNumber value(FixedPointNumber[] levelValues, long[] book, int index)
+  {
+    FixedPointNumber value = levelValues[index];
+    if (value == null)
+    {
+      value = FixedPointNumber.valueOf(book[index]);
+      levelValues[index] = value;
+    }
+    return value;
+  }
+
+  /*
+   * Report, from any thread: approximate while the workers run
+   */
+
+  synchronized String report()
+  {
+    long lost = 0;
+    for (Worker worker : workers)
+    {
+      lost += worker.lostTicks;
+    }
+    StringBuilder sb = new StringBuilder();
+    sb.append(published.get()).append(" ticks, ").append(lost).append(" lost by ").append(workers.length).append(" workers");
+    for (Variant variant : variants)
+    {
+      variant.pnl.snapshot(variant.snapshot);
+      sb.append("\n  ").append(variant.name).append(": ").append(variant.orders).append(" orders (")
+        .append(variant.unfilledOrders).append(" not fully filled), ").append(variant.snapshot);
+      if (variant.failure != null)
+      {
+        sb.append(", stopped: ").append(variant.failure);
+      }
+    }
+    return sb.toString();
+  }
+
+  /*
+   * Console output of the workers goes nowhere, without taking the lock of the real stream
+   */
+
+  private static final class ShadowSilencedStream extends PrintStream
+  {
+    private final PrintStream target;
+
+    ShadowSilencedStream(PrintStream target)
+    {
+      super(OutputStream.nullOutputStream());
+      this.target = target;
+    }
+
+    private static boolean silenced()
+    {
+      return Thread.currentThread() instanceof Worker;
+    }
+
+    @Override public void write(int b)                        { if (!silenced()) target.write(b); }
+    @Override public void write(byte[] buf, int off, int len) { if (!silenced()) target.write(buf, off, len); }
+    @Override public void flush()                             { if (!silenced()) target.flush(); }
+    @Override public void print(boolean b)                    { if (!silenced()) target.print(b); }
+    @Override public void print(char c)                       { if (!silenced()) target.print(c); }
+    @Override public void print(int i)                        { if (!silenced()) target.print(i); }
+    @Override public void print(long l)                       { if (!silenced()) target.print(l); }
+    @Override public void print(float f)                      { if (!silenced()) target.print(f); }
+    @Override public void print(double d)                     { if (!silenced()) target.print(d); }
+    @Override public void print(char[] s)                     { if (!silenced()) target.print(s); }
+    @Override public void print(String s)                     { if (!silenced()) target.print(s); }
+    @Override public void print(Object obj)                   { if (!silenced()) target.print(obj); }
+    @Override public void println()                           { if (!silenced()) target.println(); }
+    @Override public void println(boolean x)                  { if (!silenced()) target.println(x); }
+    @Override public void println(char x)                     { if (!silenced()) target.println(x); }
+    @Override public void println(int x)                      { if (!silenced()) target.println(x); }
+    @Override public void println(long x)                     { if (!silenced()) target.println(x); }
+    @Override public void println(float x)                    { if (!silenced()) target.println(x); }
+    @Override public void println(double x)                   { if (!silenced()) target.println(x); }
+    @Override public void println(char[] x)                   { if (!silenced()) target.println(x); }
+    @Override public void println(String x)                   { if (!silenced()) target.println(x); }
+    @Override public void println(Object x)                   { if (!silenced()) target.println(x); }
+
+    @Override
+    public PrintStream printf(String format, Object... args)
+    {
+      if (!silenced()) target.printf(format, args);
+      return this;
+    }
+
+    @Override
+    public PrintStream printf(Locale l, String format, Object... args)
+    {
+      if (!silenced()) target.printf(l, format, args);
+      return this;
+    }
+
+    @Override
+    public PrintStream format(String format, Object... args)
+    {
+      if (!silenced()) target.format(format, args);
+      return this;
+    }
+
+    @Override
+    public PrintStream format(Locale l, String format, Object... args)
+    {
+      if (!silenced()) target.format(l, format, args);
+      return this;
+    }
+
+    @Override
+    public PrintStream append(CharSequence csq)
+    {
+      if (!silenced()) target.append(csq);
+      return this;
+    }
+
+    @Override
+    public PrintStream append(CharSequence csq, int start, int end)
+    {
+      if (!silenced()) target.append(csq, start, end);
+      return this;
+    }
+
+    @Override
+    public PrintStream append(char c)
+    {
+      if (!silenced()) target.append(c);
+      return this;
+    }
+
+    @Override
+    public boolean checkError()
+    {
+      return target.checkError();
+    }
+  }
+
+}
@@ -0,0 +1,436 @@
+/**
+ * Gherkin Peeler
+ *
+ * Shard pool - the traded strategy spread by instrument over a fixed set of worker threads.
+ *
+ * Each instrument belongs to one shard for the whole process, chosen by consistent hashing of
+ * its shard key (64 points per shard on a hash ring), and each shard is a worker thread driving
+ * its own offline GherkinPeeler: the state of an instrument is only ever touched by the thread
+ * of its shard, without locks. The market data thread decodes each order book once and hands it
+ * to the shard of the instrument through a ring buffer, together with the executions, position
+ * events and order acknowledgements of its instruments, so each shard sees its inputs in order.
+ * A full ring makes the producer wait: the traded strategy never loses a tick.
+ *
+ * Strategies that span instruments are handed off in two ways:
+ *
+ *   - their instruments share a shard key, so that they land on the same shard (a triangle and
+ *     its three legs)
+ *   - the account position is a token: a shard acquires it before opening and releases it once
+ *     closed or reset (OrderStub.acquirePosition()), so there is still one position at a time
+ *     however many shards trade
+ *
+ * Orders of the shards go to the given OrderStub, the live session behind its rate limiter.
+ * Worker threads spin a while when idle, then park until the producer wakes them up.
+ */
+
+package com.lmax.gherkin;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import com.lmax.api.FailureResponse;
+import com.lmax.api.FixedPointNumber;
+import com.lmax.api.order.OrderCallback;
+
+final class ShardPool
+{
+
+  /*
+   * Constants
+   */
+
+  private static final int ringSize = 4096;        // Events per shard, a power of two
+  private static final int virtualNodes = 64;      // Points of each shard on the hash ring
+  private static final int idleSpins = 10000;      // Before parking, some tens of microseconds
+  private static final long idleParkNanos = 1000000L;
+
+  private static final int bidPrices = BookSignals.bidPrices;
+  private static final int bidQuantities = BookSignals.bidQuantities;
+  private static final int askPrices = BookSignals.askPrices;
+  private static final int askQuantities = BookSignals.askQuantities;
+  private static final int bookSize = BookSignals.depthSize;
+  private static final int slotSize = 4 + bookSize;  // Type, instrument position, two values, then the book of a tick
+
+  // Event types
+  private static final int TICK      = 1;  // Ingress nanos, exchange millis
+  private static final int EXECUTION = 2;  // Price, filled quantity
+  private static final int POSITION  = 3;  // Open quantity
+  private static final int SUCCESS   = 4;  // Instruction id, callback
+  private static final int FAILURE   = 5;  // Callback, failure response
+  private static final int RESET     = 6;
+
+  private final long[] instrumentId;
+  private final String[] instrumentDesc;
+  private final int[] shardOf;  // By instrument position
+  private final Shard[] shards;
+  private final OrderStub orders;
+
+  /*
+   * Variables
+   */
+
+  private final AtomicInteger positionOwner = new AtomicInteger(-1);  // Shard holding the account position, -1 if none
+  private final LongAdder stalls = new LongAdder();                   // Events that waited for room in a full ring
+
+  /*
+   * Constructor
+   */
+
+  // Instruments with the same shard key go to the same shard
+  ShardPool(Supplier<GherkinHandlers> factory, long[] instrumentId, String[] instrumentDesc, long[] shardKey, int threads, OrderStub orders)
+  {
+    this.instrumentId = instrumentId.clone();
+    this.instrumentDesc = instrumentDesc.clone();
+    this.shardOf = assign(shardKey, threads);
+    this.orders = orders;
+    this.shards = new Shard[threads];
+    for (int s=0; s<threads; s++)
+    {
+      shards[s] = new Shard(s, factory.get());
+    }
+  }
+
+  // Consistent hashing: each key goes to the first shard point at or after its hash, around the ring
+  static int[] assign(long[] shardKey, int threads)
+  {
+    if (threads < 1 || threads > 0xFFFF)
+    {
+      throw new IllegalArgumentException(threads + " shards, not within 1.." + 0xFFFF);
+    }
+    final long[] points = new long[threads * virtualNodes];  // Hash in the high bits, shard in the low 16
+    for (int s=0; s<threads; s++)
+    {
+      for (int v=0; v<virtualNodes; v++)
+      {
+        points[s * virtualNodes + v] = (mix(((long)s << 32) | v) & ~0xFFFFL) | s;
+      }
+    }
+    Arrays.sort(points);
+    final int[] shardOf = new int[shardKey.length];
+    for (int i=0; i<shardKey.length; i++)
+    {
+      int p = Arrays.binarySearch(points, mix(shardKey[i]) & ~0xFFFFL);
+      if (p < 0) p = -p - 1;
+      shardOf[i] = (int)(points[p % points.length] & 0xFFFF);
+    }
+    return shardOf;
+  }
+
+  // SplitMix64 finalizer
+  private static long mix(long z)
+  {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  void start()
+  {
+    for (Shard shard : shards)
+    {
+      if (shard.owns()) shard.start();
+    }
+  }
+
+  int getThreads()
+  {
+    return shards.length;
+  }
+
+  /*
+   * Producer side, market data thread (any thread in fact)
+   */
+
+  // Position of the instrument, -1 if not traded
+  int onTick(long id, long ingressNanos, long[] depth, long timeMillis)
+  {
+    final int pos = positionOf(id);
+    if (pos >= 0) shards[shardOf[pos]].post(TICK, pos, ingressNanos, timeMillis, depth, null, null);
+    return pos;
+  }
+
+  void onExecution(long id, long price, long filledQuantity)
+  {
+    final int pos = positionOf(id);
+    if (pos >= 0) shards[shardOf[pos]].post(EXECUTION, pos, price, filledQuantity, null, null, null);
+  }
+
+  void onPosition(long id, long openQuantity)
+  {
+    final int pos = positionOf(id);
+    if (pos >= 0) shards[shardOf[pos]].post(POSITION, pos, openQuantity, 0, null, null, null);
+  }
+
+  // Every shard back to its initial state, as on a new session
+  void reset()
+  {
+    for (Shard shard : shards)
+    {
+      if (shard.owns()) shard.post(RESET, 0, 0, 0, null, null, null);
+    }
+  }
+
+  // Any thread, every shard swaps to them before its next event
+  void setParameters(Properties parameters)
+  {
+    for (Shard shard : shards)
+    {
+      shard.handlers.setParameters(parameters);
+    }
+  }
+
+  private int positionOf(long id)
+  {
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      if (instrumentId[i] == id) return i;
+    }
+    return -1;
+  }
+
+  /*
+   * Shards
+   */
+
+  private final class Shard extends Thread implements OrderStub
+  {
+    private final int index;
+    private final GherkinHandlers handlers;
+
+    // Multi-producer ring: a slot is claimed, written, then marked ready with its sequence + 1
+    private final long[] ring = new long[ringSize * slotSize];
+    private final Object[] refs = new Object[ringSize * 2];  // Callback and failure response
+    private final AtomicLongArray ready = new AtomicLongArray(ringSize);
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private volatile boolean parked;
+
+    private final long[] book = new long[bookSize];  // Of the tick being handled
+    private volatile long failures;
+    private volatile String lastFailure;
+
+    Shard(int index, GherkinHandlers handlers)
+    {
+      super("gherkin-shard-" + index);
+      setDaemon(true);
+      this.index = index;
+      this.handlers = handlers;
+      handlers.setOrderStub(this);
+      handlers.reset();
+    }
+
+    boolean owns()
+    {
+      for (int s : shardOf)
+      {
+        if (s == index) return true;
+      }
+      return false;
+    }
+
+    void post(int type, int pos, long value1, long value2, long[] depth, Object ref1, Object ref2)
+    {
+      final long sequence = claimed.getAndIncrement();
+      if (sequence - consumed.get() >= ringSize)
+      {
+        stalls.increment();
+        while (sequence - consumed.get() >= ringSize)
+        {
+          Thread.yield();  // The shard is behind, let it have the core if it shares ours
+        }
+      }
+      final int slot = (int)(sequence & (ringSize - 1));
+      final int base = slot * slotSize;
+      ring[base] = type;
+      ring[base + 1] = pos;
+      ring[base + 2] = value1;
+      ring[base + 3] = value2;
+      if (depth != null) System.arraycopy(depth, 0, ring, base + 4, bookSize);
+      refs[slot * 2] = ref1;
+      refs[slot * 2 + 1] = ref2;
+      ready.set(slot, sequence + 1);
+      if (parked) LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run()
+    {
+      long next = 0;
+      int idle = 0;
+      while (true)
+      {
+        final int slot = (int)(next & (ringSize - 1));
+        if (ready.get(slot) != next + 1)
+        {
+          if (++idle < idleSpins)
+          {
+            Thread.onSpinWait();
+          }
+          else
+          {
+            parked = true;
+            if (ready.get(slot) != next + 1) LockSupport.parkNanos(idleParkNanos);
+            parked = false;
+          }
+          continue;
+        }
+        idle = 0;
+        try
+        {
+          handle(slot);
+        }
+        catch (RuntimeException e)
+        {
+          // Live, this would have restarted the session
+          failures++;
+          lastFailure = e.toString();
+          handlers.reset();
+        }
+        refs[slot * 2] = null;
+        refs[slot * 2 + 1] = null;
+        consumed.set(++next);
+      }
+    }
+
+    private void handle(int slot)
+    {
+      final int base = slot * slotSize;
+      final int pos = (int)ring[base + 1];
+      switch ((int)ring[base])
+      {
+        case TICK:
+        {
+          GherkinEvents.Tick tick = GherkinEvents.beginTick();  // Timed here, where the strategy runs
+          System.arraycopy(ring, base + 4, book, 0, bookSize);
+          handlers.onIngress(instrumentId[pos], ring[base + 2]);
+          handlers.onDepth(instrumentId[pos], book, ring[base + 3]);
+          final int bookLevel = handlers.getBookLevel();  // May have been reloaded
+          handlers.onOrderBook(instrumentId[pos], FixedPointNumber.valueOf(book[bidPrices + bookLevel]), FixedPointNumber.valueOf(book[askPrices + bookLevel]),
+                               FixedPointNumber.valueOf(book[bidQuantities + bookLevel]), FixedPointNumber.valueOf(book[askQuantities + bookLevel]));
+          if (tick != null)
+          {
+            GherkinEvents.endTick(tick, instrumentId[pos], book[bidPrices + bookLevel], book[askPrices + bookLevel], handlers.getState());
+          }
+          break;
+        }
+        case EXECUTION:
+        {
+          handlers.onExecution(FixedPointNumber.valueOf(ring[base + 2]), FixedPointNumber.valueOf(ring[base + 3]));
+          break;
+        }
+        case POSITION:
+        {
+          handlers.onPosition(instrumentId[pos], FixedPointNumber.valueOf(ring[base + 2]));
+          break;
+        }
+        case SUCCESS:
+        {
+          ((OrderCallback)refs[slot * 2]).onSuccess(ring[base + 2]);
+          break;
+        }
+        case FAILURE:
+        {
+          ((OrderCallback)refs[slot * 2]).onFailure((FailureResponse)refs[slot * 2 + 1]);
+          break;
+        }
+        case RESET:
+        {
+          handlers.reset();
+          break;
+        }
+      }
+    }
+
+    /*
+     * Orders of the shard's strategy, their acknowledgements come back through the ring
+     */
+
+    @Override
+    public boolean placeMarketOrder(long id, FixedPointNumber quantity, OrderCallback callback)
+    {
+      return orders.placeMarketOrder(id, quantity, new ShardCallback(this, callback));
+    }
+
+    @Override
+    public void placeCloseOutOrder(long id, FixedPointNumber quantity, OrderCallback callback)
+    {
+      orders.placeCloseOutOrder(id, quantity, new ShardCallback(this, callback));
+    }
+
+    @Override
+    public boolean acquirePosition(long id)
+    {
+      return positionOwner.get() == index || positionOwner.compareAndSet(-1, index);
+    }
+
+    @Override
+    public void releasePosition()
+    {
+      if (positionOwner.get() == index) positionOwner.compareAndSet(index, -1);
+    }
+  }
+
+  private static final class ShardCallback implements OrderCallback
+  {
+    private final Shard shard;
+    private final OrderCallback callback;
+
+    ShardCallback(Shard shard, OrderCallback callback)
+    {
+      this.shard = shard;
+      this.callback = callback;
+    }
+
+    // Acknowledged synchronously, on the shard thread itself: no need to queue it (nor room to wait for)
+    @Override
+    public void onSuccess(long instructionId)
+    {
+      if (Thread.currentThread() == shard) callback.onSuccess(instructionId);
+      else shard.post(SUCCESS, 0, instructionId, 0, null, callback, null);
+    }
+
+    @Override
+    public void onFailure(FailureResponse failureResponse)
+    {
+      if (Thread.currentThread() == shard) callback.onFailure(failureResponse);
+      else shard.post(FAILURE, 0, 0, 0, null, callback, failureResponse);
+    }
+  }
+
+  /*
+   * Report, any thread
+   */
+
+  String report()
+  {
+    StringBuilder sb = new StringBuilder();
+    final int owner = positionOwner.get();
+    sb.append(shards.length).append(" shards, position held by ").append(owner < 0 ? "none" : "shard " + owner)
+      .append(", ").append(stalls.sum()).append(" stalls on a full ring");
+    for (Shard shard : shards)
+    {
+      sb.append("; shard ").append(shard.index).append(" [");
+      boolean first = true;
+      for (int i=0; i<instrumentId.length; i++)
+      {
+        if (shardOf[i] != shard.index) continue;
+        sb.append(first ? "" : " ").append(instrumentDesc[i]);
+        first = false;
+      }
+      sb.append("]");
+      if (!shard.owns()) continue;
+      final long consumed = shard.consumed.get();
+      sb.append(" ").append(shard.handlers.getState()).append(", ").append(consumed).append(" events, ")
+        .append(shard.claimed.get() - consumed).append(" queued");
+      if (shard.failures > 0) sb.append(", ").append(shard.failures).append(" failures, last ").append(shard.lastFailure);
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,135 @@
+/**
+ * Gherkin Peeler
+ *
+ * Staleness guard - how old the last price of each instrument is, and the gaps in its feed.
+ *
+ * Each order book update is stamped with System.nanoTime() as soon as it reaches the peeler
+ * (its ingress), and "now" is the ingress of the latest update of any instrument: the time is
+ * an input of the strategy like the prices, so that an EventReplayer takes the same decisions.
+ * An instrument is stale when its last update is older than its threshold, 5 s by default
+ * (-Dgherkin.staleMillis, or -Dgherkin.staleMillis.<instrument> for one of them, e.g.
+ * -Dgherkin.staleMillis.EUR_GBP=20000). Instruments never updated are not stale, as the
+ * strategies wait for their first prices anyway. Stamps are only compared by difference, as
+ * System.nanoTime() may be negative.
+ *
+ * Checking is a load and a compare per instrument. Gap statistics are updated on the writing
+ * thread and read by others without locks (approximate while running).
+ */
+
+package com.lmax.gherkin;
+
+final class StalenessGuard
+{
+
+  /*
+   * Constants
+   */
+
+  private static final long defaultStaleMillis = Long.getLong("gherkin.staleMillis", 5000L);
+
+  private final long[] instrumentId;
+  private final String[] instrumentDesc;
+  private final long[] staleNanos;  // Threshold per instrument position
+
+  /*
+   * Variables
+   */
+
+  private final long[] lastNanos;     // Ingress of the last update, if updated
+  private final boolean[] updated;    // At least once
+  private final boolean[] afterGap;   // The last update came after a stale period
+  private long nowNanos;              // Ingress of the latest update of any instrument, if any
+  private boolean anyUpdated;
+
+  private final long[] gaps;          // Updates that ended a stale period
+  private final long[] maxGapNanos;
+
+  /*
+   * Constructor
+   */
+
+  StalenessGuard(long[] instrumentId, String[] instrumentDesc)
+  {
+    final int n = instrumentId.length;
+    this.instrumentId = instrumentId.clone();
+    this.instrumentDesc = instrumentDesc.clone();
+    this.staleNanos = new long[n];
+    for (int i=0; i<n; i++)
+    {
+      staleNanos[i] = Long.getLong("gherkin.staleMillis." + instrumentDesc[i], defaultStaleMillis) * 1000000L;
+    }
+    this.lastNanos = new long[n];
+    this.updated = new boolean[n];
+    this.afterGap = new boolean[n];
+    this.gaps = new long[n];
+    this.maxGapNanos = new long[n];
+  }
+
+  /*
+   * Updates
+   */
+
+  // Position of the instrument, -1 if not tracked
+  int onUpdate(long id, long ingressNanos)
+  {
+    int pos = -1;
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      if (instrumentId[i] == id) pos = i;
+    }
+    if (pos < 0) return -1;
+
+    final long last = lastNanos[pos];
+    if (updated[pos])
+    {
+      final long gap = ingressNanos - last;
+      afterGap[pos] = gap > staleNanos[pos];
+      if (afterGap[pos]) gaps[pos]++;
+      if (gap > maxGapNanos[pos]) maxGapNanos[pos] = gap;
+    }
+    lastNanos[pos] = ingressNanos;
+    updated[pos] = true;
+    if (!anyUpdated || ingressNanos - nowNanos > 0) nowNanos = ingressNanos;
+    anyUpdated = true;
+    return pos;
+  }
+
+  /*
+   * Checks
+   */
+
+  boolean isStale(int pos)
+  {
+    return updated[pos] && nowNanos - lastNanos[pos] > staleNanos[pos];
+  }
+
+  // Whether the feed of the instrument went stale just before its last update, e.g. to restart a trend
+  boolean isAfterGap(int pos)
+  {
+    return afterGap[pos];
+  }
+
+  /*
+   * Statistics
+   */
+
+  boolean isUpdated(int pos)        { return updated[pos]; }
+  long getLastUpdateNanos(int pos)  { return lastNanos[pos]; }  // 0 if never updated
+  long getAgeNanos(int pos)         { return updated[pos] ? nowNanos - lastNanos[pos] : 0; }
+  long getGaps(int pos)             { return gaps[pos]; }
+  long getMaxGapNanos(int pos)      { return maxGapNanos[pos]; }
+
+  // Age of the last update of each instrument, stale ones flagged
+  String describe()
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i=0; i<instrumentId.length; i++)
+    {
+      if (i > 0) sb.append(", ");
+      sb.append(instrumentDesc[i]).append(" ").append(getAgeNanos(i) / 1000000).append(" ms");
+      if (isStale(i)) sb.append(" STALE");
+    }
+    return sb.toString();
+  }
+
+}
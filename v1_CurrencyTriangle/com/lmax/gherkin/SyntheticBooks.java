@@ -0,0 +1,177 @@
+/**
+ * Gherkin Peeler
+ *
+ * Synthetic books - five-level FX order books over a consistent set of currencies.
+ *
+ * Every currency has a value in USD following a random walk, and the mid price of an instrument
+ * is always the value of its base currency over the value of its quote currency, so the cross
+ * rates agree with their legs (EUR/GBP = EUR/USD / GBP/USD) up to the ticks not yet published.
+ * Each tick moves both currencies of one instrument; now and then a currency drifts the same way
+ * for a while, so that trends and triangles get to open and close.
+ *
+ * Spreads follow a market-wide regime (tight, normal or wide, as around news), switching at
+ * random; the wide regime is more volatile too. The five levels of each side are a few pips
+ * apart, their quantities growing with the depth. Prices and quantities are FixedPointNumber
+ * mantissas laid out as BookSignals depths.
+ */
+
+package com.lmax.gherkin;
+
+import java.util.Random;
+
+import com.lmax.api.FixedPointNumber;
+
+final class SyntheticBooks
+{
+
+  /*
+   * Constants
+   */
+
+  private static final long scaleFactor = FixedPointNumber.ONE.longValue();
+  private static final int levels = BookSignals.levels;
+
+  // Value in USD of the currencies the peelers trade, others start at 1
+  private static final String[] knownCurrency = {"USD", "EUR", "GBP", "JPY", "AUD", "CHF", "CAD"};
+  private static final double[] knownValue    = {1.0, 1.30, 1.55, 0.0125, 1.03, 1.08, 1.0};
+
+  // Spread regimes: full spread and volatility per tick, relative to the mid, and odds of leaving per tick
+  private static final String[] regimeDesc = {"tight", "normal", "wide"};
+  private static final double[] regimeSpread = {0.4e-4, 0.8e-4, 3.0e-4};
+  private static final double[] regimeVolatility = {0.5e-5, 1.0e-5, 4.0e-5};
+  private static final double[] regimeExit = {1.0 / 2000, 1.0 / 4000, 1.0 / 300};
+  private static final double crossSpreadFactor = 1.5;  // Instruments without USD quote wider
+
+  private static final double levelStep = 0.3e-4;      // Between levels, relative to the mid
+  private static final double driftProbability = 1.0 / 256;  // Per tick, for the currencies moved
+  private static final int driftMinTicks = 8;
+  private static final int driftMaxTicks = 40;
+
+  /*
+   * Variables
+   */
+
+  private final long[] instrumentId;
+  private final int numInstruments;
+  private final int[] baseOf;  // Currency index by instrument position
+  private final int[] quoteOf;
+  private final double[] spreadFactor;
+  private final double[] value;  // USD per unit, by currency
+  private final double[] drift;
+  private final int[] driftRemaining;
+  private final Random random;
+
+  private int regime = 1;
+  private final long[] regimeTicks = new long[regimeDesc.length];
+
+  /*
+   * Constructor
+   */
+
+  // Instruments described as BASE_QUOTE or BASE/QUOTE
+  SyntheticBooks(long[] instrumentId, String[] instrumentDesc, long seed)
+  {
+    this.instrumentId = instrumentId.clone();
+    this.numInstruments = instrumentId.length;
+    this.baseOf = new int[numInstruments];
+    this.quoteOf = new int[numInstruments];
+    this.spreadFactor = new double[numInstruments];
+    String[] currency = new String[2 * numInstruments];
+    int numCurrencies = 0;
+    for (int i=0; i<numInstruments; i++)
+    {
+      final String base = instrumentDesc[i].substring(0, 3);
+      final String quote = instrumentDesc[i].substring(instrumentDesc[i].length() - 3);
+      baseOf[i] = indexOf(currency, numCurrencies, base);
+      if (baseOf[i] == numCurrencies) currency[numCurrencies++] = base;
+      quoteOf[i] = indexOf(currency, numCurrencies, quote);
+      if (quoteOf[i] == numCurrencies) currency[numCurrencies++] = quote;
+      spreadFactor[i] = base.equals("USD") || quote.equals("USD") ? 1.0 : crossSpreadFactor;
+    }
+    this.value = new double[numCurrencies];
+    for (int c=0; c<numCurrencies; c++)
+    {
+      final int known = indexOf(knownCurrency, knownCurrency.length, currency[c]);
+      value[c] = known < knownCurrency.length ? knownValue[known] : 1.0;
+    }
+    this.drift = new double[numCurrencies];
+    this.driftRemaining = new int[numCurrencies];
+    this.random = new Random(seed);
+  }
+
+  private static int indexOf(String[] currency, int numCurrencies, String wanted)
+  {
+    for (int c=0; c<numCurrencies; c++)
+    {
+      if (currency[c].equals(wanted)) return c;
+    }
+    return numCurrencies;
+  }
+
+  /*
+   * Market generation
+   */
+
+  // Moves the market by one tick, writes the depth of the instrument that ticked and returns its position
+  int next(long[] depth)
+  {
+    if (random.nextDouble() < regimeExit[regime])
+    {
+      regime = (regime + 1 + random.nextInt(regimeDesc.length - 1)) % regimeDesc.length;
+    }
+    regimeTicks[regime]++;
+
+    final int pos = random.nextInt(numInstruments);
+    move(baseOf[pos]);
+    move(quoteOf[pos]);
+
+    final double mid = value[baseOf[pos]] / value[quoteOf[pos]];
+    final double halfSpread = mid * regimeSpread[regime] * spreadFactor[pos] / 2;
+    final double step = mid * levelStep;
+    for (int l=0; l<levels; l++)
+    {
+      depth[BookSignals.bidPrices + l] = Math.round((mid - halfSpread - l * step) * scaleFactor);
+      depth[BookSignals.askPrices + l] = Math.round((mid + halfSpread + l * step) * scaleFactor);
+      depth[BookSignals.bidQuantities + l] = nextQuantity(l);
+      depth[BookSignals.askQuantities + l] = nextQuantity(l);
+    }
+    return pos;
+  }
+
+  private void move(int c)
+  {
+    if (driftRemaining[c] == 0 && random.nextDouble() < driftProbability)
+    {
+      driftRemaining[c] = driftMinTicks + random.nextInt(driftMaxTicks - driftMinTicks);
+      drift[c] = (random.nextBoolean() ? 1 : -1) * regimeVolatility[regime];
+    }
+    double change = random.nextGaussian() * regimeVolatility[regime];
+    if (driftRemaining[c] > 0)
+    {
+      driftRemaining[c]--;
+      change += drift[c];
+    }
+    value[c] *= 1 + change;
+  }
+
+  // More liquidity further from the top
+  private long nextQuantity(int level)
+  {
+    return (1 + random.nextInt(20 * (level + 1))) * scaleFactor;
+  }
+
+  long instrumentId(int pos)  { return instrumentId[pos]; }
+  int numInstruments()        { return numInstruments; }
+
+  // Ticks spent in each spread regime so far
+  String describeRegimes()
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int r=0; r<regimeDesc.length; r++)
+    {
+      sb.append(r == 0 ? "" : " ").append(regimeDesc[r]).append('=').append(regimeTicks[r]);
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,129 @@
+/**
+ * Gherkin Peeler
+ *
+ * Synthetic events - mutable implementations of the LMAX order book, execution and position
+ * events, for the offline drivers that call the notify() listeners of a peeler.
+ *
+ * An event is filled in and handed to the peeler, then reused for the next one, so driving the
+ * peeler allocates nothing of its own. The whole interfaces are implemented, so that the peeler
+ * may read any of an event; what the drivers do not set is a fixed value.
+ */
+
+package com.lmax.gherkin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.lmax.api.FixedPointNumber;
+import com.lmax.api.TimeInForce;
+import com.lmax.api.order.Execution;
+import com.lmax.api.order.Order;
+import com.lmax.api.order.OrderType;
+import com.lmax.api.orderbook.OrderBookEvent;
+import com.lmax.api.orderbook.PricePoint;
+import com.lmax.api.position.PositionEvent;
+
+final class SyntheticEvents
+{
+
+  private static final long accountId = 1;          // Of the fills and position events
+  private static final String orderId = "GHERKIN";  // Of the fills, the peeler goes by instruction id
+
+  private SyntheticEvents()
+  {
+  }
+
+  /*
+   * Events, the price points of a book set level by level
+   */
+
+  static final class Book implements OrderBookEvent
+  {
+    long instrumentId;
+    long timeStamp;
+    final List<PricePoint> bidPrices = new ArrayList<PricePoint>(BookSignals.levels);
+    final List<PricePoint> askPrices = new ArrayList<PricePoint>(BookSignals.levels);
+
+    Book()
+    {
+      for (int l=0; l<BookSignals.levels; l++)
+      {
+        bidPrices.add(null);
+        askPrices.add(null);
+      }
+    }
+
+    @Override public long getInstrumentId()                         { return instrumentId; }
+    @Override public long getTimeStamp()                            { return timeStamp; }
+    @Override public List<PricePoint> getBidPrices()                { return bidPrices; }
+    @Override public List<PricePoint> getAskPrices()                { return askPrices; }
+    @Override public FixedPointNumber getValuationBidPrice()        { return bidPrices.get(0).getPrice(); }
+    @Override public FixedPointNumber getValuationAskPrice()        { return askPrices.get(0).getPrice(); }
+    @Override public FixedPointNumber getMarketClosePrice()         { return FixedPointNumber.ZERO; }
+    @Override public long getMarketClosePriceTimeStamp()            { return 0; }
+    @Override public FixedPointNumber getLastTradedPrice()          { return FixedPointNumber.ZERO; }
+    @Override public FixedPointNumber getDailyHighestTradedPrice()  { return FixedPointNumber.ZERO; }
+    @Override public FixedPointNumber getDailyLowestTradedPrice()   { return FixedPointNumber.ZERO; }
+    @Override public boolean hasValuationBidPrice()                 { return true; }
+    @Override public boolean hasValuationAskPrice()                 { return true; }
+    @Override public boolean hasMarketClosePrice()                  { return false; }
+    @Override public boolean hasLastTradedPrice()                   { return false; }
+    @Override public boolean hasDailyHighestTradedPrice()           { return false; }
+    @Override public boolean hasDailyLowestTradedPrice()            { return false; }
+  }
+
+  static final class Fill implements Execution
+  {
+    final FilledOrder order = new FilledOrder();
+    long executionId;
+    FixedPointNumber price;
+    FixedPointNumber quantity;
+
+    @Override public long getExecutionId()                          { return executionId; }
+    @Override public Order getOrder()                               { return order; }
+    @Override public FixedPointNumber getPrice()                    { return price; }
+    @Override public FixedPointNumber getQuantity()                 { return quantity; }
+    @Override public FixedPointNumber getCancelledQuantity()        { return FixedPointNumber.ZERO; }
+  }
+
+  static final class FilledOrder implements Order
+  {
+    long instructionId;
+    long instrumentId;
+    FixedPointNumber quantity;
+    FixedPointNumber filledQuantity;
+
+    @Override public long getInstructionId()                        { return instructionId; }
+    @Override public long getOriginalInstructionId()                { return instructionId; }
+    @Override public String getOrderId()                            { return orderId; }
+    @Override public long getAccountId()                            { return accountId; }
+    @Override public long getInstrumentId()                         { return instrumentId; }
+    @Override public FixedPointNumber getLimitPrice()               { return null; }  // Market orders
+    @Override public FixedPointNumber getStopReferencePrice()       { return null; }
+    @Override public FixedPointNumber getStopLossOffset()           { return null; }
+    @Override public FixedPointNumber getStopProfitOffset()         { return null; }
+    @Override public FixedPointNumber getQuantity()                 { return quantity; }
+    @Override public FixedPointNumber getFilledQuantity()           { return filledQuantity; }
+    @Override public FixedPointNumber getCancelledQuantity()        { return FixedPointNumber.ZERO; }
+    @Override public OrderType getOrderType()                       { return OrderType.MARKET; }
+    @Override public TimeInForce getTimeInForce()                   { return TimeInForce.FILL_OR_KILL; }
+    @Override public FixedPointNumber getCumulativeCost()           { return FixedPointNumber.ZERO; }
+    @Override public FixedPointNumber getCommission()               { return FixedPointNumber.ZERO; }
+  }
+
+  static final class Position implements PositionEvent
+  {
+    long instrumentId;
+    FixedPointNumber openQuantity;
+
+    @Override public long getAccountId()                            { return accountId; }
+    @Override public long getInstrumentId()                         { return instrumentId; }
+    @Override public FixedPointNumber getValuation()                { return FixedPointNumber.ZERO; }
+    @Override public FixedPointNumber getShortUnfilledCost()        { return FixedPointNumber.ZERO; }
+    @Override public FixedPointNumber getLongUnfilledCost()         { return FixedPointNumber.ZERO; }
+    @Override public FixedPointNumber getOpenQuantity()             { return openQuantity; }
+    @Override public FixedPointNumber getCumulativeCost()           { return FixedPointNumber.ZERO; }
+    @Override public FixedPointNumber getOpenCost()                 { return FixedPointNumber.ZERO; }
+  }
+
+}
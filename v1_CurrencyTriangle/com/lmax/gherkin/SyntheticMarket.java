@@ -0,0 +1,153 @@
+/**
+ * Gherkin Peeler
+ *
+ * Synthetic market - random walk prices with trending bursts, used to drive the strategy offline.
+ *
+ * Prices and quantities are FixedPointNumber mantissas (6 decimal digits). Every call to next()
+ * moves one instrument and returns its position; bursts of consecutive moves in the same
+ * direction are injected so that both the triangle and the trend logic get to open and close.
+ */
+
+package com.lmax.gherkin;
+
+import com.lmax.api.FixedPointNumber;
+
+final class SyntheticMarket
+{
+
+  /*
+   * Constants
+   */
+
+  private static final long scaleFactor = FixedPointNumber.ONE.longValue();
+  private static final int burstProbability = 64;  // One burst every 64 ticks on average
+  private static final int burstMinLength = 5;
+  private static final int burstMaxLength = 12;
+
+  /*
+   * Variables
+   */
+
+  private final long[] instrumentId;
+  private final int numInstruments;
+  private final long[] mid;
+  private final long[] halfSpread;
+  private final long[] bidQuantity;
+  private final long[] askQuantity;
+  private final int[] burstRemaining;
+  private final int[] burstDirection;
+
+  // Optional triangle: mid[trianglePos] = mid[triangleLegA] / mid[triangleLegB], e.g. EUR/GBP = EUR/USD / GBP/USD
+  private int trianglePos = -1;
+  private int triangleLegA;
+  private int triangleLegB;
+
+  private long random;
+
+  /*
+   * Constructor
+   */
+
+  SyntheticMarket(long[] instrumentId, long[] initialMid, long seed)
+  {
+    this.instrumentId = instrumentId;
+    this.numInstruments = instrumentId.length;
+    this.mid = initialMid.clone();
+    this.halfSpread = new long[numInstruments];
+    this.bidQuantity = new long[numInstruments];
+    this.askQuantity = new long[numInstruments];
+    this.burstRemaining = new int[numInstruments];
+    this.burstDirection = new int[numInstruments];
+    this.random = seed == 0 ? 0x9E3779B97F4A7C15L : seed;
+    for (int i=0; i<numInstruments; i++)
+    {
+      halfSpread[i] = Math.max(1, mid[i] / 200000);  // About 0.5 pips each side on a 1.x pair
+      bidQuantity[i] = nextQuantity();
+      askQuantity[i] = nextQuantity();
+    }
+  }
+
+  // Indicative mid prices when the caller does not care, 1.0 upwards
+  static long[] defaultMids(int numInstruments)
+  {
+    long[] mids = new long[numInstruments];
+    for (int i=0; i<numInstruments; i++)
+    {
+      mids[i] = scaleFactor + i * scaleFactor / 10;
+    }
+    return mids;
+  }
+
+  void setTriangle(int crossPos, int legA, int legB)
+  {
+    this.trianglePos = crossPos;
+    this.triangleLegA = legA;
+    this.triangleLegB = legB;
+  }
+
+  /*
+   * Market generation, allocation-free
+   */
+
+  int next()
+  {
+    final int pos = (int)((nextRandom() >>> 1) % numInstruments);
+
+    if (pos == trianglePos)
+    {
+      // The cross follows its legs, with the lag of having to wait for its own tick
+      mid[pos] = mid[triangleLegA] * scaleFactor / mid[triangleLegB];
+    }
+    else
+    {
+      if (burstRemaining[pos] == 0 && (nextRandom() & (burstProbability - 1)) == 0)
+      {
+        burstRemaining[pos] = burstMinLength + (int)((nextRandom() >>> 1) % (burstMaxLength - burstMinLength));
+        burstDirection[pos] = (nextRandom() & 1) == 0 ? 1 : -1;
+      }
+      if (burstRemaining[pos] > 0)
+      {
+        burstRemaining[pos]--;
+        mid[pos] += burstDirection[pos] * 2 * halfSpread[pos];
+      }
+      else
+      {
+        mid[pos] += ((nextRandom() >>> 1) % 3 - 1) * halfSpread[pos];
+      }
+    }
+    bidQuantity[pos] = nextQuantity();
+    askQuantity[pos] = nextQuantity();
+    return pos;
+  }
+
+  long instrumentId(int pos)  { return instrumentId[pos]; }
+  long bid(int pos)           { return mid[pos] - halfSpread[pos]; }
+  long ask(int pos)           { return mid[pos] + halfSpread[pos]; }
+  long bidQuantity(int pos)   { return bidQuantity[pos]; }
+  long askQuantity(int pos)   { return askQuantity[pos]; }
+  int numInstruments()        { return numInstruments; }
+
+  int positionOf(long id)
+  {
+    for (int i=0; i<numInstruments; i++)
+    {
+      if (instrumentId[i] == id) return i;
+    }
+    return -1;
+  }
+
+  private long nextQuantity()
+  {
+    return (1 + (nextRandom() >>> 1) % 50) * scaleFactor;
+  }
+
+  // xorshift64
+  private long nextRandom()
+  {
+    random ^= random << 13;
+    random ^= random >>> 7;
+    random ^= random << 17;
+    return random;
+  }
+
+}
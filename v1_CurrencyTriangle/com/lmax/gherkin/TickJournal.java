@@ -0,0 +1,197 @@
+/**
+ * Gherkin Peeler
+ *
+ * Tick journal - an append-only binary file of fixed-size records (ticks and trade events).
+ *
+ * Every record is 32 bytes, little endian:
+ *   long  sequence      (byte offset of the source line when parsed from output.txt, event number in an EventLog)
+ *   short type          (TYPE_*)
+ *   short flags         (FLAG_*)
+ *   int   instrumentId  (LMAX id, e.g. 4001 for EUR/USD)
+ *   long  value1        (bid, quantity, ... depending on type)
+ *   long  value2        (ask, price, ... depending on type)
+ */
+
+package com.lmax.gherkin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+final class TickJournal implements Closeable
+{
+
+  /*
+   * Constants
+   */
+
+  static final int RECORD_SIZE = 32;
+
+  static final short TYPE_TICK           = 1;  // value1=bid, value2=ask
+  static final short TYPE_OPEN           = 2;  // value1=quantity (0 if unknown), value2=price
+  static final short TYPE_CLOSE          = 3;  // value1=quantity (0 if unknown), value2=price
+  static final short TYPE_READY_TO_CLOSE = 4;  // value1=closingPriceMin, value2=closingPriceMax
+  static final short TYPE_READY_TO_OPEN  = 5;  // value1=0, value2=0
+
+  // Event log of a live session (EventLog), sequence=input event number
+  static final short TYPE_BOOK           = 10;  // value1=bid, value2=ask
+  static final short TYPE_BOOK_QUANTITY  = 11;  // value1=bidQuantity, value2=askQuantity, follows TYPE_BOOK
+  static final short TYPE_EXECUTION      = 12;  // value1=price, value2=filledQuantity
+  static final short TYPE_POSITION       = 13;  // value1=openQuantity, value2=0
+  static final short TYPE_CALLBACK       = 14;  // value1=instructionId, value2=order number, FLAG_FAILED if failed
+  static final short TYPE_RESET          = 15;  // value1=0, value2=0
+  static final short TYPE_ORDER          = 16;  // value1=quantity, value2=TimeInForce ordinal, output of the previous input
+  static final short TYPE_STATE          = 17;  // value1=previous GherkinState ordinal (-1 if none), value2=new one, output too
+  static final short TYPE_INGRESS        = 18;  // value1=System.nanoTime() on arrival, value2=0, precedes TYPE_BOOK
+  static final short TYPE_DECISION       = 19;  // value1=quote decided on, value2=TYPE_INGRESS of the tick decided on, FLAG_BUY or FLAG_SELL, output before TYPE_ORDER
+  static final short TYPE_SLIPPAGE       = 20;  // value1=fill price - decision price per unit (positive is a cost), value2=nanos from decision tick to fill, FLAG_BUY or FLAG_SELL, output of TYPE_EXECUTION
+  static final short TYPE_THROTTLED      = 21;  // value1=quantity, value2=0, output instead of TYPE_ORDER for an order the rate limiter held back
+  static final short TYPE_PARAMETERS     = 22;  // value1=length in bytes of the text that follows, value2=0, input: the tunables swapped in
+  static final short TYPE_PARAMETERS_TEXT = 23; // value1, value2=next 16 bytes of "key=value" lines (UTF-8, zero padded), follows TYPE_PARAMETERS
+  static final short TYPE_DEPTH          = 24;  // value1=exchange time in ms, value2=0, follows TYPE_INGRESS: the whole book of the TYPE_BOOK to come
+  static final short TYPE_DEPTH_VALUES   = 25;  // value1, value2=next two values of the BookSignals depth, follow TYPE_DEPTH
+
+  static final short FLAG_BUY   = 1;
+  static final short FLAG_SELL  = 2;
+  static final short FLAG_BEST  = 4;
+  static final short FLAG_WORST = 8;
+  static final short FLAG_FAILED = 16;
+
+  private static final int bufferedRecords = 4096;
+
+  /*
+   * Variables
+   */
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(bufferedRecords * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  private long recordCount;
+
+  /*
+   * Constructor
+   */
+
+  private TickJournal(FileChannel channel)
+  {
+    this.channel = channel;
+  }
+
+  // Records appended to those already in the file, if any
+  static TickJournal open(Path path) throws IOException
+  {
+    return new TickJournal(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+  }
+
+  // Records replacing whatever the file held, for a journal written in one go from another source
+  static TickJournal create(Path path) throws IOException
+  {
+    return new TickJournal(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+  }
+
+  /*
+   * Writing, allocation-free, single writer only
+   */
+
+  void append(long sequence, short type, short flags, int instrumentId, long value1, long value2) throws IOException
+  {
+    if (buffer.remaining() < RECORD_SIZE)
+    {
+      flush();
+    }
+    buffer.putLong(sequence);
+    buffer.putShort(type);
+    buffer.putShort(flags);
+    buffer.putInt(instrumentId);
+    buffer.putLong(value1);
+    buffer.putLong(value2);
+    recordCount++;
+  }
+
+  void flush() throws IOException
+  {
+    buffer.flip();
+    while (buffer.hasRemaining())
+    {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  long getRecordCount()
+  {
+    return recordCount;
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    flush();
+    channel.close();
+  }
+
+  /*
+   * Reading, for replays and backtests
+   */
+
+  static final class Reader implements Closeable
+  {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(bufferedRecords * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private long sequence;
+    private short type;
+    private short flags;
+    private int instrumentId;
+    private long value1;
+    private long value2;
+
+    Reader(Path path) throws IOException
+    {
+      this.channel = FileChannel.open(path, StandardOpenOption.READ);
+      buffer.flip();
+    }
+
+    // Moves to the next record, returns false at the end of the journal
+    boolean next() throws IOException
+    {
+      if (buffer.remaining() < RECORD_SIZE)
+      {
+        buffer.compact();
+        while (buffer.position() < RECORD_SIZE && channel.read(buffer) > 0)
+        {
+          // Keep reading until at least one full record is available
+        }
+        buffer.flip();
+        if (buffer.remaining() < RECORD_SIZE)
+        {
+          return false;
+        }
+      }
+      sequence = buffer.getLong();
+      type = buffer.getShort();
+      flags = buffer.getShort();
+      instrumentId = buffer.getInt();
+      value1 = buffer.getLong();
+      value2 = buffer.getLong();
+      return true;
+    }
+
+    long sequence()     { return sequence; }
+    short type()        { return type; }
+    short flags()       { return flags; }
+    int instrumentId()  { return instrumentId; }
+    long value1()       { return value1; }
+    long value2()       { return value2; }
+
+    @Override
+    public void close() throws IOException
+    {
+      channel.close();
+    }
+  }
+
+}
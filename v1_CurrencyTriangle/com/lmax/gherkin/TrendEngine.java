@@ -0,0 +1,327 @@
+/**
+ * Gherkin Peeler
+ *
+ * Trend engine - rolling linear regression of the mid price over several lookbacks per instrument.
+ *
+ * Each lookback keeps the last n samples of every instrument in a primitive ring buffer: the
+ * last n ticks, or the last n time buckets (the last mid of each bucket, carried over the empty
+ * ones). Samples are regressed on their index 0..n-1, so the sums over x are constants and the
+ * others slide in O(1) when a sample comes in and the oldest goes:
+ *
+ *   Sxy' = Sxy - (Sy - y_oldest) + (n - 1) * y_new
+ *
+ * Prices are taken relative to the first mid of the instrument, so every sum is an exact long:
+ * no drift however long the session. From them, in O(1) per query:
+ *
+ *   slope       price change per sample of the least-squares line
+ *   R^2         how much of the variance the line explains, 0 = noise, 1 = straight line
+ *   volatility  standard deviation of the moves from one sample to the next
+ *
+ * Time comes from the ingress timestamps (StalenessGuard), so replays see the same buckets. A
+ * tick without one only goes to the tick lookbacks. A gap of a whole time lookback or more
+ * restarts it flat at the last mid, in one go rather than one empty bucket at a time.
+ */
+
+package com.lmax.gherkin;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+final class TrendEngine
+{
+
+  /*
+   * Constants
+   */
+
+  static final int[] tickLookbacks = {16, 64, 256};                            // Ticks
+  static final long[] timeBucketNanos = {250000000L, 1000000000L, 5000000000L};  // 10 s, 1 min and 5 min of buckets
+  static final int[] timeBuckets = {40, 60, 60};
+
+  private static final double scaleFactor = FixedPointMath.scaleFactor;
+
+  private final Lookback[] lookback;
+
+  /*
+   * Variables
+   */
+
+  private final long[] reference;  // First mid of each instrument, 0 until then
+
+  /*
+   * Constructor
+   */
+
+  TrendEngine(int numInstruments)
+  {
+    this.reference = new long[numInstruments];
+    this.lookback = new Lookback[tickLookbacks.length + timeBuckets.length];
+    for (int l=0; l<tickLookbacks.length; l++)
+    {
+      lookback[l] = new Lookback(numInstruments, tickLookbacks[l], 0);
+    }
+    for (int l=0; l<timeBuckets.length; l++)
+    {
+      lookback[tickLookbacks.length + l] = new Lookback(numInstruments, timeBuckets[l], timeBucketNanos[l]);
+    }
+  }
+
+  /*
+   * Updates
+   */
+
+  // Tick lookbacks only, no ingress timestamp (JIT warm-up)
+  void onTick(int pos, long mid)
+  {
+    onTick(pos, mid, 0, false);
+  }
+
+  void onTick(int pos, long mid, long nanos)
+  {
+    onTick(pos, mid, nanos, true);
+  }
+
+  private void onTick(int pos, long mid, long nanos, boolean timed)
+  {
+    if (reference[pos] == 0) reference[pos] = mid;
+    final long y = mid - reference[pos];
+    for (Lookback l : lookback)
+    {
+      if (timed || l.bucketNanos == 0) l.onSample(pos, y, nanos);
+    }
+  }
+
+  void reset()
+  {
+    Arrays.fill(reference, 0);
+    for (Lookback l : lookback)
+    {
+      l.reset();
+    }
+  }
+
+  // One instrument only, e.g. back into the universe after a while
+  void reset(int pos)
+  {
+    reference[pos] = 0;
+    for (Lookback l : lookback)
+    {
+      l.reset(pos);
+    }
+  }
+
+  /*
+   * Queries, by lookback: the tick ones first, then the time ones
+   */
+
+  int getLookbacks()                        { return lookback.length; }
+  boolean isReady(int pos, int l)           { return lookback[l].count[pos] == lookback[l].n; }
+  int getSamples(int l)                     { return lookback[l].n; }
+
+  // Price change per sample, as a FixedPointNumber mantissa
+  double getSlope(int pos, int l)
+  {
+    final Lookback lb = lookback[l];
+    final double k = lb.count[pos];
+    if (k < 2) return 0;
+    return (k * lb.sumXY[pos] - sumX(k) * lb.sumY[pos]) / (k * sumXX(k) - sumX(k) * sumX(k));
+  }
+
+  double getRSquared(int pos, int l)
+  {
+    final Lookback lb = lookback[l];
+    final double k = lb.count[pos];
+    if (k < 2) return 0;
+    final double covariance = k * lb.sumXY[pos] - sumX(k) * lb.sumY[pos];
+    final double varianceX = k * sumXX(k) - sumX(k) * sumX(k);
+    final double varianceY = k * (double)lb.sumYY[pos] - (double)lb.sumY[pos] * lb.sumY[pos];
+    if (varianceY <= 0) return 0;
+    return covariance * covariance / (varianceX * varianceY);
+  }
+
+  // Standard deviation of the move between consecutive samples, as a FixedPointNumber mantissa
+  double getVolatility(int pos, int l)
+  {
+    final Lookback lb = lookback[l];
+    if (lb.count[pos] < 2) return 0;
+    return Math.sqrt((double)lb.sumDD[pos] / (lb.count[pos] - 1));
+  }
+
+  // Price change the regression line makes over the whole lookback, as a FixedPointNumber mantissa
+  double getFittedMove(int pos, int l)
+  {
+    return getSlope(pos, l) * (lookback[l].count[pos] - 1);
+  }
+
+  private static double sumX(double k)   { return k * (k - 1) / 2; }
+  private static double sumXX(double k)  { return (k - 1) * k * (2 * k - 1) / 6; }
+
+  String describe(int pos)
+  {
+    StringBuilder sb = new StringBuilder("trend");
+    for (int l=0; l<lookback.length; l++)
+    {
+      if (lookback[l].count[pos] < 2) continue;
+      sb.append(String.format(Locale.ROOT, " %s=%+.5f/R2 %.2f/vol %.5f", lookback[l].name(), getFittedMove(pos, l) / scaleFactor,
+                              getRSquared(pos, l), getVolatility(pos, l) / scaleFactor));
+    }
+    return sb.toString();
+  }
+
+  /*
+   * One lookback for every instrument, flat primitive arrays
+   */
+
+  private static final class Lookback
+  {
+    private final int n;
+    private final long bucketNanos;  // 0 for a tick lookback
+    private final long[] samples;    // Instrument pos at [pos * n], ring
+    private final int[] head;        // Slot of the oldest sample
+    private final int[] count;
+    private final long[] bucket;     // Time bucket of the newest sample
+    private final long[] sumY;
+    private final long[] sumXY;
+    private final long[] sumYY;
+    private final long[] sumDD;      // Squared moves between consecutive samples
+
+    Lookback(int numInstruments, int n, long bucketNanos)
+    {
+      this.n = n;
+      this.bucketNanos = bucketNanos;
+      this.samples = new long[numInstruments * n];
+      this.head = new int[numInstruments];
+      this.count = new int[numInstruments];
+      this.bucket = new long[numInstruments];
+      this.sumY = new long[numInstruments];
+      this.sumXY = new long[numInstruments];
+      this.sumYY = new long[numInstruments];
+      this.sumDD = new long[numInstruments];
+    }
+
+    String name()
+    {
+      if (bucketNanos == 0) return n + "t";
+      final long seconds = n * bucketNanos / 1000000000L;
+      return seconds % 60 == 0 ? seconds / 60 + "m" : seconds + "s";
+    }
+
+    void onSample(int pos, long y, long nanos)
+    {
+      if (bucketNanos == 0)
+      {
+        push(pos, y);
+        return;
+      }
+      final long b = Math.floorDiv(nanos, bucketNanos);
+      if (count[pos] > 0 && b == bucket[pos])
+      {
+        replaceNewest(pos, y);
+        return;
+      }
+      if (count[pos] > 0)
+      {
+        // Empty buckets in between hold the last mid
+        final long last = newest(pos);
+        final long missing = b - bucket[pos] - 1;
+        if (missing >= n - 1)
+        {
+          fill(pos, last, n - 1);  // Nothing older survives the gap
+        }
+        else
+        {
+          for (long m=missing; m>0; m--)
+          {
+            push(pos, last);
+          }
+        }
+      }
+      push(pos, y);
+      bucket[pos] = b;
+    }
+
+    private long newest(int pos)
+    {
+      return samples[pos * n + (head[pos] + count[pos] - 1) % n];
+    }
+
+    private void push(int pos, long y)
+    {
+      final int k = count[pos];
+      if (k > 0)
+      {
+        final long move = y - newest(pos);
+        sumDD[pos] += move * move;
+      }
+      if (k < n)
+      {
+        samples[pos * n + (head[pos] + k) % n] = y;
+        sumXY[pos] += k * y;
+        sumY[pos] += y;
+        sumYY[pos] += y * y;
+        count[pos] = k + 1;
+        return;
+      }
+      // Full: the oldest goes, every other sample moves down one index
+      final int oldestSlot = pos * n + head[pos];
+      final long oldest = samples[oldestSlot];
+      final long secondOldest = samples[pos * n + (head[pos] + 1) % n];
+      sumDD[pos] -= (secondOldest - oldest) * (secondOldest - oldest);
+      sumXY[pos] += -(sumY[pos] - oldest) + (long)(n - 1) * y;
+      sumY[pos] += y - oldest;
+      sumYY[pos] += y * y - oldest * oldest;
+      samples[oldestSlot] = y;
+      head[pos] = (head[pos] + 1) % n;
+    }
+
+    // The lookback restarted with k samples of the same price
+    private void fill(int pos, long y, int k)
+    {
+      Arrays.fill(samples, pos * n, pos * n + k, y);
+      head[pos] = 0;
+      count[pos] = k;
+      sumY[pos] = k * y;
+      sumXY[pos] = (long)k * (k - 1) / 2 * y;
+      sumYY[pos] = k * y * y;
+      sumDD[pos] = 0;
+    }
+
+    // Same time bucket, the newest sample becomes the latest mid
+    private void replaceNewest(int pos, long y)
+    {
+      final int k = count[pos];
+      final int slot = pos * n + (head[pos] + k - 1) % n;
+      final long old = samples[slot];
+      if (k > 1)
+      {
+        final long previous = samples[pos * n + (head[pos] + k - 2) % n];
+        sumDD[pos] += (y - previous) * (y - previous) - (old - previous) * (old - previous);
+      }
+      sumXY[pos] += (long)(k - 1) * (y - old);
+      sumY[pos] += y - old;
+      sumYY[pos] += y * y - old * old;
+      samples[slot] = y;
+    }
+
+    void reset()
+    {
+      Arrays.fill(head, 0);
+      Arrays.fill(count, 0);
+      Arrays.fill(sumY, 0);
+      Arrays.fill(sumXY, 0);
+      Arrays.fill(sumYY, 0);
+      Arrays.fill(sumDD, 0);
+    }
+
+    void reset(int pos)
+    {
+      head[pos] = 0;
+      count[pos] = 0;
+      sumY[pos] = 0;
+      sumXY[pos] = 0;
+      sumYY[pos] = 0;
+      sumDD[pos] = 0;
+    }
+  }
+
+}
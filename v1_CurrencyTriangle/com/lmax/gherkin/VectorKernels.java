@@ -0,0 +1,132 @@
+/**
+ * Gherkin Peeler
+ *
+ * Vector kernels - the batch kernels with the vector API (jdk.incubator.vector, hence
+ * --add-modules jdk.incubator.vector to compile and run), as many elements at once as the
+ * preferred species has lanes; the remainder of a range is left to the scalar ones.
+ *
+ * Only the kernels C2 does not vectorize by itself are here: directions (two comparisons per
+ * element) and the fixed-point products and quotients. The scalar loops of spreads and of the
+ * price comparisons are already compiled to vector instructions, and measured no slower.
+ *
+ * Results are exactly the scalar ones: mantissas multiplied and divided in long with
+ * truncation, like FixedPointMath. There is no fast vector long division (nor conversion from
+ * double to long) in the JDK 17 vector API, so the quotient is estimated in double and corrected
+ * by one with the exact long remainder. A block where an operand is negative or needs more than
+ * 31 bits is done by the scalar kernel.
+ */
+
+package com.lmax.gherkin;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+final class VectorKernels extends BatchKernels
+{
+
+  /*
+   * Constants
+   */
+
+  private static final VectorSpecies<Long> species = LongVector.SPECIES_PREFERRED;
+  private static final int lanes = species.length();
+  private static final long scaleFactor = FixedPointMath.scaleFactor;
+  private static final double twoToThe52 = 0x1p52;
+  private static final long twoToThe52Bits = Double.doubleToRawLongBits(twoToThe52);
+
+  /*
+   * Kernels, a vector at a time
+   */
+
+  @Override
+  String describe()
+  {
+    return species.vectorBitSize() + "-bit vectors, " + lanes + " longs per vector";
+  }
+
+  @Override
+  void direction(long[] bid, long[] ask, boolean[] up, boolean[] down, int from, int to)
+  {
+    int i = from;
+    for (final int end = from + species.loopBound(to - from); i < end; i += lanes)
+    {
+      final LongVector b = LongVector.fromArray(species, bid, i);
+      final LongVector a = LongVector.fromArray(species, ask, i);
+      final LongVector previousB = LongVector.fromArray(species, bid, i - 1);
+      final LongVector previousA = LongVector.fromArray(species, ask, i - 1);
+      b.compare(VectorOperators.GT, previousB).and(a.compare(VectorOperators.GT, previousA)).intoArray(up, i);
+      b.compare(VectorOperators.LT, previousB).and(a.compare(VectorOperators.LT, previousA)).intoArray(down, i);
+    }
+    super.direction(bid, ask, up, down, i, to);
+  }
+
+  @Override
+  void multiply(long[] a, long[] b, long[] product, int from, int to)
+  {
+    int i = from;
+    for (final int end = from + species.loopBound(to - from); i < end; i += lanes)
+    {
+      final LongVector va = LongVector.fromArray(species, a, i);
+      final LongVector vb = LongVector.fromArray(species, b, i);
+      if (outOfRange(va).or(outOfRange(vb)).anyTrue())
+      {
+        super.multiply(a, b, product, i, i + lanes);
+        continue;
+      }
+      // Quotient estimated in double, off by one at most, then corrected with the exact remainder
+      final LongVector exact = va.mul(vb);
+      final LongVector estimate = toLong(toDouble(va).mul(toDouble(vb)).div(scaleFactor));
+      correct(estimate, exact.sub(estimate.mul(scaleFactor)), LongVector.broadcast(species, scaleFactor)).intoArray(product, i);
+    }
+    super.multiply(a, b, product, i, to);
+  }
+
+  @Override
+  void divide(long[] a, long[] b, long[] quotient, int from, int to)
+  {
+    int i = from;
+    for (final int end = from + species.loopBound(to - from); i < end; i += lanes)
+    {
+      final LongVector va = LongVector.fromArray(species, a, i);
+      final LongVector vb = LongVector.fromArray(species, b, i);
+      if (outOfRange(va).or(outOfRange(vb)).anyTrue())
+      {
+        super.divide(a, b, quotient, i, i + lanes);
+        continue;
+      }
+      final VectorMask<Long> zero = vb.compare(VectorOperators.EQ, 0);
+      final LongVector divisor = vb.blend(1, zero);
+      final LongVector exact = va.mul(scaleFactor);
+      final LongVector estimate = toLong(toDouble(exact).div(toDouble(divisor)));
+      correct(estimate, exact.sub(estimate.mul(divisor)), divisor).blend(0, zero).intoArray(quotient, i);
+    }
+    super.divide(a, b, quotient, i, to);
+  }
+
+  // Lanes outside 0..2^31 - 1: a product of two could overflow, and truncation of a negative differs
+  private static VectorMask<Long> outOfRange(LongVector v)
+  {
+    return v.lanewise(VectorOperators.LSHR, 31).compare(VectorOperators.NE, 0);
+  }
+
+  private static DoubleVector toDouble(LongVector v)
+  {
+    return (DoubleVector)v.convert(VectorOperators.L2D, 0);
+  }
+
+  // Nearest long of a non-negative double below 2^52, through its bits once 2^52 is added (D2L is not intrinsic yet)
+  private static LongVector toLong(DoubleVector v)
+  {
+    return v.add(twoToThe52).reinterpretAsLongs().sub(twoToThe52Bits);
+  }
+
+  // Truncated quotient from an estimate off by one at most and the remainder it leaves
+  private static LongVector correct(LongVector estimate, LongVector remainder, LongVector divisor)
+  {
+    return estimate.sub(1, remainder.compare(VectorOperators.LT, 0)).add(1, remainder.compare(VectorOperators.GE, divisor));
+  }
+
+}
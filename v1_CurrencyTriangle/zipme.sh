@@ -1,4 +1,4 @@
-tar cvf gherkin.tar com/lmax/gherkin/GherkinPeeler.java GherkinPeeler.java *.sh
+tar chvf gherkin.tar com/lmax/gherkin/*.java GherkinPeeler.java *.sh
 
 gzip gherkin.tar
 
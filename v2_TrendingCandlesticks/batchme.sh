@@ -0,0 +1,8 @@
+#!/bin/bash
+
+set -e
+
+javac --add-modules jdk.incubator.vector -cp java-api.jar:. com/lmax/gherkin/BatchBacktest.java
+
+java ${GHERKIN_JAVA_OPTS} --add-modules jdk.incubator.vector -cp java-api.jar:. com.lmax.gherkin.BatchBacktest "$@"
+
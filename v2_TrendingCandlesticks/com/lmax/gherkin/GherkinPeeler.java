@@ -8,7 +8,15 @@
 
 package com.lmax.gherkin;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
 import com.lmax.api.*;
 import com.lmax.api.account.*;
 import com.lmax.api.account.LoginRequest.*;
@@ -18,7 +26,7 @@ import com.lmax.api.reject.*;
 import com.lmax.api.heartbeat.*;
 import com.lmax.api.position.*;
 
-public class GherkinPeeler implements LoginCallback, OrderBookEventListener, OrderEventListener, InstructionRejectedEventListener, ExecutionEventListener, StreamFailureListener, SessionDisconnectedListener, HeartbeatEventListener, PositionEventListener, Runnable
+public class GherkinPeeler implements LoginCallback, OrderBookEventListener, OrderEventListener, InstructionRejectedEventListener, ExecutionEventListener, StreamFailureListener, SessionDisconnectedListener, HeartbeatEventListener, PositionEventListener, Runnable, GherkinHandlers
 {
 
   /*
@@ -35,48 +43,279 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
   private static final String instrumentDesc[] = {"EUR/USD", "GBP/USD", "EUR/GBP", "USD/JPY", "GBP/JPY", "EUR/JPY", "AUD/USD", "AUD/JPY", "CHF/JPY", "USD/CHF", "EUR/CHF", "GBP/CHF", "USD/CAD", "GBP/CAD", "EUR/CAD", "EUR/AUD", "GBP/AUD"};
   private static final short numInstrumentsToTrade = (short)instrumentId.length;
 
-  private static final long  orderQuantity = 10 * FixedPointNumber.ONE.longValue(); // May vary according to wallet size
-  private static final short bookLevel = 0;             // Book level: 0=top, 4=max_depth_available
-  private static final short consecutiveThreshold = 3;  // Minimum moves in the same direction necessary to trigger order
-  private static final short spreadMultiplierToOpen = 1;
-  private static final short spreadMultiplierToClose = 2;
+  private static final int correlationWindow = 1000;    // Ticks of each instrument weighted in the correlation matrix
+  private static final int trendLookback = 1;           // TrendEngine lookback the regression trend is fitted over, 64 ticks
+  private static final int trendConfirmation = 4;       // And the one that must slope the same way, 1 min
+
+  private static final boolean jitWarmupEnabled = Boolean.parseBoolean(System.getProperty("gherkin.jitWarmup", "true"));
+  private static final String accountCurrency = System.getProperty("gherkin.accountCurrency", "USD");  // P&L and exposure are totalled in it
+  private static final String shadowVariantsFile = System.getProperty("gherkin.shadow", "");  // Shadow variants to evaluate, empty to disable
+  private static final String eventLogFile = System.getProperty("gherkin.eventLog", "events-%d.bin");  // %d = start millis, empty to disable
+  private static final boolean monitorEnabled = Boolean.getBoolean("gherkin.monitor");  // Monitor window next to the session, needs a display
+  private static final long monitorRefreshMillis = 250L;
+  private static final String parametersFile = System.getProperty("gherkin.parameters", "");  // Tunables, reloaded whenever the file changes, empty for the defaults
+  private static final int shardThreads = Integer.getInteger("gherkin.shards", 0);  // Worker threads the instruments are spread over, 0 to run the strategy on the market data thread
+  private static final String stateFile = System.getProperty("gherkin.stateFile", "");  // Instrument state mapped to this file, kept across restarts, empty to keep it in memory only
+  private static final String accountsFile = System.getProperty("gherkin.accounts", "");  // More accounts trading off our order books, "<name> = <username>" lines, empty for none
+  private static final long heartbeatPeriodMillis = 300000L;  // 5 min
+  private static final int metricsPort = Integer.getInteger("gherkin.metricsPort", 9191);  // Loopback only, 0 to disable HTTP
+  private static final long metricsFlushMillis = 60000L;
+  private static final long diagnosticsPeriodMillis = 1000L;  // Per-tick messages printed at most once per instrument in that time, the rest summarized
+  private static final long universeFlushMillis = 1000L;  // Subscription changes are sent together at most that often
+  private static final double ordersPerSecond = Double.parseDouble(System.getProperty("gherkin.ordersPerSecond", "5"));  // Whole account
+  private static final int orderBurst = Integer.getInteger("gherkin.orderBurst", 10);
+  private static final double instrumentOrdersPerSecond = Double.parseDouble(System.getProperty("gherkin.instrumentOrdersPerSecond", "1"));
+  private static final int instrumentOrderBurst = Integer.getInteger("gherkin.instrumentOrderBurst", 3);
 
   /*
-   * Variables
+   * Parameters, the traded defaults unless overridden by a shadow variant or the parameter file
    */
 
-  private Session session;
-  private GherkinState state;
+  // Immutable, replaced as a whole so that an event never sees half of a reload
+  private static final class Parameters
+  {
+    private final long  orderQuantity;           // May vary according to wallet size
+    private final short bookLevel;               // Book level: 0=top, 4=max_depth_available
+    private final short consecutiveThreshold;    // Minimum moves in the same direction necessary to trigger order
+    private final short spreadMultiplierToOpen;
+    private final short spreadMultiplierToClose;
+    private final boolean useMicroprice;  // Direction from the depth-weighted microprice instead of the quotes, once the depth is known
+    private final boolean useRegression;  // Trend from the rolling regression instead of counting consecutive moves
+    private final double trendMinRSquared;  // How straight the regression trend must be to open
+    private final boolean[] traded;          // By position, the instrument universe
+
+    Parameters(Properties parameters)
+    {
+      ShadowEngine.checkParameters(parameters, "orderQuantity", "bookLevel", "consecutiveThreshold", "spreadMultiplierToOpen", "spreadMultiplierToClose", "signal", "trend", "trendMinR2", "instruments");
+      orderQuantity = FixedPointNumber.valueOf(parameters.getProperty("orderQuantity", "10")).longValue();
+      bookLevel = Short.parseShort(parameters.getProperty("bookLevel", "0"));
+      consecutiveThreshold = Short.parseShort(parameters.getProperty("consecutiveThreshold", "3"));
+      spreadMultiplierToOpen = Short.parseShort(parameters.getProperty("spreadMultiplierToOpen", "1"));
+      spreadMultiplierToClose = Short.parseShort(parameters.getProperty("spreadMultiplierToClose", "2"));
+      useMicroprice = parameters.getProperty("signal", "quotes").equals("microprice");
+      if (!useMicroprice && !parameters.getProperty("signal", "quotes").equals("quotes"))
+      {
+        throw new IllegalArgumentException("signal " + parameters.getProperty("signal") + " is neither quotes nor microprice");
+      }
+      useRegression = parameters.getProperty("trend", "count").equals("regression");
+      if (!useRegression && !parameters.getProperty("trend", "count").equals("count"))
+      {
+        throw new IllegalArgumentException("trend " + parameters.getProperty("trend") + " is neither count nor regression");
+      }
+      trendMinRSquared = Double.parseDouble(parameters.getProperty("trendMinR2", "0.5"));
+      traded = InstrumentUniverse.parse(parameters.getProperty("instruments", "all"), instrumentDesc);
+      if (bookLevel < 0 || bookLevel > 4)
+      {
+        throw new IllegalArgumentException("bookLevel " + bookLevel + " is not within 0..4");
+      }
+    }
+
+    @Override
+    public String toString()
+    {
+      return "orderQuantity=" + FixedPointNumber.valueOf(orderQuantity) + " bookLevel=" + bookLevel + " consecutiveThreshold=" + consecutiveThreshold +
+             " spreadMultiplierToOpen=" + spreadMultiplierToOpen + " spreadMultiplierToClose=" + spreadMultiplierToClose +
+             " signal=" + (useMicroprice ? "microprice" : "quotes") + " trend=" + (useRegression ? "regression" : "count") + " trendMinR2=" + trendMinRSquared +
+             " instruments=" + InstrumentUniverse.format(traded, instrumentDesc);
+    }
+  }
+
+  private volatile Parameters parameters;  // Loaded once per event
+
+  /*
+   * Instrument state, a record per position in an InstrumentStore
+   */
+
+  // Flyweight over the record of one instrument, select() moves it to another; prices, quantities and spreads are FixedPointNumber mantissas
+  private static final class InstrumentRecord
+  {
+    private static final int FIRST_BID            = 0;
+    private static final int FIRST_ASK            = 8;
+    private static final int LAST_BID             = 16;
+    private static final int LAST_ASK             = 24;
+    private static final int LAST_BID_QUANTITY    = 32;
+    private static final int LAST_ASK_QUANTITY    = 40;
+    private static final int LAST_SPREAD          = 48;
+    private static final int MAX_SPREAD           = 56;
+    private static final int MIN_SPREAD           = 64;
+    private static final int LAST_MICROPRICE      = 72;  // Only kept when useMicroprice
+    private static final int LAST_DIRECTION_COUNT = 80;
+    private static final int LAST_DIRECTION       = 84;
+    private static final int IN_UNIVERSE          = 86;  // At the last tick of the instrument
+    static final int RECORD_SIZE = 88;
+    static final String LAYOUT = "v2 firstBid firstAsk lastBid lastAsk lastBidQuantity lastAskQuantity lastSpread maxSpread minSpread lastMicroprice lastDirectionCount lastDirection inUniverse";
+
+    private final InstrumentStore store;
+    private int offset;
+
+    InstrumentRecord(InstrumentStore store)
+    {
+      this.store = store;
+    }
 
-  private static FixedPointNumber[] firstBid = new FixedPointNumber[numInstrumentsToTrade];
-  private static FixedPointNumber[] firstAsk = new FixedPointNumber[numInstrumentsToTrade];
+    InstrumentRecord select(int pos)
+    {
+      offset = store.offset(pos);
+      return this;
+    }
 
-  private static FixedPointNumber[] lastBid = new FixedPointNumber[numInstrumentsToTrade];
-  private static FixedPointNumber[] lastAsk = new FixedPointNumber[numInstrumentsToTrade];
+    // As before the first tick: zero, but for the minimum spread that any tick lowers
+    static void clear(InstrumentStore store, int pos)
+    {
+      store.clear(pos);
+      store.putLong(store.offset(pos) + MIN_SPREAD, FixedPointNumber.ONE.longValue());
+    }
 
-  private static short[] lastDirection = new short[numInstrumentsToTrade];
-  private static int[] lastDirectionCount = new int[numInstrumentsToTrade];
+    long firstBid()           { return store.getLong(offset + FIRST_BID); }
+    long firstAsk()           { return store.getLong(offset + FIRST_ASK); }
+    long lastBid()            { return store.getLong(offset + LAST_BID); }
+    long lastAsk()            { return store.getLong(offset + LAST_ASK); }
+    long lastBidQuantity()    { return store.getLong(offset + LAST_BID_QUANTITY); }
+    long lastAskQuantity()    { return store.getLong(offset + LAST_ASK_QUANTITY); }
+    long lastSpread()         { return store.getLong(offset + LAST_SPREAD); }
+    long maxSpread()          { return store.getLong(offset + MAX_SPREAD); }
+    long minSpread()          { return store.getLong(offset + MIN_SPREAD); }
+    long lastMicroprice()     { return store.getLong(offset + LAST_MICROPRICE); }
+    int lastDirectionCount()  { return store.getInt(offset + LAST_DIRECTION_COUNT); }
+    short lastDirection()     { return store.getShort(offset + LAST_DIRECTION); }
+    boolean inUniverse()      { return store.getByte(offset + IN_UNIVERSE) != 0; }
+
+    void firstBid(long value)           { store.putLong(offset + FIRST_BID, value); }
+    void firstAsk(long value)           { store.putLong(offset + FIRST_ASK, value); }
+    void lastBid(long value)            { store.putLong(offset + LAST_BID, value); }
+    void lastAsk(long value)            { store.putLong(offset + LAST_ASK, value); }
+    void lastBidQuantity(long value)    { store.putLong(offset + LAST_BID_QUANTITY, value); }
+    void lastAskQuantity(long value)    { store.putLong(offset + LAST_ASK_QUANTITY, value); }
+    void lastSpread(long value)         { store.putLong(offset + LAST_SPREAD, value); }
+    void maxSpread(long value)          { store.putLong(offset + MAX_SPREAD, value); }
+    void minSpread(long value)          { store.putLong(offset + MIN_SPREAD, value); }
+    void lastMicroprice(long value)     { store.putLong(offset + LAST_MICROPRICE, value); }
+    void lastDirectionCount(int value)  { store.putInt(offset + LAST_DIRECTION_COUNT, value); }
+    void lastDirection(short value)     { store.putShort(offset + LAST_DIRECTION, value); }
+    void inUniverse(boolean value)      { store.putByte(offset + IN_UNIVERSE, (byte)(value ? 1 : 0)); }
+  }
 
-  private static FixedPointNumber[] lastBidQuantity = new FixedPointNumber[numInstrumentsToTrade];
-  private static FixedPointNumber[] lastAskQuantity = new FixedPointNumber[numInstrumentsToTrade];
-  private static FixedPointNumber[] lastSpread = new FixedPointNumber[numInstrumentsToTrade];
-  private static FixedPointNumber[] maxSpread = new FixedPointNumber[numInstrumentsToTrade];
-  private static FixedPointNumber[] minSpread = new FixedPointNumber[numInstrumentsToTrade];
+  /*
+   * Variables
+   */
 
-  private static short outstandingPos;
-  private static FixedPointNumber outstandingQuantity;
-  private static FixedPointNumber closingPriceMin;
-  private static FixedPointNumber closingPriceMax;
+  private Session session;
+  private GherkinState state;
+  private OrderStub orderStub;  // Only set when driven offline, orders go there instead of the session
+  private EventLog eventLog;    // Live sessions only, for EventReplayer
+  private MonitorBoard monitor; // Live sessions only, when the monitor window is open; shards publish their state there too
+  private ExecutionQuality quality;  // Live sessions only, shards record their decisions there too
+  private ShadowEngine shadow;  // Live sessions only, variants of this strategy fed from its ticks
+  private ShardPool shards;     // Live sessions only, when the strategy runs on worker threads
+  private ParameterWatcher parameterWatcher;  // Live sessions only, when there is a parameter file
+  private final AtomicReference<Properties> reloadedParameters = new AtomicReference<Properties>();  // Validated, until the next tick swaps them in
+  private volatile Properties tunedParameters = new Properties();  // Last valid ones from the parameter file, for the shards and the shadow baseline
+  private InstrumentUniverse universe = new InstrumentUniverse(instrumentId, instrumentDesc);  // Order books subscribed to, live sessions only; an account's is the one of its session
+  private int universeAccount;  // Of the positions in the universe, 0 for our own
+  private GherkinPeeler[] accounts;  // Live sessions only, those trading off our order books
+  private String accountName;        // Set when this one trades off the order books of another session
+  private volatile boolean accountTrading;  // Its shards are started, ticks can be handed to them
+  private boolean runsOnShard;               // Its orders go through the peeler owning the shards, which counts them
+  private String url;                // Live sessions only, for the accounts to log in to
+  private ProductType productType;
+  private boolean universeFlushing;
+  private boolean diagnosticsFlushing;
+  private boolean jitWarmedUp;
+  private final OrderRateLimiter rateLimiter = new OrderRateLimiter(instrumentId, ordersPerSecond, orderBurst, instrumentOrdersPerSecond, instrumentOrderBurst);
+  private final OrderRateLimiter.Sender closeOutSender = this::sendParkedCloseOut;
+  private final Housekeeping housekeeping = new Housekeeping();  // Heartbeats and other periodic tasks of this instance, on the one housekeeping thread of the process
+
+  private MetricsRegistry metrics = new MetricsRegistry("v2_TrendingCandlesticks");  // The live one, when running as a shard
+  private final int metricTicks = metrics.counters("ticks_", instrumentDesc);
+  private final int metricEmptyBooks = metrics.counter("books_empty");
+  private final int metricPoorBooks = metrics.counter("books_poor");
+  private final int metricTransitions = metrics.counters("transitions_to_", GherkinState.values());
+  private final int metricState = metrics.gauge("state", false);
+  private final int metricOrdersPlaced = metrics.counter("orders_placed");
+  private final int metricOrdersThrottled = metrics.counter("orders_throttled");
+  private final int metricOrdersRejected = metrics.counter("orders_rejected");
+  private final int metricExecutions = metrics.counter("executions");
+  private final int metricSpread = metrics.gauges("spread_", instrumentDesc, true);
+  private final int metricPosition = metrics.gauges("position_", instrumentDesc, true);
+  private final int metricCloseOutsCoalesced = metrics.gauge("close_outs_coalesced", false);
+  private final int metricCloseOutMaxQueueMicros = metrics.gauge("close_out_max_queue_us", false);
+  private final int metricHeartbeatRoundTripMicros = metrics.gauge("heartbeat_round_trip_us", false);
+  private final int metricHeartbeatsMissed = metrics.gauge("heartbeats_missed", false);
+  private final int metricPnl = metrics.gauges("pnl_", new String[] {"realized", "unrealized", "gross_exposure"}, true);  // Account currency
+  private final int metricStaleSkips = metrics.counter("stale_skips");
+  private final int metricFeedGaps = metrics.gauges("feed_gaps_", instrumentDesc, false);
+  private final int metricFeedMaxGapMillis = metrics.gauges("feed_max_gap_ms_", instrumentDesc, false);
+  private final int metricFollower = metrics.gauges("likely_follower_", instrumentDesc, false);  // Position, -1 until known
+  private final int metricFollowerCorrelation = metrics.gauges("likely_follower_correlation_", instrumentDesc, true);
+  private final int metricParameterReloads = metrics.counter("parameter_reloads");
+  private final int metricParameterRejects = metrics.counter("parameter_rejects");
+  private final int metricUniverseSize = metrics.gauge("universe_subscribed", false);
+
+  private Diagnostics diagnostics = new Diagnostics(instrumentDesc, diagnosticsPeriodMillis);  // The live one, when running as a shard
+  private final int diagnosticNotBetting = diagnostics.category("not_betting", 1);
+  private final int diagnosticWaitForOpen = diagnostics.category("wait_for_open", 1);
+  private final int diagnosticNotClosing = diagnostics.category("not_closing", 1);
+  private final int diagnosticWaitForClose = diagnostics.category("wait_for_close", 1);
+
+  private final PnlTracker pnl = new PnlTracker(instrumentId, instrumentDesc, accountCurrency);  // Live executions only
+  private final PnlTracker.Snapshot pnlSnapshot = pnl.newSnapshot();  // Housekeeping thread
+
+  private final long[] depth = new long[BookSignals.depthSize];  // Of the current OrderBookEvent, decoded once
+  private final BookSignals signals = new BookSignals(instrumentId);
+  private final StalenessGuard staleness = new StalenessGuard(instrumentId, instrumentDesc);
+  private final TrendEngine trends = new TrendEngine(numInstrumentsToTrade);
+
+  private InstrumentStore store = InstrumentStore.allocate(InstrumentRecord.RECORD_SIZE, numInstrumentsToTrade);  // Off the heap, mapped to the state file once started
+  private InstrumentRecord updatedRecord = new InstrumentRecord(store);      // Market data thread
+  private InstrumentRecord outstandingRecord = new InstrumentRecord(store);  // Execution events
+  private InstrumentRecord decisionRecord = new InstrumentRecord(store);     // Orders placed, for ExecutionQuality
+  private boolean restoring;  // Until the first reset after the state file was found with records in it
+
+  private CorrelationMatrix correlation = new CorrelationMatrix(numInstrumentsToTrade, correlationWindow);  // Which instrument follows which
+
+  private short outstandingPos;
+  private FixedPointNumber outstandingQuantity;
+  private FixedPointNumber closingPriceMin;
+  private FixedPointNumber closingPriceMax;
 
   /*
    * Constructor
    */
 
   GherkinPeeler(String url, String username, String password, ProductType productType) {
+    this(new Properties());
+    this.url = url;
+    this.productType = productType;
     LmaxApi lmaxApi = new LmaxApi(url);
     lmaxApi.login(new LoginRequest(username, password, productType), this);
   }
 
+  // Account trading off the order books of another session: logs in on a thread of its own, whose session only carries its orders
+  private GherkinPeeler(String accountName, String url, String username, String password, ProductType productType, Properties parameters, Diagnostics diagnostics, InstrumentUniverse universe, int universeAccount)
+  {
+    this(parameters);
+    this.accountName = accountName;
+    this.tunedParameters = parameters;
+    this.diagnostics = diagnostics;
+    this.universe = universe;
+    this.universeAccount = universeAccount;
+    Thread login = new Thread(() -> new LmaxApi(url).login(new LoginRequest(username, password, productType), this), "gherkin-account-" + accountName);
+    login.setDaemon(true);
+    login.start();
+  }
+
+  // Offline instance, never logged in: orders must go to an OrderStub
+  GherkinPeeler()
+  {
+    this(new Properties());
+  }
+
+  // Offline instance with some parameters overridden (signal=quotes|microprice, trend=count|regression and the tunables above), e.g. a shadow variant or a shard
+  GherkinPeeler(Properties parameters)
+  {
+    this.parameters = new Parameters(parameters);
+  }
+
   /*
    * Overridden methods
    */
@@ -96,6 +335,12 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
   @Override
   public void onLoginFailure(FailureResponse failureResponse)
   {
+    if (accountName != null)
+    {
+      // The other accounts carry on without this one
+      System.err.println("ERROR - Account Login Failure: " + accountName + ", " + failureResponse);
+      return;
+    }
     System.err.println("ERROR - Login Failure: " + failureResponse);
     GherkinStop();
     System.exit(-1);
@@ -104,23 +349,124 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
   @Override
   public void notify(OrderBookEvent orderBookEvent)
   {
+    final long ingressNanos = System.nanoTime();
     if (orderBookEvent.getBidPrices().size() == 0 || orderBookEvent.getAskPrices().size() == 0)
     {
       System.out.println("WARNING - Empty Order Book");
+      metrics.increment(metricEmptyBooks);
       return;
     }
     else if (orderBookEvent.getBidPrices().size() < 5 || orderBookEvent.getAskPrices().size() < 5)
     {
       System.out.println("WARNING - Poor Order Book");
+      metrics.increment(metricPoorBooks);
       return;
     }
 
+    // A reload waits for the next tick when logged, so that the event log has it between two inputs
+    if (reloadedParameters.get() != null)
+    {
+      GherkinSwapParameters(reloadedParameters.getAndSet(null));
+    }
+
+    final long id = orderBookEvent.getInstrumentId();
+    final long timeMillis = orderBookEvent.getTimeStamp();
+    BookSignals.decode(orderBookEvent.getBidPrices(), orderBookEvent.getAskPrices(), depth);
+    final short bookLevel = parameters.bookLevel;
+    final FixedPointNumber bid = orderBookEvent.getBidPrices().get(bookLevel).getPrice();
+    final FixedPointNumber ask = orderBookEvent.getAskPrices().get(bookLevel).getPrice();
+    final FixedPointNumber bidQuantity = orderBookEvent.getBidPrices().get(bookLevel).getQuantity();
+    final FixedPointNumber askQuantity = orderBookEvent.getAskPrices().get(bookLevel).getQuantity();
+    if (eventLog != null)
+    {
+      eventLog.book(id, ingressNanos, depth, timeMillis, bid.longValue(), ask.longValue(), bidQuantity.longValue(), askQuantity.longValue());
+    }
+
+    if (shards != null)
+    {
+      // The strategy runs on the shard of the instrument, the feed gaps are tracked here where all the ticks pass
+      staleness.onUpdate(id, ingressNanos);
+      shards.onTick(id, ingressNanos, depth, timeMillis);  // Counted by the shard, in our registry
+    }
+    else
+    {
+      GherkinEvents.Tick tick = GherkinEvents.beginTick();
+      onIngress(id, ingressNanos);
+      onDepth(id, depth, timeMillis);
+      onOrderBook(id, bid, ask, bidQuantity, askQuantity);
+      if (tick != null)
+      {
+        GherkinEvents.endTick(tick, id, bid.longValue(), ask.longValue(), state);
+      }
+    }
+
+    // Positions are marked to the top of the book
+    pnl.onTick(id, depth[BookSignals.bidPrices], depth[BookSignals.askPrices]);
+
+    // The monitor window picks the book up when it refreshes, without ever holding this thread
+    if (monitor != null)
+    {
+      monitor.onBook(id, depth);
+    }
+
+    // Close-outs held back by the rate limiter go out as soon as there are tokens again
+    if (rateLimiter.hasParkedCloseOuts())
+    {
+      rateLimiter.drain(System.nanoTime(), closeOutSender);
+    }
+
+    // Accounts trading off our order books get the same decoded tick, each on its own shards
+    if (accounts != null)
+    {
+      for (GherkinPeeler account : accounts)
+      {
+        account.onAccountTick(id, ingressNanos, depth, timeMillis);
+      }
+    }
+
+    // Shadow variants get the tick once the traded strategy is done with it
+    if (shadow != null)
+    {
+      shadow.publish(id, ingressNanos, depth, timeMillis);
+    }
+  }
+
+  // Market data thread of the session whose order books this account trades off
+  private void onAccountTick(long id, long ingressNanos, long[] depth, long timeMillis)
+  {
+    if (!accountTrading)
+    {
+      return;  // Not logged in yet
+    }
+    shards.onTick(id, ingressNanos, depth, timeMillis);
+    pnl.onTick(id, depth[BookSignals.bidPrices], depth[BookSignals.askPrices]);  // The executions are booked by the account's session thread
+    if (rateLimiter.hasParkedCloseOuts())
+    {
+      rateLimiter.drain(System.nanoTime(), closeOutSender);
+    }
+  }
+
+  @Override
+  public void onIngress(long id, long ingressNanos)
+  {
+    staleness.onUpdate(id, ingressNanos);
+  }
+
+  @Override
+  public void onDepth(long id, long[] depth, long timeMillis)
+  {
+    signals.onDepth(id, depth, timeMillis);
+  }
+
+  @Override
+  public void onOrderBook(long id, FixedPointNumber thisBid, FixedPointNumber thisAsk, FixedPointNumber thisBidQuantity, FixedPointNumber thisAskQuantity)
+  {
+    final Parameters parameters = this.parameters;
     /*
      * Always update prices and quantities
      */
 
     short updatedPos = numInstrumentsToTrade;
-    final long id = orderBookEvent.getInstrumentId();
     for (short i=0; i<numInstrumentsToTrade; i++)
     {
       if (id == instrumentId[i]) updatedPos = i;
@@ -130,56 +476,97 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
       System.err.println("ERROR - Unknown Instrument ID: " + id);
       return;
     }
+    metrics.increment(metricTicks + updatedPos);
+    final InstrumentRecord updated = updatedRecord.select(updatedPos);
 
-    // Current prices
-    FixedPointNumber thisBid = orderBookEvent.getBidPrices().get(bookLevel).getPrice();
-    FixedPointNumber thisAsk = orderBookEvent.getAskPrices().get(bookLevel).getPrice();
+    // Out of the universe, unless a position is still open on it; back in, it starts afresh
+    if (!parameters.traded[updatedPos] && (updatedPos != outstandingPos || state == GherkinState.READY_TO_OPEN))
+    {
+      updated.inUniverse(false);
+      return;
+    }
+    if (!updated.inUniverse())
+    {
+      GherkinResetInstrument(updatedPos);
+      updated.inUniverse(true);
+    }
 
     // First time only
-    if (firstBid[updatedPos] == FixedPointNumber.ZERO || firstAsk[updatedPos] == FixedPointNumber.ZERO)
+    if (updated.firstBid() == 0 || updated.firstAsk() == 0)
     {
-      firstBid[updatedPos] = thisBid;
-      firstAsk[updatedPos] = thisAsk;
-      lastBid[updatedPos] = thisBid;
-      lastAsk[updatedPos] = thisAsk;
+      updated.firstBid(thisBid.longValue());
+      updated.firstAsk(thisAsk.longValue());
+      updated.lastBid(thisBid.longValue());
+      updated.lastAsk(thisAsk.longValue());
       return;
     }
 
-    // Update direction
+    // Update direction, from the microprice if asked for and the tick came with its depth
     short thisDirection;
-    if (thisBid.longValue() > lastBid[updatedPos].longValue() && thisAsk.longValue() > lastAsk[updatedPos].longValue())
+    if (parameters.useMicroprice && signals.isReady(updatedPos))
+    {
+      long microprice = signals.getMicroprice(updatedPos);
+      if (updated.lastMicroprice() == 0 || microprice == updated.lastMicroprice())
+        thisDirection = GOING_DUNNO;
+      else
+        thisDirection = microprice > updated.lastMicroprice() ? GOING_UP : GOING_DOWN;
+      updated.lastMicroprice(microprice);
+    }
+    else if (thisBid.longValue() > updated.lastBid() && thisAsk.longValue() > updated.lastAsk())
       thisDirection = GOING_UP;
-    else if (thisBid.longValue() < lastBid[updatedPos].longValue() && thisAsk.longValue() < lastAsk[updatedPos].longValue())
+    else if (thisBid.longValue() < updated.lastBid() && thisAsk.longValue() < updated.lastAsk())
       thisDirection = GOING_DOWN;
     else
       thisDirection = GOING_DUNNO;
 
+    // After a gap in the feed the moves in between are unknown, the trend starts over
+    if (staleness.isAfterGap(updatedPos))
+    {
+      System.out.println("Feed gap on " + instrumentDesc[updatedPos] + ", trend count restarted: " + staleness.describe());
+      metrics.increment(metricStaleSkips);
+      thisDirection = GOING_DUNNO;
+    }
+
     // Change of direction, reset initial value
-    if (thisDirection == GOING_DUNNO || thisDirection != lastDirection[updatedPos])
+    if (thisDirection == GOING_DUNNO || thisDirection != updated.lastDirection())
     {
-      lastDirection[updatedPos] = thisDirection;
-      lastDirectionCount[updatedPos] = 0;
-      firstBid[updatedPos] = thisBid;
-      firstAsk[updatedPos] = thisAsk;
+      updated.lastDirection(thisDirection);
+      updated.lastDirectionCount(0);
+      updated.firstBid(thisBid.longValue());
+      updated.firstAsk(thisAsk.longValue());
     }
-    else lastDirectionCount[updatedPos]++;
+    else updated.lastDirectionCount(updated.lastDirectionCount() + 1);
 
     // Update prices and quantities
-    lastBid[updatedPos] = thisBid;
-    lastAsk[updatedPos] = thisAsk;
-    lastBidQuantity[updatedPos] = orderBookEvent.getBidPrices().get(bookLevel).getQuantity();
-    lastAskQuantity[updatedPos] = orderBookEvent.getAskPrices().get(bookLevel).getQuantity();
+    updated.lastBid(thisBid.longValue());
+    updated.lastAsk(thisAsk.longValue());
+    updated.lastBidQuantity(thisBidQuantity.longValue());
+    updated.lastAskQuantity(thisAskQuantity.longValue());
+
+    // Keep track of how the instruments move together, and of their trends
+    correlation.onTick(updatedPos, (thisBid.longValue() + thisAsk.longValue()) / 2);
+    metrics.set(metricFollower + updatedPos, correlation.likelyFollower(updatedPos));
+    metrics.set(metricFollowerCorrelation + updatedPos, Math.round(correlation.likelyFollowerCorrelation(updatedPos) * FixedPointMath.scaleFactor));
+    if (staleness.isUpdated(updatedPos))
+    {
+      trends.onTick(updatedPos, (thisBid.longValue() + thisAsk.longValue()) / 2, staleness.getLastUpdateNanos(updatedPos));
+    }
+    else
+    {
+      trends.onTick(updatedPos, (thisBid.longValue() + thisAsk.longValue()) / 2);  // No ingress timestamp, JIT warm-up
+    }
 
     // Also update the maximum and minumum spread to use the average value in order to avoid false triggers
-    long currentSpread = lastAsk[updatedPos].longValue() - lastBid[updatedPos].longValue();
-    lastSpread[updatedPos] = FixedPointNumber.valueOf(currentSpread);
-    if (currentSpread > maxSpread[updatedPos].longValue())
+    long currentSpread = updated.lastAsk() - updated.lastBid();
+    metrics.set(metricSpread + updatedPos, currentSpread);
+    updated.lastSpread(currentSpread);
+    if (currentSpread > updated.maxSpread())
     {
-      maxSpread[updatedPos] = FixedPointNumber.valueOf(currentSpread);
+      updated.maxSpread(currentSpread);
     }
-    if (currentSpread < minSpread[updatedPos].longValue())
+    if (currentSpread < updated.minSpread())
     {
-      minSpread[updatedPos] = FixedPointNumber.valueOf(currentSpread);
+      updated.minSpread(currentSpread);
     }
 
     /*
@@ -193,20 +580,38 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
          * Apply the trading idea
          */
 
-        long multipleSpreadToOpen = spreadMultiplierToOpen * (minSpread[updatedPos].longValue() + maxSpread[updatedPos].longValue());
+        long multipleSpreadToOpen = parameters.spreadMultiplierToOpen * (updated.minSpread() + updated.maxSpread());
         this.outstandingQuantity = FixedPointNumber.ZERO;
 
+        // Enough consecutive moves beyond the spread multiple, or a straight enough regression line moving by more than it
+        boolean goingUp;
+        boolean goingDown;
+        if (parameters.useRegression)
+        {
+          final double fittedMove = trends.getFittedMove(updatedPos, trendLookback);
+          final boolean straight = trends.isReady(updatedPos, trendLookback) && trends.getRSquared(updatedPos, trendLookback) >= parameters.trendMinRSquared;
+          goingUp = straight && fittedMove > multipleSpreadToOpen && trends.getSlope(updatedPos, trendConfirmation) > 0;
+          goingDown = straight && fittedMove < -multipleSpreadToOpen && trends.getSlope(updatedPos, trendConfirmation) < 0;
+        }
+        else
+        {
+          goingUp = updated.lastDirection() == GOING_UP &&
+                    updated.lastDirectionCount() >= parameters.consecutiveThreshold &&
+                    updated.lastBid() > updated.firstAsk() + multipleSpreadToOpen;
+          goingDown = updated.lastDirection() == GOING_DOWN &&
+                      updated.lastDirectionCount() >= parameters.consecutiveThreshold &&
+                      updated.lastAsk() < updated.firstBid() - multipleSpreadToOpen;
+        }
+
         /*
          * Are we going up?
          */
 
-        if (lastDirection[updatedPos] == GOING_UP &&
-            lastDirectionCount[updatedPos] >= consecutiveThreshold &&
-            lastBid[updatedPos].longValue() > firstAsk[updatedPos].longValue() + multipleSpreadToOpen)
+        if (goingUp)
         {
           this.outstandingPos = updatedPos;
-          this.outstandingQuantity = FixedPointNumber.valueOf(orderQuantity);  // Positive
-          System.out.println(instrumentDesc[updatedPos] + " @ " + thisBid + "/" + thisAsk + " trending up, open with buy around " + thisAsk);
+          this.outstandingQuantity = FixedPointNumber.valueOf(parameters.orderQuantity);  // Positive
+          System.out.println(instrumentDesc[updatedPos] + " @ " + thisBid + "/" + thisAsk + " trending up, open with buy around " + thisAsk + ", likely followed by " + likelyFollower(updatedPos));
         }
         else
 
@@ -214,13 +619,11 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
          * Are we going down?
          */
 
-        if (lastDirection[updatedPos] == GOING_DOWN &&
-            lastDirectionCount[updatedPos] >= consecutiveThreshold &&
-            lastAsk[updatedPos].longValue() < firstBid[updatedPos].longValue() - multipleSpreadToOpen)
+        if (goingDown)
         {
           this.outstandingPos = updatedPos;
-          this.outstandingQuantity = FixedPointNumber.valueOf(orderQuantity).negate();  // Negative
-          System.out.println(instrumentDesc[updatedPos] + " @ " + thisBid + "/" + thisAsk + " trending down, open with sell around " + thisBid);
+          this.outstandingQuantity = FixedPointNumber.valueOf(parameters.orderQuantity).negate();  // Negative
+          System.out.println(instrumentDesc[updatedPos] + " @ " + thisBid + "/" + thisAsk + " trending down, open with sell around " + thisBid + ", likely followed by " + likelyFollower(updatedPos));
         }
         else this.outstandingQuantity = FixedPointNumber.ZERO;
 
@@ -228,37 +631,45 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
          * Place order to open position
          */
 
-        if (this.outstandingQuantity != FixedPointNumber.ZERO)
+        if (this.outstandingQuantity.longValue() != 0 && !acquirePosition())
+        {
+          System.out.println("Not opening " + instrumentDesc[this.outstandingPos] + ", another shard holds the position");
+        }
+        else if (this.outstandingQuantity.longValue() != 0)
         {
-          MarketOrderSpecification order = new MarketOrderSpecification(instrumentId[this.outstandingPos], this.outstandingQuantity, TimeInForce.FILL_OR_KILL);
           System.out.println("Try to place open order...");
-          session.placeMarketOrder(order, new GherkinOrderCallback()
+          final boolean sent = placeMarketOrder(instrumentId[this.outstandingPos], this.outstandingQuantity, TimeInForce.FILL_OR_KILL, new GherkinOrderCallback()
           {
             @Override
             public void onSuccess(long instructionId)
             {
               System.out.println("Open Order placed successfully!");
-              state = GherkinState.WAIT_FOR_OPEN;
+              setState(GherkinState.WAIT_FOR_OPEN);
             }
             @Override
             public void onFailure(FailureResponse failureResponse)
             {
               System.err.println("ERROR - Open Order Failure: " + failureResponse);
+              metrics.increment(metricOrdersRejected);
               throw new RuntimeException("Runtime Exception: Open Order Failure");
             }
           });
+          if (!sent)
+          {
+            releasePosition();  // Throttled, another shard may open until we decide again
+          }
         }
 
         // This is entirely optional, explain why we didn't open
-        else if (lastDirectionCount[updatedPos] >= consecutiveThreshold)
+        else if (!parameters.useRegression && updated.lastDirectionCount() >= parameters.consecutiveThreshold && diagnostics.admit(diagnosticNotBetting, updatedPos))
         {
-          if (lastDirection[updatedPos] == GOING_UP)
+          if (updated.lastDirection() == GOING_UP)
           {
-            System.out.println("Not betting on " + instrumentDesc[updatedPos] + " @ " + lastBid[updatedPos] + "/" + lastAsk[updatedPos] + " despite trending up " + lastDirectionCount[updatedPos] + " times because " + lastBid[updatedPos] + " is not > " + FixedPointNumber.valueOf(firstAsk[updatedPos].longValue() + multipleSpreadToOpen));
+            System.out.println("Not betting on " + instrumentDesc[updatedPos] + " @ " + FixedPointNumber.valueOf(updated.lastBid()) + "/" + FixedPointNumber.valueOf(updated.lastAsk()) + " despite trending up " + updated.lastDirectionCount() + " times because " + FixedPointNumber.valueOf(updated.lastBid()) + " is not > " + FixedPointNumber.valueOf(updated.firstAsk() + multipleSpreadToOpen));
           }
-          else if (lastDirection[updatedPos] == GOING_DOWN)
+          else if (updated.lastDirection() == GOING_DOWN)
           {
-            System.out.println("Not betting on " + instrumentDesc[updatedPos] + " @ " + lastBid[updatedPos] + "/" + lastAsk[updatedPos] + " despite trending down " + lastDirectionCount[updatedPos] + " times because " + lastAsk[updatedPos] + " is not < " + FixedPointNumber.valueOf(firstBid[updatedPos].longValue() - multipleSpreadToOpen));
+            System.out.println("Not betting on " + instrumentDesc[updatedPos] + " @ " + FixedPointNumber.valueOf(updated.lastBid()) + "/" + FixedPointNumber.valueOf(updated.lastAsk()) + " despite trending down " + updated.lastDirectionCount() + " times because " + FixedPointNumber.valueOf(updated.lastAsk()) + " is not < " + FixedPointNumber.valueOf(updated.firstBid() - multipleSpreadToOpen));
           }
         }
         // end of optional part
@@ -267,7 +678,10 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
       }
       case WAIT_FOR_OPEN:
       {
-        System.out.println("Waiting for Open Order to be Processed");
+        if (diagnostics.admit(diagnosticWaitForOpen, updatedPos))
+        {
+          System.out.println("Waiting for Open Order to be Processed");
+        }
         break;
       }
       case READY_TO_CLOSE:
@@ -278,33 +692,33 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
           if (this.outstandingQuantity.longValue() > 0)
           {
             // Buy to sell, best case
-            if (lastBid[this.outstandingPos].longValue() > this.closingPriceMax.longValue())
+            if (updated.lastBid() > this.closingPriceMax.longValue())
             {
               closeOrder = true;
-              System.out.println("Close " + instrumentDesc[this.outstandingPos] + " with sell @ " + lastBid[this.outstandingPos] + " (BEST)");
+              System.out.println("Close " + instrumentDesc[this.outstandingPos] + " with sell @ " + FixedPointNumber.valueOf(updated.lastBid()) + " (BEST)");
             }
             else
             // Buy to sell, worst case
-            if (lastBid[this.outstandingPos].longValue() < this.closingPriceMin.longValue())
+            if (updated.lastBid() < this.closingPriceMin.longValue())
             {
               closeOrder = true;
-              System.out.println("Close " + instrumentDesc[this.outstandingPos] + " with sell @ " + lastBid[this.outstandingPos] + " (WORST)");
+              System.out.println("Close " + instrumentDesc[this.outstandingPos] + " with sell @ " + FixedPointNumber.valueOf(updated.lastBid()) + " (WORST)");
             }
           }
           else if (this.outstandingQuantity.longValue() < 0)
           {
             // Sell to buy, best case
-            if (lastAsk[this.outstandingPos].longValue() < this.closingPriceMin.longValue())
+            if (updated.lastAsk() < this.closingPriceMin.longValue())
             {
               closeOrder = true;
-              System.out.println("Close " + instrumentDesc[this.outstandingPos] + " with buy @ " + lastAsk[this.outstandingPos] + " (BEST)");
+              System.out.println("Close " + instrumentDesc[this.outstandingPos] + " with buy @ " + FixedPointNumber.valueOf(updated.lastAsk()) + " (BEST)");
             }
             else
             // Sell to buy, worst case
-            if (lastAsk[this.outstandingPos].longValue() > this.closingPriceMax.longValue())
+            if (updated.lastAsk() > this.closingPriceMax.longValue())
             {
               closeOrder = true;
-              System.out.println("Close " + instrumentDesc[this.outstandingPos] + " with buy @ " + lastAsk[this.outstandingPos] + " (WORST)");
+              System.out.println("Close " + instrumentDesc[this.outstandingPos] + " with buy @ " + FixedPointNumber.valueOf(updated.lastAsk()) + " (WORST)");
             }
           }
           else
@@ -315,27 +729,26 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
           if (closeOrder)
           {
             // Place closing order
-            MarketOrderSpecification order = new MarketOrderSpecification(instrumentId[this.outstandingPos], this.outstandingQuantity.negate(), TimeInForce.FILL_OR_KILL);
-            System.out.println("Place Close Order: " + order);
-            session.placeMarketOrder(order, new GherkinOrderCallback()
+            System.out.println("Place Close Order: " + this.outstandingQuantity.negate() + " x " + instrumentDesc[this.outstandingPos]);
+            placeMarketOrder(instrumentId[this.outstandingPos], this.outstandingQuantity.negate(), TimeInForce.FILL_OR_KILL, new GherkinOrderCallback()
             {
               @Override
               public void onSuccess(long instructionId)
               {
                 System.out.println("Close Order Success: " + instructionId);
-                state = GherkinState.WAIT_FOR_CLOSE;
+                setState(GherkinState.WAIT_FOR_CLOSE);
               }
             });
           }
-          else
+          else if (diagnostics.admit(diagnosticNotClosing, this.outstandingPos))
           {
             if (this.outstandingQuantity.longValue() > 0)
             {
-              System.out.println("Not closing now with sell, waiting for " + instrumentDesc[this.outstandingPos] + " with bid now @ " + lastBid[updatedPos] + " to exit range WORST/BEST " + this.closingPriceMin + "/" + this.closingPriceMax);
+              System.out.println("Not closing now with sell, waiting for " + instrumentDesc[this.outstandingPos] + " with bid now @ " + FixedPointNumber.valueOf(updated.lastBid()) + " to exit range WORST/BEST " + this.closingPriceMin + "/" + this.closingPriceMax);
             }
             else if (this.outstandingQuantity.longValue() < 0)
             {
-              System.out.println("Not closing now with buy, waiting for " + instrumentDesc[this.outstandingPos] + " with ask now @ " + lastAsk[updatedPos] + " to exit range BEST/WORST " + this.closingPriceMin + "/" + this.closingPriceMax);
+              System.out.println("Not closing now with buy, waiting for " + instrumentDesc[this.outstandingPos] + " with ask now @ " + FixedPointNumber.valueOf(updated.lastAsk()) + " to exit range BEST/WORST " + this.closingPriceMin + "/" + this.closingPriceMax);
             }
           }
         }
@@ -343,7 +756,10 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
       }
       case WAIT_FOR_CLOSE:
       {
-        System.out.println("Waiting for Close Order to be Processed");
+        if (diagnostics.admit(diagnosticWaitForClose, updatedPos))
+        {
+          System.out.println("Waiting for Close Order to be Processed");
+        }
         break;
       }
       default:
@@ -358,6 +774,7 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
   {
     final long instructionId = instructionRejected.getInstructionId();
     System.err.println("ERROR - Instruction Rejected: " + instructionId);
+    metrics.increment(metricOrdersRejected);
   }
 
   /*
@@ -372,34 +789,60 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
   @Override
   public void notify(Execution execution)
   {
+    final long ingressNanos = System.nanoTime();
     System.out.println("Execution Notify: " + execution);
+    metrics.increment(metricExecutions);
+    if (eventLog != null)
+    {
+      eventLog.execution(execution.getOrder().getInstrumentId(), execution.getPrice().longValue(), execution.getOrder().getFilledQuantity().longValue());
+    }
+    // The quantity of this execution alone, with the sign of the order
+    final long executedQuantity = Math.abs(execution.getQuantity().longValue()) * Long.signum(execution.getOrder().getQuantity().longValue());
+    pnl.onExecution(execution.getOrder().getInstrumentId(), execution.getPrice().longValue(), executedQuantity);
+    quality.onExecution(execution.getOrder().getInstrumentId(), execution.getOrder().getInstructionId(), execution.getPrice().longValue(), executedQuantity, ingressNanos);
+    if (shards != null)
+    {
+      shards.onExecution(execution.getOrder().getInstrumentId(), execution.getPrice().longValue(), execution.getOrder().getFilledQuantity().longValue());
+    }
+    else
+    {
+      onExecution(execution.getPrice(), execution.getOrder().getFilledQuantity());
+    }
+    GherkinEvents.execution(execution.getPrice().longValue(), execution.getOrder().getFilledQuantity().longValue(), state);
+  }
+
+  @Override
+  public void onExecution(FixedPointNumber executionPrice, FixedPointNumber filledQuantity)
+  {
     switch (state)
     {
       case WAIT_FOR_OPEN:
       {
-        this.outstandingQuantity = execution.getOrder().getFilledQuantity();
-        long multipleSpreadToClose = spreadMultiplierToClose * (minSpread[this.outstandingPos].longValue() + maxSpread[this.outstandingPos].longValue());
+        this.outstandingQuantity = filledQuantity;
+        final InstrumentRecord outstanding = outstandingRecord.select(this.outstandingPos);
+        long multipleSpreadToClose = parameters.spreadMultiplierToClose * (outstanding.minSpread() + outstanding.maxSpread());
         if (this.outstandingQuantity.longValue() > 0)
         {
-          this.closingPriceMax = FixedPointNumber.valueOf(execution.getPrice().longValue() + multipleSpreadToClose);
-          this.closingPriceMin = FixedPointNumber.valueOf(lastBid[this.outstandingPos].longValue() - multipleSpreadToClose);
+          this.closingPriceMax = FixedPointNumber.valueOf(executionPrice.longValue() + multipleSpreadToClose);
+          this.closingPriceMin = FixedPointNumber.valueOf(outstanding.lastBid() - multipleSpreadToClose);
         }
         else
         {
-          this.closingPriceMax = FixedPointNumber.valueOf(lastAsk[this.outstandingPos].longValue() + multipleSpreadToClose);
-          this.closingPriceMin = FixedPointNumber.valueOf(execution.getPrice().longValue() - multipleSpreadToClose);
+          this.closingPriceMax = FixedPointNumber.valueOf(outstanding.lastAsk() + multipleSpreadToClose);
+          this.closingPriceMin = FixedPointNumber.valueOf(executionPrice.longValue() - multipleSpreadToClose);
         }
         System.out.println("Ready to close outside range " + this.closingPriceMin + "/" + this.closingPriceMax);
-        state = GherkinState.READY_TO_CLOSE;
+        setState(GherkinState.READY_TO_CLOSE);
         break;
       }
       case WAIT_FOR_CLOSE:
       {
-        this.outstandingQuantity = FixedPointNumber.valueOf(this.outstandingQuantity.longValue() + execution.getOrder().getFilledQuantity().longValue());
+        this.outstandingQuantity = FixedPointNumber.valueOf(this.outstandingQuantity.longValue() + filledQuantity.longValue());
         if (this.outstandingQuantity.longValue() == 0)
         {
           System.out.println("Ready to open again");
-          state = GherkinState.READY_TO_OPEN;
+          releasePosition();
+          setState(GherkinState.READY_TO_OPEN);
         }
         else
         {
@@ -418,6 +861,7 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
   public void notifyStreamFailure(Exception e)
   {
     System.err.println("ERROR - Stream Exception: " + e);
+    GherkinEvents.reconnect("stream failure");
     GherkinStop();
     GherkinStart();
   }
@@ -426,6 +870,7 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
   public void notifySessionDisconnected()
   {
     System.err.println("ERROR - Session Disconnected, No Heartbeat");
+    GherkinEvents.reconnect("session disconnected");
     GherkinStop();
     GherkinStart();
   }
@@ -433,59 +878,164 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
   @Override
   public void notify(long accountId, String token)
   {
-    System.out.printf("Heartbeat Received: %d, %s%n", accountId, token);
+    housekeeping.onHeartbeat(token);
+    metrics.set(metricHeartbeatRoundTripMicros, housekeeping.getLastRoundTripNanos() / 1000);
+    System.out.printf("Heartbeat Received: %d, %s, %d us round trip%n", accountId, token, housekeeping.getLastRoundTripNanos() / 1000);
   }
 
   @Override
   public void notify(final PositionEvent position)
   {
     System.out.println("Notify Position: " + position);
+    universe.onPosition(universeAccount, position.getInstrumentId(), position.getOpenQuantity().longValue() != 0);
+    if (eventLog != null)
+    {
+      eventLog.position(position.getInstrumentId(), position.getOpenQuantity().longValue());
+    }
+    if (shards != null)
+    {
+      for (short i=0; i<numInstrumentsToTrade; i++)
+      {
+        if (instrumentId[i] == position.getInstrumentId()) metrics.set(metricPosition + i, position.getOpenQuantity().longValue());
+      }
+      shards.onPosition(position.getInstrumentId(), position.getOpenQuantity().longValue());
+    }
+    else
+    {
+      onPosition(position.getInstrumentId(), position.getOpenQuantity());
+    }
+  }
 
-    if (position.getOpenQuantity().longValue() != 0 && state == GherkinState.READY_TO_OPEN)
+  @Override
+  public void onPosition(long positionInstrumentId, FixedPointNumber openQuantity)
+  {
+    for (short i=0; i<numInstrumentsToTrade; i++)
     {
-      System.out.printf("WARNING - Unexpected Open Position, Closing %s x %d\n", position.getOpenQuantity(), position.getInstrumentId());
-      MarketOrderSpecification order = new MarketOrderSpecification(position.getInstrumentId(), position.getOpenQuantity().negate(), TimeInForce.IMMEDIATE_OR_CANCEL);
-      session.placeMarketOrder(order, new GherkinOrderCallback()
+      if (instrumentId[i] == positionInstrumentId) metrics.set(metricPosition + i, openQuantity.longValue());
+    }
+    if (openQuantity.longValue() != 0 && state == GherkinState.READY_TO_OPEN)
+    {
+      System.out.printf("WARNING - Unexpected Open Position, Closing %s x %d\n", openQuantity, positionInstrumentId);
+      placeCloseOutOrder(positionInstrumentId, openQuantity.negate(), new GherkinOrderCallback()
       {
         @Override
         public void onSuccess(long instructionId)
         {
           System.out.println("Close Position Success: " + instructionId);
+          rateLimiter.onCloseOutAcknowledged(positionInstrumentId);
+        }
+
+        @Override
+        public void onFailure(FailureResponse failureResponse)
+        {
+          rateLimiter.onCloseOutFailed(positionInstrumentId);
+          super.onFailure(failureResponse);
         }
       });
     }
   }
 
+  @Override
+  public Enum<?> getState()
+  {
+    return state;
+  }
+
+  @Override
+  public long[] getInstrumentIds()
+  {
+    return instrumentId.clone();
+  }
+
+  @Override
+  public String[] getInstrumentDescs()
+  {
+    return instrumentDesc.clone();
+  }
+
+  @Override
+  public MetricsRegistry getMetrics()
+  {
+    return metrics;
+  }
+
+  @Override
+  public int getBookLevel()
+  {
+    return parameters.bookLevel;
+  }
+
+  @Override
+  public void reset()
+  {
+    GherkinReset();
+  }
+
+  @Override
+  public void setOrderStub(OrderStub orderStub)
+  {
+    this.orderStub = orderStub;
+  }
+
+  // Offline instance driven by LoadGenerator: the strategy on -Dgherkin.shards threads, as when live
+  void startShards()
+  {
+    if (shards == null) GherkinStartShards();
+  }
+
+  // Offline instance measured by AllocationHarness: what the live session writes to as well, none of it started
+  void setLiveOutputs(EventLog eventLog, MonitorBoard monitor)
+  {
+    this.eventLog = eventLog;
+    this.monitor = monitor;
+    this.quality = new ExecutionQuality(instrumentId, instrumentDesc, eventLog);
+  }
+
+  @Override
+  public void setParameters(Properties parameters)
+  {
+    this.parameters = new Parameters(parameters);
+  }
+
+  @Override
+  public String describeState()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("state=").append(state).append(" outstanding=").append(outstandingQuantity).append(" x ").append(instrumentDesc[outstandingPos])
+      .append(" closing=").append(closingPriceMin).append("/").append(closingPriceMax);
+    final InstrumentRecord record = new InstrumentRecord(store);  // Not the ones of the event threads
+    for (short i=0; i<numInstrumentsToTrade; i++)
+    {
+      record.select(i);
+      sb.append("\n  ").append(instrumentDesc[i]).append(" ").append(FixedPointNumber.valueOf(record.lastBid())).append("/").append(FixedPointNumber.valueOf(record.lastAsk()))
+        .append(" first=").append(FixedPointNumber.valueOf(record.firstBid())).append("/").append(FixedPointNumber.valueOf(record.firstAsk()))
+        .append(" direction=").append(record.lastDirection()).append(" x ").append(record.lastDirectionCount())
+        .append(" spread=").append(FixedPointNumber.valueOf(record.minSpread())).append("/").append(FixedPointNumber.valueOf(record.maxSpread()))
+        .append(" ").append(signals.describe(i))
+        .append(" ").append(trends.describe(i));
+    }
+    return sb.toString();
+  }
+
+  // One heartbeat request, run periodically by the housekeeping thread
   @Override
   public void run()
   {
-    try
+    session.requestHeartbeat(new HeartbeatRequest(housekeeping.nextHeartbeatToken()), new HeartbeatCallback()
     {
-      while (!Thread.currentThread().isInterrupted())
+      @Override
+      public void onSuccess(String token)
       {
-        Thread.sleep(300000L);  // 5 min => msec
-        session.requestHeartbeat(new HeartbeatRequest("token"), new HeartbeatCallback()
-        {
-          @Override
-          public void onSuccess(String token)
-          {
-            System.out.println("Heartbeat Requested: " + token);
-          }
-            
-          @Override
-          public void onFailure(FailureResponse failureResponse)
-          {
-            throw new RuntimeException("Runtime Exception: Heartbeat Request Failure");
-          }
-        });
+        System.out.println("Heartbeat Requested: " + token);
       }
-    }
-    catch (Exception e)
-    {
-      System.err.println("ERROR - Runnable Interrupted Exception: " + e);
-      GherkinStop();
-      GherkinStart();
-    }
+
+      @Override
+      public void onFailure(FailureResponse failureResponse)
+      {
+        housekeeping.onHeartbeatFailed();
+        System.err.println("ERROR - Heartbeat Request Failure: " + failureResponse + ", " + housekeeping.getHeartbeatsFailed() + " so far");
+      }
+    });
   }
 
   /*
@@ -494,28 +1044,84 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
 
   private void GherkinStart()
   {
-    // Reset variables to their initial values
-    state = GherkinState.READY_TO_OPEN;
-    for (short i=0; i<numInstrumentsToTrade; i++)
+    // An account trading off another session's order books only has its orders, executions and positions here
+    final boolean marketData = accountName == null;
+
+    // Compile the hot path before the first real tick, only once per process
+    if (jitWarmupEnabled && !jitWarmedUp && marketData)
+    {
+      GherkinJitWarmup();
+    }
+
+    // Instrument state left by the previous process, once the warm-up is done with the in-memory one
+    if (store.getPath() == null && !stateFile.isEmpty() && shardThreads == 0 && marketData)
+    {
+      GherkinMapState();
+    }
+
+    // Everything from here on can be replayed offline, unless the strategy runs on several threads
+    if (eventLog == null && !eventLogFile.isEmpty() && shardThreads == 0 && marketData)
+    {
+      GherkinOpenEventLog();
+    }
+    if (eventLog != null)
+    {
+      eventLog.reset();
+    }
+
+    // Fills against decisions, across reconnects like the event log it writes to
+    if (quality == null)
+    {
+      GherkinStartExecutionQuality(marketData);
+    }
+
+    // Tunables from the parameter file, before anything starts with them; the accounts get them from us
+    if (parameterWatcher == null && !parametersFile.isEmpty() && marketData)
+    {
+      GherkinLoadParameters();
+    }
+
+    // The monitor window stays open across reconnects, before the shards that publish to it
+    if (monitor == null && monitorEnabled && marketData)
     {
-      firstBid[i] = FixedPointNumber.ZERO;
-      firstAsk[i] = FixedPointNumber.ZERO;
+      GherkinOpenMonitor();
+    }
 
-      lastBid[i] = FixedPointNumber.ZERO;
-      lastAsk[i] = FixedPointNumber.ZERO;
+    // Shadow variants carry on across reconnects, they only miss the ticks in between
+    if (shadow == null && !shadowVariantsFile.isEmpty() && marketData)
+    {
+      GherkinStartShadow();
+    }
 
-      lastDirection[i] = GOING_DUNNO;
-      lastDirectionCount[i] = 0;
+    // Shards carry on too, reset below like the strategy itself; an account always runs on its own
+    if (shards == null && (shardThreads > 0 || !marketData))
+    {
+      GherkinStartShards();
+    }
 
-      lastBidQuantity[i] = FixedPointNumber.ZERO;
-      lastAskQuantity[i] = FixedPointNumber.ZERO;
+    // Accounts carry on as well, each logged in to a session of its own
+    if (accounts == null && !accountsFile.isEmpty() && marketData)
+    {
+      GherkinStartAccounts();
+    }
 
-      maxSpread[i] = FixedPointNumber.ZERO;
-      minSpread[i] = FixedPointNumber.ONE;
+    // Then reloaded whenever the file changes, without restarting the session or losing any state
+    if (parameterWatcher == null && !parametersFile.isEmpty() && marketData)
+    {
+      GherkinWatchParameters();
     }
 
+    // The callbacks of close-outs sent by the previous session will never come
+    rateLimiter.reset(System.nanoTime());
+
+    // Reset variables to their initial values
+    GherkinReset();
+
     // Add listeners and callbacks for all the events I am interested in
-    session.registerOrderBookEventListener(this);
+    if (marketData)
+    {
+      session.registerOrderBookEventListener(this);
+    }
     session.registerInstructionRejectedEventListener(this);
     session.registerOrderEventListener(this);
     session.registerExecutionEventListener(this);
@@ -523,9 +1129,17 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
     session.registerSessionDisconnectedListener(this);
     session.registerPositionEventListener(this);
     session.subscribe(new OrderSubscriptionRequest(), new GherkinSubscriptionCallback());
-    for(int i = 0; i < numInstrumentsToTrade; i++)
+    // Order books of the instrument universe, then its changes every second
+    if (marketData)
+    {
+      universe.select(parameters.traded);
+      universe.onSessionStart();
+      universe.flush(this::GherkinRequestOrderBook);
+    }
+    if (!universeFlushing && marketData)
     {
-      session.subscribe(new OrderBookSubscriptionRequest(instrumentId[i]), new GherkinSubscriptionCallback());
+      universeFlushing = true;
+      housekeeping.schedule("universe", this::GherkinFlushUniverse, universeFlushMillis);
     }
     session.registerHeartbeatListener(this);
     session.subscribe(new HeartbeatSubscriptionRequest(), new Callback()
@@ -542,17 +1156,746 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
         throw new RuntimeException("Runtime Exception: Heartbeat Subscription Failure");
       }
     });
-    new Thread(this).start();
-
+    housekeeping.startHeartbeat(this, heartbeatPeriodMillis);
+    if (marketData && metrics.expose(metricsPort))
+    {
+      housekeeping.schedule("metrics", this::GherkinMetricsFlush, metricsFlushMillis);
+    }
+    if (!diagnosticsFlushing && marketData)
+    {
+      diagnosticsFlushing = true;
+      housekeeping.schedule("diagnostics", () -> diagnostics.flush(line -> System.out.println("Suppressed: " + line)), diagnosticsPeriodMillis);
+    }
+
     // Start the event processing loop, this method will block until the session is stopped.
     session.start();
   }
 
+  private void GherkinReset()
+  {
+    setState(GherkinState.READY_TO_OPEN);
+    for (short i=0; i<numInstrumentsToTrade; i++)
+    {
+      if (restoring)
+      {
+        GherkinRestoreInstrument(i);
+      }
+      else
+      {
+        GherkinResetInstrument(i);
+      }
+      updatedRecord.select(i).inUniverse(true);
+    }
+    restoring = false;
+    correlation.reset();
+    releasePosition();
+    if (shards != null)
+    {
+      shards.reset();
+    }
+    signals.reset();
+  }
+
+  private void GherkinResetInstrument(short i)
+  {
+    InstrumentRecord.clear(store, i);
+    trends.reset(i);
+  }
+
+  // Prices and spreads as the previous process left them, the moves since are unknown: the trend starts over, as after a feed gap
+  private void GherkinRestoreInstrument(short i)
+  {
+    final InstrumentRecord restored = updatedRecord.select(i);
+    restored.lastDirection(GOING_DUNNO);
+    restored.lastDirectionCount(0);
+    restored.firstBid(restored.lastBid());
+    restored.firstAsk(restored.lastAsk());
+    restored.lastMicroprice(0);
+    trends.reset(i);
+  }
+
+  private void GherkinJitWarmup()
+  {
+    System.out.println("JIT Warm-up Start");
+    GherkinReset();
+    JitWarmup jitWarmup = new JitWarmup(this, new SyntheticMarket(instrumentId, SyntheticMarket.defaultMids(numInstrumentsToTrade), System.nanoTime()));
+    try
+    {
+      jitWarmup.run();
+    }
+    finally
+    {
+      System.out.printf("JIT Warm-up Complete: %d ticks in %d rounds, %d orders, %d ms compiling%n",
+                        jitWarmup.getTicks(), jitWarmup.getRounds(), jitWarmup.getOrdersPlaced(), jitWarmup.getCompilationMillis());
+      System.out.printf("JIT Warm-up Latency: before %d ns mean / %d ns p99, after %d ns mean / %d ns p99%n",
+                        jitWarmup.getFirstRoundMeanNanos(), jitWarmup.getFirstRoundP99Nanos(), jitWarmup.getLastRoundMeanNanos(), jitWarmup.getLastRoundP99Nanos());
+      jitWarmedUp = true;
+      metrics.resetCounters();  // Synthetic ticks and orders are not part of the session
+      diagnostics.reset();
+    }
+  }
+
+  private void GherkinMapState()
+  {
+    Path path = Paths.get(stateFile);
+    try
+    {
+      store = InstrumentStore.map(path, InstrumentRecord.LAYOUT, InstrumentRecord.RECORD_SIZE, numInstrumentsToTrade);
+      updatedRecord = new InstrumentRecord(store);
+      outstandingRecord = new InstrumentRecord(store);
+      decisionRecord = new InstrumentRecord(store);
+      restoring = store.isRestored();
+      System.out.println("State File: " + path + (restoring ? ", restored" : ", new"));
+    }
+    catch (IOException e)
+    {
+      System.err.println("ERROR - State File Failure: " + path + ", " + e);
+    }
+  }
+
+  private void GherkinOpenMonitor()
+  {
+    MonitorBoard board = new MonitorBoard(instrumentId);
+    if (!GherkinMonitor.open("Gherkin Peeler v2 - Trending Candlesticks", instrumentId, instrumentDesc, GherkinState.values(), board, pnl, monitorRefreshMillis))
+    {
+      System.err.println("ERROR - Monitor Failure: no display");
+      return;
+    }
+    monitor = board;
+    System.out.println("Monitor Started");
+  }
+
+  private void GherkinOpenEventLog()
+  {
+    Path path = Paths.get(String.format(eventLogFile, System.currentTimeMillis()));
+    try
+    {
+      eventLog = EventLog.open(path);
+      System.out.println("Event Log: " + path);
+    }
+    catch (IOException e)
+    {
+      System.err.println("ERROR - Event Log Failure: " + path + ", " + e);
+    }
+  }
+
+  private void GherkinStartShadow()
+  {
+    try
+    {
+      shadow = ShadowEngine.load(Paths.get(shadowVariantsFile), GherkinPeeler::new, instrumentId, instrumentDesc, accountCurrency);
+      shadow.setBaselineParameters(tunedParameters);
+      shadow.start();
+      shadow.includeMetrics(metrics);
+      housekeeping.schedule("shadow", () -> System.out.println("Shadow Variants: " + shadow.report()), metricsFlushMillis);
+      System.out.println("Shadow Variants Started: " + shadow.getVariants() + " variants on " + shadow.getThreads() + " threads");
+    }
+    catch (IOException | IllegalArgumentException e)
+    {
+      System.err.println("ERROR - Shadow Variants Failure: " + shadowVariantsFile + ", " + e);
+      shadow = null;
+    }
+  }
+
+  private void GherkinStartExecutionQuality(boolean marketData)
+  {
+    quality = new ExecutionQuality(instrumentId, instrumentDesc, eventLog);
+    if (marketData)
+    {
+      housekeeping.schedule("execution_quality", () -> System.out.println("Execution quality: " + quality.report()), metricsFlushMillis);
+    }
+  }
+
+  private void GherkinStartShards()
+  {
+    // Each instrument is a strategy of its own, its id is its shard key
+    shards = new ShardPool(() ->
+    {
+      GherkinPeeler shard = new GherkinPeeler(tunedParameters);
+      shard.diagnostics = diagnostics;  // Summarized with the rest
+      shard.metrics = metrics;          // Same registrations, hence the same ids
+      shard.runsOnShard = true;
+      shard.monitor = monitor;
+      shard.quality = quality;
+      return shard;
+    }, instrumentId, instrumentDesc, instrumentId, Math.max(1, shardThreads), new ShardOrders());
+    shards.start();
+    if (accountName != null)
+    {
+      accountTrading = true;  // Reported with the other accounts from now on
+      System.out.println("Account Started: " + accountName + ", " + shards.getThreads() + " threads");
+      return;
+    }
+    // Each worker spins while idle: without a core of its own besides the market data thread's, it takes theirs
+    final int cores = Runtime.getRuntime().availableProcessors();
+    if (shards.getThreads() >= cores)
+    {
+      System.out.println("WARNING - " + shards.getThreads() + " Shards on " + cores + " Cores, Slower Than None");
+    }
+    housekeeping.schedule("shards", () -> System.out.println("Shards: " + shards.report()), metricsFlushMillis);
+    System.out.println("Shards Started: " + shards.getThreads() + " threads");
+  }
+
+  // One login per account, the password from GHERKIN_PASSWORD_<name>; an account whose login fails stays out
+  private void GherkinStartAccounts()
+  {
+    try
+    {
+      final Properties lines = ParameterWatcher.load(Paths.get(accountsFile));
+      List<GherkinPeeler> started = new ArrayList<GherkinPeeler>();
+      for (String name : new TreeSet<String>(lines.stringPropertyNames()))
+      {
+        final String password = System.getenv("GHERKIN_PASSWORD_" + name);
+        if (password == null)
+        {
+          System.err.println("ERROR - Account Without Password: " + name + ", GHERKIN_PASSWORD_" + name + " is not set");
+          continue;
+        }
+        if (started.size() == Integer.SIZE - 1)
+        {
+          System.err.println("ERROR - Account Ignored: " + name + ", the universe tracks the positions of " + (Integer.SIZE - 1) + " accounts at most");
+          continue;
+        }
+        started.add(new GherkinPeeler(name, url, lines.getProperty(name).trim(), password, productType, tunedParameters, diagnostics, universe, started.size() + 1));
+      }
+      accounts = started.toArray(new GherkinPeeler[0]);
+      for (GherkinPeeler account : accounts)
+      {
+        metrics.include("account_" + account.accountName + "_", account.metrics);
+      }
+      housekeeping.schedule("accounts", this::GherkinAccountsReport, metricsFlushMillis);
+      System.out.println("Accounts: " + accounts.length + " logging in");
+    }
+    catch (IOException e)
+    {
+      System.err.println("ERROR - Accounts Failed: " + accountsFile + ", " + e);
+    }
+  }
+
+  // Housekeeping thread, one line per account trading off our order books
+  private void GherkinAccountsReport()
+  {
+    for (GherkinPeeler account : accounts)
+    {
+      if (!account.accountTrading)
+      {
+        System.out.println("Account: " + account.accountName + ", not logged in");
+        continue;
+      }
+      account.pnl.snapshot(account.pnlSnapshot);
+      System.out.println("Account: " + account.accountName + ", " + account.pnlSnapshot + "; " + account.shards.report() + "; " + account.quality.report());
+    }
+  }
+
+  // Parameter watcher thread, like our own shards
+  private void GherkinTuneAccount(Properties loaded)
+  {
+    tunedParameters = loaded;
+    setParameters(loaded);
+    if (accountTrading) shards.setParameters(loaded);
+  }
+
+  // Login thread at start, then the parameter watcher thread: a file that does not validate changes nothing
+  private void GherkinLoadParameters()
+  {
+    try
+    {
+      final Properties loaded = ParameterWatcher.load(Paths.get(parametersFile));
+      final Parameters validated = new Parameters(loaded);
+      if (eventLog != null && parameterWatcher != null)
+      {
+        reloadedParameters.set(loaded);  // From the watcher thread, swapped in by the market data thread
+      }
+      else
+      {
+        GherkinSwapParameters(loaded);
+      }
+      universe.select(validated.traded);
+      if (shards != null) shards.setParameters(loaded);
+      if (shadow != null) shadow.setBaselineParameters(loaded);
+      if (accounts != null)
+      {
+        for (GherkinPeeler account : accounts) account.GherkinTuneAccount(loaded);
+      }
+      tunedParameters = loaded;
+      metrics.increment(metricParameterReloads);
+      System.out.println("Parameters Loaded: " + validated);
+    }
+    catch (IOException | IllegalArgumentException e)
+    {
+      metrics.increment(metricParameterRejects);
+      System.err.println("ERROR - Parameters Rejected: " + parametersFile + ", " + e);
+    }
+  }
+
+  // Logged as an input, on the thread the inputs come from
+  private void GherkinSwapParameters(Properties swapped)
+  {
+    if (eventLog != null)
+    {
+      eventLog.parameters(swapped);
+    }
+    setParameters(swapped);
+  }
+
+  private void GherkinWatchParameters()
+  {
+    try
+    {
+      parameterWatcher = new ParameterWatcher(Paths.get(parametersFile), this::GherkinLoadParameters);
+      parameterWatcher.start();
+      System.out.println("Parameters Watched: " + parametersFile);
+    }
+    catch (IOException e)
+    {
+      System.err.println("ERROR - Parameters Watch Failure: " + parametersFile + ", " + e);
+    }
+  }
+
+  // Housekeeping thread, sends the subscription changes since the last flush
+  private void GherkinFlushUniverse()
+  {
+    if (universe.flush(this::GherkinRequestOrderBook) > 0)
+    {
+      System.out.println("Universe: " + universe.describe());
+    }
+  }
+
+  private void GherkinRequestOrderBook(long id, boolean subscribe, Callback callback)
+  {
+    if (subscribe)
+    {
+      session.subscribe(new OrderBookSubscriptionRequest(id), callback);
+    }
+    else
+    {
+      session.unsubscribe(new OrderBookSubscriptionRequest(id), callback);
+    }
+  }
+
+  // Housekeeping thread, picks up what the other components count and logs a summary
+  private void GherkinMetricsFlush()
+  {
+    metrics.set(metricCloseOutsCoalesced, rateLimiter.getCoalescedCloseOuts());
+    metrics.set(metricCloseOutMaxQueueMicros, rateLimiter.getMaxQueueNanos() / 1000);
+    metrics.set(metricHeartbeatsMissed, housekeeping.getHeartbeatsMissed());
+    pnl.snapshot(pnlSnapshot);
+    metrics.set(metricPnl, Math.round(pnlSnapshot.totalRealized * FixedPointMath.scaleFactor));
+    metrics.set(metricPnl + 1, Math.round(pnlSnapshot.totalUnrealized * FixedPointMath.scaleFactor));
+    metrics.set(metricPnl + 2, Math.round(pnlSnapshot.grossExposure * FixedPointMath.scaleFactor));
+    System.out.println("P&L: " + pnlSnapshot);
+    metrics.set(metricUniverseSize, universe.getSubscribed());
+    for (short i=0; i<numInstrumentsToTrade; i++)
+    {
+      metrics.set(metricFeedGaps + i, staleness.getGaps(i));
+      metrics.set(metricFeedMaxGapMillis + i, staleness.getMaxGapNanos(i) / 1000000);
+    }
+    System.out.println("Metrics: " + metrics);
+  }
+
+  // For the logs, the instrument a move of pos is most likely followed by and how closely
+  private String likelyFollower(int pos)
+  {
+    final int follower = correlation.likelyFollower(pos);
+    if (follower < 0) return "unknown yet";
+    return instrumentDesc[follower] + " (correlation " + Math.round(correlation.likelyFollowerCorrelation(pos) * 100) / 100.0 + ")";
+  }
+
+  private void setState(GherkinState newState)
+  {
+    if (eventLog != null && orderStub == null)
+    {
+      eventLog.state(state, newState);
+    }
+    state = newState;
+    metrics.increment(metricTransitions + newState.ordinal());
+    metrics.set(metricState, newState.ordinal());
+    if (monitor != null)
+    {
+      monitor.onState(newState.ordinal());
+    }
+  }
+
   private void GherkinStop()
   {
+    if (eventLog != null)
+    {
+      eventLog.flush();
+    }
+    store.force();
     session.stop();
   }
 
+  // All orders go through here, so that they can be stubbed out when driven offline; false if throttled
+  private boolean placeMarketOrder(long id, FixedPointNumber quantity, TimeInForce timeInForce, OrderCallback callback)
+  {
+    MarketOrderSpecification order = new MarketOrderSpecification(id, quantity, timeInForce);
+    if (quality != null && shards == null)
+    {
+      recordDecision(id, quantity.longValue());  // The orders of shards are decided by them, on their own ticks
+    }
+    if (orderStub != null)
+    {
+      final GherkinState decidedIn = state;  // May change if acknowledged at once
+      final boolean sent = orderStub.placeMarketOrder(id, quantity, callback);
+      if (sent && quality != null)
+      {
+        GherkinEvents.decision(decidedIn, id, quantity.longValue(), timeInForce);  // A shard, with its own state
+      }
+      if (sent && !runsOnShard)
+      {
+        metrics.increment(metricOrdersPlaced);
+      }
+      return sent;
+    }
+    // Not sent when throttled, the state does not change and the next tick decides again
+    if (!rateLimiter.tryAcquire(id, System.nanoTime()))
+    {
+      System.err.println("WARNING - Order Throttled: " + quantity + " x " + id + ", " + rateLimiter.getThrottledOrders() + " so far");
+      metrics.increment(metricOrdersThrottled);
+      GherkinEvents.orderThrottled(id, quantity.longValue());
+      if (eventLog != null)
+      {
+        eventLog.throttled(id, quantity.longValue());
+      }
+      return false;
+    }
+    if (shards == null)
+    {
+      GherkinEvents.decision(state, id, quantity.longValue(), timeInForce);  // Shards emit theirs, in their state
+    }
+    quality.onOrderSent(id);
+    if (eventLog != null)
+    {
+      callback = eventLog.traced(callback, eventLog.order(id, quantity.longValue(), timeInForce));
+    }
+    callback = quality.traced(callback, id);
+    metrics.increment(metricOrdersPlaced);
+    GherkinEvents.orderSent(id, quantity.longValue(), 0);
+    session.placeMarketOrder(order, GherkinEvents.traced(callback, id, quantity.longValue()));
+    return true;
+  }
+
+  // The quote at the traded level an order goes against, and when its last tick arrived, kept once the order is sent
+  private void recordDecision(long id, long quantity)
+  {
+    for (short i=0; i<numInstrumentsToTrade; i++)
+    {
+      if (instrumentId[i] == id)
+      {
+        final InstrumentRecord decided = decisionRecord.select(i);
+        quality.onDecision(id, quantity, quantity > 0 ? decided.lastAsk() : decided.lastBid(), staleness.getLastUpdateNanos(i));
+      }
+    }
+  }
+
+  // Offline instances trading the same account (ShardPool) hold one position at a time between them
+  private boolean acquirePosition()
+  {
+    return orderStub == null || orderStub.acquirePosition(instrumentId[this.outstandingPos]);
+  }
+
+  private void releasePosition()
+  {
+    if (orderStub != null)
+    {
+      orderStub.releasePosition();
+    }
+  }
+
+  // Close-outs of unexpected positions, coalesced per instrument by the rate limiter
+  private void placeCloseOutOrder(long id, FixedPointNumber quantity, OrderCallback callback)
+  {
+    if (orderStub != null)
+    {
+      if (quality != null)
+      {
+        GherkinEvents.decision(state, id, quantity.longValue(), TimeInForce.IMMEDIATE_OR_CANCEL);  // A shard, with its own state
+      }
+      orderStub.placeCloseOutOrder(id, quantity, callback);
+      return;
+    }
+    if (shards == null)
+    {
+      GherkinEvents.decision(state, id, quantity.longValue(), TimeInForce.IMMEDIATE_OR_CANCEL);
+    }
+    if (eventLog != null)
+    {
+      callback = eventLog.traced(callback, eventLog.order(id, quantity.longValue(), TimeInForce.IMMEDIATE_OR_CANCEL));
+    }
+    switch (rateLimiter.submitCloseOut(id, quantity, callback, System.nanoTime()))
+    {
+      case OrderRateLimiter.SENT:
+        metrics.increment(metricOrdersPlaced);
+        GherkinEvents.orderSent(id, quantity.longValue(), 0);
+        session.placeMarketOrder(new MarketOrderSpecification(id, quantity, TimeInForce.IMMEDIATE_OR_CANCEL), GherkinEvents.traced(callback, id, quantity.longValue()));
+        break;
+      case OrderRateLimiter.PARKED:
+        System.err.println("WARNING - Close Position Parked: " + quantity + " x " + id);
+        break;
+      case OrderRateLimiter.COALESCED:
+        System.err.println("WARNING - Close Position Coalesced: " + quantity + " x " + id + ", " + rateLimiter.getCoalescedCloseOuts() + " so far");
+        break;
+      case OrderRateLimiter.THROTTLED:
+        System.err.println("WARNING - Close Position Throttled: " + quantity + " x " + id + ", left to the next position event");
+        metrics.increment(metricOrdersThrottled);
+        break;
+    }
+  }
+
+  private void sendParkedCloseOut(long id, FixedPointNumber quantity, OrderCallback callback, long queueNanos, int coalesced)
+  {
+    System.out.printf("Close Position Released: %s x %d after %d us, %d coalesced, %d us max queueing so far%n",
+                      quantity, id, queueNanos / 1000, coalesced, rateLimiter.getMaxQueueNanos() / 1000);
+    metrics.increment(metricOrdersPlaced);
+    GherkinEvents.orderSent(id, quantity.longValue(), queueNanos);
+    session.placeMarketOrder(new MarketOrderSpecification(id, quantity, TimeInForce.IMMEDIATE_OR_CANCEL), GherkinEvents.traced(callback, id, quantity.longValue()));
+  }
+
+  /*
+   * Batch backtest
+   */
+
+  // The count trend of the quotes over columns of ticks, for BatchBacktest; signal=microprice and trend=regression are not evaluated in batches
+  static BatchStrategy newBatchStrategy(Properties parameters, BatchKernels kernels)
+  {
+    final Parameters batchParameters = new Parameters(parameters);
+    if (batchParameters.useMicroprice || batchParameters.useRegression)
+    {
+      throw new IllegalArgumentException("signal microprice and trend regression are not evaluated in batches, only quotes and count");
+    }
+    return new TrendBatch(batchParameters, kernels);
+  }
+
+  // What onOrderBook() decides, a range of ticks at a time: orders are filled at once at the quote and there are no feed gaps
+  private static final class TrendBatch implements BatchStrategy
+  {
+    private final Parameters parameters;
+    private final BatchKernels kernels;
+
+    // Carried over from one range to the next, by instrument position
+    private GherkinState state = GherkinState.READY_TO_OPEN;
+    private final boolean[] started = new boolean[numInstrumentsToTrade];
+    private final long[] firstBid = new long[numInstrumentsToTrade];
+    private final long[] firstAsk = new long[numInstrumentsToTrade];
+    private final long[] lastBid = new long[numInstrumentsToTrade];
+    private final long[] lastAsk = new long[numInstrumentsToTrade];
+    private final short[] lastDirection = new short[numInstrumentsToTrade];
+    private final int[] lastDirectionCount = new int[numInstrumentsToTrade];
+    private final long[] minSpread = new long[numInstrumentsToTrade];
+    private final long[] maxSpread = new long[numInstrumentsToTrade];
+    private int outstandingPos;
+    private long outstandingQuantity;  // Signed
+    private long openPrice;
+    private long closingPriceMin;
+    private long closingPriceMax;
+
+    // Decisions so far
+    private long buys;
+    private long sells;
+    private long closesBest;
+    private long closesWorst;
+    private final long[] realized = new long[numInstrumentsToTrade];  // Quote currency of each instrument
+
+    // Columns of the range, grouped by instrument: its last tick of the previous range first, then its ticks in order
+    private int capacity;
+    private int[] element;  // By tick of the range, where it is in the columns, -1 when not traded
+    private final int[] segmentStart = new int[numInstrumentsToTrade + 1];
+    private final int[] segmentFill = new int[numInstrumentsToTrade];
+    private long[] bid;
+    private long[] ask;
+    private boolean[] up;
+    private boolean[] down;
+    private boolean[] trendingUp;    // Enough consecutive moves, by element
+    private boolean[] trendingDown;
+    private long[] segmentFirstBid;
+    private long[] segmentFirstAsk;
+    private long[] multipleSpreadToOpen;
+    private long[] multipleSpreadToClose;
+    private boolean[] aboveFirstAsk;
+    private boolean[] belowFirstBid;
+
+    TrendBatch(Parameters parameters, BatchKernels kernels)
+    {
+      this.parameters = parameters;
+      this.kernels = kernels;
+      Arrays.fill(minSpread, FixedPointMath.scaleFactor);
+    }
+
+    @Override
+    public void run(int[] pos, long[] thisBid, long[] thisAsk, int from, int to)
+    {
+      final int n = to - from;
+      ensureCapacity(n + numInstrumentsToTrade);
+
+      // Ticks grouped by instrument, those out of the universe left out
+      Arrays.fill(segmentFill, 0);
+      for (int t=from; t<to; t++)
+      {
+        if (parameters.traded[pos[t]]) segmentFill[pos[t]]++;
+      }
+      for (int i=0; i<numInstrumentsToTrade; i++)
+      {
+        segmentStart[i + 1] = segmentStart[i] + 1 + segmentFill[i];
+        bid[segmentStart[i]] = lastBid[i];
+        ask[segmentStart[i]] = lastAsk[i];
+        segmentFill[i] = segmentStart[i] + 1;
+      }
+      for (int t=0; t<n; t++)
+      {
+        final int p = pos[from + t];
+        if (!parameters.traded[p])
+        {
+          element[t] = -1;
+          continue;
+        }
+        final int e = segmentFill[p]++;
+        element[t] = e;
+        bid[e] = thisBid[from + t];
+        ask[e] = thisAsk[from + t];
+      }
+
+      // Direction of each tick against the previous one of the instrument
+      for (int i=0; i<numInstrumentsToTrade; i++)
+      {
+        kernels.direction(bid, ask, up, down, segmentStart[i] + 1, segmentStart[i + 1]);
+      }
+
+      // Consecutive moves, the prices they started from and the spread extremes, in tick order within each instrument
+      final short threshold = parameters.consecutiveThreshold;
+      for (int i=0; i<numInstrumentsToTrade; i++)
+      {
+        for (int e=segmentStart[i]+1; e<segmentStart[i + 1]; e++)
+        {
+          trendingUp[e] = trendingDown[e] = false;
+          if (!started[i])
+          {
+            // First time only, the tick decides nothing
+            started[i] = true;
+            firstBid[i] = bid[e];
+            firstAsk[i] = ask[e];
+            continue;
+          }
+          final short thisDirection = up[e] ? GOING_UP : down[e] ? GOING_DOWN : GOING_DUNNO;
+          if (thisDirection == GOING_DUNNO || thisDirection != lastDirection[i])
+          {
+            lastDirection[i] = thisDirection;
+            lastDirectionCount[i] = 0;
+            firstBid[i] = bid[e];
+            firstAsk[i] = ask[e];
+          }
+          else lastDirectionCount[i]++;
+          final long currentSpread = ask[e] - bid[e];
+          maxSpread[i] = Math.max(maxSpread[i], currentSpread);
+          minSpread[i] = Math.min(minSpread[i], currentSpread);
+          segmentFirstBid[e] = firstBid[i];
+          segmentFirstAsk[e] = firstAsk[i];
+          multipleSpreadToOpen[e] = parameters.spreadMultiplierToOpen * (minSpread[i] + maxSpread[i]);
+          multipleSpreadToClose[e] = parameters.spreadMultiplierToClose * (minSpread[i] + maxSpread[i]);
+          trendingUp[e] = thisDirection == GOING_UP && lastDirectionCount[i] >= threshold;
+          trendingDown[e] = thisDirection == GOING_DOWN && lastDirectionCount[i] >= threshold;
+        }
+        lastBid[i] = bid[segmentStart[i + 1] - 1];
+        lastAsk[i] = ask[segmentStart[i + 1] - 1];
+      }
+
+      // Whether the move is beyond the spread multiple
+      final int size = segmentStart[numInstrumentsToTrade];
+      kernels.above(bid, segmentFirstAsk, multipleSpreadToOpen, aboveFirstAsk, 0, size);
+      kernels.below(ask, segmentFirstBid, multipleSpreadToOpen, belowFirstBid, 0, size);
+
+      // The state machine, in tick order
+      for (int t=0; t<n; t++)
+      {
+        final int e = element[t];
+        if (e < 0) continue;
+        final int p = pos[from + t];
+        switch (state)
+        {
+          case READY_TO_OPEN:
+          {
+            final boolean goingUp = trendingUp[e] & aboveFirstAsk[e];
+            final boolean goingDown = trendingDown[e] & belowFirstBid[e];
+            if (!(goingUp | goingDown)) break;
+            outstandingPos = p;
+            if (goingUp)
+            {
+              buys++;
+              outstandingQuantity = parameters.orderQuantity;
+              openPrice = ask[e];
+              closingPriceMax = openPrice + multipleSpreadToClose[e];
+              closingPriceMin = bid[e] - multipleSpreadToClose[e];
+            }
+            else
+            {
+              sells++;
+              outstandingQuantity = -parameters.orderQuantity;
+              openPrice = bid[e];
+              closingPriceMax = ask[e] + multipleSpreadToClose[e];
+              closingPriceMin = openPrice - multipleSpreadToClose[e];
+            }
+            state = GherkinState.READY_TO_CLOSE;
+            break;
+          }
+          case READY_TO_CLOSE:
+          {
+            if (p != outstandingPos) break;
+            final long closePrice = outstandingQuantity > 0 ? bid[e] : ask[e];
+            final boolean best = outstandingQuantity > 0 ? closePrice > closingPriceMax : closePrice < closingPriceMin;
+            final boolean worst = outstandingQuantity > 0 ? closePrice < closingPriceMin : closePrice > closingPriceMax;
+            if (best || worst)
+            {
+              if (best) closesBest++; else closesWorst++;
+              realized[p] += FixedPointMath.multiply(outstandingQuantity, closePrice - openPrice);
+              state = GherkinState.READY_TO_OPEN;
+            }
+            break;
+          }
+          default:
+            break;
+        }
+      }
+    }
+
+    private void ensureCapacity(int n)
+    {
+      if (n <= capacity) return;
+      element = new int[n];
+      bid = new long[n];
+      ask = new long[n];
+      up = new boolean[n];
+      down = new boolean[n];
+      trendingUp = new boolean[n];
+      trendingDown = new boolean[n];
+      segmentFirstBid = new long[n];
+      segmentFirstAsk = new long[n];
+      multipleSpreadToOpen = new long[n];
+      multipleSpreadToClose = new long[n];
+      aboveFirstAsk = new boolean[n];
+      belowFirstBid = new boolean[n];
+      capacity = n;
+    }
+
+    @Override
+    public long orders()
+    {
+      return buys + sells + closesBest + closesWorst;
+    }
+
+    @Override
+    public String report()
+    {
+      StringBuilder sb = new StringBuilder();
+      sb.append("state=").append(state).append(" opened=").append(buys).append(" buys/").append(sells).append(" sells")
+        .append(" closed=").append(closesBest).append(" best/").append(closesWorst).append(" worst realized");
+      for (short i=0; i<numInstrumentsToTrade; i++)
+      {
+        if (realized[i] != 0) sb.append(" ").append(instrumentDesc[i]).append("=").append(FixedPointNumber.valueOf(realized[i]));
+      }
+      return sb.toString();
+    }
+  }
+
   /*
    * Nested classes containing callbacks
    */
@@ -563,6 +1906,7 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
     public void onFailure(FailureResponse failureResponse)
     {
       System.err.println("ERROR - Order Callback Failure: " + failureResponse);
+      metrics.increment(metricOrdersRejected);
       if (!failureResponse.isSystemFailure())
       {
         System.err.printf("ERROR - Order Callback Data Error: Message: %s, Description: %s", failureResponse.getMessage(), failureResponse.getDescription());
@@ -580,11 +1924,50 @@ public class GherkinPeeler implements LoginCallback, OrderBookEventListener, Ord
           System.err.printf("ERROR - Order Callback Error: Message: %s, Description: %s\n", failureResponse.getMessage(), failureResponse.getDescription());
         }
       }
+      GherkinEvents.reconnect("order failure");
       GherkinStop();
       GherkinStart();
     }
   }
 
+  // Orders of the shards go out from here, their failures restart the session as ours do
+  private final class ShardOrders implements OrderStub
+  {
+    @Override
+    public boolean placeMarketOrder(long id, FixedPointNumber quantity, OrderCallback callback)
+    {
+      return GherkinPeeler.this.placeMarketOrder(id, quantity, TimeInForce.FILL_OR_KILL, new GherkinOrderCallback()
+      {
+        @Override
+        public void onSuccess(long instructionId)
+        {
+          callback.onSuccess(instructionId);
+        }
+      });
+    }
+
+    @Override
+    public void placeCloseOutOrder(long id, FixedPointNumber quantity, OrderCallback callback)
+    {
+      GherkinPeeler.this.placeCloseOutOrder(id, quantity, new GherkinOrderCallback()
+      {
+        @Override
+        public void onSuccess(long instructionId)
+        {
+          rateLimiter.onCloseOutAcknowledged(id);
+          callback.onSuccess(instructionId);
+        }
+
+        @Override
+        public void onFailure(FailureResponse failureResponse)
+        {
+          rateLimiter.onCloseOutFailed(id);
+          super.onFailure(failureResponse);
+        }
+      });
+    }
+  }
+
   private final class GherkinSubscriptionCallback implements Callback
   {
     @Override
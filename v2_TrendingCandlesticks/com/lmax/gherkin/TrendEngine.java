@@ -0,0 +1 @@
+../../../../v1_CurrencyTriangle/com/lmax/gherkin/TrendEngine.java
\ No newline at end of file
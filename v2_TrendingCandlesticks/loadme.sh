@@ -0,0 +1,8 @@
+#!/bin/bash
+
+set -e
+
+javac -cp java-api.jar:. com/lmax/gherkin/LoadGenerator.java
+
+java ${GHERKIN_JAVA_OPTS} -cp java-api.jar:. com.lmax.gherkin.LoadGenerator "$@"
+
@@ -0,0 +1,8 @@
+#!/bin/bash
+
+set -e
+
+javac -cp . com/lmax/gherkin/SessionLogParser.java
+
+java -cp . com.lmax.gherkin.SessionLogParser output.txt journal.bin "$@"
+